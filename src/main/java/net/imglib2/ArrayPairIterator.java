@@ -0,0 +1,404 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package net.imglib2;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+
+/**
+ * A {@link DoublePairIterator} that reads the values of two images
+ * directly from their primitive storage arrays. Both images are
+ * expected to be ArrayImgs or PlanarImgs of the same type and size and
+ * are walked in flat iteration order. The mask needs to be a BitType
+ * ArrayImg or a {@link SpanMask} of the same size. The bits of an
+ * ArrayImg are scanned a word at a time and the spans of a span mask
+ * are followed directly, so masked out areas are skipped quickly. A
+ * full {@link IntervalMask} isn't looked at at all.
+ *
+ * Use {@link #create(RandomAccessibleInterval, RandomAccessibleInterval,
+ * RandomAccessibleInterval)} to get an instance for the supported
+ * images.
+ */
+public abstract class ArrayPairIterator implements DoublePairIterator {
+	// the number of values in one plane (storage array)
+	protected final int planeSize;
+	// the number of values in all planes
+	protected final long size;
+	// the flat index range [start, end) to visit
+	protected long start, end;
+	// the bits of the mask or null if all values should be visited
+	protected final long[] maskBits;
+	// the spans of the mask, used if there are no mask bits
+	protected final SpanMask maskSpans;
+	// the last span looked up in the span mask
+	protected final long[] span = new long[2];
+	// the flat index of the current and the next pair
+	protected long current, next;
+	// the index of the current plane and within the current plane
+	protected int plane, index;
+
+	protected ArrayPairIterator(int planeSize, int numPlanes, long[] maskBits) {
+		this(planeSize, numPlanes, maskBits, null);
+	}
+
+	protected ArrayPairIterator(int planeSize, int numPlanes, long[] maskBits,
+			SpanMask maskSpans) {
+		this.planeSize = planeSize;
+		this.size = (long) planeSize * numPlanes;
+		this.maskBits = maskBits;
+		this.maskSpans = maskSpans;
+		this.start = 0;
+		this.end = size;
+		reset();
+	}
+
+	/**
+	 * Restricts this iterator to a range of flat indices and resets it.
+	 * This way, disjoint parts of the images can be walked over by
+	 * different iterators, e.g. in parallel.
+	 *
+	 * @param from The first flat index to visit
+	 * @param to The flat index after the last one to visit
+	 */
+	public void setRange(long from, long to) {
+		start = Math.max(0, from);
+		end = Math.min(size, to);
+		reset();
+	}
+
+	/**
+	 * Makes the storage arrays of the given plane the current ones.
+	 */
+	protected abstract void selectPlane(int plane);
+
+	@Override
+	public void reset() {
+		current = start - 1;
+		next = start - 1;
+		plane = -1;
+		span[0] = 0;
+		span[1] = 0;
+		// make sure the next step does a full plane look-up
+		index = planeSize;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next <= current)
+			next = findNext(current + 1);
+		return next < end;
+	}
+
+	@Override
+	public void nextPair() {
+		if (next <= current)
+			next = findNext(current + 1);
+		if (next == current + 1 && index + 1 < planeSize) {
+			// the common case: the next pair is in the same plane
+			++index;
+		} else {
+			int p = (int) (next / planeSize);
+			if (p != plane) {
+				plane = p;
+				selectPlane(p);
+			}
+			index = (int) (next - (long) p * planeSize);
+		}
+		current = next;
+	}
+
+	/**
+	 * Finds the first flat index, starting with (and including) the
+	 * passed one, that is part of the mask.
+	 *
+	 * @return The index found or the end of the range if there is none.
+	 */
+	protected long findNext(long from) {
+		if (maskSpans != null)
+			return Math.min(maskSpans.nextOn(from, span), end);
+		if (maskBits == null)
+			return from < end ? from : end;
+		return nextSetBit(maskBits, from, end);
+	}
+
+	/**
+	 * Finds the first set bit, starting with (and including) the
+	 * passed index. The bits are scanned a word at a time.
+	 *
+	 * @param bits The bits to look at, stored like BitType does
+	 * @param from The first index to look at
+	 * @param size The number of valid bits
+	 * @return The index found or size if there is none.
+	 */
+	static long nextSetBit(long[] bits, long from, long size) {
+		if (from >= size)
+			return size;
+		int w = (int) (from >>> 6);
+		long word = bits[w] & (-1L << (from & 63));
+		while (word == 0) {
+			if (++w == bits.length)
+				return size;
+			word = bits[w];
+		}
+		long idx = ((long) w << 6) + Long.numberOfTrailingZeros(word);
+		return idx < size ? idx : size;
+	}
+
+	/**
+	 * Creates an iterator reading from the storage arrays of the passed
+	 * images, if it is possible for them.
+	 *
+	 * @return A new iterator or null if the images are not supported.
+	 */
+	public static ArrayPairIterator create(RandomAccessibleInterval<?> img1,
+			RandomAccessibleInterval<?> img2, RandomAccessibleInterval<BitType> mask) {
+		final long[] maskBits = getMaskBits(mask);
+		final SpanMask maskSpans = getMaskSpans(mask);
+		if (maskBits == null && maskSpans == null && !isFull(mask))
+			return null;
+		if (!sameSize(img1, mask) || !sameSize(img2, mask))
+			return null;
+		final Object[] planes1 = getPlanes(img1);
+		final Object[] planes2 = getPlanes(img2);
+		if (planes1 == null || planes2 == null || planes1.length != planes2.length)
+			return null;
+		final int numPlanes = planes1.length;
+		final long total = Intervals.numElements(mask);
+		if (total % numPlanes != 0 || total / numPlanes > Integer.MAX_VALUE)
+			return null;
+		final int planeSize = (int) (total / numPlanes);
+
+		final Object type1 = ((IterableInterval<?>) img1).firstElement();
+		final Object type2 = ((IterableInterval<?>) img2).firstElement();
+		if (type1.getClass() != type2.getClass())
+			return null;
+
+		if (type1.getClass() == UnsignedByteType.class
+				&& planes1 instanceof byte[][] && planes2 instanceof byte[][])
+			return new UnsignedBytes((byte[][]) planes1, (byte[][]) planes2,
+					planeSize, maskBits, maskSpans);
+		if (type1.getClass() == UnsignedShortType.class
+				&& planes1 instanceof short[][] && planes2 instanceof short[][])
+			return new UnsignedShorts((short[][]) planes1, (short[][]) planes2,
+					planeSize, maskBits, maskSpans);
+		if (type1.getClass() == FloatType.class
+				&& planes1 instanceof float[][] && planes2 instanceof float[][])
+			return new Floats((float[][]) planes1, (float[][]) planes2,
+					planeSize, maskBits, maskSpans);
+		return null;
+	}
+
+	/**
+	 * Gets the bits of a BitType ArrayImg mask.
+	 *
+	 * @return The bits or null if the mask is not supported.
+	 */
+	static long[] getMaskBits(RandomAccessibleInterval<BitType> mask) {
+		if (!(mask instanceof ArrayImg))
+			return null;
+		Object access = ((ArrayImg<?, ?>) mask).update(null);
+		if (!(access instanceof ArrayDataAccess))
+			return null;
+		Object bits = ((ArrayDataAccess<?>) access).getCurrentStorageArray();
+		return bits instanceof long[] ? (long[]) bits : null;
+	}
+
+	/**
+	 * Gets a mask as span mask, unless it is on everywhere.
+	 *
+	 * @return The span mask or null if the mask is no span mask or full.
+	 */
+	static SpanMask getMaskSpans(RandomAccessibleInterval<BitType> mask) {
+		if (!(mask instanceof SpanMask) || isFull(mask))
+			return null;
+		return (SpanMask) mask;
+	}
+
+	/**
+	 * Tests whether a mask is a virtual mask that is on everywhere.
+	 */
+	static boolean isFull(RandomAccessibleInterval<BitType> mask) {
+		return mask instanceof IntervalMask && ((IntervalMask) mask).isFull();
+	}
+
+	/**
+	 * Gets the storage arrays of an ArrayImg (a single plane) or of a
+	 * PlanarImg. The returned array has the component type of the storage
+	 * arrays, e.g. byte[][] for byte arrays.
+	 *
+	 * @return The storage arrays or null if the image is not supported.
+	 */
+	public static Object[] getPlanes(RandomAccessibleInterval<?> img) {
+		final Object[] accesses;
+		if (img instanceof ArrayImg) {
+			accesses = new Object[] { ((ArrayImg<?, ?>) img).update(null) };
+		} else if (img instanceof PlanarImg) {
+			final PlanarImg<?, ?> planarImg = (PlanarImg<?, ?>) img;
+			accesses = new Object[planarImg.numSlices()];
+			for (int i = 0; i < accesses.length; ++i)
+				accesses[i] = planarImg.getPlane(i);
+		} else {
+			return null;
+		}
+
+		Object[] planes = null;
+		for (int i = 0; i < accesses.length; ++i) {
+			if (!(accesses[i] instanceof ArrayDataAccess))
+				return null;
+			final Object data = ((ArrayDataAccess<?>) accesses[i]).getCurrentStorageArray();
+			if (planes == null) {
+				// create an array of the storage array type
+				planes = (Object[]) java.lang.reflect.Array.newInstance(
+						data.getClass(), accesses.length);
+			} else if (data.getClass() != planes.getClass().getComponentType()) {
+				return null;
+			}
+			planes[i] = data;
+		}
+		return planes;
+	}
+
+	/**
+	 * Tests whether an image has the same size as the mask and starts
+	 * at the origin.
+	 */
+	static boolean sameSize(Interval img, Interval mask) {
+		if (img.numDimensions() != mask.numDimensions())
+			return false;
+		for (int d = 0; d < img.numDimensions(); ++d) {
+			if (img.min(d) != 0 || mask.min(d) != 0 || img.dimension(d) != mask.dimension(d))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Iterates over two unsigned 8-bit images.
+	 */
+	public static final class UnsignedBytes extends ArrayPairIterator {
+		final byte[][] planes1, planes2;
+		byte[] data1, data2;
+
+		public UnsignedBytes(byte[][] planes1, byte[][] planes2, int planeSize, long[] maskBits) {
+			this(planes1, planes2, planeSize, maskBits, null);
+		}
+
+		public UnsignedBytes(byte[][] planes1, byte[][] planes2, int planeSize, long[] maskBits,
+				SpanMask maskSpans) {
+			super(planeSize, planes1.length, maskBits, maskSpans);
+			this.planes1 = planes1;
+			this.planes2 = planes2;
+		}
+
+		@Override
+		protected void selectPlane(int plane) {
+			data1 = planes1[plane];
+			data2 = planes2[plane];
+		}
+
+		@Override
+		public double first() {
+			return data1[index] & 0xff;
+		}
+
+		@Override
+		public double second() {
+			return data2[index] & 0xff;
+		}
+	}
+
+	/**
+	 * Iterates over two unsigned 16-bit images.
+	 */
+	public static final class UnsignedShorts extends ArrayPairIterator {
+		final short[][] planes1, planes2;
+		short[] data1, data2;
+
+		public UnsignedShorts(short[][] planes1, short[][] planes2, int planeSize, long[] maskBits) {
+			this(planes1, planes2, planeSize, maskBits, null);
+		}
+
+		public UnsignedShorts(short[][] planes1, short[][] planes2, int planeSize, long[] maskBits,
+				SpanMask maskSpans) {
+			super(planeSize, planes1.length, maskBits, maskSpans);
+			this.planes1 = planes1;
+			this.planes2 = planes2;
+		}
+
+		@Override
+		protected void selectPlane(int plane) {
+			data1 = planes1[plane];
+			data2 = planes2[plane];
+		}
+
+		@Override
+		public double first() {
+			return data1[index] & 0xffff;
+		}
+
+		@Override
+		public double second() {
+			return data2[index] & 0xffff;
+		}
+	}
+
+	/**
+	 * Iterates over two 32-bit float images.
+	 */
+	public static final class Floats extends ArrayPairIterator {
+		final float[][] planes1, planes2;
+		float[] data1, data2;
+
+		public Floats(float[][] planes1, float[][] planes2, int planeSize, long[] maskBits) {
+			this(planes1, planes2, planeSize, maskBits, null);
+		}
+
+		public Floats(float[][] planes1, float[][] planes2, int planeSize, long[] maskBits,
+				SpanMask maskSpans) {
+			super(planeSize, planes1.length, maskBits, maskSpans);
+			this.planes1 = planes1;
+			this.planes2 = planes2;
+		}
+
+		@Override
+		protected void selectPlane(int plane) {
+			data1 = planes1[plane];
+			data2 = planes2[plane];
+		}
+
+		@Override
+		public double first() {
+			return data1[index];
+		}
+
+		@Override
+		public double second() {
+			return data2[index];
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package net.imglib2;
+
+import java.util.Arrays;
+
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * A {@link DoublePairIterator} over two CellImgs with the same cell grid
+ * that visits the cells one after another, in the order they are
+ * stored. Within a cell, the masked pairs are visited in flat iteration
+ * order. This way every cell is loaded only once per pass, even if the
+ * images are cached on disk and only a few of their cells fit into
+ * memory at a time. Cells outside of the mask's bounding box are
+ * skipped.
+ *
+ * Use {@link #create(RandomAccessibleInterval, RandomAccessibleInterval,
+ * RandomAccessibleInterval)} to get an instance for the supported
+ * images.
+ */
+public class CellPairIterator<T extends RealType<T>> implements DoublePairIterator {
+	// the images and the mask to walk over
+	final RandomAccessibleInterval<T> img1, img2;
+	final RandomAccessibleInterval<BitType> mask;
+	// the cell grid of both images
+	final CellGrid grid;
+	// the bounding box of the mask or null if nothing is masked in
+	final Interval bb;
+	// the range of flat cell indices [fromCell, toCell) to visit
+	protected long fromCell, toCell;
+	// the flat index of the next cell to visit
+	protected long nextCell;
+	// the iterator over the pairs of the current cell
+	protected DoublePairIterator cellIterator;
+	// random accesses shared by the iterators of all cells
+	final RandomAccess<T> access1, access2;
+	// the position of the current cell, reused for every cell
+	final long[] cellMin, min, max;
+	final int[] cellDims;
+
+	protected CellPairIterator(RandomAccessibleInterval<T> img1,
+			RandomAccessibleInterval<T> img2, RandomAccessibleInterval<BitType> mask,
+			CellGrid grid) {
+		this.img1 = img1;
+		this.img2 = img2;
+		this.mask = mask;
+		this.grid = grid;
+		this.bb = PairIterators.boundingBox(mask);
+		this.access1 = img1.randomAccess();
+		this.access2 = img2.randomAccess();
+		final int n = grid.numDimensions();
+		cellMin = new long[n];
+		min = new long[n];
+		max = new long[n];
+		cellDims = new int[n];
+		setCellRange(0, getNumCells());
+	}
+
+	/**
+	 * Creates an iterator walking over the cells of the passed images,
+	 * if it is possible for them.
+	 *
+	 * @return A new iterator or null if the images are not supported.
+	 */
+	public static <T extends RealType<T>> CellPairIterator<T> create(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<T> img2,
+			RandomAccessibleInterval<BitType> mask) {
+		if (!isSupported(img1, img2, mask))
+			return null;
+		return new CellPairIterator<T>(img1, img2, mask,
+				((AbstractCellImg<?, ?, ?, ?>) img1).getCellGrid());
+	}
+
+	/**
+	 * Tests whether both images are CellImgs with the same cell grid,
+	 * of the same size as the mask.
+	 */
+	public static boolean isSupported(RandomAccessibleInterval<?> img1,
+			RandomAccessibleInterval<?> img2, Interval mask) {
+		if (!(img1 instanceof AbstractCellImg) || !(img2 instanceof AbstractCellImg))
+			return false;
+		if (!ArrayPairIterator.sameSize(img1, mask) || !ArrayPairIterator.sameSize(img2, mask))
+			return false;
+		final CellGrid grid1 = ((AbstractCellImg<?, ?, ?, ?>) img1).getCellGrid();
+		final CellGrid grid2 = ((AbstractCellImg<?, ?, ?, ?>) img2).getCellGrid();
+		return Arrays.equals(grid1.getCellDimensions(), grid2.getCellDimensions());
+	}
+
+	/**
+	 * Gets the number of cells of the images.
+	 */
+	public long getNumCells() {
+		return Intervals.numElements(grid.getGridDimensions());
+	}
+
+	/**
+	 * Restricts this iterator to a range of cells and resets it. This
+	 * way, disjoint sets of cells can be walked over by different
+	 * iterators, e.g. in parallel.
+	 *
+	 * @param from The flat index of the first cell to visit
+	 * @param to The flat index after the last cell to visit
+	 */
+	public void setCellRange(long from, long to) {
+		fromCell = Math.max(0, from);
+		toCell = Math.min(getNumCells(), to);
+		reset();
+	}
+
+	@Override
+	public void reset() {
+		nextCell = fromCell;
+		cellIterator = null;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (cellIterator == null || !cellIterator.hasNext()) {
+			if (bb == null || nextCell >= toCell)
+				return false;
+			cellIterator = cellIterator(nextCell++);
+		}
+		return true;
+	}
+
+	@Override
+	public void nextPair() {
+		if (hasNext())
+			cellIterator.nextPair();
+	}
+
+	@Override
+	public double first() {
+		return cellIterator.first();
+	}
+
+	@Override
+	public double second() {
+		return cellIterator.second();
+	}
+
+	/**
+	 * Creates an iterator over the masked pairs of a cell.
+	 *
+	 * @return The iterator or null if the cell is outside of the bounding box
+	 */
+	protected DoublePairIterator cellIterator(long cell) {
+		grid.getCellDimensions(cell, cellMin, cellDims);
+		for (int d = 0; d < min.length; ++d) {
+			min[d] = Math.max(cellMin[d], bb.min(d));
+			max[d] = Math.min(cellMin[d] + cellDims[d] - 1, bb.max(d));
+			if (min[d] > max[d])
+				return null;
+		}
+		return PairIterators.doubles(new TwinCursor<T>(access1, access2,
+				Views.flatIterable(Views.interval(mask, min, max)).localizingCursor()));
+	}
+}
@@ -0,0 +1,62 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package net.imglib2;
+
+/**
+ * An iterator over pairs of primitive values. In contrast to the
+ * {@link PairIterator} no types are involved, which keeps the calls
+ * monomorphic in loops that only need the real values of both pairs.
+ * Integer values are reported exactly as doubles.
+ */
+public interface DoublePairIterator {
+
+	/**
+	 * Returns whether there are pairs left.
+	 *
+	 * @return true if there are pairs left.
+	 */
+	boolean hasNext();
+
+	/**
+	 * Resets the iterator to just before the first element.
+	 */
+	void reset();
+
+	/**
+	 * Go to the next pair.
+	 */
+	void nextPair();
+
+	/**
+	 * Return the first value of the current pair.
+	 *
+	 * @return the first value of the pair
+	 */
+	double first();
+
+	/**
+	 * Return the second value of the current pair.
+	 *
+	 * @return the second value of the pair
+	 */
+	double second();
+}
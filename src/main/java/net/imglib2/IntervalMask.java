@@ -0,0 +1,139 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package net.imglib2;
+
+/**
+ * A virtual mask that is on within a box and off elsewhere. It needs
+ * no storage, all rows within the box share the same single span. A
+ * mask whose box covers the whole image is always on; iterators over
+ * array-backed images don't look at such a mask at all, so walking
+ * over it degenerates to plain pair iteration.
+ */
+public class IntervalMask extends SpanMask {
+	// the box, relative to the origin, with an exclusive end
+	protected final long[] boxMin, boxEnd;
+	// the span of all rows within the box or null if the box is empty
+	protected final long[] span;
+
+	/**
+	 * Creates a mask that is on everywhere.
+	 *
+	 * @param dim The dimensions of the mask
+	 */
+	public IntervalMask(final long[] dim) {
+		this(dim, new long[dim.length], dim);
+	}
+
+	/**
+	 * Creates a mask that is on within a box. The box gets clipped to
+	 * the dimensions of the mask.
+	 *
+	 * @param dim The dimensions of the mask
+	 * @param offset The offset of the box
+	 * @param boxSize The size of the box
+	 */
+	public IntervalMask(final long[] dim, final long[] offset, final long[] boxSize) {
+		super(dim, false);
+		boxMin = new long[n];
+		boxEnd = new long[n];
+		boolean empty = false;
+		for (int d = 0; d < n; ++d) {
+			boxMin[d] = Math.max(0, offset[d]);
+			boxEnd[d] = Math.min(dim[d], offset[d] + boxSize[d]);
+			empty |= boxMin[d] >= boxEnd[d];
+		}
+		span = empty ? null : new long[] { boxMin[0], boxEnd[0] };
+	}
+
+	/**
+	 * Gets whether this mask is on everywhere.
+	 */
+	public boolean isFull() {
+		if (span == null)
+			return size == 0;
+		for (int d = 0; d < n; ++d)
+			if (boxMin[d] != 0 || boxEnd[d] != dimension(d))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Gets whether this mask is off everywhere.
+	 */
+	public boolean isEmpty() {
+		return span == null;
+	}
+
+	@Override
+	public long[] getSpans(final int row) {
+		if (span == null)
+			return null;
+		long r = row;
+		for (int d = 1; d < n; ++d) {
+			final long pos = r % dimension(d);
+			if (pos < boxMin[d] || pos >= boxEnd[d])
+				return null;
+			r /= dimension(d);
+		}
+		return span;
+	}
+
+	@Override
+	public void setSpans(final int row, final long[] spans) {
+		throw new UnsupportedOperationException("An interval mask can't be changed.");
+	}
+
+	@Override
+	public boolean contains(final Localizable pos) {
+		if (span == null)
+			return false;
+		for (int d = 0; d < n; ++d) {
+			final long p = pos.getLongPosition(d) - min[d];
+			if (p < boxMin[d] || p >= boxEnd[d])
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public Interval getBoundingBox() {
+		if (span == null)
+			return null;
+		final long[] bbMin = new long[n];
+		final long[] bbMax = new long[n];
+		for (int d = 0; d < n; ++d) {
+			bbMin[d] = min[d] + boxMin[d];
+			bbMax[d] = min[d] + boxEnd[d] - 1;
+		}
+		return new FinalInterval(bbMin, bbMax);
+	}
+
+	@Override
+	public long countOn() {
+		if (span == null)
+			return 0;
+		long count = 1;
+		for (int d = 0; d < n; ++d)
+			count *= boxEnd[d] - boxMin[d];
+		return count;
+	}
+}
@@ -0,0 +1,234 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package net.imglib2;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+
+/**
+ * A {@link TwinCursor} for two ArrayImgs and an ArrayImg or {@link
+ * SpanMask} mask of the same size. Instead of localizing the mask and positioning two random
+ * accesses for every pixel, it advances a single flat index. The types
+ * returned are linked to the storage arrays of the images and only get
+ * their index updated. Position information is derived from the flat
+ * index on request.
+ *
+ * Use {@link PairIterators#twinCursor(RandomAccessibleInterval,
+ * RandomAccessibleInterval, RandomAccessibleInterval)} to get the best
+ * cursor for a set of images.
+ */
+public class LinearTwinCursor<T extends NativeType<T>> extends TwinCursor<T> {
+	// the images and the mask walked over
+	final protected ArrayImg<T, ?> img1, img2;
+	final protected RandomAccessibleInterval<BitType> maskImg;
+	// the types linked to the storage of both images
+	final protected T type1, type2;
+	// the bits of the mask or, for span masks and full masks, null
+	final protected long[] maskBits;
+	// the spans of the mask and the last span looked up in it
+	final protected SpanMask maskSpans;
+	final protected long[] span = new long[2];
+	// the number of pixels and the image dimensions
+	final protected long size;
+	final protected long[] dimensions;
+	// the flat index range [start, end) to visit
+	protected long start, end;
+	// the flat index of the current and the next pixel
+	protected long current, next;
+
+	/**
+	 * Creates a new cursor. All images are expected to have the same
+	 * dimensions, use {@link #isSupported} to test this.
+	 */
+	public LinearTwinCursor(final ArrayImg<T, ?> img1, final ArrayImg<T, ?> img2,
+			final RandomAccessibleInterval<BitType> mask) {
+		super(mask.numDimensions());
+		this.img1 = img1;
+		this.img2 = img2;
+		this.maskImg = mask;
+		type1 = img1.randomAccess().get();
+		type2 = img2.randomAccess().get();
+		maskBits = ArrayPairIterator.getMaskBits(mask);
+		maskSpans = ArrayPairIterator.getMaskSpans(mask);
+		dimensions = new long[mask.numDimensions()];
+		mask.dimensions(dimensions);
+		size = img1.size();
+		start = 0;
+		end = size;
+		reset();
+	}
+
+	/**
+	 * Restricts this cursor to a range of flat indices and resets it.
+	 * This way, disjoint parts of the images can be walked over by
+	 * different cursors, e.g. in parallel.
+	 *
+	 * @param from The first flat index to visit
+	 * @param to The flat index after the last one to visit
+	 */
+	public void setRange(long from, long to) {
+		start = Math.max(0, from);
+		end = Math.min(size, to);
+		reset();
+	}
+
+	/**
+	 * Tests whether a linear cursor can walk over the passed images.
+	 */
+	public static boolean isSupported(RandomAccessibleInterval<?> img1,
+			RandomAccessibleInterval<?> img2, RandomAccessibleInterval<BitType> mask) {
+		return img1 instanceof ArrayImg && img2 instanceof ArrayImg
+				&& (ArrayPairIterator.getMaskBits(mask) != null || mask instanceof SpanMask)
+				&& ArrayPairIterator.sameSize(img1, mask)
+				&& ArrayPairIterator.sameSize(img2, mask);
+	}
+
+	@Override
+	public boolean hasNext() {
+		gotNext = false;
+		if (next <= current)
+			next = findNext(current + 1);
+		return next < end;
+	}
+
+	@Override
+	public void getNext() {
+		if (gotNext)
+			return;
+		if (next <= current)
+			next = findNext(current + 1);
+		current = next;
+		type1.updateIndex((int) current);
+		type2.updateIndex((int) current);
+		gotNext = true;
+	}
+
+	@Override
+	public T getFirst() {
+		getNext();
+		return type1;
+	}
+
+	@Override
+	public T getSecond() {
+		getNext();
+		return type2;
+	}
+
+	@Override
+	public void reset() {
+		gotNext = false;
+		current = start - 1;
+		next = start - 1;
+		span[0] = 0;
+		span[1] = 0;
+	}
+
+	/**
+	 * Finds the first flat index, starting with (and including) the
+	 * passed one, that is part of the mask.
+	 */
+	protected long findNext(long from) {
+		if (maskSpans != null)
+			return Math.min(maskSpans.nextOn(from, span), end);
+		if (maskBits == null)
+			return from < end ? from : end;
+		return ArrayPairIterator.nextSetBit(maskBits, from, end);
+	}
+
+	@Override
+	public void jumpFwd(long steps) {
+		for (long i = 0; i < steps; ++i)
+			fwd();
+	}
+
+	@Override
+	public LinearTwinCursor<T> copy() {
+		LinearTwinCursor<T> copy = new LinearTwinCursor<T>(img1, img2, maskImg);
+		copy.start = start;
+		copy.end = end;
+		copy.current = current;
+		copy.next = next;
+		copy.gotNext = gotNext;
+		if (current >= 0) {
+			copy.type1.updateIndex((int) current);
+			copy.type2.updateIndex((int) current);
+		}
+		return copy;
+	}
+
+	@Override
+	public long getLongPosition(int d) {
+		long index = current;
+		for (int i = 0; i < d; ++i)
+			index /= dimensions[i];
+		return index % dimensions[d];
+	}
+
+	@Override
+	public int getIntPosition(int d) {
+		return (int) getLongPosition(d);
+	}
+
+	@Override
+	public double getDoublePosition(int d) {
+		return getLongPosition(d);
+	}
+
+	@Override
+	public float getFloatPosition(int d) {
+		return getLongPosition(d);
+	}
+
+	@Override
+	public void localize(long[] pos) {
+		long index = current;
+		for (int d = 0; d < dimensions.length; ++d) {
+			pos[d] = index % dimensions[d];
+			index /= dimensions[d];
+		}
+	}
+
+	@Override
+	public void localize(int[] pos) {
+		for (int d = 0; d < dimensions.length; ++d)
+			pos[d] = getIntPosition(d);
+	}
+
+	@Override
+	public void localize(float[] pos) {
+		for (int d = 0; d < dimensions.length; ++d)
+			pos[d] = getFloatPosition(d);
+	}
+
+	@Override
+	public void localize(double[] pos) {
+		for (int d = 0; d < dimensions.length; ++d)
+			pos[d] = getDoublePosition(d);
+	}
+
+	@Override
+	public int numDimensions() {
+		return dimensions.length;
+	}
+}
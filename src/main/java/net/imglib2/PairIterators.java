@@ -0,0 +1,313 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package net.imglib2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.type.Type;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Factory methods for iterators over the pairs of values of two images
+ * with respect to a mask. Where possible, iterators are returned that
+ * work directly on the storage of the images.
+ */
+public class PairIterators {
+
+	private PairIterators() {
+		// prevent instantiation of utility class
+	}
+
+	/**
+	 * Creates an iterator over the primitive values of two images with
+	 * respect to a mask. For ArrayImgs and PlanarImgs of unsigned byte,
+	 * unsigned short and float type with an ArrayImg or {@link SpanMask}
+	 * mask, the values are read directly from the storage arrays. CellImgs
+	 * with the same cell grid are walked over cell by cell with a
+	 * {@link CellPairIterator}. For all other images a
+	 * {@link TwinCursor} is used. Only the bounding box of a
+	 * {@link SpanMask} is walked over.
+	 *
+	 * @param img1 The first image to walk over
+	 * @param img2 The second image to walk over
+	 * @param mask The mask defining the pairs to visit
+	 * @return A new iterator
+	 */
+	public static <T extends RealType<T>> DoublePairIterator doubles(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<T> img2,
+			RandomAccessibleInterval<BitType> mask) {
+		ArrayPairIterator iterator = ArrayPairIterator.create(img1, img2, mask);
+		if (iterator != null) {
+			final long[] range = flatRange(mask);
+			iterator.setRange(range[0], range[1]);
+			return iterator;
+		}
+		CellPairIterator<T> cells = CellPairIterator.create(img1, img2, mask);
+		if (cells != null)
+			return cells;
+		return doubles(twinCursor(img1, img2, mask));
+	}
+
+	/**
+	 * Creates a {@link TwinCursor} over two images with respect to a mask.
+	 * If both images are ArrayImgs and the mask is an ArrayImg or a
+	 * {@link SpanMask} of the same size, a
+	 * {@link LinearTwinCursor} is returned that advances a single flat
+	 * index. Views, PlanarImgs and CellImgs get a regular TwinCursor.
+	 * Only the bounding box of a {@link SpanMask} is walked over.
+	 *
+	 * @param img1 The first image to walk over
+	 * @param img2 The second image to walk over
+	 * @param mask The mask defining the pairs to visit
+	 * @return A new cursor
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static <T extends Type<T>> TwinCursor<T> twinCursor(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<T> img2,
+			RandomAccessibleInterval<BitType> mask) {
+		final long[] range = flatRange(mask);
+		if (LinearTwinCursor.isSupported(img1, img2, mask)) {
+			LinearTwinCursor cursor = new LinearTwinCursor((ArrayImg) img1, (ArrayImg) img2, mask);
+			cursor.setRange(range[0], range[1]);
+			return cursor;
+		}
+		if (mask instanceof SpanMask)
+			return new TwinCursor<T>(img1.randomAccess(), img2.randomAccess(),
+					((SpanMask) mask).onCursor(range[0], range[1]));
+		return new TwinCursor<T>(img1.randomAccess(),
+				img2.randomAccess(), Views.iterable(mask).localizingCursor());
+	}
+
+	/**
+	 * Creates iterators over disjoint chunks of two images with respect
+	 * to a mask. The bounding box of the mask is split along its last
+	 * dimension, so every chunk is a slab of rows. CellImgs are split into
+	 * ranges of cells instead. Together, the iterators visit the same pairs
+	 * in the same order as a single iterator does.
+	 *
+	 * @param img1 The first image to walk over
+	 * @param img2 The second image to walk over
+	 * @param mask The mask defining the pairs to visit
+	 * @param numChunks The maximal number of chunks
+	 * @return A list of iterators, one per chunk
+	 */
+	public static <T extends RealType<T>> List<DoublePairIterator> doubles(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<T> img2,
+			RandomAccessibleInterval<BitType> mask, int numChunks) {
+		final Interval bb = boundingBox(mask);
+		if (bb == null)
+			return Collections.singletonList(doubles(img1, img2, mask));
+		final List<DoublePairIterator> chunks = new ArrayList<DoublePairIterator>();
+		if (CellPairIterator.isSupported(img1, img2, mask)) {
+			final long numCells = CellPairIterator.create(img1, img2, mask).getNumCells();
+			final int k = (int) Math.max(1, Math.min(numChunks, numCells));
+			for (int i = 0; i < k; ++i) {
+				CellPairIterator<T> cells = CellPairIterator.create(img1, img2, mask);
+				cells.setCellRange(numCells * i / k, numCells * (i + 1) / k);
+				chunks.add(cells);
+			}
+			return chunks;
+		}
+		final long[] bounds = splitLastDimension(bb, numChunks);
+		for (int i = 0; i < bounds.length - 1; ++i) {
+			ArrayPairIterator iterator = ArrayPairIterator.create(img1, img2, mask);
+			if (iterator != null) {
+				final long[] range = flatRange(mask, bb, bounds[i], bounds[i + 1]);
+				iterator.setRange(range[0], range[1]);
+				chunks.add(iterator);
+			} else {
+				chunks.add(doubles(slabCursor(img1, img2, mask, bb, bounds[i], bounds[i + 1])));
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * Creates {@link TwinCursor}s over disjoint chunks of two images with
+	 * respect to a mask. The bounding box of the mask is split along its
+	 * last dimension, so every chunk is a slab of rows.
+	 *
+	 * @param img1 The first image to walk over
+	 * @param img2 The second image to walk over
+	 * @param mask The mask defining the pairs to visit
+	 * @param numChunks The maximal number of chunks
+	 * @return A list of cursors, one per chunk
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static <T extends Type<T>> List<TwinCursor<T>> twinCursors(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<T> img2,
+			RandomAccessibleInterval<BitType> mask, int numChunks) {
+		final Interval bb = boundingBox(mask);
+		if (bb == null)
+			return Collections.singletonList(twinCursor(img1, img2, mask));
+		final long[] bounds = splitLastDimension(bb, numChunks);
+		final List<TwinCursor<T>> chunks = new ArrayList<TwinCursor<T>>();
+		for (int i = 0; i < bounds.length - 1; ++i) {
+			if (LinearTwinCursor.isSupported(img1, img2, mask)) {
+				LinearTwinCursor cursor = new LinearTwinCursor((ArrayImg) img1, (ArrayImg) img2, mask);
+				final long[] range = flatRange(mask, bb, bounds[i], bounds[i + 1]);
+				cursor.setRange(range[0], range[1]);
+				chunks.add(cursor);
+			} else {
+				chunks.add(slabCursor(img1, img2, mask, bb, bounds[i], bounds[i + 1]));
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * Creates a regular {@link TwinCursor} over the part of a bounding
+	 * box between two positions (relative to the box's minimum) in the
+	 * last dimension.
+	 */
+	protected static <T extends Type<T>> TwinCursor<T> slabCursor(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<T> img2,
+			RandomAccessibleInterval<BitType> mask, Interval bb, long from, long to) {
+		if (mask instanceof SpanMask) {
+			final long[] range = flatRange(mask, bb, from, to);
+			return new TwinCursor<T>(img1.randomAccess(), img2.randomAccess(),
+					((SpanMask) mask).onCursor(range[0], range[1]));
+		}
+		final int last = bb.numDimensions() - 1;
+		final long[] min = new long[bb.numDimensions()];
+		final long[] max = new long[bb.numDimensions()];
+		bb.min(min);
+		bb.max(max);
+		max[last] = min[last] + to - 1;
+		min[last] += from;
+		return new TwinCursor<T>(img1.randomAccess(), img2.randomAccess(),
+				Views.flatIterable(Views.interval(mask, min, max)).localizingCursor());
+	}
+
+	/**
+	 * Gets the smallest interval that contains all pixels of a mask that
+	 * may be on. For a {@link SpanMask} this is its bounding box, for any
+	 * other mask it is the mask itself.
+	 *
+	 * @return The bounding box or null if no pixel of the mask is on.
+	 */
+	public static Interval boundingBox(RandomAccessibleInterval<BitType> mask) {
+		if (mask instanceof SpanMask)
+			return ((SpanMask) mask).getBoundingBox();
+		return mask;
+	}
+
+	/**
+	 * Gets the range of flat indices of a mask, in flat iteration order,
+	 * that covers the bounding box of the mask.
+	 *
+	 * @return The first index and the index after the last one
+	 */
+	protected static long[] flatRange(RandomAccessibleInterval<BitType> mask) {
+		final Interval bb = boundingBox(mask);
+		if (bb == null)
+			return new long[] { 0, 0 };
+		return flatRange(mask, bb, 0, bb.dimension(bb.numDimensions() - 1));
+	}
+
+	/**
+	 * Gets the range of flat indices of a mask, in flat iteration order,
+	 * that covers the part of a bounding box between two positions
+	 * (relative to the box's minimum) in the last dimension.
+	 *
+	 * @return The first index and the index after the last one
+	 */
+	protected static long[] flatRange(Interval mask, Interval bb, long from, long to) {
+		final int last = bb.numDimensions() - 1;
+		final long[] first = new long[bb.numDimensions()];
+		final long[] end = new long[bb.numDimensions()];
+		bb.min(first);
+		bb.max(end);
+		first[last] = bb.min(last) + from;
+		end[last] = bb.min(last) + to - 1;
+		return new long[] { flatIndex(mask, first), flatIndex(mask, end) + 1 };
+	}
+
+	/**
+	 * Gets the flat index of a position, relative to the minimum of an
+	 * interval.
+	 */
+	protected static long flatIndex(Interval interval, long[] position) {
+		long index = 0;
+		for (int d = interval.numDimensions() - 1; d >= 0; --d)
+			index = index * interval.dimension(d) + position[d] - interval.min(d);
+		return index;
+	}
+
+	/**
+	 * Splits the last dimension of an interval into at most the given
+	 * number of parts of about the same size.
+	 *
+	 * @return The boundaries of the parts, relative to the minimum
+	 */
+	protected static long[] splitLastDimension(Interval interval, int numChunks) {
+		final long length = interval.dimension(interval.numDimensions() - 1);
+		final int k = (int) Math.max(1, Math.min(numChunks, length));
+		final long[] bounds = new long[k + 1];
+		for (int i = 0; i <= k; ++i)
+			bounds[i] = length * i / k;
+		return bounds;
+	}
+
+	/**
+	 * Creates an iterator over the primitive values of the pairs a
+	 * {@link PairIterator}, e.g. a {@link TwinCursor}, visits.
+	 *
+	 * @param cursor The iterator to get the values from
+	 * @return A new iterator
+	 */
+	public static <T extends RealType<T>> DoublePairIterator doubles(
+			final PairIterator<T> cursor) {
+		return new DoublePairIterator() {
+
+			@Override
+			public boolean hasNext() {
+				return cursor.hasNext();
+			}
+
+			@Override
+			public void reset() {
+				cursor.reset();
+			}
+
+			@Override
+			public void nextPair() {
+				cursor.fwd();
+			}
+
+			@Override
+			public double first() {
+				return cursor.getFirst().getRealDouble();
+			}
+
+			@Override
+			public double second() {
+				return cursor.getSecond().getRealDouble();
+			}
+		};
+	}
+}
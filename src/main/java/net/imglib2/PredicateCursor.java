@@ -23,6 +23,7 @@ package net.imglib2;
 
 import java.util.NoSuchElementException;
 
+import net.imglib2.predicate.MaskPredicate;
 import net.imglib2.predicate.Predicate;
 import net.imglib2.type.Type;
 
@@ -41,9 +42,16 @@ public class PredicateCursor<T extends Type<T>> implements Cursor<T> {
 	// true if a next element was found after a look-up
 	protected boolean hasNext = false;
 
+	@SuppressWarnings("unchecked")
 	public PredicateCursor(final Cursor<T> cursor,
 			final Predicate<T> predicate) {
-		this.cursor = cursor;
+		/* A span mask can walk its "on" pixels directly, there is no
+		 * need to test every single pixel.
+		 */
+		if (cursor instanceof SpanMask.SpanCursor && predicate instanceof MaskPredicate)
+			this.cursor = (Cursor<T>) ((SpanMask.SpanCursor) cursor).onCursor();
+		else
+			this.cursor = cursor;
 		this.predicate = predicate;
 	}
 
@@ -96,6 +104,7 @@ public class PredicateCursor<T extends Type<T>> implements Cursor<T> {
 	public void jumpFwd(long num) {
 		while (num > 0) {
 			fwd();
+			--num;
 		}
 	}
 
@@ -171,7 +180,11 @@ public class PredicateCursor<T extends Type<T>> implements Cursor<T> {
 	}
 
 	@Override
-	public Cursor<T> copy() {
-		return new PredicateCursor<T>( cursor.copyCursor(), predicate );
+	public PredicateCursor<T> copy() {
+		PredicateCursor<T> copy = new PredicateCursor<T>( cursor.copy(), predicate );
+		// the copy needs to know if the cursor already looked ahead
+		copy.lookedForNext = lookedForNext;
+		copy.hasNext = hasNext;
+		return copy;
 	}
 }
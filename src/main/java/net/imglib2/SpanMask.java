@@ -0,0 +1,464 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package net.imglib2;
+
+import java.util.Arrays;
+
+import net.imglib2.type.logic.BitType;
+
+/**
+ * A mask that stores its "on" pixels as runs (spans) per row instead of
+ * a bit per pixel. A row is a line along the first dimension, rows are
+ * numbered in flat iteration order. For every row a sorted list of
+ * non-overlapping [start, end) spans is kept, or null if the row is
+ * completely off. Rows with the same content may share the same
+ * array.
+ *
+ * Besides being a regular (read-only) RandomAccessibleInterval and
+ * IterableInterval, a span mask can be walked over its "on" pixels
+ * only. A {@link PredicateCursor} with a {@link
+ * net.imglib2.predicate.MaskPredicate} on one of its cursors and
+ * therefore also a {@link TwinCursor} do so automatically. This way
+ * iteration cost scales with the area of the mask, not of the image.
+ *
+ * Writing to the BitType returned by the mask does not change it.
+ */
+public class SpanMask extends AbstractInterval implements
+		RandomAccessibleInterval<BitType>, IterableInterval<BitType> {
+	// the spans of every row, as start/end pairs, or null
+	protected final long[][] rows;
+	// the number of rows
+	protected final int numRows;
+	// the length of a row and the total number of pixels
+	protected final long rowLength, size;
+	// the bounding box of the on pixels, computed on demand
+	protected Interval boundingBox;
+	protected boolean boundingBoxEmpty;
+
+	/**
+	 * Creates a new mask that is off everywhere.
+	 *
+	 * @param dim The dimensions of the mask
+	 */
+	public SpanMask(final long[] dim) {
+		this(dim, true);
+	}
+
+	/**
+	 * Creates a new mask, optionally without storage for the spans of
+	 * its rows. Sub-classes that don't store spans have to override
+	 * {@link #getSpans(int)} and {@link #setSpans(int, long[])}.
+	 */
+	protected SpanMask(final long[] dim, final boolean storeRows) {
+		super(dim);
+		rowLength = dim[0];
+		long s = 1;
+		for (long d : dim)
+			s *= d;
+		size = s;
+		if (rowLength > 0 && size / rowLength > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many rows for a span mask.");
+		numRows = rowLength == 0 ? 0 : (int) (size / rowLength);
+		rows = storeRows ? new long[numRows][] : null;
+	}
+
+	/**
+	 * Creates a mask that is on within a box and off elsewhere. The
+	 * returned mask doesn't store any spans.
+	 *
+	 * @param dim The dimensions of the mask
+	 * @param offset The offset of the box
+	 * @param boxSize The size of the box
+	 */
+	public static SpanMask box(final long[] dim, final long[] offset,
+			final long[] boxSize) {
+		return new IntervalMask(dim, offset, boxSize);
+	}
+
+	/**
+	 * Gets the number of rows of this mask.
+	 */
+	public int numRows() {
+		return numRows;
+	}
+
+	/**
+	 * Sets the spans of a row. The spans are start/end pairs, with the
+	 * end being exclusive. They need to be sorted and must not overlap.
+	 * The array is not copied and can be shared between rows.
+	 *
+	 * @param row The flat index of the row
+	 * @param spans The spans or null if the row is off
+	 */
+	public void setSpans(final int row, final long[] spans) {
+		rows[row] = spans == null || spans.length == 0 ? null : spans;
+		boundingBox = null;
+		boundingBoxEmpty = false;
+	}
+
+	/**
+	 * Gets the spans of a row, as set with {@link #setSpans}.
+	 */
+	public long[] getSpans(final int row) {
+		return rows[row];
+	}
+
+	/**
+	 * Tests whether the pixel at the given position is on.
+	 */
+	public boolean contains(final Localizable pos) {
+		long row = 0;
+		for (int d = n - 1; d > 0; --d)
+			row = row * dimension(d) + pos.getLongPosition(d) - min[d];
+		return contains((int) row, pos.getLongPosition(0) - min[0]);
+	}
+
+	/**
+	 * Tests whether the pixel at a position within a row is on.
+	 */
+	protected boolean contains(final int row, final long x) {
+		final long[] spans = getSpans(row);
+		if (spans == null)
+			return false;
+		final int i = firstSpanEndingAfter(spans, x);
+		return i < spans.length && spans[i] <= x;
+	}
+
+	/**
+	 * Finds the first span that ends after the passed flat index, i.e.
+	 * the span containing it or the next one.
+	 *
+	 * @param from The flat index to start at
+	 * @param span Array receiving the flat start and end of the span
+	 * @return true if a span was found, false otherwise
+	 */
+	public boolean findSpan(final long from, final long[] span) {
+		if (from >= size || rowLength == 0)
+			return false;
+		int row = (int) (from / rowLength);
+		long x = from - row * rowLength;
+		for (; row < numRows; ++row, x = 0) {
+			final long[] spans = getSpans(row);
+			if (spans == null)
+				continue;
+			final int i = firstSpanEndingAfter(spans, x);
+			if (i < spans.length) {
+				span[0] = row * rowLength + spans[i];
+				span[1] = row * rowLength + spans[i + 1];
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Finds the first on pixel, starting with (and including) the passed
+	 * flat index. The passed span is used as a cache of the last span
+	 * looked up and gets updated if needed, so that walking through a
+	 * span costs no look-up. Initialize it with {0, 0}.
+	 *
+	 * @return The flat index found or the size of the mask if there is none.
+	 */
+	public long nextOn(final long from, final long[] span) {
+		if (from >= span[1] && !findSpan(from, span)) {
+			span[0] = size;
+			span[1] = size;
+		}
+		return Math.max(from, span[0]);
+	}
+
+	/**
+	 * Counts the on pixels of this mask.
+	 */
+	public long countOn() {
+		long count = 0;
+		for (int row = 0; row < numRows; ++row) {
+			final long[] spans = getSpans(row);
+			if (spans == null)
+				continue;
+			for (int i = 0; i < spans.length; i += 2)
+				count += spans[i + 1] - spans[i];
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the index of the start of the first span ending after x.
+	 */
+	protected static int firstSpanEndingAfter(final long[] spans, final long x) {
+		int lo = 0, hi = spans.length / 2;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (spans[2 * mid + 1] > x)
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return 2 * lo;
+	}
+
+	/**
+	 * Gets a cursor that only visits the on pixels.
+	 */
+	public Cursor<BitType> onCursor() {
+		return new SpanCursor(true, 0, size);
+	}
+
+	/**
+	 * Gets a cursor that only visits the on pixels within a range of
+	 * flat indices.
+	 *
+	 * @param from The first flat index to look at
+	 * @param to The flat index after the last one to look at
+	 */
+	public Cursor<BitType> onCursor(final long from, final long to) {
+		return new SpanCursor(true, Math.max(0, from), Math.min(size, to));
+	}
+
+	/**
+	 * Gets the smallest interval containing all on pixels.
+	 *
+	 * @return The bounding box or null if no pixel is on.
+	 */
+	public Interval getBoundingBox() {
+		if (boundingBox == null && !boundingBoxEmpty) {
+			final long[] bbMin = new long[n];
+			final long[] bbMax = new long[n];
+			Arrays.fill(bbMin, Long.MAX_VALUE);
+			Arrays.fill(bbMax, Long.MIN_VALUE);
+			for (int row = 0; row < numRows; ++row) {
+				final long[] spans = getSpans(row);
+				if (spans == null || spans.length == 0)
+					continue;
+				bbMin[0] = Math.min(bbMin[0], spans[0]);
+				bbMax[0] = Math.max(bbMax[0], spans[spans.length - 1] - 1);
+				long r = row;
+				for (int d = 1; d < n; ++d) {
+					final long pos = r % dimension(d);
+					bbMin[d] = Math.min(bbMin[d], pos);
+					bbMax[d] = Math.max(bbMax[d], pos);
+					r /= dimension(d);
+				}
+			}
+			if (bbMin[0] > bbMax[0]) {
+				boundingBoxEmpty = true;
+			} else {
+				for (int d = 0; d < n; ++d) {
+					bbMin[d] += min[d];
+					bbMax[d] += min[d];
+				}
+				boundingBox = new FinalInterval(bbMin, bbMax);
+			}
+		}
+		return boundingBox;
+	}
+
+	@Override
+	public RandomAccess<BitType> randomAccess() {
+		return new SpanRandomAccess();
+	}
+
+	@Override
+	public RandomAccess<BitType> randomAccess(final Interval interval) {
+		return randomAccess();
+	}
+
+	@Override
+	public Cursor<BitType> cursor() {
+		return new SpanCursor(false, 0, size);
+	}
+
+	@Override
+	public Cursor<BitType> localizingCursor() {
+		return cursor();
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public Object iterationOrder() {
+		return new FlatIterationOrder(this);
+	}
+
+	@Override
+	public BitType firstElement() {
+		return cursor().next();
+	}
+
+	/**
+	 * A random access on the mask. Every access looks up the spans of
+	 * the row of the current position.
+	 */
+	protected class SpanRandomAccess extends Point implements RandomAccess<BitType> {
+		final BitType value = new BitType();
+
+		SpanRandomAccess() {
+			super(SpanMask.this.numDimensions());
+			SpanMask.this.min(position);
+		}
+
+		@Override
+		public BitType get() {
+			value.set(contains(this));
+			return value;
+		}
+
+		@Override
+		public SpanRandomAccess copy() {
+			SpanRandomAccess copy = new SpanRandomAccess();
+			copy.setPosition(this);
+			return copy;
+		}
+	}
+
+	/**
+	 * A cursor over the mask in flat iteration order. It either visits
+	 * all pixels or only the on pixels.
+	 */
+	public class SpanCursor implements Cursor<BitType> {
+		// whether only on pixels are visited
+		final boolean onOnly;
+		final BitType value = new BitType();
+		// the current span, used as look-up cache
+		final long[] span = new long[2];
+		// the range of flat indices [start, end) to visit
+		final long start, end;
+		// the flat index of the current pixel
+		long index;
+
+		SpanCursor(final boolean onOnly, final long start, final long end) {
+			this.onOnly = onOnly;
+			this.start = start;
+			this.end = end;
+			reset();
+		}
+
+		/**
+		 * Gets a cursor that continues after the current position of this
+		 * one, but only visits the on pixels.
+		 */
+		public SpanCursor onCursor() {
+			SpanCursor c = new SpanCursor(true, start, end);
+			c.index = index;
+			return c;
+		}
+
+		@Override
+		public void reset() {
+			index = start - 1;
+			span[0] = 0;
+			span[1] = 0;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (onOnly)
+				return nextOn(index + 1, span) < end;
+			return index + 1 < end;
+		}
+
+		@Override
+		public void fwd() {
+			if (onOnly)
+				index = nextOn(index + 1, span);
+			else
+				++index;
+		}
+
+		@Override
+		public void jumpFwd(final long steps) {
+			for (long i = 0; i < steps; ++i)
+				fwd();
+		}
+
+		@Override
+		public BitType get() {
+			value.set(onOnly || nextOn(index, span) == index);
+			return value;
+		}
+
+		@Override
+		public SpanCursor copy() {
+			SpanCursor c = new SpanCursor(onOnly, start, end);
+			c.index = index;
+			return c;
+		}
+
+		@Override
+		public long getLongPosition(int d) {
+			long i = index;
+			for (int k = 0; k < d; ++k)
+				i /= dimension(k);
+			return min[d] + i % dimension(d);
+		}
+
+		@Override
+		public int getIntPosition(int d) {
+			return (int) getLongPosition(d);
+		}
+
+		@Override
+		public double getDoublePosition(int d) {
+			return getLongPosition(d);
+		}
+
+		@Override
+		public float getFloatPosition(int d) {
+			return getLongPosition(d);
+		}
+
+		@Override
+		public void localize(long[] pos) {
+			long i = index;
+			for (int d = 0; d < n; ++d) {
+				pos[d] = min[d] + i % dimension(d);
+				i /= dimension(d);
+			}
+		}
+
+		@Override
+		public void localize(int[] pos) {
+			for (int d = 0; d < n; ++d)
+				pos[d] = getIntPosition(d);
+		}
+
+		@Override
+		public void localize(float[] pos) {
+			for (int d = 0; d < n; ++d)
+				pos[d] = getFloatPosition(d);
+		}
+
+		@Override
+		public void localize(double[] pos) {
+			for (int d = 0; d < n; ++d)
+				pos[d] = getDoublePosition(d);
+		}
+
+		@Override
+		public int numDimensions() {
+			return n;
+		}
+	}
+}
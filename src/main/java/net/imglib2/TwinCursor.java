@@ -56,13 +56,35 @@ public class TwinCursor<T extends Type<T>> implements Cursor<T>, PairIterator<T>
 			mask.localize(position);
 		}
 
+		/**
+		 * Creates a cursor with the same state as the passed one.
+		 */
+		protected TwinCursor(final TwinCursor<T> other) {
+			this.mask = other.mask.copy();
+			this.channel1 = other.channel1.copy();
+			this.channel2 = other.channel2.copy();
+			this.position = other.position.clone();
+			this.gotNext = other.gotNext;
+		}
+
+		/**
+		 * Constructor for sub-classes that walk over the images in their
+		 * own way and neither need random accesses nor a mask cursor.
+		 */
+		protected TwinCursor(final int numDimensions) {
+			this.mask = null;
+			this.channel1 = null;
+			this.channel2 = null;
+			position = new long[numDimensions];
+		}
+
 		@Override
-		final public boolean hasNext() {
+		public boolean hasNext() {
 			gotNext = false;
 			return mask.hasNext();
 		}
 
-		final public void getNext() {
+		public void getNext() {
 			if (gotNext)
 				return;
 			mask.next();
@@ -73,13 +95,13 @@ public class TwinCursor<T extends Type<T>> implements Cursor<T>, PairIterator<T>
 		}
 
 		@Override
-		final public T getFirst() {
+		public T getFirst() {
 			getNext();
 			return channel1.get();
 		}
 
 		@Override
-		final public T getSecond() {
+		public T getSecond() {
 			getNext();
 			return channel2.get();
 		}
@@ -97,8 +119,9 @@ public class TwinCursor<T extends Type<T>> implements Cursor<T>, PairIterator<T>
 		}
 
 		@Override
-		public void jumpFwd(long arg0) {
-			throw new UnsupportedOperationException("This method has not been implemented, yet.");
+		public void jumpFwd(long steps) {
+			for (long i = 0; i < steps; ++i)
+				fwd();
 		}
 
 		@Override
@@ -162,7 +185,7 @@ public class TwinCursor<T extends Type<T>> implements Cursor<T>, PairIterator<T>
 		}
 
 		@Override
-		public Cursor<T> copy() {
-			throw new UnsupportedOperationException("This method has not been implemented, yet.");
+		public TwinCursor<T> copy() {
+			return new TwinCursor<T>(this);
 		}
 }
@@ -52,6 +52,7 @@ package net.imglib2.algorithm.math;
 
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.PairIterators;
 import net.imglib2.TwinCursor;
 import net.imglib2.type.Type;
 import net.imglib2.type.logic.BitType;
@@ -97,10 +98,7 @@ public class ImageStatistics {
 		final RealSum sum = new RealSum();
 		long numPixels = 0;
 		// create cursor to walk an image with respect to a mask
-		final TwinCursor<T> cursor = new TwinCursor<T>(
-				img.randomAccess(),
-				img.randomAccess(),
-				Views.iterable(mask).localizingCursor());
+		final TwinCursor<T> cursor = PairIterators.twinCursor(img, img, mask);
 		while (cursor.hasNext()) {
 			sum.add(cursor.getFirst().getRealDouble());
 			++numPixels;
@@ -161,10 +159,7 @@ public class ImageStatistics {
 	{
 		final RealSum sum = new RealSum();
 		// create cursor to walk an image with respect to a mask
-		final TwinCursor<T> cursor = new TwinCursor<T>(
-				img.randomAccess(),
-				img.randomAccess(),
-				Views.iterable(mask).cursor());
+		final TwinCursor<T> cursor = PairIterators.twinCursor(img, img, mask);
 		while (cursor.hasNext())
 			sum.add( cursor.getFirst().getRealDouble() );
 
@@ -210,10 +205,7 @@ public class ImageStatistics {
 			final RandomAccessibleInterval<BitType> mask )
 	{
 		// create cursor to walk an image with respect to a mask
-		final TwinCursor<T> cursor = new TwinCursor<T>(
-				img.randomAccess(),
-				img.randomAccess(),
-				Views.iterable(mask).localizingCursor());
+		final TwinCursor<T> cursor = PairIterators.twinCursor(img, img, mask);
 		// forward one step to get the first value
 		cursor.fwd();
 		// copy first element as current minimum
@@ -269,10 +261,7 @@ public class ImageStatistics {
 			final RandomAccessibleInterval<BitType> mask )
 	{
 		// create cursor to walk an image with respect to a mask
-		final TwinCursor<T> cursor = new TwinCursor<T>(
-				img.randomAccess(),
-				img.randomAccess(),
-				Views.iterable(mask).localizingCursor());
+		final TwinCursor<T> cursor = PairIterators.twinCursor(img, img, mask);
 		// forward one step to get the first value
 		cursor.fwd();
 		final T max = cursor.getFirst().copy();
@@ -42,10 +42,13 @@ import java.awt.event.WindowEvent;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 import net.imglib2.Cursor;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccess;
+import net.imglib2.PairIterators;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.TwinCursor;
 import net.imglib2.img.ImagePlusAdapter;
@@ -58,9 +61,11 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
 
 import sc.fiji.coloc.algorithms.Algorithm;
+import sc.fiji.coloc.algorithms.AlgorithmScheduler;
 import sc.fiji.coloc.algorithms.AutoThresholdRegression;
 import sc.fiji.coloc.algorithms.AutoThresholdRegression.Implementation;
 import sc.fiji.coloc.algorithms.CostesSignificanceTest;
+import sc.fiji.coloc.algorithms.FusedPass;
 import sc.fiji.coloc.algorithms.Histogram2D;
 import sc.fiji.coloc.algorithms.InputCheck;
 import sc.fiji.coloc.algorithms.KendallTauRankCorrelation;
@@ -70,6 +75,7 @@ import sc.fiji.coloc.algorithms.MandersColocalization;
 import sc.fiji.coloc.algorithms.MissingPreconditionException;
 import sc.fiji.coloc.algorithms.PearsonsCorrelation;
 import sc.fiji.coloc.algorithms.SpearmanRankCorrelation;
+import sc.fiji.coloc.algorithms.ThresholdSurface;
 import sc.fiji.coloc.gadgets.DataContainer;
 import sc.fiji.coloc.results.AnalysisResults;
 import sc.fiji.coloc.results.PDFWriter;
@@ -162,12 +168,25 @@ public class Coloc_2<T extends RealType<T> & NativeType<T>> implements PlugIn {
 	protected KendallTauRankCorrelation<T> kendallTau;
 	protected Histogram2D<T> histogram2D;
 	protected CostesSignificanceTest<T> costesSignificance;
+	protected ThresholdSurface<T> thresholdSurface;
 	// indicates if images should be printed in result
 	protected boolean displayImages;
 
 	// indicates if a PDF should be saved automatically
 	protected boolean autoSavePdf;
 
+	// the executor independent algorithms run on, null to run them sequentially
+	protected ExecutorService executor = ForkJoinPool.commonPool();
+
+	/**
+	 * Sets the executor the algorithms are run on. Algorithms that do
+	 * not depend on each other run concurrently. If null, all
+	 * algorithms are run one after another in the calling thread.
+	 */
+	public void setExecutorService(final ExecutorService executor) {
+		this.executor = executor;
+	}
+
 	@Override
 	public void run(final String arg0) {
 		if (showDialog()) {
@@ -239,10 +258,14 @@ public class Coloc_2<T extends RealType<T> & NativeType<T>> implements PlugIn {
 		boolean useManders = Prefs.get(PREF_KEY + "useManders", true);
 		boolean useKendallTau = Prefs.get(PREF_KEY + "useKendallTau", true);
 		boolean useScatterplot = Prefs.get(PREF_KEY + "useScatterplot", true);
+		boolean useThresholdSurface = Prefs.get(PREF_KEY + "useThresholdSurface", false);
 		boolean useCostes = Prefs.get(PREF_KEY + "useCostes", true);
 		int psf = (int) Prefs.get(PREF_KEY + "psf", 3);
 		int nrCostesRandomisations = (int) Prefs.get(PREF_KEY +
 			"nrCostesRandomisations", 10);
+		// kept as text, a double would round seeds above 2^53
+		String costesSeed = Prefs.get(PREF_KEY + "costesSeedText", "");
+		boolean costesEarlyStopping = Prefs.get(PREF_KEY + "costesEarlyStopping", false);
 		indexRegr = (int) Prefs.get(PREF_KEY + "regressionImplementation", 0);
 
 		/* make sure the default indices are no bigger
@@ -272,10 +295,13 @@ public class Coloc_2<T extends RealType<T> & NativeType<T>> implements PlugIn {
 		gd.addCheckbox("Manders'_Correlation", useManders);
 		gd.addCheckbox("Kendall's_Tau_Rank_Correlation", useKendallTau);
 		gd.addCheckbox("2D_Intensity_Histogram", useScatterplot);
+		gd.addCheckbox("Threshold_Surface", useThresholdSurface);
 		gd.addCheckbox("Costes'_Significance_Test", useCostes);
 		final Checkbox costesCb = (Checkbox) gd.getCheckboxes().lastElement();
 		gd.addNumericField("PSF", psf, 1);
 		gd.addNumericField("Costes_randomisations", nrCostesRandomisations, 0);
+		gd.addStringField("Costes_seed", costesSeed);
+		gd.addCheckbox("Costes_early_stopping", costesEarlyStopping);
 
 		// disable shuffle checkbox if costes checkbox is set to "off"
 		shuffleCb.setEnabled(useCostes);
@@ -307,9 +333,23 @@ public class Coloc_2<T extends RealType<T> & NativeType<T>> implements PlugIn {
 		boolean gdUseManders = gd.getNextBoolean();
 		boolean gdUseKendallTau = gd.getNextBoolean();
 		boolean gdUseScatterplot = gd.getNextBoolean();
+		boolean gdUseThresholdSurface = gd.getNextBoolean();
 		boolean gdUseCostes = gd.getNextBoolean();
 		int gdPsf = (int) gd.getNextNumber();
 		int gdNrCostesRandomisations = (int) gd.getNextNumber();
+		String gdCostesSeedText = gd.getNextString().trim();
+		boolean gdCostesEarlyStopping = gd.getNextBoolean();
+
+		// an empty seed or 0 draws a new one, it is reported with the results
+		long gdCostesSeed;
+		try {
+			gdCostesSeed = gdCostesSeedText.isEmpty() ? 0 : Long.parseLong(gdCostesSeedText);
+		} catch (NumberFormatException e) {
+			IJ.showMessage("The Costes seed must be a whole number, or empty for a random one.");
+			return false;
+		}
+		if (gdCostesSeed == 0)
+			gdCostesSeed = CostesSignificanceTest.randomSeed();
 
 		// save user preferences
 		Prefs.set(PREF_KEY + "regressionImplementation", gdIndexRegr);
@@ -323,13 +363,21 @@ public class Coloc_2<T extends RealType<T> & NativeType<T>> implements PlugIn {
 		Prefs.set(PREF_KEY + "useManders", gdUseManders);
 		Prefs.set(PREF_KEY + "useKendallTau", gdUseKendallTau);
 		Prefs.set(PREF_KEY + "useScatterplot", gdUseScatterplot);
+		Prefs.set(PREF_KEY + "useThresholdSurface", gdUseThresholdSurface);
 		Prefs.set(PREF_KEY + "useCostes", gdUseCostes);
 		Prefs.set(PREF_KEY + "psf", gdPsf);
 		Prefs.set(PREF_KEY + "nrCostesRandomisations", gdNrCostesRandomisations);
+		Prefs.set(PREF_KEY + "costesSeedText", gdCostesSeedText);
+		Prefs.set(PREF_KEY + "costesEarlyStopping", gdCostesEarlyStopping);
 
-		return initializeSettings(gdImp1, gdImp2, gdIndexMask, gdIndexRegr, gdAutoSavePdf, gdDisplayImages,
+		final boolean initialized = initializeSettings(gdImp1, gdImp2, gdIndexMask, gdIndexRegr, gdAutoSavePdf, gdDisplayImages,
 				gdDisplayShuffledCostes, gdUseLiCh1, gdUseLiCh2, gdUseLiICQ, gdUseSpearmanRank, gdUseManders,
-				gdUseKendallTau, gdUseScatterplot, gdUseCostes, gdPsf, gdNrCostesRandomisations);
+				gdUseKendallTau, gdUseScatterplot, gdUseCostes, gdPsf, gdNrCostesRandomisations,
+				gdCostesSeed, gdUseThresholdSurface);
+		// with early stopping, the randomisations are the maximum to run
+		if (initialized && gdUseCostes && gdCostesEarlyStopping)
+			costesSignificance.setEarlyStopping(CostesSignificanceTest.DEFAULT_ALPHA);
+		return initialized;
 	}
 
 	/** Programmatically initializes the colocalisation settings to match the given values. */
@@ -339,6 +387,42 @@ public class Coloc_2<T extends RealType<T> & NativeType<T>> implements PlugIn {
 			boolean gdUseKendallTau, boolean gdUseScatterplot, boolean gdUseCostes, int gdPsf,
 			int gdNrCostesRandomisations)
 	{
+		return initializeSettings(imp1, imp2, gdIndexMask, gdIndexRegr, gdAutoSavePdf, gdDisplayImages,
+				gdDisplayShuffledCostes, gdUseLiCh1, gdUseLiCh2, gdUseLiICQ, gdUseSpearmanRank, gdUseManders,
+				gdUseKendallTau, gdUseScatterplot, gdUseCostes, gdPsf, gdNrCostesRandomisations,
+				CostesSignificanceTest.randomSeed());
+	}
+
+	/**
+	 * Programmatically initializes the colocalisation settings to match the
+	 * given values. The Costes test shuffles with the given seed, so the same
+	 * settings give the same results.
+	 */
+	public boolean initializeSettings(ImagePlus imp1, ImagePlus imp2, int gdIndexMask, int gdIndexRegr,
+			boolean gdAutoSavePdf, boolean gdDisplayImages, boolean gdDisplayShuffledCostes, boolean gdUseLiCh1,
+			boolean gdUseLiCh2, boolean gdUseLiICQ, boolean gdUseSpearmanRank, boolean gdUseManders,
+			boolean gdUseKendallTau, boolean gdUseScatterplot, boolean gdUseCostes, int gdPsf,
+			int gdNrCostesRandomisations, long gdCostesSeed)
+	{
+		return initializeSettings(imp1, imp2, gdIndexMask, gdIndexRegr, gdAutoSavePdf, gdDisplayImages,
+				gdDisplayShuffledCostes, gdUseLiCh1, gdUseLiCh2, gdUseLiICQ, gdUseSpearmanRank, gdUseManders,
+				gdUseKendallTau, gdUseScatterplot, gdUseCostes, gdPsf, gdNrCostesRandomisations,
+				gdCostesSeed, false);
+	}
+
+	/**
+	 * Programmatically initializes the colocalisation settings to match the
+	 * given values, optionally with the threshold surface of Pearson's R.
+	 */
+	public boolean initializeSettings(ImagePlus imp1, ImagePlus imp2, int gdIndexMask, int gdIndexRegr,
+			boolean gdAutoSavePdf, boolean gdDisplayImages, boolean gdDisplayShuffledCostes, boolean gdUseLiCh1,
+			boolean gdUseLiCh2, boolean gdUseLiICQ, boolean gdUseSpearmanRank, boolean gdUseManders,
+			boolean gdUseKendallTau, boolean gdUseScatterplot, boolean gdUseCostes, int gdPsf,
+			int gdNrCostesRandomisations, long gdCostesSeed, boolean gdUseThresholdSurface)
+	{
+		// don't keep a threshold surface of earlier settings
+		thresholdSurface = null;
+
 		// get image names for output
 		Ch1Name = imp1.getTitle();
 		Ch2Name = imp2.getTitle();
@@ -427,7 +511,10 @@ public class Coloc_2<T extends RealType<T> & NativeType<T>> implements PlugIn {
 			"2D intensity histogram");
 		if (gdUseCostes) {
 			costesSignificance = new CostesSignificanceTest<>(pearsonsCorrelation,
-				gdPsf, gdNrCostesRandomisations, gdDisplayShuffledCostes);
+				gdPsf, gdNrCostesRandomisations, gdDisplayShuffledCostes, gdCostesSeed);
+		}
+		if (gdUseThresholdSurface) {
+			thresholdSurface = new ThresholdSurface<>(pearsonsCorrelation);
 		}
 
 		return true;
@@ -529,23 +616,30 @@ public class Coloc_2<T extends RealType<T> & NativeType<T>> implements PlugIn {
 		addIfValid(kendallTau, userSelectedJobs);
 		addIfValid(histogram2D, userSelectedJobs);
 		addIfValid(costesSignificance, userSelectedJobs);
-
-		// execute all algorithms
-		int count = 0;
-		final int jobs = userSelectedJobs.size();
-		for (final Algorithm<T> a : userSelectedJobs) {
-			try {
-				count++;
-				IJ.showStatus(count + "/" + jobs + ": Running " + a.getName());
-				a.execute(container);
-			}
-			catch (final MissingPreconditionException e) {
+		addIfValid(thresholdSurface, userSelectedJobs);
+
+		/* let all algorithms collect their per-pixel data in
+		 * one single pass over the images */
+		final FusedPass<T> sharedPass = new FusedPass<>();
+		for (final Algorithm<T> a : userSelectedJobs)
+			a.registerKernels(sharedPass, container);
+		IJ.showStatus("Collecting pixel data");
+		sharedPass.run(container);
+
+		// execute all algorithms, independent ones concurrently
+		final List<MissingPreconditionException> errors =
+			new AlgorithmScheduler<T>(executor).run(userSelectedJobs, container);
+		for (int i = 0; i < userSelectedJobs.size(); ++i) {
+			final MissingPreconditionException e = errors.get(i);
+			if (e != null) {
 				for (final ResultHandler<T> r : listOfResultHandlers) {
-					r.handleWarning(new Warning("Probem with input data", a.getName() +
-						": " + e.getMessage()));
+					r.handleWarning(new Warning("Probem with input data",
+						userSelectedJobs.get(i).getName() + ": " + e.getMessage()));
 				}
 			}
 		}
+		// the buffered pixel pairs are not needed any more
+		container.releasePairBuffer();
 		// clear status
 		IJ.showStatus("");
 
@@ -828,8 +922,7 @@ public class Coloc_2<T extends RealType<T> & NativeType<T>> implements PlugIn {
 				"Mask offset and size must be of same dimensionality like image.");
 		}
 		// use twin cursor for only one image
-		final TwinCursor<T> cursor = new TwinCursor<>(image.randomAccess(), //
-			image.randomAccess(), Views.iterable(mask).localizingCursor());
+		final TwinCursor<T> cursor = PairIterators.twinCursor(image, image, mask);
 		// prepare output image
 		final ImgFactory<T> maskFactory = new ArrayImgFactory<>();
 		// Img<T> maskImage = maskFactory.create( size, name );
@@ -21,22 +21,33 @@
  */
 package sc.fiji.coloc.algorithms;
 
+import net.imglib2.DoublePairIterator;
 import net.imglib2.TwinCursor;
 import net.imglib2.type.numeric.RealType;
 
+import sc.fiji.coloc.gadgets.CompensatedSum;
+
 /**
  * A class allowing an easy accumulation of values visited by a
- * TwinCursor. After instantiation the sum of channel one,
+ * TwinCursor or a DoublePairIterator. After instantiation the sum of channel one,
  * channel two, products with them self and a product of both of
  * them will be available. It additionally provides the possibility
  * to subtract values from the data before the adding them to the
- * sum.
+ * sum. Instead of walking over a cursor, an accumulator can also be
+ * fed pixel by pixel as a kernel of a {@link FusedPass}, also split
+ * up into several parts that are merged afterwards.
  * 
  * @author Johannes Schindelin and Tom Kazimiers
  */
-public abstract class Accumulator<T extends RealType< T >> {
-	protected double x, y, xx, xy, yy;
-	protected int count;
+public abstract class Accumulator<T extends RealType< T >>
+		implements FusedPass.SplittableKernel, FusedPass.BatchKernel {
+	// compensated sums keep their precision for large numbers of pixels
+	protected final CompensatedSum x = new CompensatedSum(), y = new CompensatedSum(),
+			xx = new CompensatedSum(), xy = new CompensatedSum(), yy = new CompensatedSum();
+	protected long count;
+	// whether to subtract xDiff and yDiff from the values
+	private final boolean substract;
+	private final double xDiff, yDiff;
 
 	/**
 	 * The two values x and y from each cursor iteration to get
@@ -55,6 +66,7 @@ public abstract class Accumulator<T extends RealType< T >> {
 	}
 
 	protected Accumulator(final TwinCursor<T> cursor, boolean substract, double xDiff, double yDiff) {
+		this(substract, xDiff, yDiff);
 		while (cursor.hasNext()) {
 			cursor.fwd();
 
@@ -64,46 +76,165 @@ public abstract class Accumulator<T extends RealType< T >> {
 			if (!accept(type1, type2))
 				continue;
 
-			double value1 = type1.getRealDouble();
-			double value2 = type2.getRealDouble();
+			accumulate(type1.getRealDouble(), type2.getRealDouble());
+		}
+	}
 
-			if (substract) {
-				value1 -= xDiff;
-				value2 -= yDiff;
-			}
+	/**
+	 * The two values x and y from each iteration to get
+	 * summed up as single values and their combinations.
+	 */
+	public Accumulator(final DoublePairIterator iterator) {
+		this(iterator, false, 0.0d, 0.0d);
+	}
+
+	/**
+	 * The two values (x - xDiff) and (y - yDiff) from each
+	 * iteration to get summed up as single values and their combinations.
+	 */
+	public Accumulator(final DoublePairIterator iterator, double xDiff, double yDiff) {
+		this(iterator, true, xDiff, yDiff);
+	}
+
+	protected Accumulator(final DoublePairIterator iterator, boolean substract, double xDiff, double yDiff) {
+		this(substract, xDiff, yDiff);
+		while (iterator.hasNext()) {
+			iterator.nextPair();
+
+			double value1 = iterator.first();
+			double value2 = iterator.second();
+
+			if (!accept(value1, value2))
+				continue;
+
+			accumulate(value1, value2);
+		}
+	}
+
+	/**
+	 * Creates an empty accumulator that gets its values by calls to
+	 * {@link #accumulate(double, double)}, e.g. from a {@link FusedPass}.
+	 * Values passed this way are not checked with accept().
+	 */
+	protected Accumulator(boolean substract, double xDiff, double yDiff) {
+		this.substract = substract;
+		this.xDiff = xDiff;
+		this.yDiff = yDiff;
+	}
+
+	/**
+	 * Decides whether a pair of values is taken into account.
+	 */
+	public abstract boolean accept(double value1, double value2);
+
+	/**
+	 * Decides whether a pair of typed values is taken into account. By
+	 * default, this is decided on the real values of the types.
+	 */
+	public boolean accept(T type1, T type2) {
+		return accept(type1.getRealDouble(), type2.getRealDouble());
+	}
+
+	@Override
+	public void accumulate(double value1, double value2) {
+		if (substract) {
+			value1 -= xDiff;
+			value2 -= yDiff;
+		}
 
-			x += value1;
-			y += value2;
-			xx += value1 * value1;
-			xy += value1 * value2;
-			yy += value2 * value2;
-			count++;
+		x.add(value1);
+		y.add(value2);
+		xx.add(value1 * value1);
+		xy.add(value1 * value2);
+		yy.add(value2 * value2);
+		count++;
+	}
+
+	/**
+	 * Accumulates a block of pairs. Four pairs are summed up at a time,
+	 * pairwise, so the additions don't all depend on each other. The sums
+	 * of the block are added to the compensated sums at the end.
+	 */
+	@Override
+	public void accumulate(double[] ch1, double[] ch2, int length) {
+		final double dx = substract ? xDiff : 0.0;
+		final double dy = substract ? yDiff : 0.0;
+		double sx = 0, sy = 0, sxx = 0, sxy = 0, syy = 0;
+		int i = 0;
+		for (; i + 3 < length; i += 4) {
+			final double a0 = ch1[i] - dx, a1 = ch1[i + 1] - dx,
+					a2 = ch1[i + 2] - dx, a3 = ch1[i + 3] - dx;
+			final double b0 = ch2[i] - dy, b1 = ch2[i + 1] - dy,
+					b2 = ch2[i + 2] - dy, b3 = ch2[i + 3] - dy;
+			sx += (a0 + a1) + (a2 + a3);
+			sy += (b0 + b1) + (b2 + b3);
+			sxx += (a0 * a0 + a1 * a1) + (a2 * a2 + a3 * a3);
+			sxy += (a0 * b0 + a1 * b1) + (a2 * b2 + a3 * b3);
+			syy += (b0 * b0 + b1 * b1) + (b2 * b2 + b3 * b3);
+		}
+		for (; i < length; ++i) {
+			final double a = ch1[i] - dx, b = ch2[i] - dy;
+			sx += a;
+			sy += b;
+			sxx += a * a;
+			sxy += a * b;
+			syy += b * b;
 		}
+		x.add(sx);
+		y.add(sy);
+		xx.add(sxx);
+		xy.add(sxy);
+		yy.add(syy);
+		count += length;
 	}
 
-	public abstract boolean accept(T type1, T type2);
+	/**
+	 * Creates an empty accumulator with the same settings, accepting
+	 * the same values as this one.
+	 */
+	@Override
+	public Accumulator<T> split() {
+		final Accumulator<T> parent = this;
+		return new Accumulator<T>(substract, xDiff, yDiff) {
+			@Override
+			public boolean accept(double value1, double value2) {
+				return parent.accept(value1, value2);
+			}
+		};
+	}
+
+	@Override
+	public void merge(FusedPass.SplittableKernel other) {
+		Accumulator<?> o = (Accumulator<?>) other;
+		x.add(o.x);
+		y.add(o.y);
+		xx.add(o.xx);
+		xy.add(o.xy);
+		yy.add(o.yy);
+		count += o.count;
+	}
 
 	public double getX() {
-		return x;
+		return x.getSum();
 	}
 
 	public double getY() {
-		return y;
+		return y.getSum();
 	}
 
 	public double getXX() {
-		return xx;
+		return xx.getSum();
 	}
 
 	public double getXY() {
-		return xy;
+		return xy.getSum();
 	}
 
 	public double getYY() {
-		return yy;
+		return yy.getSum();
 	}
 
-	public int getCount() {
+	public long getCount() {
 		return count;
 	}
 }
@@ -53,6 +53,33 @@ public abstract class Algorithm<T extends RealType< T >> {
 	 */
 	public abstract void execute(DataContainer<T> container) throws MissingPreconditionException;
 
+	/**
+	 * Gives the algorithm the opportunity to register the per-pixel
+	 * work of its next execution with a pass over the images that is
+	 * shared by several algorithms. If it does so, the following call
+	 * of execute() uses the data collected by that pass instead of
+	 * walking over the images on its own. By default, nothing gets
+	 * registered.
+	 *
+	 * @param pass The shared pass to register kernels with
+	 * @param container The container the pass will walk over
+	 */
+	public void registerKernels(FusedPass<T> pass, DataContainer<T> container) {
+		// nothing to register by default
+	}
+
+	/**
+	 * Gets the algorithms whose results this algorithm uses. They have
+	 * to be executed before this one, all other algorithms may run
+	 * concurrently with it. By default, there are none.
+	 *
+	 * @param container The container the algorithms are run on
+	 * @return The list of prerequisites
+	 */
+	public List<Algorithm<T>> getPrerequisites(DataContainer<T> container) {
+		return new ArrayList<Algorithm<T>>();
+	}
+
 	public String getName() {
 		return name;
 	}
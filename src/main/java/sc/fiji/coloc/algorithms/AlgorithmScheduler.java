@@ -0,0 +1,215 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.algorithms;
+
+import ij.IJ;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import net.imglib2.type.numeric.RealType;
+
+import sc.fiji.coloc.gadgets.DataContainer;
+
+/**
+ * Executes a list of algorithms with respect to their prerequisites.
+ * An algorithm is started as soon as all of its prerequisites that are
+ * part of the list have finished, so independent algorithms run
+ * concurrently on the executor. If a prerequisite fails with a
+ * {@link MissingPreconditionException}, the algorithms depending on it
+ * are run nevertheless, just like in a sequential run.
+ *
+ * @param <T>
+ */
+public class AlgorithmScheduler<T extends RealType< T >> {
+	// the executor to run the algorithms on or null to run them sequentially
+	protected final ExecutorService executor;
+
+	// the algorithms to run, in an order that respects the prerequisites
+	List<Algorithm<T>> jobs;
+	// the number of unfinished prerequisites of each job
+	int[] pending;
+	// the indices of the jobs depending on each job
+	List<List<Integer>> dependents;
+	// the exceptions the jobs have thrown
+	Throwable[] errors;
+	// the numbers of started and finished jobs
+	int started, finished;
+
+	/**
+	 * Creates a new scheduler.
+	 *
+	 * @param executor The executor to run the algorithms on. If null,
+	 *    all algorithms are run one after another in the calling thread.
+	 */
+	public AlgorithmScheduler(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Executes all algorithms and waits for them to finish. The
+	 * {@link MissingPreconditionException}s of the algorithms are
+	 * returned, in the order of the algorithms. Any other exception
+	 * is thrown once all algorithms have finished. This may be called
+	 * from a worker of the {@link ForkJoinPool} the algorithms run on.
+	 *
+	 * @param algorithms The algorithms to execute
+	 * @param container The container to execute the algorithms on
+	 * @return The exceptions of the algorithms, null for those succeeded
+	 */
+	public synchronized List<MissingPreconditionException> run(
+			List<Algorithm<T>> algorithms, DataContainer<T> container) {
+		sort(algorithms, container);
+		errors = new Throwable[jobs.size()];
+		started = 0;
+		finished = 0;
+
+		if (executor == null) {
+			for (int i = 0; i < jobs.size(); ++i)
+				execute(i, container);
+		} else {
+			for (int i = 0; i < jobs.size(); ++i)
+				if (pending[i] == 0)
+					submit(i, container);
+			/* Wait as a managed blocker, so a fork/join pool gets another
+			 * thread for the jobs if the caller is one of its workers, e.g.
+			 * the only one of a common pool on a machine with few cores. */
+			final ForkJoinPool.ManagedBlocker blocker = new ForkJoinPool.ManagedBlocker() {
+				@Override
+				public boolean block() throws InterruptedException {
+					synchronized (AlgorithmScheduler.this) {
+						if (finished < jobs.size())
+							AlgorithmScheduler.this.wait();
+						return finished >= jobs.size();
+					}
+				}
+
+				@Override
+				public boolean isReleasable() {
+					synchronized (AlgorithmScheduler.this) {
+						return finished >= jobs.size();
+					}
+				}
+			};
+			boolean interrupted = false;
+			while (finished < jobs.size()) {
+				try {
+					ForkJoinPool.managedBlock(blocker);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		// report the exceptions in the order of the passed algorithms
+		List<MissingPreconditionException> result =
+				new ArrayList<MissingPreconditionException>();
+		for (Algorithm<T> a : algorithms) {
+			Throwable error = errors[jobs.indexOf(a)];
+			if (error instanceof RuntimeException)
+				throw (RuntimeException) error;
+			if (error instanceof Error)
+				throw (Error) error;
+			result.add((MissingPreconditionException) error);
+		}
+		return result;
+	}
+
+	/**
+	 * Orders the algorithms such that every one comes after its
+	 * prerequisites, keeping the original order where possible.
+	 * Prerequisites that are not part of the list are ignored.
+	 */
+	protected void sort(List<Algorithm<T>> algorithms, DataContainer<T> container) {
+		final int n = algorithms.size();
+		List<List<Algorithm<T>>> prerequisites = new ArrayList<List<Algorithm<T>>>();
+		for (Algorithm<T> a : algorithms) {
+			List<Algorithm<T>> p = new ArrayList<Algorithm<T>>();
+			for (Algorithm<T> prerequisite : a.getPrerequisites(container))
+				if (algorithms.contains(prerequisite) && !p.contains(prerequisite))
+					p.add(prerequisite);
+			prerequisites.add(p);
+		}
+
+		jobs = new ArrayList<Algorithm<T>>();
+		while (jobs.size() < n) {
+			int next = -1;
+			for (int i = 0; i < n && next < 0; ++i)
+				if (!jobs.contains(algorithms.get(i))
+						&& jobs.containsAll(prerequisites.get(i)))
+					next = i;
+			if (next < 0)
+				throw new IllegalArgumentException("The prerequisites of the algorithms are cyclic.");
+			jobs.add(algorithms.get(next));
+		}
+
+		pending = new int[n];
+		dependents = new ArrayList<List<Integer>>();
+		for (int i = 0; i < n; ++i)
+			dependents.add(new ArrayList<Integer>());
+		for (int i = 0; i < n; ++i) {
+			for (Algorithm<T> p : prerequisites.get(algorithms.indexOf(jobs.get(i)))) {
+				dependents.get(jobs.indexOf(p)).add(i);
+				++pending[i];
+			}
+		}
+	}
+
+	protected void submit(final int job, final DataContainer<T> container) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				execute(job, container);
+				finish(job, container);
+			}
+		});
+	}
+
+	/**
+	 * Marks a job as finished and submits the jobs that were only
+	 * waiting for it.
+	 */
+	protected synchronized void finish(int job, DataContainer<T> container) {
+		for (int d : dependents.get(job))
+			if (--pending[d] == 0)
+				submit(d, container);
+		++finished;
+		notifyAll();
+	}
+
+	protected void execute(int job, DataContainer<T> container) {
+		Algorithm<T> a = jobs.get(job);
+		synchronized (this) {
+			++started;
+			IJ.showStatus(started + "/" + jobs.size() + ": Running " + a.getName());
+		}
+		try {
+			a.execute(container);
+		} catch (Throwable e) {
+			errors[job] = e;
+		}
+	}
+}
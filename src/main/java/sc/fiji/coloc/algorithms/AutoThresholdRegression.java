@@ -21,15 +21,20 @@
  */
 package sc.fiji.coloc.algorithms;
 
+import java.util.List;
+
+import net.imglib2.DoublePairIterator;
+import net.imglib2.PairIterators;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.TwinCursor;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.view.Views;
+import net.imglib2.util.Util;
 
+import sc.fiji.coloc.gadgets.CompensatedSum;
 import sc.fiji.coloc.gadgets.DataContainer;
 import sc.fiji.coloc.gadgets.ThresholdMode;
 import sc.fiji.coloc.results.ResultHandler;
+import sc.fiji.coloc.results.ResultTable;
 
 /**
  * A class implementing the automatic finding of a threshold
@@ -37,7 +42,13 @@ import sc.fiji.coloc.results.ResultHandler;
  */
 public class AutoThresholdRegression<T extends RealType< T >> extends Algorithm<T> {
 	// Identifiers for choosing which implementation to use
-	public enum Implementation {Costes, Bisection};
+	/* Costes walks down the thresholds one by one, Bisection halves the
+	 * step width on every change of sign, Illinois interpolates between
+	 * thresholds on both sides of the change of sign and Exhaustive tests
+	 * all integer thresholds on the joint histogram of both channels.
+	 * Without an exact histogram of integer values, Exhaustive falls back
+	 * to Costes. */
+	public enum Implementation {Costes, Bisection, Exhaustive, Illinois};
 	Implementation implementation = Implementation.Bisection;
 	/* The threshold for ratio of y-intercept : y-mean to raise a warning about
 	 * it being to high or low, meaning far from zero. Don't use y-max as before,
@@ -57,6 +68,18 @@ public class AutoThresholdRegression<T extends RealType< T >> extends Algorithm<
 	double bToYMeanRatio = 0.0;
 	//This is the Pearson's correlation we will use for further calculations
 	PearsonsCorrelation<T> pearsonsCorrellation;
+	// the variance sums, filled by a shared pass
+	VarianceKernel sharedKernel;
+	// whether to search thresholds on a histogram of both channels
+	boolean useJointHistogram = true;
+	// the histogram of the last run, if one was created
+	PairHistogram histogram;
+	/* The trace of the last threshold search, one row per tested
+	 * threshold pair, and the number of walks over the pixels it took. */
+	ResultTable searchTrace;
+	int searchImagePasses;
+	// the time taken by the last threshold search, in milliseconds
+	double searchTime;
 
 	public AutoThresholdRegression(PearsonsCorrelation<T> pc) {
 		this(pc, Implementation.Costes);
@@ -68,47 +91,53 @@ public class AutoThresholdRegression<T extends RealType< T >> extends Algorithm<
 		implementation = impl;
 	}
 
-	@Override
-	public void execute(DataContainer<T> container)
-			throws MissingPreconditionException {
-		// get the 2 images for the calculation of Pearson's
-		final RandomAccessibleInterval<T> img1 = container.getSourceImage1();
-		final RandomAccessibleInterval<T> img2 = container.getSourceImage2();
-		final RandomAccessibleInterval<BitType> mask = container.getMask();
-
-		double ch1Mean = container.getMeanCh1();
-		double ch2Mean = container.getMeanCh2();
-
-		double combinedMean = ch1Mean + ch2Mean;
+	/**
+	 * Sets whether the thresholds are searched on a joint histogram of
+	 * both channels. If so, the pixels are visited once to create the
+	 * histogram, instead of once for every tested threshold. Integer
+	 * images of up to 16 bits are counted exactly, the values of other
+	 * images are binned at quantiles.
+	 */
+	public void setUseJointHistogram(boolean useJointHistogram) {
+		this.useJointHistogram = useJointHistogram;
+	}
 
-		// get the cursors for iterating through pixels in images
-		TwinCursor<T> cursor = new TwinCursor<T>(
-				img1.randomAccess(), img2.randomAccess(),
-				Views.iterable(mask).localizingCursor());
+	@Override
+	public void registerKernels(FusedPass<T> pass, DataContainer<T> container) {
+		sharedKernel = pass.register(new VarianceKernel(container.getMeanCh1(),
+				container.getMeanCh2()));
+	}
 
+	/**
+	 * Sums up the numerators of the variances of both channels and of
+	 * their sum, pixel by pixel.
+	 */
+	protected static class VarianceKernel implements FusedPass.SplittableKernel {
+		final double ch1Mean, ch2Mean, combinedMean;
 		// variables for summing up the
-		double ch1MeanDiffSum = 0.0, ch2MeanDiffSum = 0.0, combinedMeanDiffSum = 0.0;
-		double combinedSum = 0.0;
-		int N = 0, NZero = 0;
-
-		// reference image data type
-		final T type = cursor.getFirst();
-
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			double ch1 = cursor.getFirst().getRealDouble();
-			double ch2 = cursor.getSecond().getRealDouble();
+		final CompensatedSum ch1MeanDiffSum = new CompensatedSum(),
+				ch2MeanDiffSum = new CompensatedSum(),
+				combinedMeanDiffSum = new CompensatedSum();
+		long N = 0, NZero = 0;
+
+		public VarianceKernel(double ch1Mean, double ch2Mean) {
+			this.ch1Mean = ch1Mean;
+			this.ch2Mean = ch2Mean;
+			this.combinedMean = ch1Mean + ch2Mean;
+		}
 
-			combinedSum = ch1 + ch2;
+		@Override
+		public void accumulate(double ch1, double ch2) {
+			double combinedSum = ch1 + ch2;
 
 			// TODO: Shouldn't the whole calculation take only pixels
 			// into account that are combined above zero? And not just
 			// the denominator (like it is done now)?
 
 			// calculate the numerators for the variances
-			ch1MeanDiffSum += (ch1 - ch1Mean) * (ch1 - ch1Mean);
-			ch2MeanDiffSum += (ch2 - ch2Mean) * (ch2 - ch2Mean);
-			combinedMeanDiffSum += (combinedSum - combinedMean) * (combinedSum - combinedMean);
+			ch1MeanDiffSum.add((ch1 - ch1Mean) * (ch1 - ch1Mean));
+			ch2MeanDiffSum.add((ch2 - ch2Mean) * (ch2 - ch2Mean));
+			combinedMeanDiffSum.add((combinedSum - combinedMean) * (combinedSum - combinedMean));
 
 			// count only pixels that are above zero
 			if ( (ch1 + ch2) > 0.00001)
@@ -117,6 +146,50 @@ public class AutoThresholdRegression<T extends RealType< T >> extends Algorithm<
 			N++;
 		}
 
+		@Override
+		public VarianceKernel split() {
+			return new VarianceKernel(ch1Mean, ch2Mean);
+		}
+
+		@Override
+		public void merge(FusedPass.SplittableKernel other) {
+			VarianceKernel o = (VarianceKernel) other;
+			ch1MeanDiffSum.add(o.ch1MeanDiffSum);
+			ch2MeanDiffSum.add(o.ch2MeanDiffSum);
+			combinedMeanDiffSum.add(o.combinedMeanDiffSum);
+			N += o.N;
+			NZero += o.NZero;
+		}
+	}
+
+	@Override
+	public void execute(DataContainer<T> container)
+			throws MissingPreconditionException {
+		// get the 2 images for the calculation of Pearson's
+		final RandomAccessibleInterval<T> img1 = container.getSourceImage1();
+		final RandomAccessibleInterval<T> img2 = container.getSourceImage2();
+		final RandomAccessibleInterval<BitType> mask = container.getMask();
+
+		double ch1Mean = container.getMeanCh1();
+		double ch2Mean = container.getMeanCh2();
+
+		// get the iterator for walking through pixels in images
+		DoublePairIterator cursor = PairIterators.doubles(img1, img2, mask);
+
+		// reference image data type
+		final T type = Util.getTypeFromInterval(img1);
+
+		// use the sums of a shared pass if there was one
+		VarianceKernel kernel = sharedKernel;
+		sharedKernel = null;
+		if (kernel == null)
+			kernel = FusedPass.run(container, new VarianceKernel(ch1Mean, ch2Mean));
+
+		final double ch1MeanDiffSum = kernel.ch1MeanDiffSum.getSum();
+		final double ch2MeanDiffSum = kernel.ch2MeanDiffSum.getSum();
+		final double combinedMeanDiffSum = kernel.combinedMeanDiffSum.getSum();
+		final long N = kernel.N;
+
 		double ch1Variance = ch1MeanDiffSum / (N - 1);
 		double ch2Variance = ch2MeanDiffSum / (N - 1);
 		double combinedVariance = combinedMeanDiffSum / (N - 1.0);
@@ -167,6 +240,9 @@ public class AutoThresholdRegression<T extends RealType< T >> extends Algorithm<
 				stepper = new BisectionStepper(
 					Math.abs(container.getMaxCh1() + container.getMinCh1()) * 0.5,
 					container.getMaxCh1());
+			} else if (implementation == Implementation.Illinois) {
+				stepper = new IllinoisStepper(container.getMinCh1(),
+					container.getMaxCh1());
 			} else {
 				stepper = new SimpleStepper(container.getMaxCh1());
 			}
@@ -192,6 +268,9 @@ public class AutoThresholdRegression<T extends RealType< T >> extends Algorithm<
 				stepper = new BisectionStepper(
 					Math.abs(container.getMaxCh2() + container.getMinCh2()) * 0.5,
 					container.getMaxCh2());
+			} else if (implementation == Implementation.Illinois) {
+				stepper = new IllinoisStepper(container.getMinCh2(),
+					container.getMaxCh2());
 			} else {
 				stepper = new SimpleStepper(container.getMaxCh2());
 			}
@@ -204,9 +283,6 @@ public class AutoThresholdRegression<T extends RealType< T >> extends Algorithm<
 		// define some image type specific threshold variables
 		T thresholdCh1 = type.createVariable();
 		T thresholdCh2 = type.createVariable();
-		// reset the previously created cursor
-		cursor.reset();
-
 		/* Get min and max value of image data type. Since type of image
 		 * one and two are the same, we dont't need to distinguish them.
 		 */
@@ -214,8 +290,48 @@ public class AutoThresholdRegression<T extends RealType< T >> extends Algorithm<
 		final double minVal = dummyT.getMinValue();
 		final double maxVal = dummyT.getMaxValue();
 
+		final long searchStart = System.nanoTime();
+		searchTrace = createSearchTrace();
+		searchImagePasses = 0;
+
+		/* The thresholds are tested on a joint histogram of both
+		 * channels, which only needs a single walk over the pixels. */
+		final PairHistogram histogram = useJointHistogram
+				? pearsonsCorrellation.createHistogram(container) : null;
+		this.histogram = histogram;
+		if (histogram != null)
+			searchImagePasses++;
+
+		if (implementation == Implementation.Exhaustive
+				&& histogram instanceof JointHistogram) {
+			// test all integer working thresholds at once
+			final boolean onCh1 = m > -1 && m < 1.0;
+			final double t = findExhaustive(histogram, mapper,
+					Math.floor(onCh1 ? container.getMinCh1() : container.getMinCh2()),
+					Math.ceil(onCh1 ? container.getMaxCh1() : container.getMaxCh2()),
+					minVal, maxVal);
+			ch1ThreshMax = Math.round(mapper.getCh1Threshold(t));
+			ch2ThreshMax = Math.round(mapper.getCh2Threshold(t));
+			stepper = null;
+			// all thresholds were tested at once, so trace the result only
+			final double thr1 = clamp(ch1ThreshMax, minVal, maxVal);
+			final double thr2 = clamp(ch2ThreshMax, minVal, maxVal);
+			final Accumulator<T> acc = histogram.accumulate(thr1, thr2,
+					ThresholdMode.Below);
+			double r;
+			try {
+				r = pearsonsCorrellation.calculatePearsons(acc);
+			} catch (MissingPreconditionException e) {
+				r = Double.NaN;
+			}
+			searchTrace.addRow(1, thr1, thr2, r, acc.getCount(), 0,
+					(System.nanoTime() - searchStart) * 1e-6);
+		}
+
 		// do regression
-		while (!stepper.isFinished()) {
+		int iteration = 0;
+		while (stepper != null && !stepper.isFinished()) {
+			final long iterationStart = System.nanoTime();
 			// round ch1 threshold and compute ch2 threshold
 			ch1ThreshMax = Math.round(mapper.getCh1Threshold(stepper.getValue()));
 			ch2ThreshMax = Math.round(mapper.getCh2Threshold(stepper.getValue()));
@@ -225,22 +341,35 @@ public class AutoThresholdRegression<T extends RealType< T >> extends Algorithm<
 			thresholdCh1.setReal(clamp(ch1ThreshMax, minVal, maxVal));
 			thresholdCh2.setReal(clamp(ch2ThreshMax, minVal, maxVal));
 
+			// sum up the pixels within the limits
+			final Accumulator<T> acc = histogram != null
+					? histogram.<T>accumulate(thresholdCh1.getRealDouble(),
+							thresholdCh2.getRealDouble(), ThresholdMode.Below)
+					: pearsonsCorrellation.accumulate(cursor, ch1Mean, ch2Mean,
+							thresholdCh1.getRealDouble(),
+							thresholdCh2.getRealDouble(), ThresholdMode.Below);
+			double currentPersonsR;
 			try {
-				// do persons calculation within the limits
-				final double currentPersonsR =
-						pearsonsCorrellation.calculatePearsons(cursor,
-						ch1Mean, ch2Mean, thresholdCh1, thresholdCh2,
-						ThresholdMode.Below);
-				stepper.update(currentPersonsR);
+				// do persons calculation on the sums
+				currentPersonsR = pearsonsCorrellation.calculatePearsons(acc);
 			} catch (MissingPreconditionException e) {
 				/* the exception that could occur is due to numerical
 				 * problems within the Pearsons calculation. */
-				stepper.update(Double.NaN);
+				currentPersonsR = Double.NaN;
 			}
+			stepper.update(currentPersonsR);
+
+			if (histogram == null)
+				searchImagePasses++;
+			searchTrace.addRow(++iteration, thresholdCh1.getRealDouble(),
+					thresholdCh2.getRealDouble(), currentPersonsR,
+					acc.getCount(), histogram == null ? 1 : 0,
+					(System.nanoTime() - iterationStart) * 1e-6);
 
 			// reset the cursor to reuse it
 			cursor.reset();
 		}
+		searchTime = (System.nanoTime() - searchStart) * 1e-6;
 
 		/* Store the new results. The lower thresholds are the types
 		 * min value for now. For the max threshold we do a clipping
@@ -294,6 +423,63 @@ public class AutoThresholdRegression<T extends RealType< T >> extends Algorithm<
 		}
 	}
 
+	/**
+	 * Creates an empty table for the trace of a threshold search.
+	 */
+	protected static ResultTable createSearchTrace() {
+		final ResultTable trace = new ResultTable("Threshold search trace",
+				"Iteration", "Ch1 Threshold", "Ch2 Threshold", "Pearson's R",
+				"Pixels", "Image pass", "Time (ms)");
+		trace.setDecimals(0, 0);
+		trace.setDecimals(4, 0);
+		trace.setDecimals(5, 0);
+		return trace;
+	}
+
+	/**
+	 * Calculates Pearson's R below the thresholds for every integer working
+	 * threshold in a range and finds the highest one where it drops below
+	 * zero. If there is none, the one with the lowest R value is taken.
+	 *
+	 * @return The working threshold found
+	 */
+	protected double findExhaustive(PairHistogram histogram,
+			ChannelMapper mapper, double min, double max, double minVal,
+			double maxVal) {
+		// the working thresholds are walked down from the maximum
+		final int n = (int) (max - min) + 1;
+		final double[] thresholdsCh1 = new double[n];
+		final double[] thresholdsCh2 = new double[n];
+		for (int i = 0; i < n; ++i) {
+			thresholdsCh1[i] = clamp(Math.round(mapper.getCh1Threshold(max - i)),
+					minVal, maxVal);
+			thresholdsCh2[i] = clamp(Math.round(mapper.getCh2Threshold(max - i)),
+					minVal, maxVal);
+		}
+
+		final List<Accumulator<T>> accs =
+				histogram.accumulateBelow(thresholdsCh1, thresholdsCh2);
+		int best = n - 1;
+		double bestR = Double.NaN;
+		for (int i = 0; i < n; ++i) {
+			final double r;
+			try {
+				r = pearsonsCorrellation.calculatePearsons(accs.get(i));
+			} catch (MissingPreconditionException e) {
+				continue;
+			}
+			if (Double.isNaN(r))
+				continue;
+			if (r < 0.0001)
+				return max - i;
+			if (Double.isNaN(bestR) || r < bestR) {
+				best = i;
+				bestR = r;
+			}
+		}
+		return max - best;
+	}
+
 	/**
 	 * Clamp a value to a min or max value. If the value is below min, min is
 	 * returned. Accordingly, max is returned if the value is larger. If it is
@@ -313,6 +499,12 @@ public class AutoThresholdRegression<T extends RealType< T >> extends Algorithm<
 		handler.handleValue( "Ch1 Max Threshold", ch1MaxThreshold.getRealDouble(), 2);
 		handler.handleValue( "Ch2 Max Threshold", ch2MaxThreshold.getRealDouble(), 2);
 		handler.handleValue( "Threshold regression", implementation.toString());
+		if (searchTrace != null) {
+			handler.handleValue( "Threshold search iterations", searchTrace.getRowCount(), 0);
+			handler.handleValue( "Threshold search image passes", searchImagePasses, 0);
+			handler.handleValue( "Threshold search time (ms)", searchTime, 1);
+			handler.handleTable( searchTrace );
+		}
 	}
 
 	public double getBToYMeanRatio() {
@@ -323,6 +515,32 @@ public class AutoThresholdRegression<T extends RealType< T >> extends Algorithm<
 		return warnYInterceptToYMeanRatioThreshold;
 	}
 
+	/**
+	 * Gets the histogram the thresholds were searched on or null, if
+	 * none was created.
+	 */
+	public PairHistogram getHistogram() {
+		return histogram;
+	}
+
+	/**
+	 * Gets the trace of the last threshold search: the thresholds, the
+	 * Pearson's R below them, the number of pixels below them, whether
+	 * the pixels had to be walked over and the time taken, per iteration.
+	 * It is null before the first run.
+	 */
+	public ResultTable getSearchTrace() {
+		return searchTrace;
+	}
+
+	/**
+	 * Gets the number of walks over the pixels the last threshold search
+	 * took, including the one creating the histogram.
+	 */
+	public int getSearchImagePasses() {
+		return searchImagePasses;
+	}
+
 	public double getAutoThresholdSlope() {
 		return autoThresholdSlope;
 	}
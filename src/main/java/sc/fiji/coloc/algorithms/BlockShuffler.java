@@ -0,0 +1,235 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.algorithms;
+
+import java.lang.reflect.Array;
+
+import net.imglib2.ArrayPairIterator;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Copies the blocks of an image in a shuffled order into another image
+ * of the same size, directly between their primitive storage arrays.
+ * The blocks tile a grid like the one of {@link ShuffledBlocksView}:
+ * output block j gets the content of source block order[j]. The grid is
+ * laid out once, so a shuffle copies every row of a block with a single
+ * {@link System#arraycopy}. Only the blocks reaching beyond the image
+ * are copied a pixel at a time, reading the mirrored source image and
+ * leaving out the pixels beyond the target image.
+ *
+ * Use {@link #create(RandomAccessibleInterval, RandomAccessibleInterval,
+ * long[], long[], long[])} to get an instance for the supported images.
+ *
+ * @param <T>
+ */
+public class BlockShuffler<T extends RealType<T>> {
+	// the storage arrays of the source and the target image
+	final Object[] sourcePlanes, targetPlanes;
+	// the number of values in a storage array
+	final long planeSize;
+	// the flat index of the first pixel of every block
+	final long[] blockStart;
+	// whether a block lies within the image
+	final boolean[] inside;
+	// the flat index offsets of the rows of a block, relative to its start
+	final long[] rowStarts;
+	// the length of a row of a block
+	final int rowLength;
+	// the minimum of the block grid, the size of a block and the number of blocks
+	final long[] offset, blockSize, nrBlocks;
+	// the dimensions of the images
+	final long[] dims;
+	// the mirrored source image and the target image for edge blocks
+	final RandomAccessible<T> source;
+	final RandomAccessibleInterval<T> target;
+
+	protected BlockShuffler(RandomAccessibleInterval<T> img,
+			RandomAccessibleInterval<T> target, Object[] sourcePlanes,
+			Object[] targetPlanes, long[] offset, long[] blockSize, long[] nrBlocks) {
+		final int n = img.numDimensions();
+		this.sourcePlanes = sourcePlanes;
+		this.targetPlanes = targetPlanes;
+		this.planeSize = Array.getLength(sourcePlanes[0]);
+		this.offset = offset.clone();
+		this.blockSize = blockSize.clone();
+		this.nrBlocks = nrBlocks.clone();
+		this.dims = Intervals.dimensionsAsLongArray(img);
+		this.source = Views.extendMirrorSingle(img);
+		this.target = target;
+
+		// the flat index steps of the dimensions
+		final long[] steps = new long[n];
+		steps[0] = 1;
+		for (int d = 1; d < n; ++d)
+			steps[d] = steps[d - 1] * dims[d - 1];
+
+		// lay out the blocks in flat order
+		final int count = (int) Intervals.numElements(nrBlocks);
+		blockStart = new long[count];
+		inside = new boolean[count];
+		final long[] min = new long[n];
+		for (int block = 0; block < count; ++block) {
+			blockMin(block, min);
+			boolean in = true;
+			long start = 0;
+			for (int d = 0; d < n; ++d) {
+				in &= min[d] >= 0 && min[d] + blockSize[d] <= dims[d];
+				start += min[d] * steps[d];
+			}
+			inside[block] = in;
+			blockStart[block] = start;
+		}
+
+		// and the rows within a block
+		rowLength = (int) blockSize[0];
+		rowStarts = new long[(int) (Intervals.numElements(blockSize) / blockSize[0])];
+		final long[] position = new long[n];
+		for (int row = 0; row < rowStarts.length; ++row) {
+			long rest = row, start = 0;
+			for (int d = 1; d < n; ++d) {
+				position[d] = rest % blockSize[d];
+				rest /= blockSize[d];
+				start += position[d] * steps[d];
+			}
+			rowStarts[row] = start;
+		}
+	}
+
+	/**
+	 * Creates a block shuffler from one image into another.
+	 *
+	 * @param img The image to take the blocks from
+	 * @param target The image to write the shuffled blocks to
+	 * @param offset The minimum of the block grid
+	 * @param blockSize The size of a block in every dimension
+	 * @param nrBlocks The number of blocks in every dimension
+	 * @return The block shuffler or null if the images are not ArrayImgs
+	 *         or PlanarImgs with the same size and the same kind of storage
+	 *         that holds one array element per pixel
+	 */
+	public static <T extends RealType<T>> BlockShuffler<T> create(
+			RandomAccessibleInterval<T> img, RandomAccessibleInterval<T> target,
+			long[] offset, long[] blockSize, long[] nrBlocks) {
+		if (!Intervals.equals(img, target))
+			return null;
+		final Object[] sourcePlanes = ArrayPairIterator.getPlanes(img);
+		final Object[] targetPlanes = ArrayPairIterator.getPlanes(target);
+		if (sourcePlanes == null || targetPlanes == null
+				|| sourcePlanes.getClass() != targetPlanes.getClass())
+			return null;
+		// the planes of both images need the same number of pixels, one per element
+		final long size = Intervals.numElements(img);
+		if (size % sourcePlanes.length != 0 || size % targetPlanes.length != 0)
+			return null;
+		for (Object plane : sourcePlanes)
+			if (Array.getLength(plane) != size / sourcePlanes.length)
+				return null;
+		for (Object plane : targetPlanes)
+			if (Array.getLength(plane) != size / sourcePlanes.length)
+				return null;
+		// rows must not cross the planes
+		if (size / sourcePlanes.length % img.dimension(0) != 0)
+			return null;
+		return new BlockShuffler<T>(img, target, sourcePlanes, targetPlanes,
+				offset, blockSize, nrBlocks);
+	}
+
+	/**
+	 * Gets the number of blocks of the grid.
+	 */
+	public int getBlockCount() {
+		return blockStart.length;
+	}
+
+	/**
+	 * Copies the blocks of the source image into the target image.
+	 *
+	 * @param order The source block of every output block, in flat order
+	 */
+	public void shuffle(int[] order) {
+		RandomAccess<T> sourceAccess = null, targetAccess = null;
+		for (int block = 0; block < order.length; ++block) {
+			final int sourceBlock = order[block];
+			if (inside[block] && inside[sourceBlock]) {
+				final long sourceStart = blockStart[sourceBlock];
+				final long targetStart = blockStart[block];
+				for (long rowStart : rowStarts) {
+					final long from = sourceStart + rowStart, to = targetStart + rowStart;
+					System.arraycopy(sourcePlanes[(int) (from / planeSize)], (int) (from % planeSize),
+							targetPlanes[(int) (to / planeSize)], (int) (to % planeSize), rowLength);
+				}
+			} else {
+				if (sourceAccess == null) {
+					sourceAccess = source.randomAccess();
+					targetAccess = target.randomAccess();
+				}
+				copyBlock(sourceBlock, block, sourceAccess, targetAccess);
+			}
+		}
+	}
+
+	/**
+	 * Copies a block a pixel at a time. Pixels beyond the source image
+	 * are mirrored, pixels beyond the target image are left out.
+	 */
+	protected void copyBlock(int sourceBlock, int targetBlock,
+			RandomAccess<T> sourceAccess, RandomAccess<T> targetAccess) {
+		final int n = dims.length;
+		final long[] sourceMin = new long[n], targetMin = new long[n];
+		final long[] position = new long[n];
+		blockMin(sourceBlock, sourceMin);
+		blockMin(targetBlock, targetMin);
+		final long pixels = Intervals.numElements(blockSize);
+		for (long i = 0; i < pixels; ++i) {
+			long rest = i;
+			boolean in = true;
+			for (int d = 0; d < n; ++d) {
+				position[d] = rest % blockSize[d];
+				rest /= blockSize[d];
+				final long t = targetMin[d] + position[d];
+				in &= t >= 0 && t < dims[d];
+			}
+			if (!in)
+				continue;
+			for (int d = 0; d < n; ++d) {
+				sourceAccess.setPosition(sourceMin[d] + position[d], d);
+				targetAccess.setPosition(targetMin[d] + position[d], d);
+			}
+			targetAccess.get().set(sourceAccess.get());
+		}
+	}
+
+	/**
+	 * Gets the minimum of a block of the grid.
+	 */
+	protected void blockMin(int block, long[] min) {
+		for (int d = 0; d < min.length; ++d) {
+			min[d] = offset[d] + (block % nrBlocks[d]) * blockSize[d];
+			block /= nrBlocks[d];
+		}
+	}
+}
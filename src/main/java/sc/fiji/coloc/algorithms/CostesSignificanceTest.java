@@ -23,22 +23,31 @@ package sc.fiji.coloc.algorithms;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.imglib2.Cursor;
+import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
+import net.imglib2.PairIterators;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.algorithm.gauss.Gauss;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.roi.RectangleRegionOfInterest;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
 import sc.fiji.coloc.gadgets.DataContainer;
@@ -74,6 +83,22 @@ public class CostesSignificanceTest<T extends RealType< T > & NativeType<T>> ext
 	double costesPValue;
 	// the maximum retries in case of Pearson numerical errors
 	protected final int maxErrorRetries = 3;
+	// the pool to run the randomizations in or null to run them sequentially
+	protected ForkJoinPool pool = ForkJoinPool.commonPool();
+	// the seed the random streams of the randomizations are derived from
+	protected long seed;
+	/* the significance level the randomizations are stopped at as soon as
+	 * it is clearly decided, or 0 to run all of them */
+	protected double earlyStoppingAlpha = 0.0;
+	// whether the randomizations have been stopped early
+	boolean stoppedEarly = false;
+
+	// the default significance level for early stopping
+	public static final double DEFAULT_ALPHA = 0.05;
+	// the confidence of the interval early stopping is decided with
+	public static final double EARLY_STOPPING_CONFIDENCE = 0.99;
+	// the number of randomizations between two checks for early stopping
+	public static final int EARLY_STOPPING_BATCH = 20;
 
 
 	/**
@@ -84,11 +109,103 @@ public class CostesSignificanceTest<T extends RealType< T > & NativeType<T>> ext
 	 */
 	public CostesSignificanceTest(PearsonsCorrelation<T> pc, int psfRadiusInPixels,
 			int nrRandomizations, boolean showShuffledImages) {
+		this(pc, psfRadiusInPixels, nrRandomizations, showShuffledImages,
+				randomSeed());
+	}
+
+	/**
+	 * Creates a new Costes significance test object by using a
+	 * cube block with the given edge length. The blocks are shuffled
+	 * with random streams derived from the given seed, so the same
+	 * seed gives the same results, no matter how many threads are used.
+	 *
+	 * @param psfRadiusInPixels The edge width of the 3D cube block.
+	 * @param seed The seed of the randomizations.
+	 */
+	public CostesSignificanceTest(PearsonsCorrelation<T> pc, int psfRadiusInPixels,
+			int nrRandomizations, boolean showShuffledImages, long seed) {
 		super("Costes significance test");
 		this.pearsonsCorrelation = pc;
 		Arrays.fill(psfRadius, psfRadiusInPixels);
 		this.nrRandomizations = nrRandomizations;
 		this.showShuffledImages = showShuffledImages;
+		this.seed = seed;
+	}
+
+	/**
+	 * Creates a random seed. It is small enough to be reported and typed
+	 * in again as a number, to reproduce the results of a test.
+	 */
+	public static long randomSeed() {
+		return new SplittableRandom().nextInt(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Lets the randomizations stop as soon as the significance at the
+	 * given level is clearly decided. After every
+	 * {@link #EARLY_STOPPING_BATCH} randomizations, the reported P-value
+	 * is checked with {@link #isDecided(double, double, double, int, double)}.
+	 * The randomizations stop once it is clearly above or below
+	 * 1 - alpha. The number of randomizations given to the constructor
+	 * is the maximum then.
+	 *
+	 * @param alpha The significance level, or 0 to run all randomizations
+	 */
+	public void setEarlyStopping(double alpha) {
+		this.earlyStoppingAlpha = alpha;
+	}
+
+	/**
+	 * Tests whether the Costes P-value is decided to be above or below
+	 * 1 - alpha. The P-value is phi of the original Pearson's value,
+	 * standardized with the mean and the standard deviation of the
+	 * shuffled ones. Both are estimates, so the standardized value gets
+	 * a confidence interval from its standard error,
+	 * sqrt(1 / count + z^2 / (2 (count - 1))). It is decided once phi
+	 * of both ends of the interval lies on the same side of 1 - alpha.
+	 *
+	 * @param originalVal The original Pearson's value
+	 * @param mean The mean of the shuffled values
+	 * @param sd The standard deviation of the shuffled values
+	 * @param count The number of shuffled values
+	 * @param alpha The significance level
+	 */
+	public static boolean isDecided(double originalVal, double mean, double sd,
+			int count, double alpha) {
+		if (count < 2 || !(sd > 0.0))
+			return false;
+		final double z = (originalVal - mean) / sd;
+		final double se = Math.sqrt(1.0 / count + z * z / (2.0 * (count - 1)));
+		final double c = Statistics.phiInverse((1.0 + EARLY_STOPPING_CONFIDENCE) / 2);
+		return Statistics.phi(z - c * se) > 1.0 - alpha
+				|| Statistics.phi(z + c * se) < 1.0 - alpha;
+	}
+
+	/**
+	 * Tests whether a shuffled Pearson's value is not less than the
+	 * original one.
+	 */
+	protected static boolean isNotLess(double shuffledVal, double originalVal) {
+		return shuffledVal - originalVal > -0.00001;
+	}
+
+	/**
+	 * Sets the pool the randomizations are run in. Each of its threads
+	 * gets a worker with its own copies of the shuffled and smoothed
+	 * images. If null, the randomizations are run one after another in
+	 * the calling thread.
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/** The Pearson's R of the original images is needed to compare with. */
+	@Override
+	public List<Algorithm<T>> getPrerequisites(DataContainer<T> container) {
+		List<Algorithm<T>> prerequisites = super.getPrerequisites(container);
+		if (pearsonsCorrelation != null)
+			prerequisites.add(pearsonsCorrelation);
+		return prerequisites;
 	}
 
 	/**
@@ -104,6 +221,13 @@ public class CostesSignificanceTest<T extends RealType< T > & NativeType<T>> ext
 		final RandomAccessibleInterval<T> img2 = container.getSourceImage2();
 		final RandomAccessibleInterval<BitType> mask = container.getMask();
 
+		/* Images that are stored in cells, possibly cached on disk, are
+		 * processed cell by cell, without full-size copies. */
+		if (img1 instanceof AbstractCellImg || img2 instanceof AbstractCellImg) {
+			executeCellwise(container);
+			return;
+		}
+
 		/* To determine the number of needed blocks, we need
 		 * the effective dimensions of the image. Since the
 		 * mask is responsible for this, we ask for its size.
@@ -139,52 +263,346 @@ public class CostesSignificanceTest<T extends RealType< T > & NativeType<T>> ext
 		 * divided cleanly by the block size. Therefore we need to
 		 * have an out of bounds strategy -- a mirror.
 		 */
-		List<IterableInterval<T>> blockIntervals;
-		blockIntervals = new ArrayList<IterableInterval<T>>( nrBlocksPerImage );
+		final List<IterableInterval<T>> blockIntervals =
+				new ArrayList<IterableInterval<T>>( nrBlocksPerImage );
 		RandomAccessible< T> infiniteImg = Views.extendMirrorSingle( img1 );
 		generateBlocks( infiniteImg, blockIntervals, floatOffset, floatDimensions);
-		
-		// create input and output cursors and store them along their offset
-		List<Cursor<T>> inputBlocks = new ArrayList<Cursor<T>>(nrBlocksPerImage);
-		List<Cursor<T>> outputBlocks = new ArrayList<Cursor<T>>(nrBlocksPerImage);
-		for (IterableInterval<T> roiIt : blockIntervals) {
-			inputBlocks.add(roiIt.localizingCursor());
-			outputBlocks.add(roiIt.localizingCursor());
+
+		/* The same blocks as a grid for copying them directly between
+		 * the storage arrays: there is one more block per dimension
+		 * than fully fit, starting at the offset. */
+		final long[] gridOffset = longOffset.clone();
+		final long[] blockSize = new long[nrDimensions];
+		final long[] gridSize = new long[nrDimensions];
+		for (int i = 0; i < nrDimensions; i++) {
+			blockSize[i] = (long) psfRadius[i];
+			gridSize[i] = dimensions[i] / blockSize[i] + 1;
 		}
 		
 		// we will need a zero variable
 		final T zero = img1.randomAccess().get().createVariable();
 		zero.setZero();
 
-		/* Create a new image to contain the shuffled data and with
-		 * same dimensions as the original data.
-		 */
+		// the dimensions of the shuffled images
 		final long[] dims = new long[img1.numDimensions()];
 		img1.dimensions(dims);
-		ImgFactory<T> factory = new ArrayImgFactory<T>();
-		Img<T> shuffledImage = factory.create(
-				dims, img1.randomAccess().get().createVariable() );
-		RandomAccessible< T> infiniteShuffledImage =
-				Views.extendValue(shuffledImage, zero );
 
 		// create a double version of the PSF for the smoothing
-		double[] smoothingPsfRadius = new double[nrDimensions];
+		final double[] smoothingPsfRadius = new double[nrDimensions];
 		for (int i = 0; i < nrDimensions; i++) {
 			smoothingPsfRadius[i] = (double) psfRadius[i];
 		}
 
-		// the retry count for error cases
+		// the kernels are shared by the workers
+		final double[][] halfkernels = SeparableGauss.halfkernels(smoothingPsfRadius);
+
+		final boolean irregularMask = container.getMaskType() == MaskType.Irregular;
+		/* Every worker has its own shuffled and smoothed image and two
+		 * float buffers to smooth in, all of them reused for every
+		 * randomization. */
+		final long bytesPerWorker = Intervals.numElements(dims)
+				* (2 * Float.BYTES + 2 * Math.max(1, zero.getBitsPerPixel() / 8));
+		shuffledPearsonsResults = runRandomizations(new WorkerFactory() {
+			@Override
+			public Worker create() {
+				return new BlockWorker(blockIntervals, gridOffset, blockSize, gridSize,
+						dims, zero, halfkernels, irregularMask, img1, img2, mask);
+			}
+		}, bytesPerWorker);
+
+		// calculate statistics on the randomized values and the original one
+		double originalVal = pearsonsCorrelation.getPearsonsCorrelationValue();
+		calculateStatistics(shuffledPearsonsResults, originalVal);
+	}
+
+	/**
+	 * Runs the randomizations on images that are stored in cells, e.g.
+	 * images that are cached on disk because they don't fit into memory.
+	 * The shuffled image is a {@link ShuffledBlocksView} that looks the
+	 * blocks up in the original image. It gets smoothed and correlated
+	 * with channel two one cell of the cell grid at a time, so only a
+	 * single cell needs scratch space. Pearson's R of the randomizations
+	 * is calculated with the fast implementation, because the mean of
+	 * the smoothed image is not known before it has been walked over.
+	 */
+	protected void executeCellwise(DataContainer<T> container)
+			throws MissingPreconditionException {
+		final RandomAccessibleInterval<T> img1 = container.getSourceImage1();
+		final RandomAccessibleInterval<T> img2 = container.getSourceImage2();
+		final RandomAccessibleInterval<BitType> mask = container.getMask();
+		final int nrDimensions = img1.numDimensions();
+		if (nrDimensions != 2 && nrDimensions != 3)
+			throw new MissingPreconditionException("Currently only 2D and 3D images are supported.");
+
+		// the block grid covers the bounding box of the mask
+		final long[] offset = container.getMaskBBOffset();
+		final long[] size = container.getMaskBBSize();
+		final long[] blockSize = new long[nrDimensions];
+		final long[] nrBlocksPerDimension = new long[nrDimensions];
+		int nrBlocksPerImage = 1;
+		for (int i = 0; i < nrDimensions; i++) {
+			blockSize[i] = (long) psfRadius[i];
+			nrBlocksPerDimension[i] = (size[i] + blockSize[i] - 1) / blockSize[i];
+			nrBlocksPerImage *= nrBlocksPerDimension[i];
+		}
+
+		// walk the cells of channel two, which are read along with the smoothed ones
+		final CellGrid grid = img2 instanceof AbstractCellImg
+				? ((AbstractCellImg<?, ?, ?, ?>) img2).getCellGrid()
+				: ((AbstractCellImg<?, ?, ?, ?>) img1).getCellGrid();
+		final Interval bb = PairIterators.boundingBox(mask);
+
+		final double[] smoothingPsfRadius = new double[nrDimensions];
+		for (int i = 0; i < nrDimensions; i++) {
+			smoothingPsfRadius[i] = (double) psfRadius[i];
+		}
+
+		// the kernels are shared by the workers
+		final double[][] halfkernels = SeparableGauss.halfkernels(smoothingPsfRadius);
+		// the largest cell along with the halo it gets smoothed with
+		final int[] cellDims = grid.getCellDimensions();
+		final long[] haloDims = new long[nrDimensions];
+		for (int d = 0; d < nrDimensions; d++)
+			haloDims[d] = cellDims[d] + 2 * (halfkernels[d].length - 1);
+
+		smoothedShuffledImage = null;
+		final int nrBlocks = nrBlocksPerImage;
+		/* A worker only needs scratch space for a single cell and two
+		 * float buffers to smooth it with its halo in. */
+		final long bytesPerWorker = (long) Float.BYTES
+				* (Intervals.numElements(cellDims) + 2 * Intervals.numElements(haloDims));
+		shuffledPearsonsResults = runRandomizations(new WorkerFactory() {
+			@Override
+			public Worker create() {
+				return new CellWorker(offset, blockSize, nrBlocksPerDimension,
+						nrBlocks, grid, bb, haloDims, halfkernels, img1, img2, mask);
+			}
+		}, bytesPerWorker);
+
+		// calculate statistics on the randomized values and the original one
+		double originalVal = pearsonsCorrelation.getPearsonsCorrelationValue();
+		calculateStatistics(shuffledPearsonsResults, originalVal);
+	}
+
+	/**
+	 * A worker runs randomizations one after another. It owns all the
+	 * scratch space it needs, so several workers can run in parallel.
+	 */
+	protected abstract class Worker {
+		// the index of the last randomization that succeeded
+		int lastIndex = -1;
+
+		/**
+		 * Runs a randomization and calculates Pearson's R of it.
+		 *
+		 * @param random The random stream of the randomization
+		 */
+		abstract double randomize(SplittableRandom random) throws MissingPreconditionException;
+
+		/**
+		 * Gets the smoothed image of the last randomization or null, if
+		 * it is not available.
+		 */
+		Img<T> getSmoothedImage() {
+			return null;
+		}
+	}
+
+	/**
+	 * Creates the workers of {@link #runRandomizations(WorkerFactory, long)}.
+	 */
+	protected abstract class WorkerFactory {
+		abstract Worker create();
+	}
+
+	/**
+	 * Runs all randomizations on as many workers as the pool has threads,
+	 * but at most as many as fit into a quarter of the memory. Each
+	 * worker takes the next randomization that is left until all are
+	 * done. If some of them fail due to numerical problems, as many more
+	 * are run, up to {@link #maxErrorRetries} altogether. Every
+	 * randomization gets its own random stream, split off the seed in
+	 * the order of the randomizations, so the results don't depend on
+	 * the number of workers. If early stopping is enabled, the
+	 * randomizations are run in batches of {@link #EARLY_STOPPING_BATCH}
+	 * until the significance is decided.
+	 *
+	 * @param factory The factory creating the workers
+	 * @param bytesPerWorker The memory of the scratch space of a worker
+	 * @return Pearson's R of the randomizations, in their order
+	 */
+	protected List<Double> runRandomizations(WorkerFactory factory,
+			long bytesPerWorker) throws MissingPreconditionException {
+		int nrWorkers = pool == null ? 1 : pool.getParallelism();
+		final long memory = Runtime.getRuntime().maxMemory() / 4;
+		nrWorkers = (int) Math.max(1, Math.min(Math.min(nrWorkers, nrRandomizations),
+				memory / Math.max(1, bytesPerWorker)));
+		final List<Worker> workers = new ArrayList<Worker>(nrWorkers);
+		for (int w = 0; w < nrWorkers; w++) {
+			workers.add(factory.create());
+		}
+
+		final SplittableRandom random = new SplittableRandom(seed);
+		final List<Double> results = new ArrayList<Double>(nrRandomizations);
+		final boolean earlyStopping = earlyStoppingAlpha > 0.0;
+		final double originalVal = pearsonsCorrelation.getPearsonsCorrelationValue();
+		double sum = 0.0;
 		int retries = 0;
+		int start = 0;
+		stoppedEarly = false;
+		while (start < nrRandomizations) {
+			final int first = start, end = earlyStopping
+					? Math.min(nrRandomizations, start + EARLY_STOPPING_BATCH)
+					: nrRandomizations;
+			final double[] values = new double[end - first];
+			final MissingPreconditionException[] errors =
+					new MissingPreconditionException[end - first];
+			final SplittableRandom[] randoms = new SplittableRandom[end - first];
+			for (int i = 0; i < randoms.length; i++)
+				randoms[i] = random.split();
+			final AtomicInteger next = new AtomicInteger(first);
+			final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+			for (final Worker worker : workers) {
+				tasks.add(new RecursiveAction() {
+					@Override
+					protected void compute() {
+						for (int i = next.getAndIncrement(); i < end; i = next.getAndIncrement()) {
+							try {
+								values[i - first] = worker.randomize(randoms[i - first]);
+								worker.lastIndex = i;
+							} catch (MissingPreconditionException e) {
+								errors[i - first] = e;
+							}
+						}
+					}
+				});
+			}
+			if (pool == null || workers.size() < 2) {
+				for (RecursiveAction task : tasks)
+					task.invoke();
+			} else {
+				pool.invoke(new RecursiveAction() {
+					@Override
+					protected void compute() {
+						invokeAll(tasks);
+					}
+				});
+			}
 
-		shuffledPearsonsResults = new ArrayList<Double>();
-		for (int i=0; i < nrRandomizations; i++) {
-			// shuffle the list
-			Collections.shuffle( inputBlocks );
+			for (int i = 0; i < values.length; i++) {
+				if (errors[i] == null) {
+					results.add(values[i]);
+					sum += values[i];
+					continue;
+				}
+				/* if the randomized input data does not suit due to numerical
+				 * problems, try it three times again and then fail.
+				 */
+				if (retries < maxErrorRetries) {
+					// increase retry count and the number of randomizations
+					retries++;
+					nrRandomizations++;
+				} else {
+					throw new MissingPreconditionException("Maximum retries have been made (" +
+							+ retries + "), but errors keep on coming: " + errors[i].getMessage(), errors[i]);
+				}
+			}
+			start = end;
+
+			if (earlyStopping && start < nrRandomizations
+					&& isDecided(originalVal, sum / results.size(),
+							Statistics.stdDeviation(results), results.size(),
+							earlyStoppingAlpha)) {
+				stoppedEarly = true;
+				break;
+			}
+		}
+
+		// keep the smoothed image of the last randomization
+		Worker last = null;
+		for (Worker worker : workers)
+			if (last == null || worker.lastIndex > last.lastIndex)
+				last = worker;
+		smoothedShuffledImage = last.getSmoothedImage();
+		return results;
+	}
+
+	/**
+	 * A worker that writes the shuffled blocks into its own image, which
+	 * then gets smoothed and correlated with channel two. The blocks are
+	 * copied with a {@link BlockShuffler} if the images support it and
+	 * through cursors over the blocks otherwise. The shuffled image is
+	 * smoothed with a {@link SeparableGauss} into an image of the worker,
+	 * so no memory is allocated per randomization.
+	 */
+	protected class BlockWorker extends Worker {
+		final RandomAccessibleInterval<T> img2;
+		final RandomAccessibleInterval<BitType> mask;
+		final boolean irregularMask;
+		// the smoothing of the shuffled image
+		final SeparableGauss<T> gauss;
+		// the direct copier of the blocks or null if not supported
+		final BlockShuffler<T> shuffler;
+		// the input and output cursors of the blocks, if there is no shuffler
+		final List<Cursor<T>> inputBlocks, outputBlocks;
+		// the order the input blocks are written in
+		final int[] order;
+		// the image of the shuffled blocks and its smoothed version
+		final Img<T> shuffledImage, smoothed;
+		final RandomAccessible<T> infiniteShuffledImage;
+
+		BlockWorker(List<IterableInterval<T>> blockIntervals, long[] gridOffset,
+				long[] blockSize, long[] gridSize, long[] dims, T zero,
+				double[][] halfkernels, boolean irregularMask,
+				RandomAccessibleInterval<T> img1, RandomAccessibleInterval<T> img2,
+				RandomAccessibleInterval<BitType> mask) {
+			this.img2 = img2;
+			this.mask = mask;
+			this.irregularMask = irregularMask;
+			/* Create a new image to contain the shuffled data and with
+			 * same dimensions as the original data.
+			 */
+			ImgFactory<T> factory = new ArrayImgFactory<T>();
+			shuffledImage = factory.create(dims, zero.createVariable());
+			smoothed = factory.create(dims, zero.createVariable());
+			gauss = new SeparableGauss<T>(dims, halfkernels);
+			gauss.setPool(pool);
+			infiniteShuffledImage = Views.extendValue(shuffledImage, zero);
+			order = new int[blockIntervals.size()];
+
+			BlockShuffler<T> blockShuffler = BlockShuffler.create(img1, shuffledImage,
+					gridOffset, blockSize, gridSize);
+			if (blockShuffler != null && blockShuffler.getBlockCount() == order.length) {
+				shuffler = blockShuffler;
+				inputBlocks = outputBlocks = null;
+				return;
+			}
+			shuffler = null;
+			// create input and output cursors and store them along their offset
+			inputBlocks = new ArrayList<Cursor<T>>(blockIntervals.size());
+			outputBlocks = new ArrayList<Cursor<T>>(blockIntervals.size());
+			for (IterableInterval<T> roiIt : blockIntervals) {
+				inputBlocks.add(roiIt.localizingCursor());
+				outputBlocks.add(roiIt.localizingCursor());
+			}
+		}
+
+		@Override
+		double randomize(SplittableRandom random) throws MissingPreconditionException {
+			// shuffle the blocks
+			shuffle( order, random );
+			if (shuffler != null) {
+				/* The blocks cover the same pixels every time and the
+				 * rest of the image stays zero, so the image doesn't
+				 * need to be cleared for irregular masks. */
+				shuffler.shuffle(order);
+				return correlate();
+			}
 			// get an output random access
 			RandomAccess<T> output = infiniteShuffledImage.randomAccess();
 
 			// check if a mask is in use and further actions are needed
-			if (container.getMaskType() == MaskType.Irregular) {
+			if (irregularMask) {
 				Cursor<T> siCursor = shuffledImage.cursor();
 				// black the whole intermediate image, just in case we have irr. masks
 				while (siCursor.hasNext()) {
@@ -196,7 +614,7 @@ public class CostesSignificanceTest<T extends RealType< T > & NativeType<T>> ext
 
 			// write out the shuffled input blocks into the output blocks
 			for (int j=0; j<inputBlocks.size(); ++j) {
-				Cursor<T> inputCursor = inputBlocks.get(j);
+				Cursor<T> inputCursor = inputBlocks.get(order[j]);
 				Cursor<T> outputCursor = outputBlocks.get(j);
 				/* Iterate over both blocks. Theoretically the iteration
 				 * order could be different. Because we are dealing with
@@ -209,7 +627,7 @@ public class CostesSignificanceTest<T extends RealType< T > & NativeType<T>> ext
 					// write the data
 					output.get().set( inputCursor.get() );
 				}
-				
+
 				/* Reset both cursors. If we wouldn't do that, the
 				 * image contents would not change on the next pass.
 				 */
@@ -217,31 +635,152 @@ public class CostesSignificanceTest<T extends RealType< T > & NativeType<T>> ext
 				outputCursor.reset();
 			}
 
-			smoothedShuffledImage = Gauss.inFloat( smoothingPsfRadius, shuffledImage);
+			return correlate();
+		}
 
-			try {
-				// calculate correlation value...
-				double pValue = pearsonsCorrelation.calculatePearsons( smoothedShuffledImage, img2, mask);
-				// ...and add it to the results list
-				shuffledPearsonsResults.add( pValue );
-			} catch (MissingPreconditionException e) {
-				/* if the randomized input data does not suit due to numerical
-				 * problems, try it three times again and then fail.
-				 */
-				if (retries < maxErrorRetries) {
-					// increase retry count and the number of randomizations
-					retries++;
-					nrRandomizations++;
-				} else {
-					throw new MissingPreconditionException("Maximum retries have been made (" +
-							+ retries + "), but errors keep on coming: " + e.getMessage(), e);
+		/**
+		 * Smoothes the shuffled image and correlates it with channel two.
+		 */
+		double correlate() throws MissingPreconditionException {
+			gauss.smooth(shuffledImage, smoothed);
+
+			// calculate correlation value
+			return pearsonsCorrelation.calculatePearsons( smoothed, img2, mask);
+		}
+
+		@Override
+		Img<T> getSmoothedImage() {
+			return smoothed;
+		}
+	}
+
+	/**
+	 * A worker that looks the shuffled blocks up in the original image
+	 * through a {@link ShuffledBlocksView}, and smoothes and correlates
+	 * them with channel two one cell of the cell grid at a time. The
+	 * cells are smoothed with a {@link SeparableGauss} of the worker,
+	 * in the calling thread, as the workers already run in parallel.
+	 */
+	protected class CellWorker extends Worker {
+		final long[] offset, blockSize, nrBlocksPerDimension;
+		final CellGrid grid;
+		final Interval bb;
+		// the smoothing of the cells, reused for every cell
+		final SeparableGauss<T> gauss;
+		final RandomAccessibleInterval<T> img1, img2;
+		final RandomAccessibleInterval<BitType> mask;
+		// the order of the blocks, shuffled for every randomization
+		final int[] order;
+		// the scratch space for the smoothed cells, reused for every cell
+		final float[] scratch;
+
+		CellWorker(long[] offset, long[] blockSize, long[] nrBlocksPerDimension,
+				int nrBlocks, CellGrid grid, Interval bb, long[] haloDims,
+				double[][] halfkernels, RandomAccessibleInterval<T> img1,
+				RandomAccessibleInterval<T> img2, RandomAccessibleInterval<BitType> mask) {
+			this.offset = offset;
+			this.blockSize = blockSize;
+			this.nrBlocksPerDimension = nrBlocksPerDimension;
+			this.grid = grid;
+			this.bb = bb;
+			gauss = new SeparableGauss<T>(haloDims, halfkernels);
+			gauss.setPool(null);
+			this.img1 = img1;
+			this.img2 = img2;
+			this.mask = mask;
+			order = new int[nrBlocks];
+			scratch = new float[(int) Intervals.numElements(grid.getCellDimensions())];
+		}
+
+		@Override
+		double randomize(SplittableRandom random) throws MissingPreconditionException {
+			final int nrDimensions = img1.numDimensions();
+			// shuffle the blocks
+			shuffle( order, random );
+			final RandomAccessible<T> shuffled = Views.extendMirrorSingle(Views.interval(
+					new ShuffledBlocksView<T>(img1, offset, blockSize, nrBlocksPerDimension, order),
+					img1));
+
+			final Accumulator<T> acc = new Accumulator<T>(false, 0.0, 0.0) {
+				@Override
+				public boolean accept(double value1, double value2) {
+					return true;
 				}
+			};
+			final long nrCells = Intervals.numElements(grid.getGridDimensions());
+			final long[] cellMin = new long[nrDimensions], min = new long[nrDimensions],
+					max = new long[nrDimensions];
+			final int[] cellDims = new int[nrDimensions];
+			for (long cell = 0; bb != null && cell < nrCells; cell++) {
+				grid.getCellDimensions(cell, cellMin, cellDims);
+				if (!intersect(bb, cellMin, cellDims, min, max))
+					continue;
+				// smooth the shuffled data of the cell into scratch space
+				final long[] dims = new long[nrDimensions];
+				for (int d = 0; d < nrDimensions; d++)
+					dims[d] = max[d] - min[d] + 1;
+				final RandomAccessibleInterval<FloatType> smoothed =
+						Views.translate(ArrayImgs.floats(scratch, dims), min);
+				gauss.smooth(shuffled, smoothed, scratch);
+				accumulateCell(smoothed, img2, mask, acc);
 			}
+
+			// calculate correlation value
+			return PearsonsCorrelation.fastPearsons(acc);
 		}
+	}
 
-		// calculate statistics on the randomized values and the original one
-		double originalVal = pearsonsCorrelation.getPearsonsCorrelationValue();
-		calculateStatistics(shuffledPearsonsResults, originalVal);
+	/**
+	 * Fills the given array with a random permutation of the numbers
+	 * 0 to length - 1, using the Fisher-Yates shuffle. The permutation
+	 * only depends on the random stream, not on the previous contents.
+	 */
+	public static void shuffle(int[] order, SplittableRandom random) {
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		for (int i = order.length - 1; i > 0; i--) {
+			final int j = random.nextInt(i + 1);
+			final int swap = order[i];
+			order[i] = order[j];
+			order[j] = swap;
+		}
+	}
+
+	/**
+	 * Intersects a cell with a bounding box.
+	 *
+	 * @return false if they don't intersect
+	 */
+	protected static boolean intersect(Interval bb, long[] cellMin, int[] cellDims,
+			long[] min, long[] max) {
+		for (int d = 0; d < min.length; d++) {
+			min[d] = Math.max(cellMin[d], bb.min(d));
+			max[d] = Math.min(cellMin[d] + cellDims[d] - 1, bb.max(d));
+			if (min[d] > max[d])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Feeds the masked pixels of a smoothed cell and channel two to an
+	 * accumulator.
+	 */
+	protected static <T extends RealType<T>> void accumulateCell(
+			RandomAccessibleInterval<FloatType> smoothed, RandomAccessibleInterval<T> img2,
+			RandomAccessibleInterval<BitType> mask, Accumulator<T> acc) {
+		final Cursor<BitType> maskCursor =
+				Views.flatIterable(Views.interval(mask, smoothed)).localizingCursor();
+		final RandomAccess<FloatType> smoothedAccess = smoothed.randomAccess();
+		final RandomAccess<T> img2Access = img2.randomAccess();
+		while (maskCursor.hasNext()) {
+			if (!maskCursor.next().get())
+				continue;
+			smoothedAccess.setPosition(maskCursor);
+			img2Access.setPosition(maskCursor);
+			acc.accumulate(smoothedAccess.get().getRealDouble(),
+					img2Access.get().getRealDouble());
+		}
 	}
 
 	/**
@@ -358,11 +897,10 @@ public class CostesSignificanceTest<T extends RealType< T > & NativeType<T>> ext
 		double compareSum = 0.0;
 
 		for( Double shuffledVal : shuffledPearsonsResults ) {
-			double diff = shuffledVal - originalVal;
 			/* check if the randomized Pearsons value is equal
 			 * or larger than the original one.
 			 */
-			if( diff > -0.00001 ) {
+			if( isNotLess(shuffledVal, originalVal) ) {
 				shuffledPearsonsNotLessOriginal++;
 			}
 			compareSum += shuffledVal;
@@ -385,11 +923,13 @@ public class CostesSignificanceTest<T extends RealType< T > & NativeType<T>> ext
 		super.processResults(handler);
 
 		// if desired, show the last shuffled image available
-		if ( showShuffledImages ) {
+		if ( showShuffledImages && smoothedShuffledImage != null ) {
 			handler.handleImage( smoothedShuffledImage, "Smoothed & shuffled channel 1" );
 		}
 
 		handler.handleValue("Costes P-Value", costesPValue, 2);
+		handler.handleValue("Costes randomization seed", seed, 0);
+		handler.handleValue("Costes randomizations", shuffledPearsonsResults.size(), 0);
 		handler.handleValue("Costes Shuffled Mean", shuffledMean, 2);
 		handler.handleValue("Costes Shuffled Std.D.", shuffledStdDerivation, 2);
 
@@ -403,6 +943,18 @@ public class CostesSignificanceTest<T extends RealType< T > & NativeType<T>> ext
 		handler.handleValue("Ratio of rand. Pearsons >= actual Pearsons value ", ratio, 2);
 	}
 
+	public int getNrRandomizationsUsed() {
+		return shuffledPearsonsResults == null ? 0 : shuffledPearsonsResults.size();
+	}
+
+	public boolean isStoppedEarly() {
+		return stoppedEarly;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
 	public double getCostesPValue() {
 		return costesPValue;
 	}
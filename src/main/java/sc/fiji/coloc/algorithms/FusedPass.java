@@ -0,0 +1,299 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.algorithms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import net.imglib2.DoublePairIterator;
+import net.imglib2.Interval;
+import net.imglib2.PairIterators;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+
+import sc.fiji.coloc.gadgets.DataContainer;
+
+/**
+ * A fused pass walks a single time over the masked pixels of two
+ * channels and hands every visited pixel pair to all registered
+ * kernels. This way all the sums and counters different algorithms
+ * need can be collected with one traversal of the image data,
+ * instead of every algorithm iterating the images on its own.
+ *
+ * Only the bounding box of the mask is walked over. If all registered
+ * kernels are {@link SplittableKernel}s, the bounding box is split into
+ * chunks along its last dimension. Every chunk is fed
+ * to its own copies of the kernels, on all cores of a ForkJoinPool,
+ * and the partial results get merged in chunk order afterwards. The
+ * chunks only depend on the mask, so the results do not depend
+ * on the number of cores.
+ *
+ * Kernels that are {@link BatchKernel}s get the pairs handed over in
+ * blocks of primitive arrays. They can sum up a whole block in local
+ * variables with few dependencies between the operations, which the
+ * JIT compiler and the CPU can execute in parallel, and only add the
+ * block's sums to their compensated sums.
+ *
+ * @param <T>
+ */
+public class FusedPass<T extends RealType< T >> {
+
+	/**
+	 * A kernel is the per-pixel work of an algorithm. It gets fed the
+	 * values of both channels of every pixel visited by the pass.
+	 */
+	public interface Kernel {
+		void accumulate(double ch1, double ch2);
+	}
+
+	/**
+	 * A kernel whose work can be split up into parts that are
+	 * accumulated independently and merged afterwards.
+	 */
+	public interface SplittableKernel extends Kernel {
+		/**
+		 * Creates an empty kernel with the same settings as this one.
+		 */
+		SplittableKernel split();
+
+		/**
+		 * Adds the data accumulated by a kernel created with split().
+		 */
+		void merge(SplittableKernel other);
+	}
+
+	/**
+	 * A kernel that can be fed whole blocks of pairs at once.
+	 */
+	public interface BatchKernel extends Kernel {
+		/**
+		 * Accumulates the first length pairs of the arrays.
+		 */
+		void accumulate(double[] ch1, double[] ch2, int length);
+	}
+
+	// the number of pairs handed over to batch kernels at once
+	public static final int BATCH_SIZE = 1024;
+	// the minimal number of pixels per chunk to make splitting worth it
+	public static final long MIN_CHUNK_SIZE = 1 << 16;
+	// the maximal number of chunks a pass is split into
+	public static final int MAX_CHUNKS = 64;
+
+	// the kernels that are fed by this pass
+	final List<Kernel> kernels = new ArrayList<Kernel>();
+	// the pool to run the chunks in or null to run them sequentially
+	protected ForkJoinPool pool = ForkJoinPool.commonPool();
+	// whether to feed batch kernels with blocks of pairs
+	protected boolean batched = true;
+
+	/**
+	 * Sets the pool the chunks of a pass are run in. If null, the chunks
+	 * are run one after another in the calling thread.
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Sets whether batch kernels are fed with blocks of pairs. If not,
+	 * all kernels get fed pair by pair.
+	 */
+	public void setBatched(boolean batched) {
+		this.batched = batched;
+	}
+
+	/**
+	 * Adds a kernel to this pass. It will be fed on the next run.
+	 *
+	 * @param kernel The kernel to register
+	 * @return The registered kernel
+	 */
+	public <K extends Kernel> K register(K kernel) {
+		kernels.add(kernel);
+		return kernel;
+	}
+
+	/**
+	 * Gets whether there are any kernels registered with this pass.
+	 */
+	public boolean isEmpty() {
+		return kernels.isEmpty();
+	}
+
+	/**
+	 * Walks over the source images and the mask of the data container
+	 * and feeds all registered kernels.
+	 *
+	 * @param container The container providing images and mask
+	 */
+	public void run(DataContainer<T> container) {
+		run(container.getSourceImage1(), container.getSourceImage2(),
+				container.getMask());
+	}
+
+	/**
+	 * Walks over all pixels of both images that are part of the mask and
+	 * feeds all registered kernels.
+	 *
+	 * @param img1 The first channel
+	 * @param img2 The second channel
+	 * @param mask The mask defining the pixels to visit
+	 */
+	public void run(RandomAccessibleInterval<T> img1,
+			RandomAccessibleInterval<T> img2, RandomAccessibleInterval<BitType> mask) {
+		if (kernels.isEmpty())
+			return;
+
+		// an array allows for cheaper iteration in the inner loop
+		final Kernel[] k = kernels.toArray(new Kernel[kernels.size()]);
+		final int numChunks = getNumChunks(mask);
+		if (numChunks < 2 || !allSplittable(k)) {
+			feed(PairIterators.doubles(img1, img2, mask), k, batched);
+			return;
+		}
+
+		// every chunk gets its own set of kernels
+		final List<DoublePairIterator> chunks =
+				PairIterators.doubles(img1, img2, mask, numChunks);
+		final Kernel[][] parts = new Kernel[chunks.size()][k.length];
+		final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		final boolean batch = batched;
+		for (int c = 0; c < parts.length; ++c) {
+			for (int i = 0; i < k.length; ++i)
+				parts[c][i] = ((SplittableKernel) k[i]).split();
+			final DoublePairIterator chunk = chunks.get(c);
+			final Kernel[] chunkKernels = parts[c];
+			tasks.add(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					feed(chunk, chunkKernels, batch);
+				}
+			});
+		}
+
+		if (pool == null) {
+			for (RecursiveAction task : tasks)
+				task.invoke();
+		} else {
+			pool.invoke(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+		}
+
+		// merge the partial results in a defined order
+		for (int c = 0; c < parts.length; ++c)
+			for (int i = 0; i < k.length; ++i)
+				((SplittableKernel) k[i]).merge((SplittableKernel) parts[c][i]);
+	}
+
+	/**
+	 * Feeds all the pairs of an iterator to the kernels.
+	 */
+	protected static void feed(DoublePairIterator it, Kernel[] k, boolean batched) {
+		if (batched && anyBatch(k)) {
+			feedBatches(it, k);
+			return;
+		}
+		while (it.hasNext()) {
+			it.nextPair();
+			final double ch1 = it.first();
+			final double ch2 = it.second();
+			for (int i = 0; i < k.length; ++i)
+				k[i].accumulate(ch1, ch2);
+		}
+	}
+
+	/**
+	 * Gets the number of chunks the pass over a mask gets split into.
+	 * It only depends on the size of the mask's bounding box.
+	 */
+	protected static int getNumChunks(RandomAccessibleInterval<BitType> mask) {
+		final Interval bb = PairIterators.boundingBox(mask);
+		if (bb == null)
+			return 1;
+		return (int) Math.min(MAX_CHUNKS,
+				Math.max(1, Intervals.numElements(bb) / MIN_CHUNK_SIZE));
+	}
+
+	/**
+	 * Feeds the pairs of an iterator to the kernels in blocks. Kernels
+	 * that can't take blocks get fed the pairs of a block one by one.
+	 */
+	protected static void feedBatches(DoublePairIterator it, Kernel[] k) {
+		final double[] ch1 = new double[BATCH_SIZE], ch2 = new double[BATCH_SIZE];
+		while (it.hasNext()) {
+			int length = 0;
+			while (length < BATCH_SIZE && it.hasNext()) {
+				it.nextPair();
+				ch1[length] = it.first();
+				ch2[length] = it.second();
+				++length;
+			}
+			for (int i = 0; i < k.length; ++i) {
+				if (k[i] instanceof BatchKernel) {
+					((BatchKernel) k[i]).accumulate(ch1, ch2, length);
+				} else {
+					for (int j = 0; j < length; ++j)
+						k[i].accumulate(ch1[j], ch2[j]);
+				}
+			}
+		}
+	}
+
+	protected static boolean anyBatch(Kernel[] k) {
+		for (Kernel kernel : k)
+			if (kernel instanceof BatchKernel)
+				return true;
+		return false;
+	}
+
+	protected static boolean allSplittable(Kernel[] k) {
+		for (Kernel kernel : k)
+			if (!(kernel instanceof SplittableKernel))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Feeds a single kernel with the masked pixels of the data
+	 * container. This is meant for algorithms that run on their own,
+	 * without a shared pass having collected their data before.
+	 *
+	 * @param container The container providing images and mask
+	 * @param kernel The kernel to feed
+	 * @return The passed kernel
+	 */
+	public static <T extends RealType< T >, K extends Kernel> K run(
+			DataContainer<T> container, K kernel) {
+		FusedPass<T> pass = new FusedPass<T>();
+		pass.register(kernel);
+		pass.run(container);
+		return kernel;
+	}
+}
@@ -0,0 +1,209 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.algorithms;
+
+import java.util.Arrays;
+
+import net.imglib2.type.numeric.RealType;
+
+import sc.fiji.coloc.gadgets.CompensatedSum;
+import sc.fiji.coloc.gadgets.ThresholdMode;
+
+/**
+ * A histogram of the pixel pairs of two channels over a grid of
+ * thresholds, collected in a single pass. Every channel's values are
+ * counted in bins between its thresholds and in bins of values equal to
+ * them, so both the below and the above threshold mode can be applied
+ * exactly. Summed-area tables of the counts and moments over these bins
+ * give the sums Pearson's R is calculated from for any pair of grid
+ * thresholds in constant time. Along with them, the sums of thresholded
+ * Manders' split coefficients are kept for every grid threshold.
+ *
+ * The tables are too large to keep a copy per chunk of a split pass,
+ * so this kernel is fed pixel by pixel in a single walk.
+ */
+public class GridHistogram extends PairHistogram implements FusedPass.Kernel {
+	// the thresholds of both channels, in ascending order
+	final double[] thresholds1, thresholds2;
+	/* The sums of channel one per bin of channel two, for the pixels
+	 * above zero in channel two, and vice versa. Once integrated, they
+	 * hold the sums of all bins from the given one on. */
+	final double[] mandersSums1, mandersErrors1, mandersSums2, mandersErrors2;
+	// the total intensities of both channels
+	final CompensatedSum sumCh1 = new CompensatedSum(), sumCh2 = new CompensatedSum();
+	// whether the tables are integrated already
+	boolean integrated = false;
+
+	/**
+	 * Creates an empty histogram over a grid of thresholds.
+	 *
+	 * @param thresholds1 The thresholds of channel one, in ascending order
+	 * @param thresholds2 The thresholds of channel two, in ascending order
+	 * @param substract Whether to subtract xDiff and yDiff from the values
+	 */
+	public GridHistogram(double[] thresholds1, double[] thresholds2,
+			boolean substract, double xDiff, double yDiff) {
+		super(substract, xDiff, yDiff);
+		this.thresholds1 = thresholds1.clone();
+		this.thresholds2 = thresholds2.clone();
+		// every channel has a bin for and between each of its thresholds
+		final int bins1 = 2 * thresholds1.length + 1;
+		final int bins2 = 2 * thresholds2.length + 1;
+		allocateTables(bins1 + 1, bins2 + 1);
+		mandersSums1 = new double[bins2];
+		mandersErrors1 = new double[bins2];
+		mandersSums2 = new double[bins1];
+		mandersErrors2 = new double[bins1];
+	}
+
+	/**
+	 * Gets the bin of a value: odd bins hold the values equal to a
+	 * threshold, even ones the values between two thresholds.
+	 */
+	static int bin(double value, double[] thresholds) {
+		final int i = Arrays.binarySearch(thresholds, value);
+		return i >= 0 ? 2 * i + 1 : 2 * (-i - 1);
+	}
+
+	@Override
+	public void accumulate(double ch1, double ch2) {
+		final int b1 = bin(ch1, thresholds1), b2 = bin(ch2, thresholds2);
+		addToCell((b1 + 1) * tableCols + b2 + 1, 1, ch1, ch2);
+		if (ch2 > 0)
+			add(mandersSums1, mandersErrors1, b2, ch1);
+		if (ch1 > 0)
+			add(mandersSums2, mandersErrors2, b1, ch2);
+		sumCh1.add(ch1);
+		sumCh2.add(ch2);
+	}
+
+	/**
+	 * Turns the collected bins into the tables the sums are read from.
+	 * This has to be done once, after all pairs have been added.
+	 */
+	public void integrate() {
+		if (integrated)
+			return;
+		integrateTables();
+		suffixSums(mandersSums1, mandersErrors1);
+		suffixSums(mandersSums2, mandersErrors2);
+		integrated = true;
+	}
+
+	/**
+	 * Turns the sums of every bin into the sums of the bin and all
+	 * following ones.
+	 */
+	protected static void suffixSums(double[] sums, double[] errors) {
+		for (int b = sums.length - 2; b >= 0; --b) {
+			add(sums, errors, b, sums[b + 1]);
+			errors[b] += errors[b + 1];
+		}
+	}
+
+	/**
+	 * Sums up the values of all pairs that are accepted by a threshold
+	 * mode, for thresholds of the grid.
+	 *
+	 * @param i The index of the threshold of channel one
+	 * @param j The index of the threshold of channel two
+	 * @param tMode The mode to apply the thresholds with
+	 * @return An accumulator holding the sums
+	 */
+	public <T extends RealType<T>> Accumulator<T> accumulate(int i, int j,
+			ThresholdMode tMode) {
+		if (!integrated)
+			throw new IllegalStateException("The histogram is not integrated yet.");
+		final Accumulator<T> acc = createAccumulator();
+		final int all1 = tableRows - 1, all2 = tableCols - 1;
+		if (tMode == ThresholdMode.None) {
+			addRect(acc, all1, all2, 1);
+		} else if (tMode == ThresholdMode.Below) {
+			// all pairs with one value below its threshold
+			addRect(acc, 2 * i + 1, all2, 1);
+			addRect(acc, all1, 2 * j + 1, 1);
+			addRect(acc, 2 * i + 1, 2 * j + 1, -1);
+		} else if (tMode == ThresholdMode.Above) {
+			// all pairs but those with both values up to their thresholds
+			addRect(acc, all1, all2, 1);
+			addRect(acc, 2 * i + 2, 2 * j + 2, -1);
+		} else {
+			throw new UnsupportedOperationException();
+		}
+		return acc;
+	}
+
+	/**
+	 * Sums up the values of all pairs that are accepted by a threshold
+	 * mode. Both thresholds need to be thresholds of the grid.
+	 */
+	@Override
+	public <T extends RealType<T>> Accumulator<T> accumulate(
+			double thresholdCh1, double thresholdCh2, ThresholdMode tMode) {
+		return accumulate(indexOf(thresholdCh1, thresholds1),
+				indexOf(thresholdCh2, thresholds2), tMode);
+	}
+
+	protected static int indexOf(double threshold, double[] thresholds) {
+		final int i = Arrays.binarySearch(thresholds, threshold);
+		if (i < 0)
+			throw new IllegalArgumentException("The threshold " + threshold
+					+ " is not part of the grid.");
+		return i;
+	}
+
+	/**
+	 * Gets Manders' tM1 for a threshold of channel two: the fraction of
+	 * the intensity of channel one in pixels above zero and at or above
+	 * the threshold in channel two.
+	 *
+	 * @param j The index of the threshold of channel two
+	 */
+	public double getMandersM1(int j) {
+		if (!integrated)
+			throw new IllegalStateException("The histogram is not integrated yet.");
+		final int b = 2 * j + 1;
+		return (mandersSums1[b] + mandersErrors1[b]) / sumCh1.getSum();
+	}
+
+	/**
+	 * Gets Manders' tM2 for a threshold of channel one: the fraction of
+	 * the intensity of channel two in pixels above zero and at or above
+	 * the threshold in channel one.
+	 *
+	 * @param i The index of the threshold of channel one
+	 */
+	public double getMandersM2(int i) {
+		if (!integrated)
+			throw new IllegalStateException("The histogram is not integrated yet.");
+		final int b = 2 * i + 1;
+		return (mandersSums2[b] + mandersErrors2[b]) / sumCh2.getSum();
+	}
+
+	public double[] getThresholdsCh1() {
+		return thresholds1.clone();
+	}
+
+	public double[] getThresholdsCh2() {
+		return thresholds2.clone();
+	}
+}
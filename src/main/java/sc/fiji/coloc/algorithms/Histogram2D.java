@@ -25,12 +25,11 @@ import ij.measure.ResultsTable;
 
 import java.util.EnumSet;
 
+import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.TwinCursor;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
-import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.LongType;
 import net.imglib2.view.Views;
@@ -71,6 +70,8 @@ public class Histogram2D<T extends RealType< T >> extends Algorithm<T> {
 	private String xLabel = "", yLabel = "";
 	// ranges for the axes
 	private double xMin = 0.0, xMax = 0.0, yMin = 0.0, yMax = 0.0;
+	// the histogram filled by a shared pass
+	private HistogramKernel sharedKernel;
 
 
 	public Histogram2D(){
@@ -192,35 +193,72 @@ public class Histogram2D<T extends RealType< T >> extends Algorithm<T> {
 		generateHistogramData(container);
 	}
 
+	@Override
+	public void registerKernels(FusedPass<T> pass, DataContainer<T> container) {
+		sharedKernel = pass.register(new HistogramKernel(container));
+	}
+
 	protected void generateHistogramData(DataContainer<T> container) {
-		double ch1BinWidth = getXBinWidth(container);
-		double ch2BinWidth = getYBinWidth(container);
+		// use the histogram of a shared pass if there was one
+		HistogramKernel kernel = sharedKernel;
+		sharedKernel = null;
+		if (kernel == null)
+			kernel = FusedPass.run(container, new HistogramKernel(container));
 
-		// get the 2 images for the calculation of Pearson's
-		final RandomAccessibleInterval<T> img1 = getImageCh1(container);
-		final RandomAccessibleInterval<T> img2 = getImageCh2(container);
-		final RandomAccessibleInterval<BitType> mask = container.getMask();
+		plotImage = kernel.histogram;
 
-		// get the cursors for iterating through pixels in images
-		TwinCursor<T> cursor = new TwinCursor<T>(img1.randomAccess(),
-				img2.randomAccess(), Views.iterable(mask).localizingCursor());
+		if (kernel.ignoredPixelCount > 0) {
+			addWarning("Ignored pixels while generating histogram.",
+					"" + kernel.ignoredPixelCount + " pixels were ignored while generating the 2D histogram \"" + title +
+							"\" because the grey values were out of range." +
+							"This may happen, if an image contains negative pixel values.");
+		}
+		xBinWidth = kernel.ch1BinWidth;
+		yBinWidth = kernel.ch2BinWidth;
+		xLabel = getLabelCh1();
+		yLabel = getLabelCh2();
+		xMin = getXMin(container);
+		xMax = getXMax(container);
+		yMin = getYMin(container);
+		yMax = getYMax(container);
+	}
+
+	/**
+	 * Fills the 2D histogram pixel by pixel. The kernel gets fed the
+	 * values of the data containers channels and takes care of the
+	 * channel swapping itself.
+	 */
+	protected class HistogramKernel implements FusedPass.SplittableKernel {
+		final double ch1BinWidth, ch2BinWidth;
+		// the image to put the scatter-plot in
+		final RandomAccessibleInterval<LongType> histogram;
+		// access to the scatter-plot
+		final RandomAccess<LongType> histogram2DCursor;
+		// the position of the current data point
+		final long[] pos = new long[2];
+		long ignoredPixelCount = 0;
 
-		// create new image to put the scatter-plot in
-		final ImgFactory<LongType> scatterFactory = new ArrayImgFactory< LongType >();
-		plotImage = scatterFactory.create(new int[] {xBins, yBins}, new LongType() );
+		public HistogramKernel(DataContainer<T> container) {
+			this(getXBinWidth(container), getYBinWidth(container));
+		}
 
-		// create access cursors
-		final RandomAccess<LongType> histogram2DCursor =
-			plotImage.randomAccess();
+		protected HistogramKernel(double ch1BinWidth, double ch2BinWidth) {
+			this.ch1BinWidth = ch1BinWidth;
+			this.ch2BinWidth = ch2BinWidth;
 
-		long ignoredPixelCount = 0;
+			// create new image to put the scatter-plot in
+			final ImgFactory<LongType> scatterFactory = new ArrayImgFactory< LongType >();
+			histogram = scatterFactory.create(new int[] {xBins, yBins}, new LongType() );
+			histogram2DCursor = histogram.randomAccess();
+		}
 
-		// iterate over images
-		long[] pos = new long[ plotImage.numDimensions() ];
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			double ch1 = cursor.getFirst().getRealDouble();
-			double ch2 = cursor.getSecond().getRealDouble();
+		@Override
+		public void accumulate(double ch1, double ch2) {
+			if (swapChannels) {
+				double tmp = ch1;
+				ch1 = ch2;
+				ch2 = tmp;
+			}
 			/* Scale values for both channels to fit in the range.
 			 * Moreover mirror the y value on the x axis.
 			 */
@@ -240,20 +278,22 @@ public class Histogram2D<T extends RealType< T >> extends Algorithm<T> {
 			}
 		}
 
-		if (ignoredPixelCount > 0) {
-			addWarning("Ignored pixels while generating histogram.",
-					"" + ignoredPixelCount + " pixels were ignored while generating the 2D histogram \"" + title +
-							"\" because the grey values were out of range." +
-							"This may happen, if an image contains negative pixel values.");
+		@Override
+		public HistogramKernel split() {
+			return new HistogramKernel(ch1BinWidth, ch2BinWidth);
+		}
+
+		@Override
+		public void merge(FusedPass.SplittableKernel other) {
+			HistogramKernel o = (HistogramKernel) other;
+			Cursor<LongType> c = Views.flatIterable(histogram).cursor();
+			Cursor<LongType> oc = Views.flatIterable(o.histogram).cursor();
+			while (c.hasNext()) {
+				LongType count = c.next();
+				count.set(count.get() + oc.next().get());
+			}
+			ignoredPixelCount += o.ignoredPixelCount;
 		}
-		xBinWidth = ch1BinWidth;
-		yBinWidth = ch2BinWidth;
-		xLabel = getLabelCh1();
-		yLabel = getLabelCh2();
-		xMin = getXMin(container);
-		xMax = getXMax(container);
-		yMin = getYMin(container);
-		yMax = getYMax(container);
 	}
 
 	/**
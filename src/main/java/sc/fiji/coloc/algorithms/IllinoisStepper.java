@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.algorithms;
+
+/**
+ * Try to converge a threshold to where the update value changes its sign,
+ * by the Illinois variant of the false position method. The threshold is
+ * kept within a bracket whose upper end had an update value above zero
+ * and whose lower end had one below zero or not a number. The next
+ * threshold is interpolated between the values at both ends. If one of
+ * them is unknown, e.g. because it was not a number, the bracket is
+ * bisected instead. If the same end is kept twice in a row, its value is
+ * halved so that the bracket shrinks from both sides.
+ *
+ * Compared to the {@link BisectionStepper}, this usually needs fewer
+ * updates once there are values on both sides of the change of sign.
+ */
+public class IllinoisStepper extends Stepper {
+	// the ends of the bracket and their update values
+	protected double lower, upper;
+	protected double lowerValue = Double.NaN, upperValue = Double.NaN;
+	// the current threshold
+	protected double threshold;
+	// the end that was moved by the last update: -1 lower, 1 upper, 0 none
+	protected int lastSide = 0;
+	protected boolean finished = false;
+	protected int iterations = 0;
+	protected int maxIterations = 100;
+
+	/**
+	 * Initialize the stepper with a bracket of thresholds. Like the
+	 * {@link BisectionStepper}, it starts in the middle of it.
+	 *
+	 * @param lower The lowest threshold to consider
+	 * @param upper The highest threshold to consider
+	 */
+	public IllinoisStepper(double lower, double upper) {
+		this.lower = Math.min(lower, upper);
+		this.upper = Math.max(lower, upper);
+		threshold = (this.lower + this.upper) * 0.5;
+		finished = this.upper - this.lower < 1.0;
+	}
+
+	/**
+	 * Update the bracket with the value at the current threshold and pick
+	 * the next one. If {@code value} is below zero or not a number, the
+	 * threshold becomes the lower end of the bracket. If it is above zero,
+	 * it becomes the upper end. A value of zero finishes the stepper.
+	 */
+	@Override
+	public void update(double value) {
+		if (finished)
+			return;
+		iterations++;
+		if (value == 0.0) {
+			finished = true;
+			return;
+		}
+		if (value > 0) {
+			upper = threshold;
+			upperValue = value;
+			// the illinois modification: weaken the end kept again
+			if (lastSide == 1)
+				lowerValue *= 0.5;
+			lastSide = 1;
+		} else {
+			// not a number counts as below zero, with an unknown value
+			lower = threshold;
+			lowerValue = value;
+			if (lastSide == -1)
+				upperValue *= 0.5;
+			lastSide = -1;
+		}
+
+		final double width = upper - lower;
+		if (iterations > maxIterations || width < 1.0) {
+			finished = true;
+			return;
+		}
+		double next;
+		if (Double.isNaN(lowerValue) || Double.isNaN(upperValue)) {
+			next = (lower + upper) * 0.5;
+		} else {
+			next = upper - upperValue * width / (upperValue - lowerValue);
+		}
+		// stay half a step away from both ends, so the bracket shrinks
+		threshold = Math.max(lower + 0.5, Math.min(upper - 0.5, next));
+	}
+
+	/**
+	 * Get current threshold.
+	 */
+	@Override
+	public double getValue() {
+		return threshold;
+	}
+
+	/**
+	 * The stepper is finished once the bracket is narrower than one, a
+	 * value of zero was hit or too many updates were made.
+	 */
+	@Override
+	public boolean isFinished() {
+		return finished;
+	}
+}
@@ -0,0 +1,303 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.algorithms;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+
+import sc.fiji.coloc.gadgets.CompensatedSum;
+
+/**
+ * Keeps Pearson's and Manders' coefficients of a large image up to date
+ * while the image changes tile by tile, e.g. for mosaics acquired one
+ * tile after another. For every tile, the mergeable sums both
+ * coefficients are calculated from are kept, along with the sums of
+ * all tiles. Adding, replacing or removing a tile only needs to walk
+ * over the pixels of that tile.
+ *
+ * Since the means of the whole image change with every tile, Pearson's
+ * R is calculated like the fast implementation does, from the plain
+ * sums of the values. The thresholds for the values below and above
+ * thresholds and for Manders' thresholded coefficients need to be fixed
+ * beforehand, e.g. from an auto threshold regression of a first set of
+ * tiles. Without thresholds, these values are NaN.
+ *
+ * The whole state is serializable, so a session can be stored and
+ * resumed later on.
+ *
+ * @param <T>
+ */
+public class IncrementalColocalization<T extends RealType< T >> implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The sums of the pixels of a tile, or of several tiles merged.
+	 */
+	public static class TileSums implements FusedPass.SplittableKernel, Serializable {
+		private static final long serialVersionUID = 1L;
+
+		// the offsets of the moments of all, the below and the above pairs
+		static final int NONE = 0, BELOW = 5, ABOVE = 10;
+		// the offsets of the moments within a bucket
+		static final int X = 0, Y = 1, XX = 2, XY = 3, YY = 4;
+		// the indices of the sums of Manders' coefficients
+		static final int SUM_CH1 = 15, SUM_CH2 = 16, M1 = 17, M2 = 18, TM1 = 19, TM2 = 20;
+
+		final double thresholdCh1, thresholdCh2;
+		final CompensatedSum[] sums = new CompensatedSum[21];
+		// the number of all, the below and the above pairs
+		final long[] counts = new long[3];
+
+		public TileSums(double thresholdCh1, double thresholdCh2) {
+			this.thresholdCh1 = thresholdCh1;
+			this.thresholdCh2 = thresholdCh2;
+			for (int i = 0; i < sums.length; ++i)
+				sums[i] = new CompensatedSum();
+		}
+
+		@Override
+		public void accumulate(double ch1, double ch2) {
+			addMoments(NONE, ch1, ch2);
+			if (ch1 < thresholdCh1 || ch2 < thresholdCh2)
+				addMoments(BELOW, ch1, ch2);
+			if (ch1 > thresholdCh1 || ch2 > thresholdCh2)
+				addMoments(ABOVE, ch1, ch2);
+
+			sums[SUM_CH1].add(ch1);
+			sums[SUM_CH2].add(ch2);
+			// only pixels above zero in the other channel count for M1 and M2
+			if (ch2 > 0) {
+				sums[M1].add(ch1);
+				if (ch2 >= thresholdCh2)
+					sums[TM1].add(ch1);
+			}
+			if (ch1 > 0) {
+				sums[M2].add(ch2);
+				if (ch1 >= thresholdCh1)
+					sums[TM2].add(ch2);
+			}
+		}
+
+		protected void addMoments(int bucket, double ch1, double ch2) {
+			sums[bucket + X].add(ch1);
+			sums[bucket + Y].add(ch2);
+			sums[bucket + XX].add(ch1 * ch1);
+			sums[bucket + XY].add(ch1 * ch2);
+			sums[bucket + YY].add(ch2 * ch2);
+			counts[bucket / 5]++;
+		}
+
+		@Override
+		public TileSums split() {
+			return new TileSums(thresholdCh1, thresholdCh2);
+		}
+
+		@Override
+		public void merge(FusedPass.SplittableKernel other) {
+			TileSums o = (TileSums) other;
+			for (int i = 0; i < sums.length; ++i)
+				sums[i].add(o.sums[i]);
+			for (int i = 0; i < counts.length; ++i)
+				counts[i] += o.counts[i];
+		}
+
+		/**
+		 * Takes the sums of another tile back out of these sums.
+		 */
+		public void unmerge(TileSums other) {
+			for (int i = 0; i < sums.length; ++i)
+				sums[i].subtract(other.sums[i]);
+			for (int i = 0; i < counts.length; ++i)
+				counts[i] -= other.counts[i];
+		}
+
+		/**
+		 * Gets the number of pixels the sums were collected from.
+		 */
+		public long getCount() {
+			return counts[0];
+		}
+
+		/**
+		 * Calculates Pearson's R value of a bucket of moments.
+		 */
+		double pearsons(int bucket) {
+			Accumulator<?> acc = ThresholdAccumulator.createBucket(false, 0, 0);
+			acc.x.add(sums[bucket + X]);
+			acc.y.add(sums[bucket + Y]);
+			acc.xx.add(sums[bucket + XX]);
+			acc.xy.add(sums[bucket + XY]);
+			acc.yy.add(sums[bucket + YY]);
+			acc.count = counts[bucket / 5];
+			try {
+				return PearsonsCorrelation.fastPearsons(acc);
+			} catch (MissingPreconditionException e) {
+				// probably a numerical error occurred
+				return Double.NaN;
+			}
+		}
+
+		double ratio(int numerator, int denominator) {
+			return sums[numerator].getSum() / sums[denominator].getSum();
+		}
+	}
+
+	// the thresholds of both channels
+	protected final double thresholdCh1, thresholdCh2;
+	// the sums of every tile, in the order they were added
+	protected final Map<String, TileSums> tiles = new LinkedHashMap<String, TileSums>();
+	// the sums of all tiles
+	protected final TileSums total;
+
+	/**
+	 * Creates an empty state without thresholds.
+	 */
+	public IncrementalColocalization() {
+		this(Double.NaN, Double.NaN);
+	}
+
+	/**
+	 * Creates an empty state with fixed thresholds.
+	 *
+	 * @param thresholdCh1 The threshold of channel one
+	 * @param thresholdCh2 The threshold of channel two
+	 */
+	public IncrementalColocalization(double thresholdCh1, double thresholdCh2) {
+		this.thresholdCh1 = thresholdCh1;
+		this.thresholdCh2 = thresholdCh2;
+		total = new TileSums(thresholdCh1, thresholdCh2);
+	}
+
+	/**
+	 * Collects the sums of the masked pixels of a tile, without adding
+	 * them to this state.
+	 *
+	 * @param img1 The first channel of the tile
+	 * @param img2 The second channel of the tile
+	 * @param mask The mask of the pixels to take into account
+	 * @return The sums of the tile
+	 */
+	public TileSums measure(RandomAccessibleInterval<T> img1,
+			RandomAccessibleInterval<T> img2, RandomAccessibleInterval<BitType> mask) {
+		FusedPass<T> pass = new FusedPass<T>();
+		TileSums sums = pass.register(new TileSums(thresholdCh1, thresholdCh2));
+		pass.run(img1, img2, mask);
+		return sums;
+	}
+
+	/**
+	 * Adds a tile or replaces the one with the same id.
+	 *
+	 * @param id The id of the tile
+	 * @param img1 The first channel of the tile
+	 * @param img2 The second channel of the tile
+	 * @param mask The mask of the pixels to take into account
+	 */
+	public void put(String id, RandomAccessibleInterval<T> img1,
+			RandomAccessibleInterval<T> img2, RandomAccessibleInterval<BitType> mask) {
+		put(id, measure(img1, img2, mask));
+	}
+
+	/**
+	 * Adds the sums of a tile or replaces the ones with the same id.
+	 *
+	 * @param id The id of the tile
+	 * @param sums The sums of the tile, using the thresholds of this state
+	 */
+	public void put(String id, TileSums sums) {
+		if (Double.compare(sums.thresholdCh1, thresholdCh1) != 0
+				|| Double.compare(sums.thresholdCh2, thresholdCh2) != 0)
+			throw new IllegalArgumentException("The sums of tile " + id
+					+ " were collected with different thresholds.");
+		TileSums old = tiles.put(id, sums);
+		if (old != null)
+			total.unmerge(old);
+		total.merge(sums);
+	}
+
+	/**
+	 * Removes a tile.
+	 *
+	 * @param id The id of the tile
+	 * @return Whether there was a tile with that id
+	 */
+	public boolean remove(String id) {
+		TileSums old = tiles.remove(id);
+		if (old == null)
+			return false;
+		total.unmerge(old);
+		return true;
+	}
+
+	/**
+	 * Gets the ids of all tiles, in the order they were added.
+	 */
+	public Set<String> getTileIds() {
+		return Collections.unmodifiableSet(tiles.keySet());
+	}
+
+	/**
+	 * Gets the sums of all tiles.
+	 */
+	public TileSums getTotal() {
+		return total;
+	}
+
+	public double getPearsonsCorrelationValue() {
+		return total.pearsons(TileSums.NONE);
+	}
+
+	public double getPearsonsCorrelationBelowThreshold() {
+		return total.pearsons(TileSums.BELOW);
+	}
+
+	public double getPearsonsCorrelationAboveThreshold() {
+		return total.pearsons(TileSums.ABOVE);
+	}
+
+	public double getMandersM1() {
+		return total.ratio(TileSums.M1, TileSums.SUM_CH1);
+	}
+
+	public double getMandersM2() {
+		return total.ratio(TileSums.M2, TileSums.SUM_CH2);
+	}
+
+	public double getMandersThresholdedM1() {
+		if (Double.isNaN(thresholdCh2))
+			return Double.NaN;
+		return total.ratio(TileSums.TM1, TileSums.SUM_CH1);
+	}
+
+	public double getMandersThresholdedM2() {
+		if (Double.isNaN(thresholdCh1))
+			return Double.NaN;
+		return total.ratio(TileSums.TM2, TileSums.SUM_CH2);
+	}
+}
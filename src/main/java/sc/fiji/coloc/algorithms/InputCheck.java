@@ -23,11 +23,7 @@ package sc.fiji.coloc.algorithms;
 
 import ij.IJ;
 
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.TwinCursor;
-import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.view.Views;
 
 import sc.fiji.coloc.gadgets.DataContainer;
 import sc.fiji.coloc.gadgets.DataContainer.MaskType;
@@ -73,22 +69,22 @@ public class InputCheck<T extends RealType< T >> extends Algorithm<T> {
 	MaskType maskType;
 	double maskID;
 
+	// the pixel counts, filled by a shared pass
+	CountKernel sharedKernel;
+
 	public InputCheck() {
 		super("input data check");
 	}
 
+	@Override
+	public void registerKernels(FusedPass<T> pass, DataContainer<T> container) {
+		sharedKernel = pass.register(new CountKernel(container.getMaxCh1(),
+				container.getMaxCh2()));
+	}
+
 	@Override
 	public void execute(DataContainer<T> container)
 			throws MissingPreconditionException {
-		// get the 2 images and the mask
-		final RandomAccessibleInterval<T> img1 = container.getSourceImage1();
-		final RandomAccessibleInterval<T> img2 = container.getSourceImage2();
-		final RandomAccessibleInterval<BitType> mask = container.getMask();
-
-		// get the cursors for iterating through pixels in images
-		TwinCursor<T> cursor = new TwinCursor<T>(img1.randomAccess(),
-				img2.randomAccess(), Views.iterable(mask).cursor());
-
 		// get various general image properties/stats/values from the DataContainer
 		ch1Max = container.getMaxCh1();
 		ch2Max = container.getMaxCh2();
@@ -103,40 +99,18 @@ public class InputCheck<T extends RealType< T >> extends Algorithm<T> {
 		maskType = container.getMaskType();
 		maskID = (double)container.getMaskID();
 
-		// the total amount of pixels that have been taken into consideration
-		long N = 0;
-		// the number of pixels that are zero in both channels
-		long Nzero = 0;
-		// the number of ch1 pixels with the maximum ch1 value;
-		long NsaturatedCh1 = 0;
-		// the number of ch2 pixels with the maximum ch2 value;
-		long NsaturatedCh2 = 0;
-
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			double ch1 = cursor.getFirst().getRealDouble();
-			double ch2 = cursor.getSecond().getRealDouble();
-
-			// is the current pixels combination a zero-zero pixel?
-			if (Math.abs(ch1 + ch2) < 0.00001)
-				Nzero++;
-
-			// is the current pixel of channel one saturated?
-			if (Math.abs(ch1Max - ch1) < 0.00001)
-				NsaturatedCh1++;
-
-			// is the current pixel of channel one saturated?
-			if (Math.abs(ch2Max - ch2) < 0.00001)
-				NsaturatedCh2++;
-
-			N++;
-		}
+		// use the counts of a shared pass if there was one
+		CountKernel counts = sharedKernel;
+		sharedKernel = null;
+		if (counts == null)
+			counts = FusedPass.run(container, new CountKernel(ch1Max, ch2Max));
 
 		// calculate results
-		double zeroZeroRatio = (double)Nzero / (double)N;
+		double N = counts.N;
+		double zeroZeroRatio = (double)counts.Nzero / N;
 		// for channel wise ratios we have to use half of the total pixel amount
-		double ch1SaturatedRatio = (double)NsaturatedCh1 / ( (double)N *0.5);
-		double ch2SaturatedRatio = (double)NsaturatedCh2 / ( (double)N * 0.5);
+		double ch1SaturatedRatio = (double)counts.NsaturatedCh1 / ( N *0.5);
+		double ch2SaturatedRatio = (double)counts.NsaturatedCh2 / ( N * 0.5);
 
 		/* save results
 		 * Percentage results need to be multiplied by 100
@@ -173,6 +147,57 @@ public class InputCheck<T extends RealType< T >> extends Algorithm<T> {
 		}
 	}
 
+	/**
+	 * Counts the zero-zero and saturated pixels, pixel by pixel.
+	 */
+	protected static class CountKernel implements FusedPass.SplittableKernel {
+		final double ch1Max, ch2Max;
+		// the total amount of pixels that have been taken into consideration
+		long N = 0;
+		// the number of pixels that are zero in both channels
+		long Nzero = 0;
+		// the number of ch1 pixels with the maximum ch1 value;
+		long NsaturatedCh1 = 0;
+		// the number of ch2 pixels with the maximum ch2 value;
+		long NsaturatedCh2 = 0;
+
+		public CountKernel(double ch1Max, double ch2Max) {
+			this.ch1Max = ch1Max;
+			this.ch2Max = ch2Max;
+		}
+
+		@Override
+		public void accumulate(double ch1, double ch2) {
+			// is the current pixels combination a zero-zero pixel?
+			if (Math.abs(ch1 + ch2) < 0.00001)
+				Nzero++;
+
+			// is the current pixel of channel one saturated?
+			if (Math.abs(ch1Max - ch1) < 0.00001)
+				NsaturatedCh1++;
+
+			// is the current pixel of channel one saturated?
+			if (Math.abs(ch2Max - ch2) < 0.00001)
+				NsaturatedCh2++;
+
+			N++;
+		}
+
+		@Override
+		public CountKernel split() {
+			return new CountKernel(ch1Max, ch2Max);
+		}
+
+		@Override
+		public void merge(FusedPass.SplittableKernel other) {
+			CountKernel o = (CountKernel) other;
+			N += o.N;
+			Nzero += o.Nzero;
+			NsaturatedCh1 += o.NsaturatedCh1;
+			NsaturatedCh2 += o.NsaturatedCh2;
+		}
+	}
+
 	@Override
 	public void processResults(ResultHandler<T> handler) {
 		super.processResults(handler);
@@ -0,0 +1,473 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.algorithms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.DoublePairIterator;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+
+import sc.fiji.coloc.gadgets.CompensatedSum;
+import sc.fiji.coloc.gadgets.ThresholdMode;
+
+/**
+ * The joint histogram of two integer channels, i.e. the number of
+ * pixels of every pair of values that occurs. For every value of
+ * channel one it keeps the occurring values of channel two in
+ * ascending order, along with prefix sums of their counts and moments.
+ * This way the sums Pearson's R is calculated from can be collected for
+ * any pair of thresholds by walking over the values of channel one,
+ * without visiting any pixel again.
+ *
+ * If the value ranges of both channels are small enough, e.g. for 8-bit
+ * images, summed-area tables of the counts and moments over the whole
+ * intensity plane are created as well. With those, the sums for any
+ * pair of thresholds are collected in constant time.
+ */
+public class JointHistogram extends PairHistogram {
+	// the maximal number of bins to count pairs in a dense 2D array
+	public static final long MAX_DENSE_BINS = 1 << 22;
+	// the maximal number of cells of the summed-area tables
+	public static final long MAX_TABLE_CELLS = 1 << 18;
+
+	// the value ranges of both channels
+	final int min1, min2, width1, width2;
+
+	// the occurring values of channel one, in ascending order
+	final int[] values1;
+	// the index of the first entry of each value of channel one, plus the end
+	final int[] rowStart;
+	// the occurring values of channel two for each value of channel one
+	final int[] values2;
+	// inclusive prefix sums per row of the counts and the (shifted) moments
+	final long[] countSums;
+	final double[] ySums, yySums;
+	// the rounding errors of the prefix sums of the moments
+	final double[] yErrors, yyErrors;
+
+	protected JointHistogram(int min1, int max1, int min2, int max2,
+			int[] values1, int[] rowStart, int[] values2,
+			long[] counts, boolean substract, double xDiff, double yDiff) {
+		super(substract, xDiff, yDiff);
+		this.min1 = min1;
+		this.min2 = min2;
+		this.width1 = max1 - min1 + 1;
+		this.width2 = max2 - min2 + 1;
+		this.values1 = values1;
+		this.rowStart = rowStart;
+		this.values2 = values2;
+
+		final int n = values2.length;
+		countSums = new long[n];
+		ySums = new double[n];
+		yySums = new double[n];
+		yErrors = new double[n];
+		yyErrors = new double[n];
+		for (int r = 0; r < values1.length; ++r) {
+			for (int i = rowStart[r]; i < rowStart[r + 1]; ++i) {
+				final double value = substract ? values2[i] - yDiff : values2[i];
+				// continue the sums of the previous entry of this row
+				if (i > rowStart[r]) {
+					countSums[i] = countSums[i - 1];
+					ySums[i] = ySums[i - 1];
+					yySums[i] = yySums[i - 1];
+					yErrors[i] = yErrors[i - 1];
+					yyErrors[i] = yyErrors[i - 1];
+				}
+				countSums[i] += counts[i];
+				add(ySums, yErrors, i, counts[i] * value);
+				add(yySums, yyErrors, i, counts[i] * value * value);
+			}
+		}
+
+		if ((width1 + 1L) * (width2 + 1L) <= MAX_TABLE_CELLS)
+			createTables(counts);
+	}
+
+	/**
+	 * Creates the summed-area tables of the counts and moments.
+	 */
+	protected void createTables(long[] counts) {
+		allocateTables(width1 + 1, width2 + 1);
+		// put the sums of every pair into the cell after it
+		for (int r = 0; r < values1.length; ++r)
+			for (int i = rowStart[r]; i < rowStart[r + 1]; ++i)
+				addToCell((values1[r] - min1 + 1) * tableCols + values2[i] - min2 + 1,
+						counts[i], values1[r], values2[i]);
+		integrateTables();
+	}
+
+	/**
+	 * Tests whether the values of a pixel type are integers of at most
+	 * 16 bits, so a joint histogram can be created for them.
+	 */
+	public static boolean isSupported(RealType<?> type) {
+		return type instanceof IntegerType && type.getBitsPerPixel() <= 16;
+	}
+
+	/**
+	 * Tests whether the joint histogram of the given value ranges is
+	 * counted in a dense 2D array. Only then, creating it does not need
+	 * memory for every single pair.
+	 */
+	public static boolean isDense(int min1, int max1, int min2, int max2) {
+		return ((long) max1 - min1 + 1) * ((long) max2 - min2 + 1) <= MAX_DENSE_BINS;
+	}
+
+	/**
+	 * Creates the joint histogram of the pairs of an iterator. All values
+	 * need to be integers within the given ranges.
+	 *
+	 * @param iterator The iterator of the pairs
+	 * @param size The number of pairs the iterator visits
+	 * @param min1 The minimal value of channel one
+	 * @param max1 The maximal value of channel one
+	 * @param min2 The minimal value of channel two
+	 * @param max2 The maximal value of channel two
+	 * @param substract Whether to subtract xDiff and yDiff from the values
+	 * @return The histogram or null if there are too many pairs
+	 */
+	public static JointHistogram create(DoublePairIterator iterator, long size,
+			int min1, int max1, int min2, int max2,
+			boolean substract, double xDiff, double yDiff) {
+		final long width = (long) max2 - min2 + 1;
+		final long bins = ((long) max1 - min1 + 1) * width;
+		long[] keys;
+		long[] counts;
+		int n = 0;
+
+		if (isDense(min1, max1, min2, max2)) {
+			// count the pairs in a dense 2D array of longs, so no count can overflow
+			final long[] dense = new long[(int) bins];
+			while (iterator.hasNext()) {
+				iterator.nextPair();
+				++dense[(int) (((long) iterator.first() - min1) * width
+						+ (long) iterator.second() - min2)];
+			}
+			for (int i = 0; i < dense.length; ++i)
+				if (dense[i] != 0)
+					++n;
+			keys = new long[n];
+			counts = new long[n];
+			n = 0;
+			for (int i = 0; i < dense.length; ++i) {
+				if (dense[i] != 0) {
+					keys[n] = i;
+					counts[n++] = dense[i];
+				}
+			}
+		} else {
+			// sort the pairs and count runs of equal ones
+			if (size > Integer.MAX_VALUE - 8)
+				return null;
+			keys = new long[(int) size];
+			int k = 0;
+			while (iterator.hasNext() && k < keys.length) {
+				iterator.nextPair();
+				keys[k++] = ((long) iterator.first() - min1) * width
+						+ (long) iterator.second() - min2;
+			}
+			Arrays.sort(keys, 0, k);
+			counts = new long[k];
+			for (int i = 0; i < k; ++i) {
+				if (n > 0 && keys[n - 1] == keys[i]) {
+					++counts[n - 1];
+				} else {
+					keys[n] = keys[i];
+					counts[n++] = 1;
+				}
+			}
+		}
+
+		// split the sorted pairs into rows of equal channel one values
+		int rows = 0;
+		for (int i = 0; i < n; ++i)
+			if (i == 0 || keys[i] / width != keys[i - 1] / width)
+				++rows;
+		final int[] values1 = new int[rows];
+		final int[] rowStart = new int[rows + 1];
+		final int[] values2 = new int[n];
+		int r = 0;
+		for (int i = 0; i < n; ++i) {
+			if (i == 0 || keys[i] / width != keys[i - 1] / width) {
+				values1[r] = (int) (keys[i] / width) + min1;
+				rowStart[r++] = i;
+			}
+			values2[i] = (int) (keys[i] % width) + min2;
+		}
+		rowStart[rows] = n;
+
+		return new JointHistogram(min1, max1, min2, max2, values1, rowStart,
+				values2, counts, substract, xDiff, yDiff);
+	}
+
+	/**
+	 * Sums up the pairs accepted by a threshold mode, like an
+	 * {@link Accumulator} walking over the pixels would do. Below and
+	 * above mode accept a pair if at least one of its values is below
+	 * or above its threshold, respectively.
+	 *
+	 * @param thresholdCh1 The threshold of channel one
+	 * @param thresholdCh2 The threshold of channel two
+	 * @param tMode The mode to apply the thresholds with
+	 * @return An accumulator holding the sums
+	 */
+	@Override
+	public <T extends RealType<T>> Accumulator<T> accumulate(
+			double thresholdCh1, double thresholdCh2, ThresholdMode tMode) {
+		if (tMode != ThresholdMode.None && tMode != ThresholdMode.Below
+				&& tMode != ThresholdMode.Above)
+			throw new UnsupportedOperationException();
+
+		final Accumulator<T> acc = createAccumulator();
+		if (hasTables()) {
+			if (tMode == ThresholdMode.None) {
+				addRect(acc, width1, width2, 1);
+			} else if (tMode == ThresholdMode.Below) {
+				// all pairs with one value below its threshold
+				final int a = clamp(Math.ceil(thresholdCh1) - min1, width1);
+				final int b = clamp(Math.ceil(thresholdCh2) - min2, width2);
+				addRect(acc, a, width2, 1);
+				addRect(acc, width1, b, 1);
+				addRect(acc, a, b, -1);
+			} else {
+				// all pairs but those with both values up to their thresholds
+				final int a = clamp(Math.floor(thresholdCh1) - min1 + 1, width1);
+				final int b = clamp(Math.floor(thresholdCh2) - min2 + 1, width2);
+				addRect(acc, width1, width2, 1);
+				addRect(acc, a, b, -1);
+			}
+			return acc;
+		}
+
+		for (int r = 0; r < values1.length; ++r) {
+			final int start = rowStart[r], end = rowStart[r + 1];
+			// the range of entries [from, to) of this row to take
+			int from = start, to = end;
+			if (tMode == ThresholdMode.Below && values1[r] >= thresholdCh1)
+				to = firstNotBelow(start, end, thresholdCh2);
+			else if (tMode == ThresholdMode.Above && values1[r] <= thresholdCh1)
+				from = firstAbove(start, end, thresholdCh2);
+			if (from >= to)
+				continue;
+
+			final long count = countSums[to - 1] - (from > start ? countSums[from - 1] : 0);
+			final CompensatedSum y = rangeSum(ySums, yErrors, start, from, to);
+			final CompensatedSum yy = rangeSum(yySums, yyErrors, start, from, to);
+			final double x = substract ? values1[r] - xDiff : values1[r];
+			acc.x.add(count * x);
+			acc.xx.add(count * x * x);
+			acc.xy.add(x * y.getSum());
+			acc.y.add(y);
+			acc.yy.add(yy);
+			acc.count += count;
+		}
+		return acc;
+	}
+
+	/**
+	 * Gets the sum of the entries [from, to) of a row from its prefix
+	 * sums and their rounding errors.
+	 */
+	protected static CompensatedSum rangeSum(double[] sums, double[] errors,
+			int start, int from, int to) {
+		final CompensatedSum sum = new CompensatedSum(sums[to - 1]);
+		sum.add(errors[to - 1]);
+		if (from > start) {
+			sum.add(-sums[from - 1]);
+			sum.add(-errors[from - 1]);
+		}
+		return sum;
+	}
+
+	/**
+	 * Sums up the pairs accepted by the below threshold mode for a
+	 * series of threshold pairs at once. Both series of thresholds need
+	 * to be monotonic. This takes a single walk over the histogram, no
+	 * matter how many threshold pairs there are.
+	 *
+	 * @param thresholdsCh1 The thresholds of channel one
+	 * @param thresholdsCh2 The thresholds of channel two
+	 * @return An accumulator holding the sums for every threshold pair
+	 */
+	@Override
+	public <T extends RealType<T>> List<Accumulator<T>> accumulateBelow(
+			double[] thresholdsCh1, double[] thresholdsCh2) {
+		final int n = thresholdsCh1.length;
+		/* A pair is not below the thresholds while both of its values are
+		 * at least as large as their thresholds. Since the thresholds are
+		 * monotonic, this is the case for a range of threshold pairs, and
+		 * the pair is below for all others. The sums of the pairs below
+		 * are added up as differences of neighbouring threshold pairs,
+		 * along with their rounding errors. A pair's moments are added and
+		 * subtracted as the very same numbers, so they cancel exactly and
+		 * small below sums don't drown in the large ones. */
+		final long[] count = new long[n + 1];
+		// the differences of the moments x, y, xx, xy and yy and their rounding errors
+		final double[][] sums = new double[5][n + 1], errors = new double[5][n + 1];
+		final double[] moments = new double[5];
+		final int[] range1 = new int[2], range2 = new int[2];
+		for (int r = 0; r < values1.length; ++r) {
+			notBelow(thresholdsCh1, values1[r], range1);
+			final double dx = substract ? values1[r] - xDiff : values1[r];
+			for (int i = rowStart[r]; i < rowStart[r + 1]; ++i) {
+				notBelow(thresholdsCh2, values2[i], range2);
+				final int from = Math.max(range1[0], range2[0]);
+				final int to = Math.min(range1[1], range2[1]) + 1;
+				final long c = countSums[i] - (i > rowStart[r] ? countSums[i - 1] : 0);
+				final double dy = substract ? values2[i] - yDiff : values2[i];
+				moments[0] = c * dx;
+				moments[1] = c * dy;
+				moments[2] = c * dx * dx;
+				moments[3] = c * dx * dy;
+				moments[4] = c * dy * dy;
+				// below from the first threshold pair on, except for [from, to)
+				count[0] += c;
+				addMoments(sums, errors, 0, moments, 1);
+				if (from < to) {
+					count[from] -= c;
+					addMoments(sums, errors, from, moments, -1);
+					count[to] += c;
+					addMoments(sums, errors, to, moments, 1);
+				}
+			}
+		}
+
+		final List<Accumulator<T>> result = new ArrayList<Accumulator<T>>(n);
+		for (int t = 0; t < n; ++t) {
+			if (t > 0) {
+				count[t] += count[t - 1];
+				for (int m = 0; m < sums.length; ++m) {
+					add(sums[m], errors[m], t, sums[m][t - 1]);
+					errors[m][t] += errors[m][t - 1];
+				}
+			}
+			final Accumulator<T> acc = createAccumulator();
+			acc.x.add(sums[0][t]);
+			acc.x.add(errors[0][t]);
+			acc.y.add(sums[1][t]);
+			acc.y.add(errors[1][t]);
+			acc.xx.add(sums[2][t]);
+			acc.xx.add(errors[2][t]);
+			acc.xy.add(sums[3][t]);
+			acc.xy.add(errors[3][t]);
+			acc.yy.add(sums[4][t]);
+			acc.yy.add(errors[4][t]);
+			acc.count = count[t];
+			result.add(acc);
+		}
+		return result;
+	}
+
+	/**
+	 * Adds or subtracts the moments of a pair to the differences at an
+	 * index, keeping track of the rounding errors.
+	 */
+	protected static void addMoments(double[][] sums, double[][] errors, int index,
+			double[] moments, int sign) {
+		for (int m = 0; m < moments.length; ++m)
+			add(sums[m], errors[m], index, sign * moments[m]);
+	}
+
+	/**
+	 * Finds the range of indices of monotonic thresholds that are not
+	 * larger than a value.
+	 *
+	 * @param range The first and the last index of the range
+	 */
+	protected static void notBelow(double[] thresholds, int value, int[] range) {
+		final int n = thresholds.length;
+		int lo = 0, hi = n;
+		if (thresholds[0] <= thresholds[n - 1]) {
+			// ascending thresholds: the range starts at the first index
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (thresholds[mid] <= value)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			range[0] = 0;
+			range[1] = lo - 1;
+		} else {
+			// descending thresholds: the range ends at the last index
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (thresholds[mid] > value)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			range[0] = lo;
+			range[1] = n - 1;
+		}
+	}
+
+	/**
+	 * Clamps a number of values to the range of zero to a maximum.
+	 */
+	protected static int clamp(double value, int max) {
+		return (int) Math.max(0, Math.min(max, value));
+	}
+
+	/**
+	 * Finds the first entry of a row whose channel two value is not
+	 * below a threshold.
+	 */
+	protected int firstNotBelow(int start, int end, double threshold) {
+		int lo = start, hi = end;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (values2[mid] < threshold)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Finds the first entry of a row whose channel two value is above a
+	 * threshold.
+	 */
+	protected int firstAbove(int start, int end, double threshold) {
+		int lo = start, hi = end;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (values2[mid] <= threshold)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Gets the number of different pairs of values.
+	 */
+	public int getNumberOfBins() {
+		return values2.length;
+	}
+}
@@ -23,17 +23,13 @@ package sc.fiji.coloc.algorithms;
 
 import ij.IJ;
 
-import java.util.Arrays;
-
+import net.imglib2.DoublePairIterator;
 import net.imglib2.PairIterator;
-import net.imglib2.RandomAccessible;
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.TwinCursor;
-import net.imglib2.type.logic.BitType;
+import net.imglib2.PairIterators;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.view.Views;
 
 import sc.fiji.coloc.gadgets.DataContainer;
+import sc.fiji.coloc.gadgets.PairBuffer;
 import sc.fiji.coloc.results.ResultHandler;
 
 /**
@@ -79,14 +75,108 @@ public class KendallTauRankCorrelation<T extends RealType< T >> extends Algorith
 	public void execute(DataContainer<T> container)
 		throws MissingPreconditionException
 	{
-		RandomAccessible<T> img1 = container.getSourceImage1();
-		RandomAccessible<T> img2 = container.getSourceImage2();
-		RandomAccessibleInterval<BitType> mask = container.getMask();
+		if (container.canBufferPairs())
+			tau = calculateMergeSort(container.getPairBuffer());
+		else
+			tau = calculateHistogram(container);
+	}
 
-		TwinCursor<T> cursor = new TwinCursor<T>(img1.randomAccess(),
-				img2.randomAccess(), Views.iterable(mask).localizingCursor());
+	/**
+	 * Calculates Tau-b for the masked pixels of two integer images without
+	 * buffering the pixel pairs. Their joint histogram is counted in a
+	 * single pass and Tau-b is calculated from it with
+	 * {@link #calculateHistogram(JointHistogram)}. This works for images
+	 * that are larger than the heap, as long as the joint histogram is
+	 * dense, e.g. for 8-bit images.
+	 *
+	 * @param container The container providing images, mask and statistics
+	 * @return Tau-b
+	 * @throws MissingPreconditionException if the images are not supported
+	 */
+	public static<T extends RealType<T>> double calculateHistogram(
+			final DataContainer<T> container) throws MissingPreconditionException {
+		final int min1 = (int) container.getMinCh1(), max1 = (int) container.getMaxCh1();
+		final int min2 = (int) container.getMinCh2(), max2 = (int) container.getMaxCh2();
+		if (!JointHistogram.isSupported(container.getSourceImage1().randomAccess().get())
+				|| !JointHistogram.isDense(min1, max1, min2, max2))
+			throw new MissingPreconditionException("Kendall's Tau of images that "
+					+ "can't be buffered needs integer images of small value ranges.");
+		final JointHistogram histogram = JointHistogram.create(
+				PairIterators.doubles(container.getSourceImage1(),
+						container.getSourceImage2(), container.getMask()),
+				container.getMaskedPixelCount(), min1, max1, min2, max2,
+				false, 0.0, 0.0);
+		return calculateHistogram(histogram);
+	}
 
-		tau = calculateMergeSort(cursor);
+	/**
+	 * Calculate Tau-b from a joint histogram.
+	 * <p>
+	 * The rows of the histogram (the values of x) are walked in ascending
+	 * order. A Fenwick tree keeps the counts of the values of y seen in the
+	 * previous rows, so the number of pairs of pairs with a smaller x and a
+	 * smaller or larger y is looked up in logarithmic time for every bin.
+	 * The counts are summed up as doubles, since their products overflow
+	 * longs for images of more than about four billion pixels.
+	 * </p>
+	 *
+	 * @param histogram the joint histogram of the pairs
+	 * @return Tau-b
+	 */
+	public static double calculateHistogram(final JointHistogram histogram) {
+		final int width = histogram.width2;
+		final long[] tree = new long[width + 1];
+		final long[] columns = new long[width];
+		// the number of pairs in the previous rows
+		long previous = 0;
+		double n1 = 0, s = 0;
+
+		for (int r = 0; r < histogram.values1.length; r++) {
+			final int start = histogram.rowStart[r], end = histogram.rowStart[r + 1];
+			// count pairs of pairs with the ones of all previous rows
+			for (int i = start; i < end; i++) {
+				final long count = binCount(histogram, start, i);
+				final int y = histogram.values2[i] - histogram.min2;
+				final long smaller = prefixSum(tree, y);
+				final long larger = previous - prefixSum(tree, y + 1);
+				s += (double) count * (smaller - larger);
+			}
+			// add the row to the tree
+			for (int i = start; i < end; i++) {
+				final long count = binCount(histogram, start, i);
+				final int y = histogram.values2[i] - histogram.min2;
+				for (int j = y + 1; j <= width; j += j & -j)
+					tree[j] += count;
+				columns[y] += count;
+			}
+			final long rowCount = histogram.countSums[end - 1];
+			n1 += rowCount * (rowCount - 1.0) / 2;
+			previous += rowCount;
+		}
+
+		double n2 = 0;
+		for (long count : columns)
+			n2 += count * (count - 1.0) / 2;
+		final double n0 = previous * (previous - 1.0) / 2;
+
+		return s / Math.sqrt((n0 - n1) * (n0 - n2));
+	}
+
+	/**
+	 * Gets the count of a bin from the prefix sums of its row.
+	 */
+	private static long binCount(JointHistogram histogram, int rowStart, int i) {
+		return histogram.countSums[i] - (i > rowStart ? histogram.countSums[i - 1] : 0);
+	}
+
+	/**
+	 * Gets the sum of the first end entries of a Fenwick tree.
+	 */
+	private static long prefixSum(long[] tree, int end) {
+		long sum = 0;
+		for (int j = end; j > 0; j -= j & -j)
+			sum += tree[j];
+		return sum;
 	}
 
 	public static<T extends RealType<T>> double calculateNaive(final PairIterator<T> iterator) {
@@ -150,33 +240,6 @@ public class KendallTauRankCorrelation<T extends RealType< T >> extends Algorith
 		return (nc - nd) / Math.sqrt((n0 - n1) * (double)(n0 - n2));
 	}
 
-	private static<T extends RealType<T>> double[][] getPairs(final PairIterator<T> iterator) {
-		// TODO: it is ridiculous that this has to be counted all the time (i.e. in most if not all measurements!).
-		// We only need an upper bound to begin with, so even the number of pixels in the first channel would be enough!
-		int capacity = 0;
-		while (iterator.hasNext()) {
-			iterator.fwd();
-			capacity++;
-		}
-
-		double[] values1 = new double[capacity];
-		double[] values2 = new double[capacity];
-		iterator.reset();
-		int count = 0;
-		while (iterator.hasNext()) {
-			iterator.fwd();
-			values1[count] = iterator.getFirst().getRealDouble();
-			values2[count] = iterator.getSecond().getRealDouble();
-			count++;
-		}
-
-		if (count < capacity) {
-			values1 = Arrays.copyOf(values1, count);
-			values2 = Arrays.copyOf(values2, count);
-		}
-		return new double[][] { values1, values2 };
-	}
-
 	/**
 	 * Calculate Tau-b efficiently.
 	 * <p>
@@ -197,10 +260,29 @@ public class KendallTauRankCorrelation<T extends RealType< T >> extends Algorith
 	 * @return Tau-b
 	 */
 	public static<T extends RealType<T>> double calculateMergeSort(final PairIterator<T> iterator) {
-		final double[][] pairs = getPairs(iterator);
-		final double[] x = pairs[0];
-		final double[] y = pairs[1];
-		final int n = x.length;
+		return calculateMergeSort(PairIterators.doubles(iterator));
+	}
+
+	/**
+	 * Calculate Tau-b efficiently, see
+	 * {@link #calculateMergeSort(PairIterator)}.
+	 *
+	 * @param iterator the iterator of the pairs
+	 * @return Tau-b
+	 */
+	public static double calculateMergeSort(final DoublePairIterator iterator) {
+		return calculateMergeSort(PairBuffer.create(iterator));
+	}
+
+	/**
+	 * Calculate Tau-b efficiently, see
+	 * {@link #calculateMergeSort(PairIterator)}.
+	 *
+	 * @param pairs the buffered pairs
+	 * @return Tau-b
+	 */
+	public static double calculateMergeSort(final PairBuffer pairs) {
+		final int n = pairs.size();
 
 		int[] index = new int[n];
 		for (int i = 0; i < n; i++) {
@@ -213,8 +295,8 @@ public class KendallTauRankCorrelation<T extends RealType< T >> extends Algorith
 
 			@Override
 			public int compare(int a, int b) {
-				double xa = x[a], ya = y[a];
-				double xb = x[b], yb = y[b];
+				double xa = pairs.first(a), ya = pairs.second(a);
+				double xb = pairs.first(b), yb = pairs.second(b);
 				int result = Double.compare(xa, xb);
 				return result != 0 ? result : Double.compare(ya, yb);
 			}
@@ -227,23 +309,23 @@ public class KendallTauRankCorrelation<T extends RealType< T >> extends Algorith
 		long n1 = 0, n3 = 0;
 
 		for (int i = 1; i < n; i++) {
-			double x0 = x[index[i - 1]];
-			if (x[index[i]] != x0) {
+			double x0 = pairs.first(index[i - 1]);
+			if (pairs.first(index[i]) != x0) {
 				continue;
 			}
-			double y0 = y[index[i - 1]];
+			double y0 = pairs.second(index[i - 1]);
 			int i1 = i;
 			do {
-				double y1 = y[index[i1++]];
+				double y1 = pairs.second(index[i1++]);
 				if (y1 == y0) {
 					int i2 = i1;
-					while (i1 < n && x[index[i1]] == x0 && y[index[i1]] == y0) {
+					while (i1 < n && pairs.first(index[i1]) == x0 && pairs.second(index[i1]) == y0) {
 						i1++;
 					}
 					n3 += (i1 - i2 + 2) * (long)(i1 - i2 + 1) / 2;
 				}
 				y0 = y1;
-			} while (i1 < n && x[index[i1]] == x0);
+			} while (i1 < n && pairs.first(index[i1]) == x0);
 			n1 += (i1 - i + 1) * (long)(i1 - i) / 2;
 			i = i1;
 		}
@@ -255,8 +337,8 @@ public class KendallTauRankCorrelation<T extends RealType< T >> extends Algorith
 
 			@Override
 			public int compare(int a, int b) {
-				double ya = y[a];
-				double yb = y[b];
+				double ya = pairs.second(a);
+				double yb = pairs.second(b);
 				return Double.compare(ya, yb);
 			}
 		});
@@ -265,12 +347,12 @@ public class KendallTauRankCorrelation<T extends RealType< T >> extends Algorith
 		long n2 = 0;
 
 		for (int i = 1; i < n; i++) {
-			double y0 = y[index[i - 1]];
-			if (y[index[i]] != y0) {
+			double y0 = pairs.second(index[i - 1]);
+			if (pairs.second(index[i]) != y0) {
 				continue;
 			}
 			int i1 = i + 1;
-			while (i1 < n && y[index[i1]] == y0) {
+			while (i1 < n && pairs.second(index[i1]) == y0) {
 				i1++;
 			}
 			n2 += (i1 - i + 1) * (long)(i1 - i) / 2;
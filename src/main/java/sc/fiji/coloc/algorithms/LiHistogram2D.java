@@ -23,11 +23,7 @@ package sc.fiji.coloc.algorithms;
 
 import java.util.EnumSet;
 
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.TwinCursor;
-import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.view.Views;
 
 import sc.fiji.coloc.gadgets.DataContainer;
 
@@ -53,6 +49,9 @@ public class LiHistogram2D<T extends RealType< T >> extends Histogram2D<T> {
 	// boolean to test which channel we are using for eg. Li 2D histogram y axis
 	boolean useCh1 = true;
 
+	// the range of Li's values, filled by a shared pass
+	LiRangeKernel sharedRangeKernel;
+
 	public LiHistogram2D(boolean useCh1) {
 		this("Histogram 2D (Li)", useCh1);
 	}
@@ -70,6 +69,13 @@ public class LiHistogram2D<T extends RealType< T >> extends Histogram2D<T> {
 		this.useCh1 = useCh1;
 	}
 
+	@Override
+	public void registerKernels(FusedPass<T> pass, DataContainer<T> container) {
+		/* The histogram itself depends on the range of Li's values,
+		 * so only the range can be collected by a shared pass. */
+		sharedRangeKernel = pass.register(new LiRangeKernel(container));
+	}
+
 	@Override
 	public void execute(DataContainer<T> container) throws MissingPreconditionException {
 		ch1Mean = swapChannels ? container.getMeanCh2() : container.getMeanCh1();
@@ -83,28 +89,43 @@ public class LiHistogram2D<T extends RealType< T >> extends Histogram2D<T> {
 
 		/* A scaling to the x bins has to be made:
 		 * For that to work we need the min and the
-		 * max value that could occur.
+		 * max value that could occur. Use the range
+		 * of a shared pass if there was one.
 		 */
+		LiRangeKernel kernel = sharedRangeKernel;
+		sharedRangeKernel = null;
+		if (kernel == null)
+			kernel = FusedPass.run(container, new LiRangeKernel(container));
 
-		// get the 2 images and the mask
-		final RandomAccessibleInterval<T> img1 = getImageCh1(container);
-		final RandomAccessibleInterval<T> img2 = getImageCh2(container);
-		final RandomAccessibleInterval<BitType> mask = container.getMask();
+		liMin = kernel.liMin;
+		liMax = kernel.liMax;
+		liDiff = Math.abs(liMax - liMin);
 
-		// get the cursors for iterating through pixels in images
-		TwinCursor<T> cursor = new TwinCursor<T>(img1.randomAccess(),
-				img2.randomAccess(), Views.iterable(mask).localizingCursor());
+		generateHistogramData(container);
+	}
 
+	/**
+	 * Finds the minimum and maximum of Li's product of the difference
+	 * of means, pixel by pixel. The product is symmetric in both
+	 * channels, so channel swapping does not matter here.
+	 */
+	protected static class LiRangeKernel implements FusedPass.SplittableKernel {
+		final double ch1Mean, ch2Mean;
 		// give liMin and liMax appropriate starting values at the top and bottom of the range
-		liMin = Double.MAX_VALUE;
-		liMax = Double.MIN_VALUE;
+		double liMin = Double.MAX_VALUE;
+		double liMax = Double.MIN_VALUE;
 
-		// iterate over images
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			double ch1 = cursor.getFirst().getRealDouble();
-			double ch2 = cursor.getSecond().getRealDouble();
+		public LiRangeKernel(DataContainer<?> container) {
+			this(container.getMeanCh1(), container.getMeanCh2());
+		}
 
+		protected LiRangeKernel(double ch1Mean, double ch2Mean) {
+			this.ch1Mean = ch1Mean;
+			this.ch2Mean = ch2Mean;
+		}
+
+		@Override
+		public void accumulate(double ch1, double ch2) {
 			double productOfDifferenceOfMeans = (ch1Mean - ch1) * (ch2Mean - ch2);
 
 			if (productOfDifferenceOfMeans < liMin)
@@ -112,9 +133,18 @@ public class LiHistogram2D<T extends RealType< T >> extends Histogram2D<T> {
 			if (productOfDifferenceOfMeans > liMax)
 				liMax = productOfDifferenceOfMeans;
 		}
-		liDiff = Math.abs(liMax - liMin);
 
-		generateHistogramData(container);
+		@Override
+		public LiRangeKernel split() {
+			return new LiRangeKernel(ch1Mean, ch2Mean);
+		}
+
+		@Override
+		public void merge(FusedPass.SplittableKernel other) {
+			LiRangeKernel o = (LiRangeKernel) other;
+			liMin = Math.min(liMin, o.liMin);
+			liMax = Math.max(liMax, o.liMax);
+		}
 	}
 
 	@Override
@@ -21,12 +21,10 @@
  */
 package sc.fiji.coloc.algorithms;
 
-import net.imglib2.RandomAccessible;
-import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.DoublePairIterator;
+import net.imglib2.PairIterators;
 import net.imglib2.TwinCursor;
-import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.view.Views;
 
 import sc.fiji.coloc.gadgets.DataContainer;
 import sc.fiji.coloc.results.ResultHandler;
@@ -40,26 +38,31 @@ import sc.fiji.coloc.results.ResultHandler;
 public class LiICQ<T extends RealType< T >> extends Algorithm<T> {
 	// the resulting ICQ value
 	double icqValue;
+	// the product counts, filled by a shared pass
+	ICQKernel sharedKernel;
 
 	public LiICQ() {
 		super("Li ICQ calculation");
 	}
 
+	@Override
+	public void registerKernels(FusedPass<T> pass, DataContainer<T> container) {
+		sharedKernel = pass.register(new ICQKernel(container.getMeanCh1(),
+				container.getMeanCh2()));
+	}
+
 	@Override
 	public void execute(DataContainer<T> container)
 			throws MissingPreconditionException {
-		double mean1 = container.getMeanCh1();
-		double mean2 = container.getMeanCh2();
-
-		// get the 2 images for the calculation of Li's ICQ
-		RandomAccessible<T> img1 = container.getSourceImage1();
-		RandomAccessible<T> img2 = container.getSourceImage2();
-		RandomAccessibleInterval<BitType> mask = container.getMask();
-
-		TwinCursor<T> cursor = new TwinCursor<T>(img1.randomAccess(),
-				img2.randomAccess(), Views.iterable(mask).localizingCursor());
+		// use the counts of a shared pass if there was one
+		ICQKernel kernel = sharedKernel;
+		sharedKernel = null;
+		if (kernel == null) {
+			kernel = FusedPass.run(container, new ICQKernel(
+					container.getMeanCh1(), container.getMeanCh2()));
+		}
 		// calculate ICQ value
-		icqValue = calculateLisICQ(cursor, mean1, mean2);
+		icqValue = kernel.getICQ();
 	}
 
 	/**
@@ -72,19 +75,44 @@ public class LiICQ<T extends RealType< T >> extends Algorithm<T> {
 	 * @return Li et al.'s ICQ value
 	 */
 	public static <T extends RealType<T>> double calculateLisICQ(TwinCursor<T> cursor, double mean1, double mean2) {
-		/* variables to count the positive and negative results
-		 * of Li's product of the difference of means.
-		 */
+		return calculateLisICQ(PairIterators.doubles(cursor), mean1, mean2);
+	}
+
+	/**
+	 * Calculates Li et al.'s intensity correlation quotient (ICQ) for
+	 * two images.
+	 *
+	 * @param iterator An iterator over the values of two images
+	 * @param mean1 The first images mean
+	 * @param mean2 The second images mean
+	 * @return Li et al.'s ICQ value
+	 */
+	public static double calculateLisICQ(DoublePairIterator iterator, double mean1, double mean2) {
+		ICQKernel kernel = new ICQKernel(mean1, mean2);
+		// iterate over image
+		while (iterator.hasNext()) {
+			iterator.nextPair();
+			kernel.accumulate(iterator.first(), iterator.second());
+		}
+		return kernel.getICQ();
+	}
+
+	/**
+	 * Counts the positive and negative results of Li's product of the
+	 * difference of means, pixel by pixel.
+	 */
+	protected static class ICQKernel implements FusedPass.SplittableKernel {
+		final double mean1, mean2;
 		long numPositiveProducts = 0;
 		long numNegativeProducts = 0;
-		// iterate over image
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			T type1 = cursor.getFirst();
-			T type2 = cursor.getSecond();
-			double ch1 = type1.getRealDouble();
-			double ch2 = type2.getRealDouble();
 
+		public ICQKernel(double mean1, double mean2) {
+			this.mean1 = mean1;
+			this.mean2 = mean2;
+		}
+
+		@Override
+		public void accumulate(double ch1, double ch2) {
 			double productOfDifferenceOfMeans = (mean1 - ch1) * (mean2 - ch2);
 
 			// check for positive and negative values
@@ -94,10 +122,25 @@ public class LiICQ<T extends RealType< T >> extends Algorithm<T> {
 				++numPositiveProducts;
 		}
 
-		/* calculate Li's ICQ value by dividing the amount of "positive pixels" to the
-		 * total number of pixels. Then shift it in the -0.5,0.5 range.
+		@Override
+		public ICQKernel split() {
+			return new ICQKernel(mean1, mean2);
+		}
+
+		@Override
+		public void merge(FusedPass.SplittableKernel other) {
+			ICQKernel o = (ICQKernel) other;
+			numPositiveProducts += o.numPositiveProducts;
+			numNegativeProducts += o.numNegativeProducts;
+		}
+
+		/**
+		 * Calculates Li's ICQ value by dividing the amount of "positive pixels"
+		 * to the total number of pixels. Then shift it in the -0.5,0.5 range.
 		 */
-		return ( (double) numPositiveProducts / (double) (numNegativeProducts + numPositiveProducts) ) - 0.5;
+		public double getICQ() {
+			return ( (double) numPositiveProducts / (double) (numNegativeProducts + numPositiveProducts) ) - 0.5;
+		}
 	}
 
 	@Override
@@ -21,13 +21,14 @@
  */
 package sc.fiji.coloc.algorithms;
 
-import net.imglib2.RandomAccessible;
-import net.imglib2.RandomAccessibleInterval;
+import java.util.List;
+
+import net.imglib2.DoublePairIterator;
+import net.imglib2.PairIterators;
 import net.imglib2.TwinCursor;
-import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.view.Views;
 
+import sc.fiji.coloc.gadgets.CompensatedSum;
 import sc.fiji.coloc.gadgets.DataContainer;
 import sc.fiji.coloc.gadgets.ThresholdMode;
 import sc.fiji.coloc.results.ResultHandler;
@@ -122,6 +123,9 @@ public class MandersColocalization<T extends RealType< T >> extends Algorithm<T>
 	// Fraction of Ch1 Int > thresh; Fraction of Ch2 Int > thresh
 	private double fractionOfColocCh1IntensityAboveCh1Thresh, fractionOfColocCh2IntensityAboveCh2Thresh;
 
+	// the sums for M1 and M2, filled by a shared pass
+	private SplitCoeffKernel sharedKernel;
+
 	/**
 	 * A result container for Manders' calculations.
 	 */
@@ -135,35 +139,45 @@ public class MandersColocalization<T extends RealType< T >> extends Algorithm<T>
 	}
 
 	@Override
-	public void execute(DataContainer<T> container)
-			throws MissingPreconditionException {
-		// get the two images for the calculation of Manders' split coefficients
-		RandomAccessible<T> img1 = container.getSourceImage1();
-		RandomAccessible<T> img2 = container.getSourceImage2();
-		RandomAccessibleInterval<BitType> mask = container.getMask();
+	public void registerKernels(FusedPass<T> pass, DataContainer<T> container) {
+		sharedKernel = pass.register(new SplitCoeffKernel());
+	}
 
-		TwinCursor<T> cursor = new TwinCursor<T>(img1.randomAccess(),
-				img2.randomAccess(), Views.iterable(mask).localizingCursor());
+	@Override
+	public List<Algorithm<T>> getPrerequisites(DataContainer<T> container) {
+		List<Algorithm<T>> prerequisites = super.getPrerequisites(container);
+		if (container.getAutoThreshold() != null)
+			prerequisites.add(container.getAutoThreshold());
+		return prerequisites;
+	}
 
-		// calculate Manders' split coefficients without threshold, M1 and M2.
-		MandersResults results = calculateMandersCorrelation(cursor,
-				img1.randomAccess().get().createVariable());
+	@Override
+	public void execute(DataContainer<T> container)
+			throws MissingPreconditionException {
+		/* calculate Manders' split coefficients without threshold, M1 and M2.
+		 * Use the sums of a shared pass if there was one. */
+		SplitCoeffKernel kernel = sharedKernel;
+		sharedKernel = null;
+		if (kernel == null)
+			kernel = FusedPass.run(container, new SplitCoeffKernel());
 
 		// save the results
-		mandersM1 = results.m1;
-		mandersM2 = results.m2;
+		mandersM1 = kernel.mandersSumCh1.getSum() / kernel.sumCh1.getSum();
+		mandersM2 = kernel.mandersSumCh2.getSum() / kernel.sumCh2.getSum();
 
-		// calculate the thresholded Manders' split coefficients, tM1 and tM2, if possible
+		/* calculate the thresholded Manders' split coefficients, tM1 and tM2, if possible.
+		 * They deliberately get a pass of their own rather than being read off the
+		 * histogram of the threshold search: the thresholds are only known once it
+		 * is done, and its histogram may be binned or hold shifted values. */
 		AutoThresholdRegression<T> autoThreshold = container.getAutoThreshold();
 		if (autoThreshold != null ) {
-			// thresholded Manders' split coefficients, tM1 and tM2
-			cursor.reset();
-			results = calculateMandersCorrelation(cursor, autoThreshold.getCh1MaxThreshold(),
-					autoThreshold.getCh2MaxThreshold(), ThresholdMode.Above);
+			SplitCoeffKernel thresholded = FusedPass.run(container, new SplitCoeffKernel(
+					autoThreshold.getCh1MaxThreshold().getRealDouble(),
+					autoThreshold.getCh2MaxThreshold().getRealDouble()));
 
 			// save the results
-			mandersThresholdedM1 = results.m1;
-			mandersThresholdedM2 = results.m2;
+			mandersThresholdedM1 = thresholded.mandersSumCh1.getSum() / thresholded.sumCh1.getSum();
+			mandersThresholdedM2 = thresholded.mandersSumCh2.getSum() / thresholded.sumCh2.getSum();
 		}
 	}
 
@@ -189,51 +203,59 @@ public class MandersColocalization<T extends RealType< T >> extends Algorithm<T>
 	 */
 	public MandersResults calculateMandersCorrelation(TwinCursor<T> cursor,
 			final T thresholdCh1, final T thresholdCh2, ThresholdMode tMode) {
+		return calculateMandersCorrelation(PairIterators.doubles(cursor),
+				thresholdCh1.getRealDouble(), thresholdCh2.getRealDouble(), tMode);
+	}
+
+	/**
+	 * Calculates Manders' split coefficients, tM1 and tM2: with thresholds
+	 *
+	 * @param iterator An iterator that walks over the values of two images
+	 * @param thresholdCh1 The threshold of channel one
+	 * @param thresholdCh2 The threshold of channel two
+	 * @param tMode A ThresholdMode the threshold mode
+	 * @return Both thresholded Manders' split coefficients, tM1 and tM2.
+	 */
+	public MandersResults calculateMandersCorrelation(DoublePairIterator iterator,
+			final double thresholdCh1, final double thresholdCh2, ThresholdMode tMode) {
 		SplitCoeffAccumulator mandersAccum;
-		// create a zero-values variable to compare to later on
-		final T zero = thresholdCh1.createVariable();
-		zero.setZero();
 
 		// iterate over images - set the boolean value for if a pixel is thresholded
 
 		// without thresholds: M1 and M1
 		if (tMode == ThresholdMode.None) {
-			mandersAccum = new SplitCoeffAccumulator(cursor) {
+			mandersAccum = new SplitCoeffAccumulator(iterator) {
 				@Override
-				final boolean acceptMandersCh1(T type1, T type2) {
-					return (type2.compareTo(zero) > 0);
+				protected final boolean acceptMandersCh1(double ch1, double ch2) {
+					return (ch2 > 0);
 				}
 				@Override
-				final boolean acceptMandersCh2(T type1, T type2) {
-					return (type1.compareTo(zero) > 0);
+				protected final boolean acceptMandersCh2(double ch1, double ch2) {
+					return (ch1 > 0);
 				}
 			};
 		// with thresholds - below thresholds
 		} else if (tMode == ThresholdMode.Below) {
-			mandersAccum = new SplitCoeffAccumulator(cursor) {
+			mandersAccum = new SplitCoeffAccumulator(iterator) {
 				@Override
-				final boolean acceptMandersCh1(T type1, T type2) {
-					return (type2.compareTo(zero) > 0) &&
-						(type2.compareTo(thresholdCh2) <= 0);
+				protected final boolean acceptMandersCh1(double ch1, double ch2) {
+					return (ch2 > 0) && (ch2 <= thresholdCh2);
 				}
 				@Override
-				final boolean acceptMandersCh2(T type1, T type2) {
-					return (type1.compareTo(zero) > 0) &&
-						(type1.compareTo(thresholdCh1) <= 0);
+				protected final boolean acceptMandersCh2(double ch1, double ch2) {
+					return (ch1 > 0) && (ch1 <= thresholdCh1);
 				}
 			};
 		// with thresholds - above thresholds: tM1 and tM2
 		} else if (tMode == ThresholdMode.Above) {
-			mandersAccum = new SplitCoeffAccumulator(cursor) {
+			mandersAccum = new SplitCoeffAccumulator(iterator) {
 				@Override
-				final boolean acceptMandersCh1(T type1, T type2) {
-					return (type2.compareTo(zero) > 0) &&
-						(type2.compareTo(thresholdCh2) >= 0);
+				protected final boolean acceptMandersCh1(double ch1, double ch2) {
+					return (ch2 > 0) && (ch2 >= thresholdCh2);
 				}
 				@Override
-				final boolean acceptMandersCh2(T type1, T type2) {
-					return (type1.compareTo(zero) > 0) &&
-						(type1.compareTo(thresholdCh1) >= 0);
+				protected final boolean acceptMandersCh2(double ch1, double ch2) {
+					return (ch1 > 0) && (ch1 >= thresholdCh1);
 				}
 			};
 		} else {
@@ -242,8 +264,8 @@ public class MandersColocalization<T extends RealType< T >> extends Algorithm<T>
 
 		MandersResults results = new MandersResults();
 		// calculate the results, see description above, as a fraction.
-		results.m1 = mandersAccum.mandersSumCh1 / mandersAccum.sumCh1;
-		results.m2 = mandersAccum.mandersSumCh2 / mandersAccum.sumCh2;
+		results.m1 = mandersAccum.mandersSumCh1.getSum() / mandersAccum.sumCh1.getSum();
+		results.m2 = mandersAccum.mandersSumCh2.getSum() / mandersAccum.sumCh2.getSum();
 
 		return results;
 	}
@@ -262,28 +284,146 @@ public class MandersColocalization<T extends RealType< T >> extends Algorithm<T>
 	 * to the Manders' split and other split channel coefficient calculations.
 	 */
 	protected abstract class SplitCoeffAccumulator {
-		double sumCh1, sumCh2, mandersSumCh1, mandersSumCh2;
+		final CompensatedSum sumCh1 = new CompensatedSum(), sumCh2 = new CompensatedSum(),
+				mandersSumCh1 = new CompensatedSum(), mandersSumCh2 = new CompensatedSum();
 
+		/**
+		 * Walks over the values of a cursor.
+		 *
+		 * @deprecated Use {@link #SplitCoeffAccumulator(DoublePairIterator)}.
+		 */
+		@Deprecated
 		public SplitCoeffAccumulator(TwinCursor<T> cursor) {
 			while (cursor.hasNext()) {
 				cursor.fwd();
-				T type1 = cursor.getFirst();
-				T type2 = cursor.getSecond();
-				double ch1 = type1.getRealDouble();
-				double ch2 = type2.getRealDouble();
-
-				// boolean logics for adding or not adding to the different value counters for a pixel.
-				if (acceptMandersCh1(type1, type2))
-					mandersSumCh1 += ch1;
-				if (acceptMandersCh2(type1, type2))
-					mandersSumCh2 += ch2;
-
-				// add this pixel's two intensity values to the ch1 and ch2 sum counters
-				sumCh1 += ch1;
-				sumCh2 += ch2;
+				double ch1 = cursor.getFirst().getRealDouble();
+				double ch2 = cursor.getSecond().getRealDouble();
+				add(ch1, ch2, acceptMandersCh1(ch1, ch2), acceptMandersCh2(ch1, ch2));
+			}
+		}
+
+		public SplitCoeffAccumulator(DoublePairIterator iterator) {
+			while (iterator.hasNext()) {
+				iterator.nextPair();
+				double ch1 = iterator.first();
+				double ch2 = iterator.second();
+				add(ch1, ch2, acceptMandersCh1(ch1, ch2), acceptMandersCh2(ch1, ch2));
+			}
+		}
+
+		private void add(double ch1, double ch2, boolean mandersCh1, boolean mandersCh2) {
+			// boolean logics for adding or not adding to the different value counters for a pixel.
+			if (mandersCh1)
+				mandersSumCh1.add(ch1);
+			if (mandersCh2)
+				mandersSumCh2.add(ch2);
+
+			// add this pixel's two intensity values to the ch1 and ch2 sum counters
+			sumCh1.add(ch1);
+			sumCh2.add(ch2);
+		}
+
+		/**
+		 * Decides whether the value of channel one counts for M1.
+		 */
+		protected abstract boolean acceptMandersCh1(double ch1, double ch2);
+
+		/**
+		 * Decides whether the value of channel two counts for M2.
+		 */
+		protected abstract boolean acceptMandersCh2(double ch1, double ch2);
+
+		/**
+		 * @deprecated Use and implement {@link #acceptMandersCh1(double, double)}.
+		 */
+		@Deprecated
+		protected final boolean acceptMandersCh1(T type1, T type2) {
+			return acceptMandersCh1(type1.getRealDouble(), type2.getRealDouble());
+		}
+
+		/**
+		 * @deprecated Use and implement {@link #acceptMandersCh2(double, double)}.
+		 */
+		@Deprecated
+		protected final boolean acceptMandersCh2(T type1, T type2) {
+			return acceptMandersCh2(type1.getRealDouble(), type2.getRealDouble());
+		}
+	}
+
+	/**
+	 * The sums of Manders' split coefficients, collected pixel by pixel as
+	 * a kernel of a {@link FusedPass}. Without thresholds, they are the ones
+	 * of M1 and M2. With thresholds, they are the ones of tM1 and tM2 in
+	 * {@link ThresholdMode#Above}, where a pixel only counts if the other
+	 * channel is above zero and not below its threshold.
+	 */
+	protected static class SplitCoeffKernel implements
+			FusedPass.SplittableKernel, FusedPass.BatchKernel {
+		// the thresholds of channel one and two
+		final double thresholdCh1, thresholdCh2;
+		final CompensatedSum sumCh1 = new CompensatedSum(), sumCh2 = new CompensatedSum(),
+				mandersSumCh1 = new CompensatedSum(), mandersSumCh2 = new CompensatedSum();
+
+		/**
+		 * Creates a kernel for M1 and M2, without thresholds.
+		 */
+		public SplitCoeffKernel() {
+			this(0, 0);
+		}
+
+		/**
+		 * Creates a kernel for tM1 and tM2.
+		 *
+		 * @param thresholdCh1 The threshold of channel one
+		 * @param thresholdCh2 The threshold of channel two
+		 */
+		public SplitCoeffKernel(double thresholdCh1, double thresholdCh2) {
+			this.thresholdCh1 = thresholdCh1;
+			this.thresholdCh2 = thresholdCh2;
+		}
+
+		@Override
+		public void accumulate(double ch1, double ch2) {
+			// only pixels above zero and the threshold in the other channel count
+			if (ch2 > 0 && ch2 >= thresholdCh2)
+				mandersSumCh1.add(ch1);
+			if (ch1 > 0 && ch1 >= thresholdCh1)
+				mandersSumCh2.add(ch2);
+
+			sumCh1.add(ch1);
+			sumCh2.add(ch2);
+		}
+
+		@Override
+		public void accumulate(double[] ch1, double[] ch2, int length) {
+			final double t1 = thresholdCh1, t2 = thresholdCh2;
+			double s1 = 0, s2 = 0, m1 = 0, m2 = 0;
+			for (int i = 0; i < length; ++i) {
+				final double v1 = ch1[i], v2 = ch2[i];
+				// mask out the pixels that are zero or below the threshold in the other channel
+				m1 += v2 > 0 && v2 >= t2 ? v1 : 0.0;
+				m2 += v1 > 0 && v1 >= t1 ? v2 : 0.0;
+				s1 += v1;
+				s2 += v2;
 			}
+			mandersSumCh1.add(m1);
+			mandersSumCh2.add(m2);
+			sumCh1.add(s1);
+			sumCh2.add(s2);
+		}
+
+		@Override
+		public SplitCoeffKernel split() {
+			return new SplitCoeffKernel(thresholdCh1, thresholdCh2);
+		}
+
+		@Override
+		public void merge(FusedPass.SplittableKernel other) {
+			SplitCoeffKernel o = (SplitCoeffKernel) other;
+			sumCh1.add(o.sumCh1);
+			sumCh2.add(o.sumCh2);
+			mandersSumCh1.add(o.mandersSumCh1);
+			mandersSumCh2.add(o.mandersSumCh2);
 		}
-		abstract boolean acceptMandersCh1(T type1, T type2);
-		abstract boolean acceptMandersCh2(T type1, T type2);
 	}
 }
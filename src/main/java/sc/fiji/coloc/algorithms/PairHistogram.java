@@ -0,0 +1,227 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.algorithms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.type.numeric.RealType;
+
+import sc.fiji.coloc.gadgets.CompensatedSum;
+import sc.fiji.coloc.gadgets.ThresholdMode;
+
+/**
+ * A histogram of the pixel pairs of two channels that the sums Pearson's
+ * R is calculated from can be collected from for any thresholds, without
+ * visiting the pixels of the images again.
+ *
+ * Implementations may create summed-area tables of the counts and
+ * moments over a grid of cells of both channels. The cell (i, j) of
+ * these tables holds the sums of all pairs in the cells before row i
+ * and column j. The moments are kept along with their rounding errors,
+ * like in a {@link CompensatedSum}. This way, sums of the same pairs
+ * come out the same, no matter which cells they were combined from.
+ */
+public abstract class PairHistogram {
+	// whether to subtract xDiff and yDiff from the values
+	final boolean substract;
+	final double xDiff, yDiff;
+	// the summed-area tables or null if there are none
+	long[] tableCount;
+	double[] tableX, tableY, tableXX, tableXY, tableYY;
+	// the rounding errors of the moment tables
+	double[] errorX, errorY, errorXX, errorXY, errorYY;
+	// the number of rows and columns of the tables
+	int tableRows, tableCols;
+
+	protected PairHistogram(boolean substract, double xDiff, double yDiff) {
+		this.substract = substract;
+		this.xDiff = xDiff;
+		this.yDiff = yDiff;
+	}
+
+	/**
+	 * Sums up the values of all pairs that are accepted by a threshold
+	 * mode, for the given thresholds.
+	 *
+	 * @param thresholdCh1 The threshold of channel one
+	 * @param thresholdCh2 The threshold of channel two
+	 * @param tMode The mode to apply the thresholds with
+	 * @return An accumulator holding the sums
+	 */
+	public abstract <T extends RealType<T>> Accumulator<T> accumulate(
+			double thresholdCh1, double thresholdCh2, ThresholdMode tMode);
+
+	/**
+	 * Sums up the pairs accepted by the below threshold mode for a
+	 * series of threshold pairs. Both series of thresholds need to be
+	 * monotonic.
+	 *
+	 * @param thresholdsCh1 The thresholds of channel one
+	 * @param thresholdsCh2 The thresholds of channel two
+	 * @return An accumulator holding the sums for every threshold pair
+	 */
+	public <T extends RealType<T>> List<Accumulator<T>> accumulateBelow(
+			double[] thresholdsCh1, double[] thresholdsCh2) {
+		final List<Accumulator<T>> result =
+				new ArrayList<Accumulator<T>>(thresholdsCh1.length);
+		for (int i = 0; i < thresholdsCh1.length; ++i)
+			result.add(this.<T>accumulate(thresholdsCh1[i], thresholdsCh2[i],
+					ThresholdMode.Below));
+		return result;
+	}
+
+	/**
+	 * Gets whether summed-area tables are available.
+	 */
+	public boolean hasTables() {
+		return tableCount != null;
+	}
+
+	protected <T extends RealType<T>> Accumulator<T> createAccumulator() {
+		return new Accumulator<T>(substract, xDiff, yDiff) {
+			@Override
+			public boolean accept(double value1, double value2) {
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Creates empty summed-area tables of the given size.
+	 */
+	protected void allocateTables(int rows, int cols) {
+		final int cells = rows * cols;
+		tableRows = rows;
+		tableCols = cols;
+		tableCount = new long[cells];
+		tableX = new double[cells];
+		tableY = new double[cells];
+		tableXX = new double[cells];
+		tableXY = new double[cells];
+		tableYY = new double[cells];
+		errorX = new double[cells];
+		errorY = new double[cells];
+		errorXX = new double[cells];
+		errorXY = new double[cells];
+		errorYY = new double[cells];
+	}
+
+	/**
+	 * Adds a number of pairs of the same values to a cell of the tables.
+	 * This is only valid before the tables got integrated.
+	 */
+	protected void addToCell(int cell, long count, double value1, double value2) {
+		final double x = substract ? value1 - xDiff : value1;
+		final double y = substract ? value2 - yDiff : value2;
+		tableCount[cell] += count;
+		add(tableX, errorX, cell, count * x);
+		add(tableY, errorY, cell, count * y);
+		add(tableXX, errorXX, cell, count * x * x);
+		add(tableXY, errorXY, cell, count * x * y);
+		add(tableYY, errorYY, cell, count * y * y);
+	}
+
+	/**
+	 * Adds a value to an entry of a table, keeping track of the rounding
+	 * error the same way as {@link CompensatedSum#add(double)} does.
+	 */
+	protected static void add(double[] table, double[] error, int i, double value) {
+		final double sum = table[i];
+		final double t = sum + value;
+		if (Math.abs(sum) >= Math.abs(value))
+			error[i] += (sum - t) + value;
+		else
+			error[i] += (value - t) + sum;
+		table[i] = t;
+	}
+
+	/**
+	 * Adds the sums of the cells up and left of a cell and subtracts the
+	 * one diagonal to it, including their rounding errors.
+	 */
+	protected static void integrate(double[] table, double[] error, int cell,
+			int up, int left, int diag) {
+		add(table, error, cell, table[up]);
+		add(table, error, cell, table[left]);
+		add(table, error, cell, -table[diag]);
+		error[cell] += error[up] + error[left] - error[diag];
+	}
+
+	/**
+	 * Turns the sums of every cell into the sums of all cells before
+	 * and including it, along both axes.
+	 */
+	protected void integrateTables() {
+		for (int i = 1; i < tableRows; ++i) {
+			for (int j = 1; j < tableCols; ++j) {
+				final int cell = i * tableCols + j;
+				final int up = cell - tableCols, left = cell - 1, diag = up - 1;
+				tableCount[cell] += tableCount[up] + tableCount[left] - tableCount[diag];
+				integrate(tableX, errorX, cell, up, left, diag);
+				integrate(tableY, errorY, cell, up, left, diag);
+				integrate(tableXX, errorXX, cell, up, left, diag);
+				integrate(tableXY, errorXY, cell, up, left, diag);
+				integrate(tableYY, errorYY, cell, up, left, diag);
+			}
+		}
+	}
+
+	/**
+	 * Adds the sums of a cell of the summed-area tables to an accumulator.
+	 */
+	protected void addCell(Accumulator<?> acc, int cell, int sign) {
+		acc.x.add(sign * tableX[cell]);
+		acc.x.add(sign * errorX[cell]);
+		acc.y.add(sign * tableY[cell]);
+		acc.y.add(sign * errorY[cell]);
+		acc.xx.add(sign * tableXX[cell]);
+		acc.xx.add(sign * errorXX[cell]);
+		acc.xy.add(sign * tableXY[cell]);
+		acc.xy.add(sign * errorXY[cell]);
+		acc.yy.add(sign * tableYY[cell]);
+		acc.yy.add(sign * errorYY[cell]);
+		acc.count += sign * tableCount[cell];
+	}
+
+	/**
+	 * Adds the sums of the pairs before row i and column j of the tables,
+	 * with the given sign.
+	 */
+	protected void addRect(Accumulator<?> acc, int i, int j, int sign) {
+		addCell(acc, i * tableCols + j, sign);
+	}
+
+	/**
+	 * Adds a single pair to an accumulator, with the given sign.
+	 */
+	protected void addPair(Accumulator<?> acc, double value1, double value2, int sign) {
+		final double x = substract ? value1 - xDiff : value1;
+		final double y = substract ? value2 - yDiff : value2;
+		acc.x.add(sign * x);
+		acc.y.add(sign * y);
+		acc.xx.add(sign * x * x);
+		acc.xy.add(sign * x * y);
+		acc.yy.add(sign * y * y);
+		acc.count += sign;
+	}
+}
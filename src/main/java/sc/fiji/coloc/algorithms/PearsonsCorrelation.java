@@ -21,12 +21,15 @@
  */
 package sc.fiji.coloc.algorithms;
 
+import java.util.List;
+
+import net.imglib2.DoublePairIterator;
+import net.imglib2.PairIterators;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.TwinCursor;
 import net.imglib2.algorithm.math.ImageStatistics;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.view.Views;
 
 import sc.fiji.coloc.gadgets.DataContainer;
 import sc.fiji.coloc.gadgets.MaskFactory;
@@ -51,6 +54,8 @@ public class PearsonsCorrelation<T extends RealType< T >> extends Algorithm<T> {
 	double pearsonsCorrelationValueBelowThr;
 	// resulting Pearsons value above threshold
 	double pearsonsCorrelationValueAboveThr;
+	// accumulator of the no threshold value, filled by a shared pass
+	Accumulator<T> sharedAccumulator;
 
 	/**
 	 * Creates a new Pearson's Correlation and allows us to define
@@ -70,12 +75,35 @@ public class PearsonsCorrelation<T extends RealType< T >> extends Algorithm<T> {
 	}
 
 	@Override
-	public void execute(DataContainer<T> container) throws MissingPreconditionException {
-		// get the 2 images for the calculation of Pearson's
-		RandomAccessibleInterval<T> img1 = container.getSourceImage1();
-		RandomAccessibleInterval<T> img2 = container.getSourceImage2();
-		RandomAccessibleInterval<BitType> mask = container.getMask();
+	public void registerKernels(FusedPass<T> pass, DataContainer<T> container) {
+		sharedAccumulator = pass.register(createKernel(container));
+	}
+
+	/**
+	 * Creates an accumulator for the calculation without thresholds
+	 * that accepts all the values it gets fed.
+	 */
+	protected Accumulator<T> createKernel(DataContainer<T> container) {
+		boolean substract = theImplementation == Implementation.Classic;
+		return new Accumulator<T>(substract, container.getMeanCh1(),
+				container.getMeanCh2()) {
+			@Override
+			final public boolean accept(double value1, double value2) {
+				return true;
+			}
+		};
+	}
 
+	@Override
+	public List<Algorithm<T>> getPrerequisites(DataContainer<T> container) {
+		List<Algorithm<T>> prerequisites = super.getPrerequisites(container);
+		if (container.getAutoThreshold() != null)
+			prerequisites.add(container.getAutoThreshold());
+		return prerequisites;
+	}
+
+	@Override
+	public void execute(DataContainer<T> container) throws MissingPreconditionException {
 		// get the thresholds of the images
 		AutoThresholdRegression<T> autoThreshold = container.getAutoThreshold();
 		if (autoThreshold == null ) {
@@ -87,77 +115,63 @@ public class PearsonsCorrelation<T extends RealType< T >> extends Algorithm<T> {
 			throw new MissingPreconditionException("Pearsons calculation needs valid (not null) thresholds.");
 		}
 
-		/* Create cursors to walk over the images. First go over the
-		 * images without a mask. */
-		TwinCursor<T> cursor = new TwinCursor<T>(
-				img1.randomAccess(), img2.randomAccess(),
-				Views.iterable(mask).localizingCursor());
+		final double thr1 = threshold1.getRealDouble();
+		final double thr2 = threshold2.getRealDouble();
+
+		/* The values without thresholds are taken from a shared pass
+		 * if there was one. */
+		Accumulator<T> noThresholdAcc = sharedAccumulator;
+		sharedAccumulator = null;
+		final Accumulator<T> belowThresholdAcc, aboveThresholdAcc;
+
+		/* The thresholded values are taken from the joint histogram of
+		 * the auto threshold search, if it fits this implementation. */
+		PairHistogram histogram = autoThreshold.getHistogram();
+		if (histogram != null && histogram.substract
+				!= (theImplementation == Implementation.Classic))
+			histogram = null;
+
+		if (histogram != null) {
+			belowThresholdAcc = histogram.accumulate(thr1, thr2, ThresholdMode.Below);
+			aboveThresholdAcc = histogram.accumulate(thr1, thr2, ThresholdMode.Above);
+			if (noThresholdAcc == null)
+				noThresholdAcc = histogram.accumulate(thr1, thr2, ThresholdMode.None);
+		} else {
+			/* Otherwise, sort the pixels into all the needed sums with a
+			 * single walk over the images. */
+			ThresholdAccumulator<T> buckets = FusedPass.run(container,
+					new ThresholdAccumulator<T>(theImplementation == Implementation.Classic,
+							container.getMeanCh1(), container.getMeanCh2(),
+							thr1, thr2, noThresholdAcc == null));
+			belowThresholdAcc = buckets.getBelow();
+			aboveThresholdAcc = buckets.getAbove();
+			if (noThresholdAcc == null)
+				noThresholdAcc = buckets.getNone();
+		}
 
 		MissingPreconditionException error = null;
-		if (theImplementation == Implementation.Classic) {
-			// get the means from the DataContainer
-			double ch1Mean = container.getMeanCh1();
-			double ch2Mean = container.getMeanCh2();
-
-			try {
-				cursor.reset();
-				pearsonsCorrelationValue = classicPearsons(cursor,
-						ch1Mean, ch2Mean);
-			} catch (MissingPreconditionException e) {
-				// probably a numerical error occurred
-				pearsonsCorrelationValue = Double.NaN;
-				error = e;
-			}
-
-			try {
-				cursor.reset();
-				pearsonsCorrelationValueBelowThr = classicPearsons(cursor,
-						ch1Mean, ch2Mean, threshold1, threshold2, ThresholdMode.Below);
-			} catch (MissingPreconditionException e) {
-				// probably a numerical error occurred
-				pearsonsCorrelationValueBelowThr = Double.NaN;
-				error = e;
-			}
-
-			try {
-				cursor.reset();
-				pearsonsCorrelationValueAboveThr = classicPearsons(cursor,
-						ch1Mean, ch2Mean, threshold1, threshold2, ThresholdMode.Above);
-			} catch (MissingPreconditionException e) {
-				// probably a numerical error occurred
-				pearsonsCorrelationValueAboveThr = Double.NaN;
-				error = e;
-			}
+		try {
+			pearsonsCorrelationValue = calculatePearsons(noThresholdAcc);
+		} catch (MissingPreconditionException e) {
+			// probably a numerical error occurred
+			pearsonsCorrelationValue = Double.NaN;
+			error = e;
 		}
-		else if (theImplementation == Implementation.Fast) {
-			try {
-				cursor.reset();
-				pearsonsCorrelationValue = fastPearsons(cursor);
-			} catch (MissingPreconditionException e) {
-				// probably a numerical error occurred
-				pearsonsCorrelationValue = Double.NaN;
-				error = e;
-			}
 
-			try {
-				cursor.reset();
-				pearsonsCorrelationValueBelowThr = fastPearsons(cursor,
-						threshold1, threshold2, ThresholdMode.Below);
-			} catch (MissingPreconditionException e) {
-				// probably a numerical error occurred
-				pearsonsCorrelationValueBelowThr = Double.NaN;
-				error = e;
-			}
+		try {
+			pearsonsCorrelationValueBelowThr = calculatePearsons(belowThresholdAcc);
+		} catch (MissingPreconditionException e) {
+			// probably a numerical error occurred
+			pearsonsCorrelationValueBelowThr = Double.NaN;
+			error = e;
+		}
 
-			try {
-				cursor.reset();
-				pearsonsCorrelationValueAboveThr = fastPearsons(cursor,
-						threshold1, threshold2, ThresholdMode.Above);
-			} catch (MissingPreconditionException e) {
-				// probably a numerical error occurred
-				pearsonsCorrelationValueAboveThr = Double.NaN;
-				error = e;
-			}
+		try {
+			pearsonsCorrelationValueAboveThr = calculatePearsons(aboveThresholdAcc);
+		} catch (MissingPreconditionException e) {
+			// probably a numerical error occurred
+			pearsonsCorrelationValueAboveThr = Double.NaN;
+			error = e;
 		}
 
 		// if an error occurred, throw it one level up
@@ -181,7 +195,7 @@ public class PearsonsCorrelation<T extends RealType< T >> extends Algorithm<T> {
 		// create an "always true" mask to walk over the images
 		final long[] dims = new long[img1.numDimensions()];
 		img1.dimensions(dims);
-		RandomAccessibleInterval<BitType> alwaysTrueMask = MaskFactory.createMask(dims, true);
+		RandomAccessibleInterval<BitType> alwaysTrueMask = MaskFactory.createFullMask(dims);
 		return calculatePearsons(img1, img2, alwaysTrueMask);
 	}
 
@@ -200,9 +214,7 @@ public class PearsonsCorrelation<T extends RealType< T >> extends Algorithm<T> {
 	public <S extends RealType<S>> double calculatePearsons(
 			RandomAccessibleInterval<S> img1, RandomAccessibleInterval<S> img2,
 			RandomAccessibleInterval<BitType> mask) throws MissingPreconditionException {
-		TwinCursor<S> cursor = new TwinCursor<S>(
-				img1.randomAccess(), img2.randomAccess(),
-				Views.iterable(mask).localizingCursor());
+		DoublePairIterator cursor = PairIterators.doubles(img1, img2, mask);
 
 		double r;
 		if (theImplementation == Implementation.Classic) {
@@ -233,16 +245,123 @@ public class PearsonsCorrelation<T extends RealType< T >> extends Algorithm<T> {
 	public <S extends RealType<S>> double calculatePearsons(TwinCursor<S> cursor,
 			double mean1, double mean2, S thresholdCh1, S thresholdCh2,
 			ThresholdMode tMode) throws MissingPreconditionException {
+		return calculatePearsons(PairIterators.doubles(cursor), mean1, mean2,
+				realValue(thresholdCh1), realValue(thresholdCh2), tMode);
+	}
+
+	/**
+	 * Calculates Pearson's R value with the possibility to constraint in values.
+	 * This could be useful of one wants to apply thresholds. You need to provide
+	 * the images means, albeit not used by all implementations.
+	 *
+	 * @param iterator The iterator to walk over both images.
+	 * @return Pearson's R value.
+	 * @throws MissingPreconditionException
+	 */
+	public double calculatePearsons(DoublePairIterator iterator,
+			double mean1, double mean2, double thresholdCh1, double thresholdCh2,
+			ThresholdMode tMode) throws MissingPreconditionException {
 		if (theImplementation == Implementation.Classic) {
 			// do the actual calculation
-			return classicPearsons(cursor, mean1, mean2,
+			return classicPearsons(iterator, mean1, mean2,
 					thresholdCh1, thresholdCh2, tMode);
 		} else {
-			return fastPearsons(cursor, thresholdCh1,
+			return fastPearsons(iterator, thresholdCh1,
 					thresholdCh2, tMode);
 		}
 	}
 
+	/**
+	 * Creates the joint histogram of the masked pixels of two integer
+	 * images. Pearson's R can be calculated from it for any thresholds,
+	 * without walking over the images again.
+	 *
+	 * @param container The container providing images, mask and statistics
+	 * @return The histogram or null if the images are not supported or
+	 *         the histogram would not fit into memory
+	 */
+	public JointHistogram createJointHistogram(DataContainer<T> container) {
+		if (!JointHistogram.isSupported(container.getSourceImage1().randomAccess().get())
+				|| !JointHistogram.isSupported(container.getSourceImage2().randomAccess().get()))
+			return null;
+		final int min1 = (int) container.getMinCh1(), max1 = (int) container.getMaxCh1();
+		final int min2 = (int) container.getMinCh2(), max2 = (int) container.getMaxCh2();
+		// a sparse histogram needs memory for every pair
+		if (!JointHistogram.isDense(min1, max1, min2, max2) && !container.canBufferPairs())
+			return null;
+		DoublePairIterator iterator = PairIterators.doubles(container.getSourceImage1(),
+				container.getSourceImage2(), container.getMask());
+		boolean substract = theImplementation == Implementation.Classic;
+		return JointHistogram.create(iterator, container.getMaskedPixelCount(),
+				min1, max1, min2, max2,
+				substract, container.getMeanCh1(), container.getMeanCh2());
+	}
+
+	/**
+	 * Creates a histogram of the masked pixels of two images that
+	 * Pearson's R can be calculated from for any thresholds. For integer
+	 * images of up to 16 bits, this is a {@link JointHistogram}. Other
+	 * images, e.g. floating point ones, get their values binned at
+	 * quantiles in a {@link QuantileHistogram}.
+	 *
+	 * @param container The container providing images, mask and statistics
+	 * @return The histogram or null if the masked pixels can't be buffered
+	 */
+	public PairHistogram createHistogram(DataContainer<T> container) {
+		JointHistogram histogram = createJointHistogram(container);
+		if (histogram != null)
+			return histogram;
+		try {
+			return QuantileHistogram.create(container.getPairBuffer(),
+					QuantileHistogram.DEFAULT_BINS,
+					theImplementation == Implementation.Classic,
+					container.getMeanCh1(), container.getMeanCh2());
+		} catch (MissingPreconditionException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Calculates Pearson's R value with the possibility to constraint in
+	 * values, from a histogram created by
+	 * {@link #createHistogram(DataContainer)}.
+	 *
+	 * @param histogram The joint histogram of both images
+	 * @return Pearson's R value.
+	 * @throws MissingPreconditionException
+	 */
+	public double calculatePearsons(PairHistogram histogram,
+			double thresholdCh1, double thresholdCh2, ThresholdMode tMode)
+			throws MissingPreconditionException {
+		Accumulator<T> acc = histogram.accumulate(thresholdCh1, thresholdCh2, tMode);
+		return calculatePearsons(acc);
+	}
+
+	/**
+	 * Walks over the pairs of an iterator and sums up the ones accepted
+	 * by the threshold mode, the way the selected implementation needs
+	 * them for {@link #calculatePearsons(Accumulator)}.
+	 */
+	Accumulator<T> accumulate(DoublePairIterator iterator, double mean1,
+			double mean2, double thresholdCh1, double thresholdCh2,
+			ThresholdMode tMode) {
+		if (theImplementation == Implementation.Classic)
+			return accumulate(iterator, true, mean1, mean2, thresholdCh1,
+					thresholdCh2, tMode);
+		return accumulate(iterator, false, 0.0, 0.0, thresholdCh1,
+				thresholdCh2, tMode);
+	}
+
+	/**
+	 * Calculates Pearson's R value from the sums of an accumulator, with
+	 * the selected implementation.
+	 */
+	double calculatePearsons(Accumulator<T> acc) throws MissingPreconditionException {
+		if (theImplementation == Implementation.Classic)
+			return classicPearsons(acc);
+		return fastPearsons(acc);
+	}
+
 	/**
 	 * Calculates Person's R value by using a Classic implementation of the
 	 * algorithm. This method allows the specification of a TwinValueRangeCursor.
@@ -257,45 +376,50 @@ public class PearsonsCorrelation<T extends RealType< T >> extends Algorithm<T> {
 	 */
 	public static <T extends RealType<T>> double classicPearsons(TwinCursor<T> cursor,
 			double meanCh1, double meanCh2) throws MissingPreconditionException {
-		return classicPearsons(cursor, meanCh1, meanCh2, null, null, ThresholdMode.None);
+		return classicPearsons(PairIterators.doubles(cursor), meanCh1, meanCh2);
 	}
 
 	public static <T extends RealType<T>> double classicPearsons(TwinCursor<T> cursor,
 			double meanCh1, double meanCh2, final T thresholdCh1, final T thresholdCh2,
 			ThresholdMode tMode) throws MissingPreconditionException {
-		// the actual accumulation of the image values is done in a separate object
-		Accumulator<T> acc;
+		return classicPearsons(PairIterators.doubles(cursor), meanCh1, meanCh2,
+				realValue(thresholdCh1), realValue(thresholdCh2), tMode);
+	}
 
-		if (tMode == ThresholdMode.None) {
-			acc = new Accumulator<T>(cursor, meanCh1, meanCh2) {
-				@Override
-				final public boolean accept(T type1, T type2) {
-					return true;
-				}
-			};
-		} else if (tMode == ThresholdMode.Below) {
-			acc = new Accumulator<T>(cursor, meanCh1, meanCh2) {
-				@Override
-				final public boolean accept(T type1, T type2) {
-					return type1.compareTo(thresholdCh1) < 0 ||
-							type2.compareTo(thresholdCh2) < 0;
-				}
-			};
-		} else if (tMode == ThresholdMode.Above) {
-			acc = new Accumulator<T>(cursor, meanCh1, meanCh2) {
-				@Override
-				final public boolean accept(T type1, T type2) {
-					return type1.compareTo(thresholdCh1) > 0 ||
-							type2.compareTo(thresholdCh2) > 0;
-				}
-			};
-		} else {
-			throw new UnsupportedOperationException();
-		}
+	/**
+	 * Calculates Person's R value by using a Classic implementation of the
+	 * algorithm on the pairs of a primitive iterator.
+	 *
+	 * @param iterator The iterator that defines the walk over both images.
+	 * @param meanCh1 Mean of channel 1.
+	 * @param meanCh2 Mean of channel 2.
+	 * @return Person's R value
+	 */
+	public static double classicPearsons(DoublePairIterator iterator,
+			double meanCh1, double meanCh2) throws MissingPreconditionException {
+		return classicPearsons(iterator, meanCh1, meanCh2, 0.0, 0.0, ThresholdMode.None);
+	}
 
-		double pearsonsR = acc.xy / Math.sqrt(acc.xx * acc.yy);
+	public static double classicPearsons(DoublePairIterator iterator,
+			double meanCh1, double meanCh2, final double thresholdCh1,
+			final double thresholdCh2, ThresholdMode tMode)
+			throws MissingPreconditionException {
+		// the actual accumulation of the image values is done in a separate object
+		return classicPearsons(accumulate(iterator, true, meanCh1, meanCh2,
+				thresholdCh1, thresholdCh2, tMode));
+	}
+
+	/**
+	 * Calculates Person's R value of the classic implementation from
+	 * the sums of an accumulator that had the means subtracted.
+	 *
+	 * @param acc The accumulator holding the sums
+	 * @return Person's R value
+	 */
+	static double classicPearsons(Accumulator<?> acc) throws MissingPreconditionException {
+		double pearsonsR = acc.getXY() / Math.sqrt(acc.getXX() * acc.getYY());
 
-		checkForSanity(pearsonsR, acc.count);
+		checkForSanity(pearsonsR, acc.getCount());
 		return pearsonsR;
 	}
 
@@ -311,51 +435,97 @@ public class PearsonsCorrelation<T extends RealType< T >> extends Algorithm<T> {
 	 */
 	public static <T extends RealType<T>> double fastPearsons(TwinCursor<T> cursor)
 			throws MissingPreconditionException {
-		return fastPearsons(cursor, null, null, ThresholdMode.None);
+		return fastPearsons(PairIterators.doubles(cursor));
 	}
 
 	public static <T extends RealType<T>> double fastPearsons(TwinCursor<T> cursor,
 			final T thresholdCh1, final T thresholdCh2, ThresholdMode tMode)
 			throws MissingPreconditionException {
+		return fastPearsons(PairIterators.doubles(cursor),
+				realValue(thresholdCh1), realValue(thresholdCh2), tMode);
+	}
+
+	/**
+	 * Calculates Person's R value by using a fast implementation of the
+	 * algorithm on the pairs of a primitive iterator.
+	 *
+	 * @param iterator The iterator that defines the walk over both images.
+	 * @return Person's R value
+	 */
+	public static double fastPearsons(DoublePairIterator iterator)
+			throws MissingPreconditionException {
+		return fastPearsons(iterator, 0.0, 0.0, ThresholdMode.None);
+	}
+
+	public static double fastPearsons(DoublePairIterator iterator,
+			final double thresholdCh1, final double thresholdCh2,
+			ThresholdMode tMode) throws MissingPreconditionException {
 		// the actual accumulation of the image values is done in a separate object
-		Accumulator<T> acc;
+		return fastPearsons(accumulate(iterator, false, 0.0, 0.0,
+				thresholdCh1, thresholdCh2, tMode));
+	}
 
+	/**
+	 * Accumulates the pairs of an iterator that are accepted by the
+	 * threshold mode. Below and above mode accept a pair if at least one
+	 * of its values is below or above its threshold, respectively.
+	 */
+	private static <T extends RealType<T>> Accumulator<T> accumulate(
+			DoublePairIterator iterator, boolean substract, double xDiff,
+			double yDiff, final double thresholdCh1, final double thresholdCh2,
+			ThresholdMode tMode) {
 		if (tMode == ThresholdMode.None) {
-			acc = new Accumulator<T>(cursor) {
+			return new Accumulator<T>(iterator, substract, xDiff, yDiff) {
 				@Override
-				final public boolean accept(T type1, T type2) {
+				final public boolean accept(double value1, double value2) {
 					return true;
 				}
 			};
 		} else if (tMode == ThresholdMode.Below) {
-			acc = new Accumulator<T>(cursor) {
+			return new Accumulator<T>(iterator, substract, xDiff, yDiff) {
 				@Override
-				final public boolean accept(T type1, T type2) {
-					return type1.compareTo(thresholdCh1) < 0 ||
-							type2.compareTo(thresholdCh2) < 0;
+				final public boolean accept(double value1, double value2) {
+					return value1 < thresholdCh1 || value2 < thresholdCh2;
 				}
 			};
 		} else if (tMode == ThresholdMode.Above) {
-			acc = new Accumulator<T>(cursor) {
+			return new Accumulator<T>(iterator, substract, xDiff, yDiff) {
 				@Override
-				final public boolean accept(T type1, T type2) {
-					return type1.compareTo(thresholdCh1) > 0 ||
-							type2.compareTo(thresholdCh2) > 0;
+				final public boolean accept(double value1, double value2) {
+					return value1 > thresholdCh1 || value2 > thresholdCh2;
 				}
 			};
 		} else {
 			throw new UnsupportedOperationException();
 		}
+	}
 
+	/**
+	 * Gets the real value of a threshold, which is allowed to be null
+	 * if no thresholds are used.
+	 */
+	private static double realValue(RealType<?> threshold) {
+		return threshold == null ? 0.0 : threshold.getRealDouble();
+	}
+
+	/**
+	 * Calculates Person's R value of the fast implementation from
+	 * the sums of an accumulator.
+	 *
+	 * @param acc The accumulator holding the sums
+	 * @return Person's R value
+	 */
+	static double fastPearsons(Accumulator<?> acc) throws MissingPreconditionException {
 		// for faster computation, have the inverse of N available
-		double invCount = 1.0 / acc.count;
+		double invCount = 1.0 / acc.getCount();
+		double x = acc.getX(), y = acc.getY();
 
-		double pearsons1 = acc.xy - (acc.x * acc.y * invCount);
-		double pearsons2 = acc.xx - (acc.x * acc.x * invCount);
-		double pearsons3 = acc.yy - (acc.y * acc.y * invCount);
+		double pearsons1 = acc.getXY() - (x * y * invCount);
+		double pearsons2 = acc.getXX() - (x * x * invCount);
+		double pearsons3 = acc.getYY() - (y * y * invCount);
 		double pearsonsR = pearsons1 / (Math.sqrt(pearsons2 * pearsons3));
 
-		checkForSanity(pearsonsR, acc.count);
+		checkForSanity(pearsonsR, acc.getCount());
 
 		return pearsonsR;
 	}
@@ -366,7 +536,7 @@ public class PearsonsCorrelation<T extends RealType< T >> extends Algorithm<T> {
 	 *
 	 * @param val The value to check.
 	 */
-	private static void checkForSanity(double value, int iterations) throws MissingPreconditionException {
+	private static void checkForSanity(double value, long iterations) throws MissingPreconditionException {
 		if ( Double.isNaN(value) || Double.isInfinite(value)) {
 			/* For the _fast_ implementation this could happen:
 			 *   Infinity could happen if only the numerator is 0, i.e.:
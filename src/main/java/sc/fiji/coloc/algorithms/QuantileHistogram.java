@@ -0,0 +1,291 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.algorithms;
+
+import java.util.Arrays;
+
+import net.imglib2.type.numeric.RealType;
+
+import sc.fiji.coloc.gadgets.PairBuffer;
+import sc.fiji.coloc.gadgets.ThresholdMode;
+
+/**
+ * A joint histogram of two channels of arbitrary values, e.g. 32-bit
+ * floating point images. The values of each channel are mapped to a
+ * limited number of ordered bins, with bin edges at quantiles of a
+ * sample of the values, so every bin holds about the same number of
+ * pixels. Summed-area tables of the exact counts and moments of the
+ * pixels in every pair of bins are created.
+ *
+ * For a pair of thresholds, the sums of all bins entirely on one side
+ * of the thresholds are taken from the tables. Only the pixels in the
+ * bins the thresholds fall into are visited to decide on them exactly.
+ * Pairs with a NaN value can't be put into ordered bins. They are kept
+ * apart and tested like in a walk over all pixels: they count for no
+ * threshold mode but None, unless their other value passes the test.
+ * So the results are the same as the ones of a walk over all pixels.
+ */
+public class QuantileHistogram extends PairHistogram {
+	// the default number of bins per channel
+	public static final int DEFAULT_BINS = 256;
+	// the maximal number of values sampled to find the bin edges
+	public static final int MAX_SAMPLES = 1 << 16;
+
+	// the masked pixel pairs
+	final PairBuffer pairs;
+	/* The inclusive upper edges of the bins of both channels, in
+	 * ascending order. A value falls into the first bin whose edge
+	 * is not less than the value. The last edge is infinite. */
+	final double[] edges1, edges2;
+	// the indices of the pairs, ordered by the bins of either channel
+	final int[] order1, order2;
+	// the index of the first pair of each bin in the orders, plus the end
+	final int[] binStart1, binStart2;
+	// the indices of the pairs with a NaN value, which are in no bin
+	final int[] nanPairs;
+
+	protected QuantileHistogram(PairBuffer pairs, double[] edges1,
+			double[] edges2, boolean substract, double xDiff, double yDiff) {
+		super(substract, xDiff, yDiff);
+		this.pairs = pairs;
+		this.edges1 = edges1;
+		this.edges2 = edges2;
+
+		final int n = pairs.size();
+		final int[] bins1 = new int[n], bins2 = new int[n];
+		binStart1 = new int[edges1.length + 1];
+		binStart2 = new int[edges2.length + 1];
+		allocateTables(edges1.length + 1, edges2.length + 1);
+		int[] nans = new int[0];
+		int nanCount = 0;
+		for (int i = 0; i < n; ++i) {
+			final double value1 = pairs.first(i), value2 = pairs.second(i);
+			if (Double.isNaN(value1) || Double.isNaN(value2)) {
+				if (nanCount == nans.length)
+					nans = Arrays.copyOf(nans, Math.max(16, 2 * nanCount));
+				nans[nanCount++] = i;
+				// in no bin, so the orders leave the pair out
+				bins1[i] = bins2[i] = -1;
+				continue;
+			}
+			bins1[i] = binOf(edges1, value1);
+			bins2[i] = binOf(edges2, value2);
+			binStart1[bins1[i] + 1]++;
+			binStart2[bins2[i] + 1]++;
+			// put the sums of every pair into the cell after its bins
+			addToCell((bins1[i] + 1) * tableCols + bins2[i] + 1, 1, value1, value2);
+		}
+		integrateTables();
+
+		order1 = order(bins1, binStart1);
+		order2 = order(bins2, binStart2);
+		nanPairs = Arrays.copyOf(nans, nanCount);
+	}
+
+	/**
+	 * Creates the histogram of the pairs in a buffer. The buffer is kept
+	 * to revisit the pairs in the bins the thresholds fall into.
+	 *
+	 * @param pairs The pixel pairs
+	 * @param bins The maximal number of bins per channel
+	 * @param substract Whether to subtract xDiff and yDiff from the values
+	 * @param xDiff The value to subtract from the values of channel one
+	 * @param yDiff The value to subtract from the values of channel two
+	 * @return The histogram
+	 */
+	public static QuantileHistogram create(PairBuffer pairs, int bins,
+			boolean substract, double xDiff, double yDiff) {
+		return new QuantileHistogram(pairs, findEdges(pairs, true, bins),
+				findEdges(pairs, false, bins), substract, xDiff, yDiff);
+	}
+
+	/**
+	 * Finds the edges of bins holding about the same number of values of
+	 * a channel, from an evenly spaced sample of its values.
+	 */
+	protected static double[] findEdges(PairBuffer pairs, boolean first, int bins) {
+		final int n = pairs.size();
+		final int step = Math.max(1, (n + MAX_SAMPLES - 1) / MAX_SAMPLES);
+		double[] samples = new double[(n + step - 1) / step];
+		int s = 0;
+		for (int i = 0; i < n; i += step) {
+			final double value = first ? pairs.first(i) : pairs.second(i);
+			// NaN values are in no bin
+			if (!Double.isNaN(value))
+				samples[s++] = value;
+		}
+		samples = Arrays.copyOf(samples, s);
+		Arrays.sort(samples);
+
+		final double[] edges = new double[bins];
+		int count = 0;
+		for (int k = 1; k < bins && samples.length > 0; ++k) {
+			final double edge = samples[(int) ((long) k * samples.length / bins)];
+			// several quantiles may fall on the same value
+			if (count == 0 || edge > edges[count - 1])
+				edges[count++] = edge;
+		}
+		edges[count++] = Double.POSITIVE_INFINITY;
+		return Arrays.copyOf(edges, count);
+	}
+
+	/**
+	 * Gets the bin a value falls into. The value must not be NaN, the
+	 * last edge is infinite, so every other value falls into a bin.
+	 */
+	protected static int binOf(double[] edges, double value) {
+		return firstNotBelow(edges, value);
+	}
+
+	/**
+	 * Gets the index of the first edge that is not less than a value.
+	 * This is the number of bins entirely below the value.
+	 */
+	protected static int firstNotBelow(double[] edges, double value) {
+		int lo = 0, hi = edges.length;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (edges[mid] < value)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Gets the index of the first edge that is larger than a value. This
+	 * is the number of bins entirely up to the value.
+	 */
+	protected static int firstAbove(double[] edges, double value) {
+		int lo = 0, hi = edges.length;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (edges[mid] <= value)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Orders the indices of the pairs by their bins, with a counting sort.
+	 * The bin starts passed in hold the sizes of the bins, shifted by one,
+	 * and are turned into the starts. Pairs in bin -1 are left out.
+	 */
+	protected static int[] order(int[] bins, int[] binStart) {
+		for (int b = 1; b < binStart.length; ++b)
+			binStart[b] += binStart[b - 1];
+		final int[] next = Arrays.copyOf(binStart, binStart.length - 1);
+		final int[] order = new int[binStart[binStart.length - 1]];
+		for (int i = 0; i < bins.length; ++i)
+			if (bins[i] >= 0)
+				order[next[bins[i]]++] = i;
+		return order;
+	}
+
+	@Override
+	public <T extends RealType<T>> Accumulator<T> accumulate(
+			double thresholdCh1, double thresholdCh2, ThresholdMode tMode) {
+		if (tMode != ThresholdMode.None && tMode != ThresholdMode.Below
+				&& tMode != ThresholdMode.Above)
+			throw new UnsupportedOperationException();
+
+		final int bins1 = edges1.length, bins2 = edges2.length;
+		final Accumulator<T> acc = createAccumulator();
+		if (tMode == ThresholdMode.None) {
+			addRect(acc, bins1, bins2, 1);
+		} else if (tMode == ThresholdMode.Below) {
+			// the bins entirely below the thresholds
+			final int a = firstNotBelow(edges1, thresholdCh1);
+			final int b = firstNotBelow(edges2, thresholdCh2);
+			addRect(acc, a, bins2, 1);
+			addRect(acc, bins1, b, 1);
+			addRect(acc, a, b, -1);
+			// the pairs of bin a of channel one, in the bins from b on
+			if (a < bins1) {
+				for (int i = binStart1[a]; i < binStart1[a + 1]; ++i) {
+					final double value1 = pairs.first(order1[i]);
+					final double value2 = pairs.second(order1[i]);
+					if ((b == 0 || value2 > edges2[b - 1])
+							&& (value1 < thresholdCh1 || value2 < thresholdCh2))
+						addPair(acc, value1, value2, 1);
+				}
+			}
+			// the pairs of bin b of channel two, in the bins after a
+			if (a < bins1 - 1 && b < bins2) {
+				for (int i = binStart2[b]; i < binStart2[b + 1]; ++i) {
+					final double value1 = pairs.first(order2[i]);
+					final double value2 = pairs.second(order2[i]);
+					if (value1 > edges1[a] && value2 < thresholdCh2)
+						addPair(acc, value1, value2, 1);
+				}
+			}
+		} else {
+			/* All pairs but those with both values up to their thresholds,
+			 * which are the pairs of the bins entirely up to them and some
+			 * of the pairs in the bins the thresholds fall into. */
+			final int a = firstAbove(edges1, thresholdCh1);
+			final int b = firstAbove(edges2, thresholdCh2);
+			addRect(acc, bins1, bins2, 1);
+			addRect(acc, a, b, -1);
+			// the pairs of bin a of channel one, in the bins up to b
+			if (a < bins1) {
+				for (int i = binStart1[a]; i < binStart1[a + 1]; ++i) {
+					final double value1 = pairs.first(order1[i]);
+					final double value2 = pairs.second(order1[i]);
+					if ((b == bins2 || value2 <= edges2[b])
+							&& value1 <= thresholdCh1 && value2 <= thresholdCh2)
+						addPair(acc, value1, value2, -1);
+				}
+			}
+			// the pairs of bin b of channel two, in the bins before a
+			if (a > 0 && b < bins2) {
+				for (int i = binStart2[b]; i < binStart2[b + 1]; ++i) {
+					final double value1 = pairs.first(order2[i]);
+					final double value2 = pairs.second(order2[i]);
+					if (value1 <= edges1[a - 1] && value2 <= thresholdCh2)
+						addPair(acc, value1, value2, -1);
+				}
+			}
+		}
+		// the pairs with a NaN value, tested like in a walk over all pixels
+		for (int i : nanPairs) {
+			final double value1 = pairs.first(i), value2 = pairs.second(i);
+			if (tMode == ThresholdMode.None
+					|| tMode == ThresholdMode.Below
+							&& (value1 < thresholdCh1 || value2 < thresholdCh2)
+					|| tMode == ThresholdMode.Above
+							&& (value1 > thresholdCh1 || value2 > thresholdCh2))
+				addPair(acc, value1, value2, 1);
+		}
+		return acc;
+	}
+
+	/**
+	 * Gets the number of bins of channel one and two.
+	 */
+	public int[] getNumberOfBins() {
+		return new int[] { edges1.length, edges2.length };
+	}
+}
@@ -0,0 +1,269 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.algorithms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * A Gaussian smoothing of images of a fixed size that can be run over and
+ * over again without allocating memory. The image is smoothed in float
+ * precision along one dimension after the other, like {@link Gauss3}
+ * does and with its kernels, between two float buffers that are
+ * allocated once. The image is mirrored at its borders, without
+ * repeating the border pixels. The lines of a dimension are split into
+ * chunks that are run in a {@link ForkJoinPool}.
+ *
+ * A region of a larger image can be smoothed as well, e.g. one cell of
+ * an image stored in cells. It is read along with a halo of the kernel
+ * radii, so it gets the same values as if the whole image had been
+ * smoothed. The buffers then need to hold the largest region and its
+ * halo.
+ *
+ * @param <T>
+ */
+public class SeparableGauss<T extends RealType<T>> {
+	// the dimensions of the images
+	final long[] dims;
+	// the flat index step of every dimension
+	final int[] steps;
+	// the half kernel of every dimension, starting at its center
+	final double[][] halfkernels;
+	// the buffers the dimensions are smoothed between
+	final float[] a, b;
+	// the pool to run the chunks in or null to run them sequentially
+	protected ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	/**
+	 * @param dims The dimensions of the images to smooth, or of the
+	 *          largest region including its halo
+	 * @param halfkernels The half kernels of the dimensions, as created by
+	 *          {@link #halfkernels(double[])}
+	 */
+	public SeparableGauss(long[] dims, double[][] halfkernels) {
+		final long size = Intervals.numElements(dims);
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Image too large: " + size + " pixels");
+		this.dims = dims.clone();
+		this.halfkernels = halfkernels;
+		steps = steps(dims);
+		a = new float[(int) size];
+		b = new float[(int) size];
+	}
+
+	/**
+	 * Creates the half kernels for the given sigmas. They can be shared
+	 * by all instances smoothing with these sigmas.
+	 */
+	public static double[][] halfkernels(double[] sigma) {
+		return Gauss3.halfkernels(sigma);
+	}
+
+	/**
+	 * Gets the flat index step of every dimension.
+	 */
+	protected static int[] steps(long[] dims) {
+		final int[] steps = new int[dims.length];
+		steps[0] = 1;
+		for (int d = 1; d < dims.length; ++d)
+			steps[d] = steps[d - 1] * (int) dims[d - 1];
+		return steps;
+	}
+
+	/**
+	 * Sets the pool the chunks are run in. If null, the chunks are run
+	 * one after another in the calling thread.
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Smoothes an image into another one of the same size. Both are
+	 * walked over in flat iteration order.
+	 *
+	 * @param source The image to smooth
+	 * @param target The image to write the smoothed values to
+	 */
+	public void smooth(RandomAccessibleInterval<T> source, RandomAccessibleInterval<T> target) {
+		final Cursor<T> sourceCursor = Views.flatIterable(source).cursor();
+		for (int i = 0; sourceCursor.hasNext(); ++i)
+			a[i] = sourceCursor.next().getRealFloat();
+
+		final float[] result = convolveAll(dims, steps, a.length);
+
+		final Cursor<T> targetCursor = Views.flatIterable(target).cursor();
+		for (int i = 0; targetCursor.hasNext(); ++i)
+			targetCursor.next().setReal(result[i]);
+	}
+
+	/**
+	 * Smoothes a region of an image into a float array, in flat order of
+	 * the region. The image has to be defined around the region for the
+	 * kernel radii, e.g. by extending it.
+	 *
+	 * @param source The image to smooth
+	 * @param region The region to smooth
+	 * @param target The array to write the smoothed values to
+	 */
+	public void smooth(RandomAccessible<T> source, Interval region, float[] target) {
+		final int n = dims.length;
+		// the region along with its halo
+		final long[] min = new long[n], max = new long[n], haloDims = new long[n];
+		for (int d = 0; d < n; ++d) {
+			final int r = halfkernels[d].length - 1;
+			min[d] = region.min(d) - r;
+			max[d] = region.max(d) + r;
+			haloDims[d] = max[d] - min[d] + 1;
+		}
+		final long size = Intervals.numElements(haloDims);
+		if (size > a.length)
+			throw new IllegalArgumentException("Region too large: " + size + " pixels with its halo");
+
+		final Cursor<T> sourceCursor = Views.flatIterable(Views.interval(source, min, max)).cursor();
+		for (int i = 0; sourceCursor.hasNext(); ++i)
+			a[i] = sourceCursor.next().getRealFloat();
+
+		final int[] haloSteps = steps(haloDims);
+		final float[] result = convolveAll(haloDims, haloSteps, (int) size);
+
+		// copy the region without its halo, a row at a time
+		final int rowLength = (int) region.dimension(0);
+		final long rows = Intervals.numElements(region) / rowLength;
+		for (int row = 0; row < rows; ++row) {
+			long rest = row;
+			int start = halfkernels[0].length - 1;
+			for (int d = 1; d < n; ++d) {
+				final long position = rest % region.dimension(d);
+				rest /= region.dimension(d);
+				start += (position + halfkernels[d].length - 1) * haloSteps[d];
+			}
+			System.arraycopy(result, start, target, row * rowLength, rowLength);
+		}
+	}
+
+	/**
+	 * Convolves the values in the first buffer along all dimensions.
+	 * The values at the borders of the buffer are mirrored.
+	 *
+	 * @return The buffer holding the result
+	 */
+	protected float[] convolveAll(long[] dims, int[] steps, int size) {
+		float[] in = a, out = b;
+		for (int d = 0; d < dims.length; ++d) {
+			if (halfkernels[d].length < 2)
+				continue;
+			convolve(d, dims, steps, size, in, out);
+			final float[] swap = in;
+			in = out;
+			out = swap;
+		}
+		return in;
+	}
+
+	/**
+	 * Convolves all lines along a dimension, split into chunks.
+	 */
+	protected void convolve(final int d, final long[] dims, final int[] steps,
+			final int size, final float[] in, final float[] out) {
+		final int lines = size / (int) dims[d];
+		final int numChunks = (int) Math.min(Math.min(FusedPass.MAX_CHUNKS, lines),
+				Math.max(1, size / FusedPass.MIN_CHUNK_SIZE));
+		if (pool == null || numChunks < 2) {
+			convolveLines(d, dims, steps, in, out, 0, lines);
+			return;
+		}
+
+		final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for (int c = 0; c < numChunks; ++c) {
+			final int from = (int) ((long) lines * c / numChunks);
+			final int to = (int) ((long) lines * (c + 1) / numChunks);
+			tasks.add(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					convolveLines(d, dims, steps, in, out, from, to);
+				}
+			});
+		}
+		pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+	}
+
+	/**
+	 * Convolves the lines [from, to) along a dimension. A line is copied
+	 * into a buffer with mirrored borders first, so the inner loop
+	 * doesn't need to care about the borders.
+	 */
+	protected void convolveLines(int d, long[] dims, int[] steps, float[] in,
+			float[] out, int from, int to) {
+		final double[] kernel = halfkernels[d];
+		final int r = kernel.length - 1;
+		final int length = (int) dims[d];
+		final int step = steps[d];
+		final double[] line = new double[length + 2 * r];
+		for (int l = from; l < to; ++l) {
+			// the first pixel of the line
+			final int start = l / step * step * length + l % step;
+			for (int i = 0; i < length; ++i)
+				line[r + i] = in[start + i * step];
+			for (int i = 0; i < r; ++i) {
+				line[i] = line[r + mirror(i - r, length)];
+				line[r + length + i] = line[r + mirror(length + i, length)];
+			}
+			for (int i = 0; i < length; ++i) {
+				final int c = r + i;
+				double sum = kernel[0] * line[c];
+				for (int j = 1; j <= r; ++j)
+					sum += kernel[j] * (line[c - j] + line[c + j]);
+				out[start + i * step] = (float) sum;
+			}
+		}
+	}
+
+	/**
+	 * Mirrors a position into [0, length) without repeating the border.
+	 */
+	protected static int mirror(int position, int length) {
+		if (length == 1)
+			return 0;
+		final int period = 2 * length - 2;
+		int m = position % period;
+		if (m < 0)
+			m += period;
+		return m < length ? m : period - m;
+	}
+}
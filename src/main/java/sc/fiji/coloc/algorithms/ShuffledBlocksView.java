@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.algorithms;
+
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * A virtual image with the blocks of a source image in a shuffled order.
+ * The blocks tile a bounding box, starting at its minimum. Output block
+ * j shows the content of source block order[j]; blocks reaching beyond
+ * the source image show its mirrored content. Outside of the blocks the
+ * view is zero. Nothing is copied, the values are looked up on access,
+ * so shuffling an image that doesn't fit into memory costs no memory.
+ *
+ * @param <T>
+ */
+public class ShuffledBlocksView<T extends RealType<T>> implements RandomAccessible<T> {
+	// the mirrored source image
+	final RandomAccessible<T> source;
+	// the minimum of the block grid, the size of a block and the number of blocks
+	final long[] offset, blockSize, nrBlocks;
+	// the source block of every output block, in flat order
+	final int[] order;
+	final T zero;
+
+	/**
+	 * @param img The image to take the blocks from
+	 * @param offset The minimum of the block grid
+	 * @param blockSize The size of a block in every dimension
+	 * @param nrBlocks The number of blocks in every dimension
+	 * @param order The source block of every output block, in flat order
+	 */
+	public ShuffledBlocksView(RandomAccessibleInterval<T> img, long[] offset,
+			long[] blockSize, long[] nrBlocks, int[] order) {
+		this.source = Views.extendMirrorSingle(img);
+		this.offset = offset.clone();
+		this.blockSize = blockSize.clone();
+		this.nrBlocks = nrBlocks.clone();
+		this.order = order;
+		this.zero = img.randomAccess().get().createVariable();
+		zero.setZero();
+	}
+
+	@Override
+	public int numDimensions() {
+		return offset.length;
+	}
+
+	@Override
+	public RandomAccess<T> randomAccess() {
+		return new ShuffledAccess();
+	}
+
+	@Override
+	public RandomAccess<T> randomAccess(Interval interval) {
+		return randomAccess();
+	}
+
+	/**
+	 * A random access that maps its position to the source block.
+	 */
+	protected class ShuffledAccess extends Point implements RandomAccess<T> {
+		final RandomAccess<T> sourceAccess = source.randomAccess();
+		final long[] blockPosition = new long[n];
+		final long[] sourcePosition = new long[n];
+
+		ShuffledAccess() {
+			super(offset.length);
+		}
+
+		@Override
+		public T get() {
+			// find the output block of the position
+			int block = 0;
+			for (int d = n - 1; d >= 0; --d) {
+				final long relative = position[d] - offset[d];
+				if (relative < 0 || relative >= nrBlocks[d] * blockSize[d])
+					return zero;
+				blockPosition[d] = relative % blockSize[d];
+				block = block * (int) nrBlocks[d] + (int) (relative / blockSize[d]);
+			}
+			// and the same position within the source block
+			int sourceBlock = order[block];
+			for (int d = 0; d < n; ++d) {
+				final long b = sourceBlock % nrBlocks[d];
+				sourceBlock /= nrBlocks[d];
+				sourcePosition[d] = offset[d] + b * blockSize[d] + blockPosition[d];
+			}
+			sourceAccess.setPosition(sourcePosition);
+			return sourceAccess.get();
+		}
+
+		@Override
+		public ShuffledAccess copy() {
+			ShuffledAccess copy = new ShuffledAccess();
+			copy.setPosition(this);
+			return copy;
+		}
+	}
+}
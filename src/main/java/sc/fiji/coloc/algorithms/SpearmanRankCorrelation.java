@@ -21,16 +21,13 @@
  */
 package sc.fiji.coloc.algorithms;
 
-import java.util.Arrays;
-import java.util.Comparator;
-
-import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.PairIterators;
 import net.imglib2.TwinCursor;
-import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.view.Views;
 
 import sc.fiji.coloc.gadgets.DataContainer;
+import sc.fiji.coloc.gadgets.PairBuffer;
 import sc.fiji.coloc.results.ResultHandler;
 
 /*
@@ -55,10 +52,7 @@ public class SpearmanRankCorrelation<T extends RealType< T >> extends Algorithm<
 	double tStatisticSpearman;
 	int dfSpearman;
 
-	// create two paired arrays: one with raw pixel values and one for the corresponding ranks
-	double[][] data;
-	double[] ch1raw;
-	double[] ch2raw;
+	// the ranks of both channels, paired by pixel
 	double[] ch1ranks;
 	double[] ch2ranks;
 	
@@ -70,15 +64,151 @@ public class SpearmanRankCorrelation<T extends RealType< T >> extends Algorithm<
 	public void execute(DataContainer<T> container)
 			throws MissingPreconditionException {
 
-		// get the 2 images for the calculation of Spearman's rho
-		RandomAccessibleInterval<T> img1 = container.getSourceImage1();
-		RandomAccessibleInterval<T> img2 = container.getSourceImage2();
-		RandomAccessibleInterval<BitType> mask = container.getMask();
+		if (container.canBufferPairs()) {
+			// calculate Spearman's rho value on the shared pixel pairs
+			rhoValue = calculateSpearmanRank(container.getPairBuffer());
+		} else {
+			// the pairs don't fit into memory, so stream over the images
+			rhoValue = calculateSpearmanRankFromHistograms(container);
+		}
+	}
+
+	// the maximal number of different values per channel to rank by histogram
+	public static final long MAX_HISTOGRAM_BINS = 1 << 24;
+
+	/**
+	 * Calculates Spearman's Rank Correlation Coefficient (Spearman's rho) for
+	 * the masked pixels of two integer images, without buffering the pixel
+	 * pairs. A first pass counts the values of both channels. The rank of
+	 * every value follows from these histograms, tied values get the mean of
+	 * their ranks. A second pass then sums up the products of the ranks of
+	 * every pixel. Only the histograms need to be kept in memory, so this
+	 * works for images that are larger than the heap.
+	 *
+	 * @param container The container providing images, mask and statistics
+	 * @return Spearman's rank correlation coefficient (rho) value
+	 * @throws MissingPreconditionException if the images are not of integer
+	 *           type or have too large value ranges
+	 */
+	public double calculateSpearmanRankFromHistograms(DataContainer<T> container)
+			throws MissingPreconditionException {
+		if (!(container.getSourceImage1().randomAccess().get() instanceof IntegerType))
+			throw new MissingPreconditionException("Spearman's rank correlation of "
+					+ "images that can't be buffered needs integer images.");
+		final long min1 = (long) container.getMinCh1(), min2 = (long) container.getMinCh2();
+		final long bins1 = (long) container.getMaxCh1() - min1 + 1;
+		final long bins2 = (long) container.getMaxCh2() - min2 + 1;
+		if (bins1 > MAX_HISTOGRAM_BINS || bins2 > MAX_HISTOGRAM_BINS)
+			throw new MissingPreconditionException("The value ranges of the images "
+					+ "are too large to rank them by histogram.");
+
+		// Step 1: count the values of both channels
+		ValueHistograms histograms = FusedPass.run(container,
+				new ValueHistograms(min1, (int) bins1, min2, (int) bins2));
+		final long n = histograms.count;
+
+		// Step 2: sum up the rank products, the mean rank is known in advance
+		final double meanRank = (n + 1) * 0.5;
+		Accumulator<T> acc = new Accumulator<T>(true, meanRank, meanRank) {
+			@Override
+			public boolean accept(double value1, double value2) {
+				return true;
+			}
+		};
+		FusedPass.run(container, new RankKernel(min1, ranks(histograms.counts1),
+				min2, ranks(histograms.counts2), acc));
+
+		// Step 3: compute statistics
+		rhoValue = acc.getXY() / Math.sqrt(acc.getXX() * acc.getYY());
+		tStatisticSpearman = rhoValue * Math.sqrt((n - 2.0) / (1 - rhoValue * rhoValue));
+		dfSpearman = (int) Math.min(n - 2, Integer.MAX_VALUE);
+
+		return rhoValue;
+	}
+
+	/**
+	 * Gets the (mean) rank of every value of a histogram.
+	 */
+	protected static double[] ranks(long[] counts) {
+		double[] ranks = new double[counts.length];
+		long below = 0;
+		for (int i = 0; i < counts.length; i++) {
+			ranks[i] = below + (counts[i] + 1) * 0.5;
+			below += counts[i];
+		}
+		return ranks;
+	}
+
+	/**
+	 * Counts the values of both channels.
+	 */
+	protected static class ValueHistograms implements FusedPass.SplittableKernel {
+		final long min1, min2;
+		final long[] counts1, counts2;
+		long count = 0;
+
+		ValueHistograms(long min1, int bins1, long min2, int bins2) {
+			this.min1 = min1;
+			this.min2 = min2;
+			counts1 = new long[bins1];
+			counts2 = new long[bins2];
+		}
+
+		@Override
+		public void accumulate(double ch1, double ch2) {
+			++counts1[(int) ((long) ch1 - min1)];
+			++counts2[(int) ((long) ch2 - min2)];
+			++count;
+		}
+
+		@Override
+		public ValueHistograms split() {
+			return new ValueHistograms(min1, counts1.length, min2, counts2.length);
+		}
+
+		@Override
+		public void merge(FusedPass.SplittableKernel other) {
+			ValueHistograms o = (ValueHistograms) other;
+			for (int i = 0; i < counts1.length; i++)
+				counts1[i] += o.counts1[i];
+			for (int i = 0; i < counts2.length; i++)
+				counts2[i] += o.counts2[i];
+			count += o.count;
+		}
+	}
+
+	/**
+	 * Feeds the ranks of the values of every pixel to an accumulator.
+	 */
+	protected static class RankKernel implements FusedPass.SplittableKernel {
+		final long min1, min2;
+		final double[] ranks1, ranks2;
+		final Accumulator<?> acc;
+
+		RankKernel(long min1, double[] ranks1, long min2, double[] ranks2,
+				Accumulator<?> acc) {
+			this.min1 = min1;
+			this.min2 = min2;
+			this.ranks1 = ranks1;
+			this.ranks2 = ranks2;
+			this.acc = acc;
+		}
+
+		@Override
+		public void accumulate(double ch1, double ch2) {
+			acc.accumulate(ranks1[(int) ((long) ch1 - min1)],
+					ranks2[(int) ((long) ch2 - min2)]);
+		}
+
+		@Override
+		public RankKernel split() {
+			return new RankKernel(min1, ranks1, min2, ranks2, acc.split());
+		}
 
-		TwinCursor<T> cursor = new TwinCursor<T>(img1.randomAccess(),
-				img2.randomAccess(), Views.iterable(mask).localizingCursor());
-		// calculate Spearman's rho value
-		rhoValue = calculateSpearmanRank(cursor);
+		@Override
+		public void merge(FusedPass.SplittableKernel other) {
+			acc.merge(((RankKernel) other).acc);
+		}
 	}
 
 	/**
@@ -89,26 +219,7 @@ public class SpearmanRankCorrelation<T extends RealType< T >> extends Algorithm<
 	 * @return Spearman's rank correlation coefficient (rho) value
 	 */
 	public <T extends RealType<T>> double calculateSpearmanRank(TwinCursor<T> cursor) {
-		
-		// Step 0: Count the pixels first.
-		int n = 0;
-		while (cursor.hasNext()) {
-			n++;
-			cursor.fwd();
-		}
-		cursor.reset();
-		
-		data = new double[n][2];
-		
-		for (int i = 0; i < n; i++) {
-			cursor.fwd();
-			T type1 = cursor.getFirst();
-			T type2 = cursor.getSecond();
-			data[i][0] = type1.getRealDouble();
-			data[i][1] = type2.getRealDouble();
-		}
-		
-		return calculateSpearmanRank(data);
+		return calculateSpearmanRank(PairBuffer.create(PairIterators.doubles(cursor)));
 	}
 
 	/**
@@ -119,60 +230,78 @@ public class SpearmanRankCorrelation<T extends RealType< T >> extends Algorithm<
 	 * @return Spearman's rank correlation coefficient (rho) value
 	 */
 	public double calculateSpearmanRank(double[][] data) {
-		final int n = data.length;
-		ch1raw = new double[n];
-		ch2raw = new double[n];
-		ch1ranks = new double[n];
-		ch2ranks = new double[n];
+		PairBuffer pairs = PairBuffer.create(data.length, false, false);
+		for (double[] pair : data)
+			pairs.add(pair[0], pair[1]);
+		return calculateSpearmanRank(pairs);
+	}
+
+	/**
+	 * Calculates Spearman's Rank Correlation Coefficient (Spearman's rho) for
+	 * buffered pixel pairs. The buffer is not modified.
+	 *
+	 * @param pairs The pairs to be ranked
+	 * @return Spearman's rank correlation coefficient (rho) value
+	 */
+	public double calculateSpearmanRank(final PairBuffer pairs) {
+		final int n = pairs.size();
 
 		/**
 		 * Here's the concept. Rank-transform the data, then run 
 		 * the Pearson correlation on the transformed data.
 		 * 
-		 * 1) We will sort the dataset by one column, extract the 
-		 *    column values and rank them, and replace the data by 
-		 *    the ranks.
+		 * 1) We will sort the pixel indices by one column, extract
+		 *    the column values and rank them, and remember the rank
+		 *    of every pixel.
 		 * 2) Repeat the process now with the remaining column.
 		 * 3) Calculate the coefficient from the individual rank
 		 *    columns, the t-statistic and the df's of the test.
 		 */
-		
-		// Step 1: Sort the raw data, by column #2 (arbitrary choice).
-		Arrays.sort(data, new Comparator<double[]>() {
+		int[] index = new int[n];
+		for (int i = 0; i < n; i++) {
+			index[i] = i;
+		}
+
+		// Step 1: Sort the pixels by column #2 (arbitrary choice).
+		IntArraySorter.sort(index, new IntComparator() {
 			@Override
-			public int compare(double[] row1, double[] row2) {
-				return Double.compare(row1[1], row2[1]);
+			public int compare(int a, int b) {
+				return Double.compare(pairs.second(a), pairs.second(b));
 			}
 		});
-		
+
+		double[] sortedValues = new double[n];
 		for (int i = 0; i < n; i++) {
-			ch2raw[i] = data[i][1];
+			sortedValues[i] = pairs.second(index[i]);
 		}
-		
-		// Rank the data then replace them into the dataset.
-		ch2ranks = rankValues(ch2raw);
+
+		// Rank the data and store the rank of every pixel.
+		double[] ranks = rankValues(sortedValues);
+		double[] pixelRanks2 = new double[n];
 		for (int i = 0; i < n; i++) {
-			data[i][1] = ch2ranks[i];
+			pixelRanks2[index[i]] = ranks[i];
 		}
-		
-		// Step 2: Repeat step 1 with the other data column.
-		Arrays.sort(data, new Comparator<double[]>() {
+
+		// Step 2: Repeat step 1 with the other data column. Ties are
+		// ordered by column #2, like a stable sort would leave them.
+		IntArraySorter.sort(index, new IntComparator() {
 			@Override
-			public int compare(double[] row1, double[] row2) {
-				return Double.compare(row1[0], row2[0]);
+			public int compare(int a, int b) {
+				int result = Double.compare(pairs.first(a), pairs.first(b));
+				return result != 0 ? result : Double.compare(pairs.second(a), pairs.second(b));
 			}
 		});
-		
+
 		for (int i = 0; i < n; i++) {
-			ch1raw[i] = data[i][0];
+			sortedValues[i] = pairs.first(index[i]);
 		}
-		
-		ch1ranks = rankValues(ch1raw);
+
+		ch1ranks = rankValues(sortedValues);
+		ch2ranks = ranks;
 		for (int i = 0; i < n; i++) {
-			data[i][0] = ch1ranks[i];
-			ch2ranks[i] = data[i][1];
+			ch2ranks[i] = pixelRanks2[index[i]];
 		}
-		
+
 		// Step 3: Compute statistics.
 		rhoValue = calculateRho(ch1ranks, ch2ranks);
 		tStatisticSpearman = getTStatistic(rhoValue, n);
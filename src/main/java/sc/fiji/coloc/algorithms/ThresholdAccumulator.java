@@ -0,0 +1,177 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.algorithms;
+
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * A kernel that sorts every pixel pair it gets fed into the sums of all
+ * three threshold modes at once: all pairs, the pairs with at least one
+ * value below its threshold and the pairs with at least one value above
+ * its threshold. This way the sums for all modes are collected with a
+ * single walk over the pixels, comparing the plain values of the pairs.
+ *
+ * @param <T>
+ */
+public class ThresholdAccumulator<T extends RealType< T >> implements
+		FusedPass.SplittableKernel, FusedPass.BatchKernel {
+	// the sums of all pairs, of the ones below and the ones above
+	protected final Accumulator<T> none, below, above;
+	// the thresholds of both channels
+	protected final double thresholdCh1, thresholdCh2;
+	// whether to collect the sums of all pairs as well
+	protected final boolean withNone;
+	// whether to subtract xDiff and yDiff from the values
+	protected final boolean substract;
+	protected final double xDiff, yDiff;
+
+	/**
+	 * Creates an empty accumulator for the given thresholds.
+	 *
+	 * @param substract Whether to subtract xDiff and yDiff from the values
+	 * @param xDiff The value to subtract from the values of channel one
+	 * @param yDiff The value to subtract from the values of channel two
+	 * @param thresholdCh1 The threshold of channel one
+	 * @param thresholdCh2 The threshold of channel two
+	 * @param withNone Whether to collect the sums of all pairs as well
+	 */
+	public ThresholdAccumulator(boolean substract, double xDiff, double yDiff,
+			double thresholdCh1, double thresholdCh2, boolean withNone) {
+		this.thresholdCh1 = thresholdCh1;
+		this.thresholdCh2 = thresholdCh2;
+		this.withNone = withNone;
+		this.substract = substract;
+		this.xDiff = xDiff;
+		this.yDiff = yDiff;
+		none = createBucket(substract, xDiff, yDiff);
+		below = createBucket(substract, xDiff, yDiff);
+		above = createBucket(substract, xDiff, yDiff);
+	}
+
+	protected static <T extends RealType<T>> Accumulator<T> createBucket(
+			boolean substract, double xDiff, double yDiff) {
+		return new Accumulator<T>(substract, xDiff, yDiff) {
+			@Override
+			final public boolean accept(double value1, double value2) {
+				return true;
+			}
+		};
+	}
+
+	@Override
+	public void accumulate(double ch1, double ch2) {
+		if (withNone)
+			none.accumulate(ch1, ch2);
+		if (ch1 < thresholdCh1 || ch2 < thresholdCh2)
+			below.accumulate(ch1, ch2);
+		if (ch1 > thresholdCh1 || ch2 > thresholdCh2)
+			above.accumulate(ch1, ch2);
+	}
+
+	/**
+	 * Accumulates a block of pairs. Every pair is added to the sums of
+	 * all buckets, with the values of a bucket that doesn't take the pair
+	 * masked to zero. This avoids branches that depend on the data.
+	 */
+	@Override
+	public void accumulate(double[] ch1, double[] ch2, int length) {
+		if (withNone)
+			none.accumulate(ch1, ch2, length);
+		final double dx = substract ? xDiff : 0.0;
+		final double dy = substract ? yDiff : 0.0;
+		double bx = 0, by = 0, bxx = 0, bxy = 0, byy = 0;
+		double ax = 0, ay = 0, axx = 0, axy = 0, ayy = 0;
+		long bCount = 0, aCount = 0;
+		for (int i = 0; i < length; ++i) {
+			final double v1 = ch1[i], v2 = ch2[i];
+			final boolean isBelow = v1 < thresholdCh1 | v2 < thresholdCh2;
+			final boolean isAbove = v1 > thresholdCh1 | v2 > thresholdCh2;
+			final double a = v1 - dx, b = v2 - dy;
+			final double ab = a * b, aa = a * a, bb = b * b;
+			bx += isBelow ? a : 0.0;
+			by += isBelow ? b : 0.0;
+			bxx += isBelow ? aa : 0.0;
+			bxy += isBelow ? ab : 0.0;
+			byy += isBelow ? bb : 0.0;
+			bCount += isBelow ? 1 : 0;
+			ax += isAbove ? a : 0.0;
+			ay += isAbove ? b : 0.0;
+			axx += isAbove ? aa : 0.0;
+			axy += isAbove ? ab : 0.0;
+			ayy += isAbove ? bb : 0.0;
+			aCount += isAbove ? 1 : 0;
+		}
+		add(below, bx, by, bxx, bxy, byy, bCount);
+		add(above, ax, ay, axx, axy, ayy, aCount);
+	}
+
+	/**
+	 * Adds the sums of a block to a bucket.
+	 */
+	protected static void add(Accumulator<?> acc, double x, double y,
+			double xx, double xy, double yy, long count) {
+		acc.x.add(x);
+		acc.y.add(y);
+		acc.xx.add(xx);
+		acc.xy.add(xy);
+		acc.yy.add(yy);
+		acc.count += count;
+	}
+
+	@Override
+	public ThresholdAccumulator<T> split() {
+		return new ThresholdAccumulator<T>(substract, xDiff, yDiff,
+				thresholdCh1, thresholdCh2, withNone);
+	}
+
+	@Override
+	public void merge(FusedPass.SplittableKernel other) {
+		ThresholdAccumulator<?> o = (ThresholdAccumulator<?>) other;
+		none.merge(o.none);
+		below.merge(o.below);
+		above.merge(o.above);
+	}
+
+	/**
+	 * Gets the sums of all pairs. They are only collected if requested
+	 * on creation.
+	 */
+	public Accumulator<T> getNone() {
+		return none;
+	}
+
+	/**
+	 * Gets the sums of the pairs with at least one value below its
+	 * threshold, like {@link sc.fiji.coloc.gadgets.ThresholdMode#Below}.
+	 */
+	public Accumulator<T> getBelow() {
+		return below;
+	}
+
+	/**
+	 * Gets the sums of the pairs with at least one value above its
+	 * threshold, like {@link sc.fiji.coloc.gadgets.ThresholdMode#Above}.
+	 */
+	public Accumulator<T> getAbove() {
+		return above;
+	}
+}
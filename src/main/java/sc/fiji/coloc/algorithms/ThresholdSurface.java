@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.algorithms;
+
+import java.util.Arrays;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+
+import sc.fiji.coloc.gadgets.DataContainer;
+import sc.fiji.coloc.gadgets.ThresholdMode;
+import sc.fiji.coloc.results.ResultHandler;
+import sc.fiji.coloc.results.ResultTable;
+
+/**
+ * Calculates Pearson's R below and above the thresholds, as well as the
+ * thresholded Manders' split coefficients tM1 and tM2, for every pair of
+ * thresholds of a grid spanning the value ranges of both channels. This
+ * shows how sensitive the results are to the thresholds chosen by the
+ * regression. The pixels are visited once to create a
+ * {@link GridHistogram}, all grid points are read from it.
+ *
+ * @param <T>
+ */
+public class ThresholdSurface<T extends RealType< T >> extends Algorithm<T> {
+	// the default number of thresholds per channel
+	public static final int DEFAULT_GRID_SIZE = 256;
+	// the Pearson's correlation whose implementation to use
+	PearsonsCorrelation<T> pearsonsCorrelation;
+	// the maximal number of thresholds per channel
+	int gridSize;
+	// the histogram of the last run
+	GridHistogram histogram;
+	// Pearson's R per threshold of channel one and two
+	double[][] pearsonsBelow, pearsonsAbove;
+	// a type instance of the source images
+	T type;
+
+	public ThresholdSurface(PearsonsCorrelation<T> pc) {
+		this(pc, DEFAULT_GRID_SIZE);
+	}
+
+	/**
+	 * @param pc The Pearson's correlation whose implementation to use
+	 * @param gridSize The maximal number of thresholds per channel
+	 */
+	public ThresholdSurface(PearsonsCorrelation<T> pc, int gridSize) {
+		super("threshold surface");
+		this.pearsonsCorrelation = pc;
+		this.gridSize = Math.max(2, gridSize);
+	}
+
+	@Override
+	public void execute(DataContainer<T> container)
+			throws MissingPreconditionException {
+		type = Util.getTypeFromInterval(container.getSourceImage1()).createVariable();
+		final boolean integer = type instanceof IntegerType;
+		final double[] thresholds1 = createThresholds(container.getMinCh1(),
+				container.getMaxCh1(), gridSize, integer);
+		final double[] thresholds2 = createThresholds(container.getMinCh2(),
+				container.getMaxCh2(), gridSize, integer);
+
+		// a single walk over the pixels
+		final boolean substract = pearsonsCorrelation.theImplementation
+				== PearsonsCorrelation.Implementation.Classic;
+		histogram = FusedPass.run(container, new GridHistogram(thresholds1,
+				thresholds2, substract, container.getMeanCh1(), container.getMeanCh2()));
+		histogram.integrate();
+
+		pearsonsBelow = new double[thresholds1.length][thresholds2.length];
+		pearsonsAbove = new double[thresholds1.length][thresholds2.length];
+		for (int i = 0; i < thresholds1.length; ++i) {
+			for (int j = 0; j < thresholds2.length; ++j) {
+				pearsonsBelow[i][j] = calculatePearsons(i, j, ThresholdMode.Below);
+				pearsonsAbove[i][j] = calculatePearsons(i, j, ThresholdMode.Above);
+			}
+		}
+	}
+
+	/**
+	 * Calculates Pearson's R for a point of the grid, which is not a
+	 * number if there are too few pixels.
+	 */
+	protected double calculatePearsons(int i, int j, ThresholdMode tMode) {
+		try {
+			return pearsonsCorrelation.calculatePearsons(
+					histogram.<T>accumulate(i, j, tMode));
+		} catch (MissingPreconditionException e) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Creates up to {@code size} evenly spaced thresholds from the minimum
+	 * to the maximum of a channel. Thresholds of integer images are
+	 * integers, so if the range is small, every value is a threshold.
+	 */
+	public static double[] createThresholds(double min, double max, int size,
+			boolean integer) {
+		if (integer) {
+			min = Math.floor(min);
+			max = Math.ceil(max);
+		}
+		if (max <= min)
+			return new double[] { min };
+		if (integer && max - min < size)
+			size = (int) (max - min) + 1;
+		final double[] thresholds = new double[size];
+		int n = 0;
+		for (int k = 0; k < size; ++k) {
+			double t = min + k * (max - min) / (size - 1);
+			if (integer)
+				t = Math.round(t);
+			// rounding may give the same threshold twice
+			if (n == 0 || t > thresholds[n - 1])
+				thresholds[n++] = t;
+		}
+		return n == size ? thresholds : Arrays.copyOf(thresholds, n);
+	}
+
+	@Override
+	public void processResults(ResultHandler<T> handler) {
+		super.processResults(handler);
+		if (histogram == null)
+			return;
+		handler.handleImage(createHeatMap(pearsonsBelow),
+				"Pearson's R below thresholds");
+		handler.handleImage(createHeatMap(pearsonsAbove),
+				"Pearson's R above thresholds");
+		handler.handleTable(createTable());
+	}
+
+	/**
+	 * Creates an image of values per grid point. Channel one's thresholds
+	 * ascend along x and channel two's along y from the bottom, like in
+	 * the 2D intensity histogram. Types that can't hold values from -1 to
+	 * 1, e.g. integer ones, get them mapped to the range from zero to
+	 * their maximum, but at most 255. Points that are not a number are
+	 * zero then.
+	 */
+	protected RandomAccessibleInterval<T> createHeatMap(double[][] values) {
+		final int width = values.length, height = values[0].length;
+		final Img<T> image = new ArrayImgFactory<T>().create(
+				new long[] { width, height }, type);
+		final boolean direct = !(type instanceof IntegerType)
+				&& type.getMinValue() <= -1;
+		final double scale = 0.5 * Math.min(type.getMaxValue(), 255);
+		final RandomAccess<T> ra = image.randomAccess();
+		for (int i = 0; i < width; ++i) {
+			for (int j = 0; j < height; ++j) {
+				final double v = values[i][j];
+				ra.setPosition(i, 0);
+				ra.setPosition(height - 1 - j, 1);
+				if (direct)
+					ra.get().setReal(v);
+				else
+					ra.get().setReal(Double.isNaN(v) ? 0 : Math.round((v + 1) * scale));
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Creates a table with a row per grid point.
+	 */
+	protected ResultTable createTable() {
+		final double[] thresholds1 = histogram.getThresholdsCh1();
+		final double[] thresholds2 = histogram.getThresholdsCh2();
+		final ResultTable table = new ResultTable("Threshold surface",
+				"Ch1 Threshold", "Ch2 Threshold", "Pearson's R below",
+				"Pearson's R above", "Manders' tM1", "Manders' tM2");
+		table.setDecimals(0, 2);
+		table.setDecimals(1, 2);
+		for (int i = 0; i < thresholds1.length; ++i)
+			for (int j = 0; j < thresholds2.length; ++j)
+				table.addRow(thresholds1[i], thresholds2[j], pearsonsBelow[i][j],
+						pearsonsAbove[i][j], histogram.getMandersM1(j),
+						histogram.getMandersM2(i));
+		return table;
+	}
+
+	/**
+	 * Gets the histogram of the last run or null, if there was none.
+	 */
+	public GridHistogram getHistogram() {
+		return histogram;
+	}
+
+	/**
+	 * Gets Pearson's R below the thresholds, indexed by the thresholds
+	 * of channel one and two.
+	 */
+	public double[][] getPearsonsBelow() {
+		return pearsonsBelow;
+	}
+
+	/**
+	 * Gets Pearson's R above the thresholds, indexed by the thresholds
+	 * of channel one and two.
+	 */
+	public double[][] getPearsonsAbove() {
+		return pearsonsAbove;
+	}
+}
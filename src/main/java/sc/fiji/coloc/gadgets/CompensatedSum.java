@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.gadgets;
+
+import java.io.Serializable;
+
+/**
+ * A sum of doubles that keeps track of the rounding errors of the
+ * additions (Neumaier's variant of Kahan summation). This way, the
+ * error of the sum does not grow with the number of values added,
+ * which matters when adding up the values of billions of voxels.
+ * Partial sums, e.g. of different threads, can be merged without
+ * losing their compensation. Sums are serializable, to store them
+ * along with the state they are part of.
+ */
+public class CompensatedSum implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	// the sum and the accumulated rounding errors
+	protected double sum, compensation;
+
+	public CompensatedSum() {
+		this(0.0);
+	}
+
+	public CompensatedSum(double value) {
+		sum = value;
+		compensation = 0.0;
+	}
+
+	/**
+	 * Adds a value to the sum.
+	 */
+	public void add(final double value) {
+		final double t = sum + value;
+		if (Math.abs(sum) >= Math.abs(value))
+			compensation += (sum - t) + value;
+		else
+			compensation += (value - t) + sum;
+		sum = t;
+	}
+
+	/**
+	 * Adds another sum to this one, including its compensation.
+	 */
+	public void add(final CompensatedSum other) {
+		add(other.sum);
+		add(other.compensation);
+	}
+
+	/**
+	 * Subtracts another sum from this one, including its compensation.
+	 */
+	public void subtract(final CompensatedSum other) {
+		add(-other.sum);
+		add(-other.compensation);
+	}
+
+	/**
+	 * Gets the compensated value of the sum.
+	 */
+	public double getSum() {
+		return sum + compensation;
+	}
+
+	/**
+	 * Sets the sum to a value, discarding all compensation.
+	 */
+	public void setSum(double value) {
+		sum = value;
+		compensation = 0.0;
+	}
+}
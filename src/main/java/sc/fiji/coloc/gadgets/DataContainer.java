@@ -25,13 +25,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import net.imglib2.PairIterators;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.algorithm.math.ImageStatistics;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 
 import sc.fiji.coloc.algorithms.Algorithm;
 import sc.fiji.coloc.algorithms.AutoThresholdRegression;
+import sc.fiji.coloc.algorithms.FusedPass;
 import sc.fiji.coloc.algorithms.InputCheck;
 import sc.fiji.coloc.algorithms.MissingPreconditionException;
 
@@ -80,6 +81,15 @@ public class DataContainer<T extends RealType< T >> {
 	// The mask's bounding box
 	protected long[] maskBBSize = null;
 	protected long[] maskBBOffset = null;
+	// the number of pixels within the mask
+	private long maskedPixelCount;
+	// the masked pixel pairs, shared by rank and sort based algorithms
+	private PairBuffer pairBuffer = null;
+	// the settings of the pair buffer
+	protected PairBuffer.Precision pairBufferPrecision = PairBuffer.Precision.AUTO;
+	protected boolean pairBufferOffHeap = false;
+	// the heap needed per pair by sorting, besides the buffer: an index and two ranks
+	static final long BYTES_PER_SORTED_PAIR = Integer.BYTES + 2 * Double.BYTES;
 
 	InputCheck<T> inputCheck = null;
 	AutoThresholdRegression<T> autoThreshold = null;
@@ -105,10 +115,10 @@ public class DataContainer<T extends RealType< T >> {
 		sourceImage1Name = name1;
 		sourceImage2Name = name2;
 
-		// create a mask that is true at all pixels.
+		// create a virtual mask that is true at all pixels.
 		final long[] dims = new long[src1.numDimensions()];
 		src1.dimensions(dims);
-		mask = MaskFactory.createMask(dims, true);
+		mask = MaskFactory.createFullMask(dims);
 		this.ch1 = ch1;
 		this.ch2 = ch2;
 		// fill mask dimension information, here the whole image
@@ -227,14 +237,122 @@ public class DataContainer<T extends RealType< T >> {
 	}
 
 	protected void calculateStatistics() {
-		meanCh1 = ImageStatistics.getImageMean(sourceImage1, mask);
-		meanCh2 = ImageStatistics.getImageMean(sourceImage2, mask);
-		minCh1 = ImageStatistics.getImageMin(sourceImage1, mask).getRealDouble();
-		minCh2 = ImageStatistics.getImageMin(sourceImage2, mask).getRealDouble();
-		maxCh1 = ImageStatistics.getImageMax(sourceImage1, mask).getRealDouble();
-		maxCh2 = ImageStatistics.getImageMax(sourceImage2, mask).getRealDouble();
-		integralCh1 = ImageStatistics.getImageIntegral(sourceImage1, mask);
-		integralCh2 = ImageStatistics.getImageIntegral(sourceImage2, mask);
+		// collect the statistics of both channels in a single pass
+		StatisticsKernel stats = new StatisticsKernel();
+		FusedPass<T> pass = new FusedPass<T>();
+		pass.register(stats);
+		pass.run(sourceImage1, sourceImage2, mask);
+
+		meanCh1 = stats.sumCh1.getSum() / stats.count;
+		meanCh2 = stats.sumCh2.getSum() / stats.count;
+		minCh1 = stats.minCh1;
+		minCh2 = stats.minCh2;
+		maxCh1 = stats.maxCh1;
+		maxCh2 = stats.maxCh2;
+		integralCh1 = stats.sumCh1.getSum();
+		integralCh2 = stats.sumCh2.getSum();
+		maskedPixelCount = stats.count;
+	}
+
+	/**
+	 * Tests whether the masked pixel pairs can be buffered in memory, along
+	 * with the index and rank arrays the sort based algorithms need. If not,
+	 * e.g. for CellImgs cached on disk that are larger than the heap,
+	 * algorithms have to stream over the images instead.
+	 */
+	public boolean canBufferPairs() {
+		if (maskedPixelCount > Integer.MAX_VALUE - 8)
+			return false;
+		final long bytesPerPair = BYTES_PER_SORTED_PAIR
+				+ (pairBufferOffHeap ? 0 : 2 * Double.BYTES);
+		return maskedPixelCount * bytesPerPair <= Runtime.getRuntime().maxMemory() / 2;
+	}
+
+	/**
+	 * Gets the values of all masked pixel pairs. The buffer is created
+	 * on the first call and shared by all callers, so it must not be
+	 * modified. Call {@link #releasePairBuffer()} to free its memory.
+	 * Concurrently running algorithms may call this method at the
+	 * same time.
+	 *
+	 * @return The buffer of the masked pixel pairs
+	 * @throws MissingPreconditionException if there are too many pixels
+	 */
+	public synchronized PairBuffer getPairBuffer() throws MissingPreconditionException {
+		if (pairBuffer == null) {
+			if (!canBufferPairs())
+				throw new MissingPreconditionException("Too many masked pixels to buffer them: "
+						+ maskedPixelCount);
+			boolean useFloats;
+			if (pairBufferPrecision == PairBuffer.Precision.AUTO)
+				useFloats = PairBuffer.isExactAsFloat(sourceImage1.randomAccess().get())
+						&& PairBuffer.isExactAsFloat(sourceImage2.randomAccess().get());
+			else
+				useFloats = pairBufferPrecision == PairBuffer.Precision.FLOAT;
+			PairBuffer buffer = PairBuffer.create((int) maskedPixelCount,
+					useFloats, pairBufferOffHeap);
+			pairBuffer = PairBuffer.fill(buffer,
+					PairIterators.doubles(sourceImage1, sourceImage2, mask));
+		}
+		return pairBuffer;
+	}
+
+	/**
+	 * Drops the buffer of the masked pixel pairs, if one has been
+	 * created. It will be created again when it is needed.
+	 */
+	public synchronized void releasePairBuffer() {
+		pairBuffer = null;
+	}
+
+	/**
+	 * Sets the precision the masked pixel pairs are buffered with and
+	 * whether they are stored outside of the Java heap. This releases
+	 * the current buffer.
+	 */
+	public void setPairBufferOptions(PairBuffer.Precision precision, boolean offHeap) {
+		pairBufferPrecision = precision;
+		pairBufferOffHeap = offHeap;
+		releasePairBuffer();
+	}
+
+	/**
+	 * Collects sum, minimum and maximum of both channels pixel by pixel.
+	 */
+	private static class StatisticsKernel implements FusedPass.SplittableKernel {
+		// compensated sums prevent numerical instabilities when adding up millions of pixels
+		final CompensatedSum sumCh1 = new CompensatedSum(), sumCh2 = new CompensatedSum();
+		double minCh1 = Double.POSITIVE_INFINITY, minCh2 = Double.POSITIVE_INFINITY;
+		double maxCh1 = Double.NEGATIVE_INFINITY, maxCh2 = Double.NEGATIVE_INFINITY;
+		long count = 0;
+
+		@Override
+		public void accumulate(double ch1, double ch2) {
+			sumCh1.add(ch1);
+			sumCh2.add(ch2);
+			if (ch1 < minCh1) minCh1 = ch1;
+			if (ch1 > maxCh1) maxCh1 = ch1;
+			if (ch2 < minCh2) minCh2 = ch2;
+			if (ch2 > maxCh2) maxCh2 = ch2;
+			++count;
+		}
+
+		@Override
+		public StatisticsKernel split() {
+			return new StatisticsKernel();
+		}
+
+		@Override
+		public void merge(FusedPass.SplittableKernel other) {
+			StatisticsKernel o = (StatisticsKernel) other;
+			sumCh1.add(o.sumCh1);
+			sumCh2.add(o.sumCh2);
+			minCh1 = Math.min(minCh1, o.minCh1);
+			maxCh1 = Math.max(maxCh1, o.maxCh1);
+			minCh2 = Math.min(minCh2, o.minCh2);
+			maxCh2 = Math.max(maxCh2, o.maxCh2);
+			count += o.count;
+		}
 	}
 
 	/**
@@ -315,6 +433,13 @@ public class DataContainer<T extends RealType< T >> {
 		return mask;
 	}
 
+	/**
+	 * Gets the number of pixels within the mask.
+	 */
+	public long getMaskedPixelCount() {
+		return maskedPixelCount;
+	}
+
 	public long[] getMaskBBOffset() {
 		return maskBBOffset.clone();
 	}
@@ -24,12 +24,14 @@ package sc.fiji.coloc.gadgets;
 import java.util.Arrays;
 
 import net.imglib2.Cursor;
-import net.imglib2.RandomAccess;
+import net.imglib2.IntervalMask;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.SpanMask;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
 import sc.fiji.coloc.algorithms.MissingPreconditionException;
@@ -49,6 +51,15 @@ public class MaskFactory {
 		return imgFactory.create(dim, new BitType());
 	}
 	
+	/**
+	 * Create a new virtual mask with a defined size that is true at all
+	 * pixels. It needs no memory and can't be changed; iterating over
+	 * two images with respect to it is as fast as without a mask.
+	 */
+	public static RandomAccessibleInterval<BitType> createFullMask(long[] dim) {
+		return new IntervalMask(dim);
+	}
+
 	/**
 	 * Create a new mask image with a defined size and preset content.
 	 */
@@ -62,7 +73,9 @@ public class MaskFactory {
 	}
 	
 	/**
-	 * Create a new mask image with a defined size and preset content.
+	 * Create a new mask that is on within a ROI (a bounding box) and
+	 * off elsewhere. The mask is a {@link SpanMask}, so it takes only
+	 * little memory and cursors can skip the masked out areas.
 	 * @throws MissingPreconditionException
 	 */
 	public static RandomAccessibleInterval<BitType> createMask(long[] dim, long[] roiOffset, long[] roiDim)
@@ -71,28 +84,7 @@ public class MaskFactory {
 			throw new MissingPreconditionException("The dimensions of the mask as well as the ROIs and his offset must be the same.");
 		}
 
-		final RandomAccessibleInterval<BitType> mask = createMask(dim);
-		final int dims = mask.numDimensions();
-		final long[] pos = new long[dims];
-		
-
-		// create an array with the max corner of the ROI
-		final long[] roiOffsetMax = new long[dims];
-		for (int i=0; i<dims; ++i)
-			roiOffsetMax[i] = roiOffset[i] + roiDim[i];
-		// go through the mask and mask points as valid that are in the ROI
-		Cursor<BitType> cursor = Views.iterable(mask).localizingCursor();
-		while ( cursor.hasNext() ) {
-			cursor.fwd();
-			cursor.localize(pos);
-			boolean valid = true;
-			// test if the current position is contained in the ROI
-			for(int i=0; i<dims; ++i)
-				valid &= pos[i] >= roiOffset[i] && pos[i] < roiOffsetMax[i];
-			cursor.get().set(valid);
-		}
-
-		return mask;
+		return SpanMask.box(dim, roiOffset, roiDim);
 	}
 
 	/**
@@ -158,57 +150,53 @@ public class MaskFactory {
 	 */
 	public static<T extends RealType< T >> RandomAccessibleInterval<BitType> createMask(
 			final long[] dim, final RandomAccessibleInterval<T> origMask) {
-		final RandomAccessibleInterval<BitType> mask = createMask(dim);
 		final long[] origDim = new long[ origMask.numDimensions() ];
 		origMask.dimensions(origDim);
 
-		// test if original mask and new mask have same dimensions
-		if (Arrays.equals(dim, origDim)) {
-			// copy the input image to the mask output image
-			Cursor<T> origCursor = Views.iterable(origMask).localizingCursor();
-			RandomAccess<BitType> maskCursor = mask.randomAccess();
-			while (origCursor.hasNext()) {
-				origCursor.fwd();
-				maskCursor.setPosition(origCursor);
-				boolean value = origCursor.get().getRealDouble() > 0.001;
-				maskCursor.get().set(value);
-			}
-		} else if (dim.length > origDim.length) {
+		// test if original mask and new mask have compatible dimensions
+		if (dim.length > origDim.length) {
 			// sanity check
 			for (int i=0; i<origDim.length; i++) {
 				if (origDim[i] != dim[i])
 					throw new UnsupportedOperationException("Masks with lower dimensionality than the image, "
 							+ " but a different extent are not yet supported.");
 			}
-			// mask and image have different dimensionality and maybe even a different extent
-			Cursor<T> origCursor = Views.iterable(origMask).localizingCursor();
-			RandomAccess<BitType> maskCursor = mask.randomAccess();
-			final long[] pos = new long[ origMask.numDimensions() ];
-			// iterate over the original mask
-			while (origCursor.hasNext()) {
-				origCursor.fwd();
-				origCursor.localize(pos);
-				boolean value = origCursor.get().getRealDouble() > 0.001;
-				// set available (lower dimensional) position information
-				for (int i=0; i<origDim.length; i++)
-					// setPosition requires first the position and then the dimension
-					maskCursor.setPosition(pos[i], i);
-				// go through the missing dimensions and set the value
-				for (int i=origDim.length; i<dim.length; i++)
-					for (int j=0; j<dim[i]; j++) {
-						// setPosition requires first the position and then the dimension
-						maskCursor.setPosition(j, i);
-						maskCursor.get().set(value);
-					}
-			}
 		} else if (dim.length < origDim.length) {
 			// mask has more dimensions than image
 			throw new UnsupportedOperationException("Masks with more dimensions than the image are not supported, yet.");
-		} else {
+		} else if (!Arrays.equals(dim, origDim)) {
 			// mask and image have a different extent, but are equal in dimensionality. Scale it?
 			throw new UnsupportedOperationException("Masks with same dimensionality, but a different extent than the image are not supported, yet.");
 		}
 
+		final SpanMask mask = new SpanMask(dim);
+		final long rowLength = dim[0];
+		final int origRows = rowLength == 0 ? 0 :
+			(int) (Intervals.numElements(origDim) / rowLength);
+		// collect the spans of the original mask row by row
+		final Cursor<T> origCursor = Views.flatIterable(origMask).cursor();
+		long[] spans = new long[16];
+		for (int row=0; row<origRows; ++row) {
+			int numValues = 0;
+			long start = -1;
+			for (long x=0; x<=rowLength; ++x) {
+				boolean value = x < rowLength && origCursor.next().getRealDouble() > 0.001;
+				if (value && start < 0) {
+					start = x;
+				} else if (!value && start >= 0) {
+					if (numValues == spans.length)
+						spans = Arrays.copyOf(spans, 2 * spans.length);
+					spans[numValues++] = start;
+					spans[numValues++] = x;
+					start = -1;
+				}
+			}
+			mask.setSpans(row, numValues == 0 ? null : Arrays.copyOf(spans, numValues));
+		}
+		// the data gets repeated in the missing dimensions
+		for (int row=origRows; row<mask.numRows(); ++row)
+			mask.setSpans(row, mask.getSpans(row % origRows));
+
 		return mask;
 	}
 }
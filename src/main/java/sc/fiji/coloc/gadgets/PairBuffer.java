@@ -0,0 +1,335 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.gadgets;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import net.imglib2.DoublePairIterator;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * A buffer holding the values of pixel pairs, e.g. all masked pixels of
+ * two channels. The values of both channels are kept in separate
+ * primitive arrays, either with float or double precision. Optionally,
+ * the values are stored outside of the Java heap.
+ *
+ * Algorithms that need to sort or rank the pixel values can share a
+ * single buffer instead of walking over the images and copying the
+ * values on their own.
+ */
+public abstract class PairBuffer {
+
+	/**
+	 * The precision the values are stored with. AUTO uses float precision
+	 * if all values of the pixel type can be represented exactly as
+	 * floats, double precision otherwise.
+	 */
+	public enum Precision {
+		AUTO, FLOAT, DOUBLE
+	}
+
+	// the number of pairs in the buffer
+	protected int size = 0;
+
+	/**
+	 * Gets the number of pairs in the buffer.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the value of the first channel of a pair.
+	 */
+	public abstract double first(int i);
+
+	/**
+	 * Gets the value of the second channel of a pair.
+	 */
+	public abstract double second(int i);
+
+	/**
+	 * Gets the number of pairs that fit into the buffer.
+	 */
+	public abstract int capacity();
+
+	/**
+	 * Gets whether the values are stored with float precision.
+	 */
+	public abstract boolean isFloat();
+
+	protected abstract void set(int i, double ch1, double ch2);
+
+	protected abstract void resize(int capacity);
+
+	/**
+	 * Appends a pair to the buffer, growing it if needed.
+	 */
+	public void add(double ch1, double ch2) {
+		if (size == capacity())
+			resize((int) Math.min(Integer.MAX_VALUE - 8,
+					Math.max(16, 2L * size)));
+		set(size++, ch1, ch2);
+	}
+
+	/**
+	 * Creates an empty buffer.
+	 *
+	 * @param capacity The number of pairs to reserve memory for
+	 * @param useFloats Whether to store the values with float precision
+	 * @param offHeap Whether to store the values outside of the Java heap
+	 * @return The new buffer
+	 */
+	public static PairBuffer create(int capacity, boolean useFloats, boolean offHeap) {
+		if (offHeap)
+			return useFloats ? new DirectFloats(capacity) : new DirectDoubles(capacity);
+		return useFloats ? new Floats(capacity) : new Doubles(capacity);
+	}
+
+	/**
+	 * Creates a buffer of double precision on the heap and adds all the
+	 * pairs of an iterator to it.
+	 *
+	 * @param iterator The iterator of the pairs
+	 * @return The new buffer
+	 */
+	public static PairBuffer create(DoublePairIterator iterator) {
+		return fill(create(16, false, false), iterator);
+	}
+
+	/**
+	 * Adds all the pairs of an iterator to a buffer.
+	 *
+	 * @return The passed buffer
+	 */
+	public static PairBuffer fill(PairBuffer buffer, DoublePairIterator iterator) {
+		while (iterator.hasNext()) {
+			iterator.nextPair();
+			buffer.add(iterator.first(), iterator.second());
+		}
+		return buffer;
+	}
+
+	/**
+	 * Tests whether all values of a pixel type can be stored exactly with
+	 * float precision. This is the case for floats and for integer types
+	 * of up to 24 bits.
+	 */
+	public static <T extends RealType<T>> boolean isExactAsFloat(T type) {
+		if (type instanceof FloatType)
+			return true;
+		return type instanceof IntegerType && type.getBitsPerPixel() <= 24;
+	}
+
+	private static class Doubles extends PairBuffer {
+		double[] values1, values2;
+
+		Doubles(int capacity) {
+			values1 = new double[capacity];
+			values2 = new double[capacity];
+		}
+
+		@Override
+		public double first(int i) {
+			return values1[i];
+		}
+
+		@Override
+		public double second(int i) {
+			return values2[i];
+		}
+
+		@Override
+		public int capacity() {
+			return values1.length;
+		}
+
+		@Override
+		public boolean isFloat() {
+			return false;
+		}
+
+		@Override
+		protected void set(int i, double ch1, double ch2) {
+			values1[i] = ch1;
+			values2[i] = ch2;
+		}
+
+		@Override
+		protected void resize(int capacity) {
+			values1 = Arrays.copyOf(values1, capacity);
+			values2 = Arrays.copyOf(values2, capacity);
+		}
+	}
+
+	private static class Floats extends PairBuffer {
+		float[] values1, values2;
+
+		Floats(int capacity) {
+			values1 = new float[capacity];
+			values2 = new float[capacity];
+		}
+
+		@Override
+		public double first(int i) {
+			return values1[i];
+		}
+
+		@Override
+		public double second(int i) {
+			return values2[i];
+		}
+
+		@Override
+		public int capacity() {
+			return values1.length;
+		}
+
+		@Override
+		public boolean isFloat() {
+			return true;
+		}
+
+		@Override
+		protected void set(int i, double ch1, double ch2) {
+			values1[i] = (float) ch1;
+			values2[i] = (float) ch2;
+		}
+
+		@Override
+		protected void resize(int capacity) {
+			values1 = Arrays.copyOf(values1, capacity);
+			values2 = Arrays.copyOf(values2, capacity);
+		}
+	}
+
+	/**
+	 * Allocates a buffer outside of the Java heap. Its memory is freed
+	 * once the buffer is garbage collected.
+	 */
+	protected static ByteBuffer allocateDirect(int capacity, int bytesPerValue) {
+		if ((long) capacity * bytesPerValue > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many pixel pairs for an off-heap buffer: " + capacity);
+		return ByteBuffer.allocateDirect(capacity * bytesPerValue)
+				.order(ByteOrder.nativeOrder());
+	}
+
+	private static class DirectDoubles extends PairBuffer {
+		DoubleBuffer values1, values2;
+
+		DirectDoubles(int capacity) {
+			values1 = allocateDirect(capacity, 8).asDoubleBuffer();
+			values2 = allocateDirect(capacity, 8).asDoubleBuffer();
+		}
+
+		@Override
+		public double first(int i) {
+			return values1.get(i);
+		}
+
+		@Override
+		public double second(int i) {
+			return values2.get(i);
+		}
+
+		@Override
+		public int capacity() {
+			return values1.capacity();
+		}
+
+		@Override
+		public boolean isFloat() {
+			return false;
+		}
+
+		@Override
+		protected void set(int i, double ch1, double ch2) {
+			values1.put(i, ch1);
+			values2.put(i, ch2);
+		}
+
+		@Override
+		protected void resize(int capacity) {
+			DoubleBuffer new1 = allocateDirect(capacity, 8).asDoubleBuffer();
+			DoubleBuffer new2 = allocateDirect(capacity, 8).asDoubleBuffer();
+			values1.position(0).limit(size);
+			values2.position(0).limit(size);
+			new1.put(values1);
+			new2.put(values2);
+			values1 = new1;
+			values2 = new2;
+		}
+	}
+
+	private static class DirectFloats extends PairBuffer {
+		FloatBuffer values1, values2;
+
+		DirectFloats(int capacity) {
+			values1 = allocateDirect(capacity, 4).asFloatBuffer();
+			values2 = allocateDirect(capacity, 4).asFloatBuffer();
+		}
+
+		@Override
+		public double first(int i) {
+			return values1.get(i);
+		}
+
+		@Override
+		public double second(int i) {
+			return values2.get(i);
+		}
+
+		@Override
+		public int capacity() {
+			return values1.capacity();
+		}
+
+		@Override
+		public boolean isFloat() {
+			return true;
+		}
+
+		@Override
+		protected void set(int i, double ch1, double ch2) {
+			values1.put(i, (float) ch1);
+			values2.put(i, (float) ch2);
+		}
+
+		@Override
+		protected void resize(int capacity) {
+			FloatBuffer new1 = allocateDirect(capacity, 4).asFloatBuffer();
+			FloatBuffer new2 = allocateDirect(capacity, 4).asFloatBuffer();
+			values1.position(0).limit(size);
+			values2.position(0).limit(size);
+			new1.put(values1);
+			new2.put(values2);
+			values1 = new1;
+			values2 = new2;
+		}
+	}
+}
@@ -99,6 +99,26 @@ public class Statistics {
 		return phi( (z - mean) / sd);
 	}
 
+	/**
+	 * Calculates the inverse of phi, the point of the Gaussian standard
+	 * distribution in units of standard derivation below which the given
+	 * area lies. It is found by bisection on phi.
+	 *
+	 * @param p The area, between 0 and 1
+	 * @return The point with phi(z) = p
+	 */
+	public static double phiInverse(double p) {
+		double lo = -40.0, hi = 40.0;
+		for (int i = 0; i < 60; i++) {
+			final double mid = (lo + hi) / 2;
+			if (phi(mid) < p)
+				lo = mid;
+			else
+				hi = mid;
+		}
+		return (lo + hi) / 2;
+	}
+
 	/**
 	 * Calculates the standard deviation of a list of values.
 	 *
@@ -125,4 +145,77 @@ public class Statistics {
 
 		return stdDeviation;
 	}
+
+	/**
+	 * Calculates the cumulative binomial distribution, the probability
+	 * to get at most k successes in n trials with a success probability
+	 * of p. The terms are summed in log space, so large n don't
+	 * underflow.
+	 *
+	 * @param k The maximal number of successes
+	 * @param n The number of trials
+	 * @param p The success probability of a trial
+	 * @return The probability of at most k successes
+	 */
+	public static double binomialCdf(int k, int n, double p) {
+		if (k < 0)
+			return 0.0;
+		if (k >= n || p <= 0.0)
+			return 1.0;
+		if (p >= 1.0)
+			return 0.0;
+		// the log of the terms, from i = 0 to k
+		final double[] logTerms = new double[k + 1];
+		final double logRatio = Math.log(p) - Math.log1p(-p);
+		logTerms[0] = n * Math.log1p(-p);
+		double max = logTerms[0];
+		for (int i = 0; i < k; i++) {
+			logTerms[i + 1] = logTerms[i] + Math.log((double) (n - i) / (i + 1)) + logRatio;
+			max = Math.max(max, logTerms[i + 1]);
+		}
+		double sum = 0.0;
+		for (double logTerm : logTerms)
+			sum += Math.exp(logTerm - max);
+		return Math.min(1.0, Math.exp(max) * sum);
+	}
+
+	/**
+	 * Calculates the Clopper-Pearson confidence interval of a binomial
+	 * success probability, after k successes in n trials. The bounds are
+	 * found by bisection on the cumulative binomial distribution.
+	 *
+	 * @param k The number of successes
+	 * @param n The number of trials
+	 * @param confidence The confidence level, e.g. 0.99
+	 * @return The lower and the upper bound of the interval
+	 */
+	public static double[] clopperPearson(int k, int n, double confidence) {
+		final double tail = (1.0 - confidence) / 2;
+		double lower = 0.0, upper = 1.0;
+		if (k > 0) {
+			// P(X >= k | lower) = tail
+			double lo = 0.0, hi = 1.0;
+			for (int i = 0; i < 60; i++) {
+				final double mid = (lo + hi) / 2;
+				if (1.0 - binomialCdf(k - 1, n, mid) < tail)
+					lo = mid;
+				else
+					hi = mid;
+			}
+			lower = (lo + hi) / 2;
+		}
+		if (k < n) {
+			// P(X <= k | upper) = tail
+			double lo = 0.0, hi = 1.0;
+			for (int i = 0; i < 60; i++) {
+				final double mid = (lo + hi) / 2;
+				if (binomialCdf(k, n, mid) > tail)
+					lo = mid;
+				else
+					hi = mid;
+			}
+			upper = (lo + hi) / 2;
+		}
+		return new double[] { lower, upper };
+	}
 }
@@ -57,6 +57,9 @@ public class AnalysisResults<T extends RealType<T>> implements
 	/** Named values, collected from algorithms. */
 	private final List<ValueResult> valueResults = new ArrayList<>();
 
+	/** Tables of numbers, collected from algorithms. */
+	private final List<ResultTable> tables = new ArrayList<>();
+
 	/**
 	 * Images and corresponding LUTs. When an image is not in there no LUT should
 	 * be applied.
@@ -83,6 +86,10 @@ public class AnalysisResults<T extends RealType<T>> implements
 		return valueResults;
 	}
 
+	public List<ResultTable> tables() {
+		return tables;
+	}
+
 	// -- ResultHandler methods --
 
 	@Override
@@ -128,6 +135,11 @@ public class AnalysisResults<T extends RealType<T>> implements
 		valueResults.add(new ValueResult(name, value, decimals));
 	}
 
+	@Override
+	public void handleTable(final ResultTable table) {
+		tables.add(table);
+	}
+
 	@Override
 	public void process() {
 		// NB: No action needed.
@@ -36,6 +36,8 @@ import sc.fiji.coloc.gadgets.DataContainer;
 public class EasyDisplay<T extends RealType<T>> implements ResultHandler<T> {
 	// the text window to present value and text results
 	protected static TextWindow textWindow;
+	// the maximal number of rows of a table to show
+	protected static final int MAX_TABLE_ROWS = 100;
 	/* the data container with general information about the
 	 * source images that were processed by the algorithms.
 	 */
@@ -99,6 +101,26 @@ public class EasyDisplay<T extends RealType<T>> implements ResultHandler<T> {
 		handleValue(name, IJ.d2s(value, decimals));
 	}
 
+	@Override
+	public void handleTable(ResultTable table) {
+		// show every table in a text window of its own
+		StringBuilder headings = new StringBuilder();
+		for (int c = 0; c < table.getColumnCount(); ++c)
+			headings.append(c > 0 ? "\t" : "").append(table.getColumnName(c));
+		StringBuilder data = new StringBuilder();
+		final int rows = Math.min(table.getRowCount(), MAX_TABLE_ROWS);
+		for (int r = 0; r < rows; ++r) {
+			for (int c = 0; c < table.getColumnCount(); ++c)
+				data.append(c > 0 ? "\t" : "").append(
+						IJ.d2s(table.getValue(r, c), table.getDecimals(c)));
+			data.append("\n");
+		}
+		if (rows < table.getRowCount())
+			data.append(table.getRowCount() - rows).append(" more rows\n");
+		new TextWindow(table.getName(), headings.toString(), data.toString(),
+				400, 300);
+	}
+
 	protected void printTextStatistics(DataContainer<T> container){
 		textWindow.getTextPanel().appendLine("Ch1 Mean\t" + container.getMeanCh1() + "\n");
 		textWindow.getTextPanel().appendLine("Ch2 Mean\t" + container.getMeanCh2() + "\n");
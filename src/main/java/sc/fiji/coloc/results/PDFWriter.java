@@ -69,6 +69,8 @@ public class PDFWriter<T extends RealType<T>> implements ResultHandler<T> {
 	static int succeededPrints = 0;
 	// show the size in pixels of the image
 	static boolean showSize=true;
+	// the maximal number of rows of a table to print
+	static final int MAX_TABLE_ROWS = 100;
 	// a reference to the data container
 	DataContainer<T> container;
 	PdfWriter writer;
@@ -81,6 +83,9 @@ public class PDFWriter<T extends RealType<T>> implements ResultHandler<T> {
 		= new ArrayList<Paragraph>();
 	// a list of PDF warnings
 	protected List<Paragraph> PDFwarnings = new ArrayList<Paragraph>();
+	// a list of PDF tables along with their names
+	protected List<NamedContainer<PdfPTable>> listOfPDFTables
+		= new ArrayList<NamedContainer<PdfPTable>>();
 
 	/**
 	 * Creates a new PDFWriter that can access the container.
@@ -224,6 +229,28 @@ public class PDFWriter<T extends RealType<T>> implements ResultHandler<T> {
 		listOfPDFTexts.add(new Paragraph(name + ": " + IJ.d2s(value, decimals)));
 	}
 
+	@Override
+	public void handleTable(ResultTable table) {
+		PdfPTable pdfTable = new PdfPTable(table.getColumnCount());
+		pdfTable.setWidthPercentage(85);
+		pdfTable.setSpacingBefore(4f);
+		pdfTable.setHeaderRows(1);
+		for (int c = 0; c < table.getColumnCount(); ++c)
+			pdfTable.addCell(new Phrase(table.getColumnName(c)));
+		final int rows = Math.min(table.getRowCount(), MAX_TABLE_ROWS);
+		for (int r = 0; r < rows; ++r)
+			for (int c = 0; c < table.getColumnCount(); ++c)
+				pdfTable.addCell(new Phrase(IJ.d2s(table.getValue(r, c),
+						table.getDecimals(c))));
+		if (rows < table.getRowCount()) {
+			PdfPCell cell = new PdfPCell(new Phrase(
+					(table.getRowCount() - rows) + " more rows"));
+			cell.setColspan(table.getColumnCount());
+			pdfTable.addCell(cell);
+		}
+		listOfPDFTables.add(new NamedContainer<PdfPTable>(pdfTable, table.getName()));
+	}
+
 	/**
 	 * Prints an image into the opened PDF.
 	 * @param image The image to print.
@@ -362,6 +389,12 @@ public class PDFWriter<T extends RealType<T>> implements ResultHandler<T> {
 			for (Paragraph p : listOfPDFTexts) {
 				document.add(p);
 			}
+
+			//iterate over all produced tables
+			for (NamedContainer<PdfPTable> t : listOfPDFTables) {
+				document.add(new Paragraph(t.toString()));
+				document.add(t.getObject());
+			}
 		} catch(DocumentException de) {
 			IJ.showMessage("PDF Writer", de.getMessage());
 		} catch(IOException ioe) {
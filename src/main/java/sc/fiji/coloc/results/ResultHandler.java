@@ -47,6 +47,13 @@ public interface ResultHandler<T extends RealType<T>> {
 
 	void handleValue(String name, double value, int decimals);
 
+	/**
+	 * Handles a table of numbers, e.g. the trace of an iterative
+	 * search done by an algorithm. Ignores the table by default, so
+	 * existing handlers keep working.
+	 */
+	default void handleTable(ResultTable table) {}
+
 	/**
 	 * The process method should start the processing of the
 	 * previously collected results. E.g. it could show some
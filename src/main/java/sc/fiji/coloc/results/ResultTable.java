@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.results;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A named table of numbers, e.g. the trace of an iterative search.
+ * Every row has one value per column.
+ */
+public class ResultTable {
+	// the name of the table
+	protected final String name;
+	// the headings of the columns
+	protected final String[] columns;
+	// the number of decimal places to show, per column
+	protected final int[] decimals;
+	// the rows added so far
+	protected final List<double[]> rows = new ArrayList<double[]>();
+
+	/**
+	 * Creates an empty table whose values are shown with three decimal
+	 * places.
+	 */
+	public ResultTable(String name, String... columns) {
+		this.name = name;
+		this.columns = columns.clone();
+		this.decimals = new int[columns.length];
+		Arrays.fill(decimals, 3);
+	}
+
+	/**
+	 * Sets the number of decimal places to show for a column.
+	 */
+	public void setDecimals(int column, int decimals) {
+		this.decimals[column] = decimals;
+	}
+
+	/**
+	 * Adds a row, which needs one value per column.
+	 */
+	public void addRow(double... values) {
+		if (values.length != columns.length)
+			throw new IllegalArgumentException("Expected " + columns.length
+					+ " values, but got " + values.length + ".");
+		rows.add(values.clone());
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getColumnCount() {
+		return columns.length;
+	}
+
+	public String getColumnName(int column) {
+		return columns[column];
+	}
+
+	public int getDecimals(int column) {
+		return decimals[column];
+	}
+
+	public int getRowCount() {
+		return rows.size();
+	}
+
+	public double getValue(int row, int column) {
+		return rows.get(row)[column];
+	}
+
+	/**
+	 * Gets the values of a column, one per row.
+	 */
+	public double[] getColumn(int column) {
+		final double[] values = new double[rows.size()];
+		for (int i = 0; i < values.length; ++i)
+			values[i] = rows.get(i)[column];
+		return values;
+	}
+}
@@ -87,6 +87,8 @@ public class SingleWindowDisplay<T extends RealType<T>> extends JFrame
 	private static final long serialVersionUID = -5642321584354176878L;
 	protected static final int WIN_WIDTH = 350;
 	protected static final int WIN_HEIGHT = 600;
+	// the maximal number of rows of a table to show
+	protected static final int MAX_TABLE_ROWS = 100;
 
 	// indicates if original images should be displayed or not
 	public boolean displayOriginalImages = false;
@@ -101,6 +103,8 @@ public class SingleWindowDisplay<T extends RealType<T>> extends JFrame
 	protected List<Warning> warnings = new ArrayList<Warning>();
 	// a list of named values, collected from algorithms
 	protected List<ValueResult> valueResults = new ArrayList<ValueResult>();
+	// a list of tables, collected from algorithms
+	protected List<ResultTable> tables = new ArrayList<ResultTable>();
 
 	/*
 	 * a map of images and corresponding LUTs. When an image is not in there no
@@ -305,6 +309,11 @@ public class SingleWindowDisplay<T extends RealType<T>> extends JFrame
 		valueResults.add(new ValueResult(name, value, decimals));
 	}
 
+	@Override
+	public void handleTable(ResultTable table) {
+		tables.add(table);
+	}
+
 	/**
 	 * Prints an HTML table entry onto the stream.
 	 */
@@ -404,6 +413,26 @@ public class SingleWindowDisplay<T extends RealType<T>> extends JFrame
 		}
 
 		out.println("</TABLE>");
+
+		// print out the tables below the simple results
+		for (ResultTable table : tables) {
+			out.print("<H1 class=\"results\">" + table.getName() + "</H1>");
+			out.print("<TABLE class=\"results\"><TR>");
+			for (int c = 0; c < table.getColumnCount(); ++c)
+				out.print("<TH>" + table.getColumnName(c) + "</TH>");
+			out.print("</TR>");
+			final int rows = Math.min(table.getRowCount(), MAX_TABLE_ROWS);
+			for (int r = 0; r < rows; ++r) {
+				out.print("<TR>");
+				for (int c = 0; c < table.getColumnCount(); ++c)
+					out.print("<TD>" + IJ.d2s(table.getValue(r, c), table.getDecimals(c)) + "</TD>");
+				out.print("</TR>");
+			}
+			if (rows < table.getRowCount())
+				out.print("<TR><TD colspan=\"" + table.getColumnCount() + "\">"
+						+ (table.getRowCount() - rows) + " more rows</TD></TR>");
+			out.println("</TABLE>");
+		}
 		out.print("</html>");
 		out.close();
 
@@ -0,0 +1,190 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+import org.junit.Test;
+
+import sc.fiji.coloc.algorithms.Algorithm;
+import sc.fiji.coloc.algorithms.AlgorithmScheduler;
+import sc.fiji.coloc.algorithms.MissingPreconditionException;
+import sc.fiji.coloc.gadgets.DataContainer;
+
+/**
+ * This class contains JUnit 4 test cases for running algorithms
+ * concurrently with respect to their prerequisites.
+ */
+public class AlgorithmSchedulerTest extends ColocalisationTest {
+
+	// the names of the algorithms in the order they finished
+	final List<String> finished = Collections.synchronizedList(new ArrayList<String>());
+
+	/**
+	 * Checks that algorithms only run after their prerequisites, on an
+	 * executor as well as sequentially, and that exceptions get
+	 * reported for the right algorithm.
+	 */
+	@Test
+	public void prerequisitesTest() {
+		DataContainer<UnsignedByteType> container =
+				new DataContainer<UnsignedByteType>(zeroCorrelationImageCh1,
+						zeroCorrelationImageCh2, 1, 1, "Channel 1", "Channel 2");
+		TestAlgorithm a = new TestAlgorithm("a", 50, false);
+		TestAlgorithm b = new TestAlgorithm("b", 0, true, a);
+		TestAlgorithm c = new TestAlgorithm("c", 0, false, b);
+		TestAlgorithm d = new TestAlgorithm("d", 0, false);
+		// the prerequisites come after their dependents in this list
+		List<Algorithm<UnsignedByteType>> jobs = new ArrayList<Algorithm<UnsignedByteType>>();
+		jobs.add(c);
+		jobs.add(b);
+		jobs.add(d);
+		jobs.add(a);
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			for (ExecutorService e : new ExecutorService[] { executor, null }) {
+				finished.clear();
+				List<MissingPreconditionException> errors =
+						new AlgorithmScheduler<UnsignedByteType>(e).run(jobs, container);
+				assertEquals(4, finished.size());
+				assertTrue(finished.indexOf("a") < finished.indexOf("b"));
+				assertTrue(finished.indexOf("b") < finished.indexOf("c"));
+				// d does not wait for the slow a
+				assertTrue(finished.indexOf("d") < finished.indexOf("a"));
+				assertNull(errors.get(0));
+				assertEquals("b failed", errors.get(1).getMessage());
+				assertNull(errors.get(2));
+				assertNull(errors.get(3));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Checks that running the algorithms from a worker of the fork/join
+	 * pool they run on doesn't deadlock, for the common pool as well as
+	 * for a pool with a single worker, like the common pool of a machine
+	 * with one or two cores.
+	 */
+	@Test
+	public void forkJoinWorkerTest() throws Exception {
+		final DataContainer<UnsignedByteType> container =
+				new DataContainer<UnsignedByteType>(zeroCorrelationImageCh1,
+						zeroCorrelationImageCh2, 1, 1, "Channel 1", "Channel 2");
+		TestAlgorithm a = new TestAlgorithm("a", 20, false);
+		TestAlgorithm b = new TestAlgorithm("b", 0, false, a);
+		TestAlgorithm c = new TestAlgorithm("c", 0, false);
+		final List<Algorithm<UnsignedByteType>> jobs = new ArrayList<Algorithm<UnsignedByteType>>();
+		jobs.add(a);
+		jobs.add(b);
+		jobs.add(c);
+
+		ForkJoinPool single = new ForkJoinPool(1);
+		try {
+			for (final ForkJoinPool pool : new ForkJoinPool[] { ForkJoinPool.commonPool(), single }) {
+				finished.clear();
+				List<MissingPreconditionException> errors = pool.submit(
+						new Callable<List<MissingPreconditionException>>() {
+							@Override
+							public List<MissingPreconditionException> call() {
+								return new AlgorithmScheduler<UnsignedByteType>(pool).run(jobs, container);
+							}
+						}).get(30, TimeUnit.SECONDS);
+				assertEquals(3, finished.size());
+				assertTrue(finished.indexOf("a") < finished.indexOf("b"));
+				for (MissingPreconditionException e : errors)
+					assertNull(e);
+			}
+		} finally {
+			single.shutdown();
+		}
+	}
+
+	/**
+	 * Checks that cyclic prerequisites are refused.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void cyclicPrerequisitesTest() {
+		DataContainer<UnsignedByteType> container =
+				new DataContainer<UnsignedByteType>(zeroCorrelationImageCh1,
+						zeroCorrelationImageCh2, 1, 1, "Channel 1", "Channel 2");
+		TestAlgorithm a = new TestAlgorithm("a", 0, false);
+		TestAlgorithm b = new TestAlgorithm("b", 0, false, a);
+		a.prerequisites.add(b);
+		List<Algorithm<UnsignedByteType>> jobs = new ArrayList<Algorithm<UnsignedByteType>>();
+		jobs.add(a);
+		jobs.add(b);
+		new AlgorithmScheduler<UnsignedByteType>(null).run(jobs, container);
+	}
+
+	/**
+	 * An algorithm that waits for a while and records when it finished.
+	 */
+	class TestAlgorithm extends Algorithm<UnsignedByteType> {
+		final List<Algorithm<UnsignedByteType>> prerequisites =
+				new ArrayList<Algorithm<UnsignedByteType>>();
+		final long sleep;
+		final boolean fail;
+
+		TestAlgorithm(String name, long sleep, boolean fail,
+				Algorithm<UnsignedByteType>... prerequisites) {
+			super(name);
+			this.sleep = sleep;
+			this.fail = fail;
+			Collections.addAll(this.prerequisites, prerequisites);
+		}
+
+		@Override
+		public List<Algorithm<UnsignedByteType>> getPrerequisites(
+				DataContainer<UnsignedByteType> container) {
+			return prerequisites;
+		}
+
+		@Override
+		public void execute(DataContainer<UnsignedByteType> container)
+				throws MissingPreconditionException {
+			try {
+				Thread.sleep(sleep);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finished.add(getName());
+			if (fail)
+				throw new MissingPreconditionException(getName() + " failed");
+		}
+	}
+}
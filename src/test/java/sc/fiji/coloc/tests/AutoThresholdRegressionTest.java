@@ -22,17 +22,43 @@
 package sc.fiji.coloc.tests;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.DoublePairIterator;
+import net.imglib2.PairIterators;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
 
 import org.junit.Test;
 
+import sc.fiji.coloc.algorithms.Accumulator;
 import sc.fiji.coloc.algorithms.AutoThresholdRegression;
 import sc.fiji.coloc.algorithms.AutoThresholdRegression.Implementation;
+import sc.fiji.coloc.algorithms.BisectionStepper;
+import sc.fiji.coloc.algorithms.IllinoisStepper;
+import sc.fiji.coloc.algorithms.JointHistogram;
 import sc.fiji.coloc.algorithms.MissingPreconditionException;
+import sc.fiji.coloc.algorithms.PairHistogram;
 import sc.fiji.coloc.algorithms.PearsonsCorrelation;
+import sc.fiji.coloc.algorithms.QuantileHistogram;
+import sc.fiji.coloc.algorithms.Stepper;
 import sc.fiji.coloc.gadgets.DataContainer;
+import sc.fiji.coloc.gadgets.PairBuffer;
+import sc.fiji.coloc.gadgets.ThresholdMode;
+import sc.fiji.coloc.results.AnalysisResults;
+import sc.fiji.coloc.results.ResultTable;
 
 
 public class AutoThresholdRegressionTest extends ColocalisationTest {
@@ -56,6 +82,7 @@ public class AutoThresholdRegressionTest extends ColocalisationTest {
 	public void cummutativityTest() throws MissingPreconditionException {
 		_cummutativityTest(Implementation.Costes);
 		_cummutativityTest(Implementation.Bisection);
+		_cummutativityTest(Implementation.Illinois);
 	}
 
 	protected void _cummutativityTest(Implementation atrImplementation)
@@ -91,4 +118,444 @@ public class AutoThresholdRegressionTest extends ColocalisationTest {
 		assertEquals(atr1.getCh2MinThreshold(), atr2.getCh1MinThreshold());
 		assertEquals(atr1.getCh2MaxThreshold(), atr2.getCh1MaxThreshold());
 	}
+
+	/**
+	 * Checks that Pearson's values calculated from the joint histogram
+	 * match the ones calculated on the pixels, for 8-bit images counted
+	 * in a dense array as well as for 16-bit images whose pairs get
+	 * sorted.
+	 */
+	@Test
+	public void jointHistogramTest() throws MissingPreconditionException {
+		Img<UnsignedShortType> img1 = ArrayImgs.unsignedShorts(200, 150);
+		Img<UnsignedShortType> img2 = ArrayImgs.unsignedShorts(200, 150);
+		Random random = new Random(42);
+		Cursor<UnsignedShortType> c1 = img1.cursor(), c2 = img2.cursor();
+		while (c1.hasNext()) {
+			int value = random.nextInt(60000);
+			c1.next().set(value);
+			c2.next().set(Math.min(65535, value / 2 + random.nextInt(5000)));
+		}
+
+		for (PearsonsCorrelation.Implementation impl : PearsonsCorrelation.Implementation.values()) {
+			assertSamePearsons(new DataContainer<UnsignedByteType>(
+					positiveCorrelationImageCh1, positiveCorrelationImageCh2,
+					1, 1, "Channel 1", "Channel 2"), impl, 40, 20, 80);
+			assertSamePearsons(new DataContainer<UnsignedShortType>(img1, img2,
+					1, 1, "Channel 1", "Channel 2"), impl, 5000, 20000, 50000);
+		}
+	}
+
+	/**
+	 * Checks that the moments of a range of a joint histogram row keep
+	 * full precision when they are taken from its prefix sums, even for
+	 * a row of many large and heavily counted values.
+	 */
+	@Test
+	public void jointHistogramRowPrecisionTest() {
+		final int n = 200000, threshold = 190000;
+		final long count = 1000000007L;
+		final int[] values2 = new int[n];
+		final long[] counts = new long[n];
+		for (int i = 0; i < n; i++) {
+			values2[i] = i;
+			counts[i] = count;
+		}
+		// a single row, with too many values for summed-area tables
+		JointHistogram histogram = new JointHistogram(0, 0, 0, n - 1,
+				new int[] { 0 }, new int[] { 0, n }, values2, counts, false, 0, 0) {};
+
+		BigInteger expected = BigInteger.ZERO;
+		for (long v = threshold + 1; v < n; v++)
+			expected = expected.add(BigInteger.valueOf(v * v));
+		double expectedYY = new BigDecimal(expected.multiply(BigInteger.valueOf(count)))
+				.doubleValue();
+		Accumulator<UnsignedShortType> acc = histogram.accumulate(0, threshold,
+				ThresholdMode.Above);
+		assertEquals(expectedYY, acc.getYY(), expectedYY * 1e-15);
+	}
+
+	protected <T extends RealType<T>> void assertSamePearsons(DataContainer<T> container,
+			PearsonsCorrelation.Implementation impl, double... thresholds)
+			throws MissingPreconditionException {
+		PearsonsCorrelation<T> pc = new PearsonsCorrelation<T>(impl);
+		PairHistogram histogram = pc.createHistogram(container);
+		DoublePairIterator iterator = PairIterators.doubles(container.getSourceImage1(),
+				container.getSourceImage2(), container.getMask());
+		for (ThresholdMode mode : new ThresholdMode[] { ThresholdMode.None,
+				ThresholdMode.Below, ThresholdMode.Above }) {
+			for (double t : thresholds) {
+				iterator.reset();
+				double expected = pc.calculatePearsons(iterator, container.getMeanCh1(),
+						container.getMeanCh2(), t, t * 0.7, mode);
+				assertEquals(expected, pc.calculatePearsons(histogram, t, t * 0.7, mode), 1e-9);
+			}
+		}
+	}
+
+	/**
+	 * Checks that Pearson's values calculated from the quantile binned
+	 * histogram of floating point images match the ones calculated on
+	 * the pixels, for thresholds inside of bins and on their edges.
+	 */
+	@Test
+	public void quantileHistogramTest() throws MissingPreconditionException {
+		DataContainer<FloatType> container = createFloatContainer();
+		PairHistogram histogram = new PearsonsCorrelation<FloatType>()
+				.createHistogram(container);
+		assertTrue(histogram instanceof QuantileHistogram);
+
+		for (PearsonsCorrelation.Implementation impl : PearsonsCorrelation.Implementation.values()) {
+			// 100 is a quarter of the values of channel one, so it is a bin edge
+			assertSamePearsons(container, impl, 17.25, 100, 400, 1234.5, 1900,
+					container.getMeanCh1());
+		}
+	}
+
+	/**
+	 * Checks that pairs with NaN values are counted by the quantile
+	 * binned histogram like by a walk over all pixels: for None, and for
+	 * Below and Above only if the other value passes the test.
+	 */
+	@Test
+	public void quantileHistogramNaNTest() {
+		Random random = new Random(11);
+		PairBuffer pairs = PairBuffer.create(2000, false, false);
+		for (int i = 0; i < 2000; i++) {
+			double value1 = random.nextInt(10) == 0 ? Double.NaN : random.nextDouble() * 1000;
+			double value2 = random.nextInt(10) == 0 ? Double.NaN : random.nextDouble() * 1000;
+			pairs.add(value1, value2);
+		}
+		QuantileHistogram histogram = QuantileHistogram.create(pairs, 16, false, 0, 0);
+
+		for (ThresholdMode mode : new ThresholdMode[] { ThresholdMode.None,
+				ThresholdMode.Below, ThresholdMode.Above }) {
+			for (double t : new double[] { 0, 123.4, 500, 999 }) {
+				Accumulator<FloatType> expected = walk(pairs, t, t * 0.8, mode);
+				Accumulator<FloatType> actual = histogram.accumulate(t, t * 0.8, mode);
+				assertEquals(expected.getCount(), actual.getCount());
+				assertEquals(expected.getX(), actual.getX(), 1e-6);
+				assertEquals(expected.getXY(), actual.getXY(), 1e-3);
+			}
+		}
+	}
+
+	/**
+	 * Sums up the pairs that pass a threshold test, like a walk over all
+	 * pixels.
+	 */
+	protected Accumulator<FloatType> walk(PairBuffer pairs, final double t1,
+			final double t2, final ThresholdMode mode) {
+		Accumulator<FloatType> acc = new Accumulator<FloatType>(false, 0.0, 0.0) {
+			@Override
+			public boolean accept(double value1, double value2) {
+				if (mode == ThresholdMode.Below)
+					return value1 < t1 || value2 < t2;
+				if (mode == ThresholdMode.Above)
+					return value1 > t1 || value2 > t2;
+				return true;
+			}
+		};
+		for (int i = 0; i < pairs.size(); i++)
+			if (acc.accept(pairs.first(i), pairs.second(i)))
+				acc.accumulate(pairs.first(i), pairs.second(i));
+		return acc;
+	}
+
+	/**
+	 * Creates a container of two correlated floating point images with
+	 * a lot of repeated values.
+	 */
+	protected DataContainer<FloatType> createFloatContainer() {
+		Img<FloatType> img1 = ArrayImgs.floats(160, 120);
+		Img<FloatType> img2 = ArrayImgs.floats(160, 120);
+		Random random = new Random(3);
+		Cursor<FloatType> c1 = img1.cursor(), c2 = img2.cursor();
+		while (c1.hasNext()) {
+			float value = random.nextInt(4) == 0 ? 100 : random.nextFloat() * 2000;
+			c1.next().set(value);
+			c2.next().set(value * 0.6f + random.nextFloat() * 500);
+		}
+		return new DataContainer<FloatType>(img1, img2, 1, 1,
+				"Channel 1", "Channel 2");
+	}
+
+	/**
+	 * Checks that the thresholds found on the quantile binned histogram
+	 * of floating point images are the same as the ones found on the
+	 * pixels.
+	 */
+	@Test
+	public void quantileHistogramThresholdsTest() throws MissingPreconditionException {
+		DataContainer<FloatType> container = createFloatContainer();
+		for (Implementation impl : Implementation.values()) {
+			AutoThresholdRegression<FloatType> histogramAtr =
+					new AutoThresholdRegression<FloatType>(
+							new PearsonsCorrelation<FloatType>(), impl);
+			AutoThresholdRegression<FloatType> pixelAtr =
+					new AutoThresholdRegression<FloatType>(
+							new PearsonsCorrelation<FloatType>(), impl);
+			pixelAtr.setUseJointHistogram(false);
+			histogramAtr.execute(container);
+			pixelAtr.execute(container);
+
+			assertEquals(pixelAtr.getCh1MaxThreshold(), histogramAtr.getCh1MaxThreshold());
+			assertEquals(pixelAtr.getCh2MaxThreshold(), histogramAtr.getCh2MaxThreshold());
+		}
+	}
+
+	/**
+	 * Checks that the thresholds found on the joint histogram are the
+	 * same as the ones found on the pixels.
+	 */
+	@Test
+	public void jointHistogramThresholdsTest() throws MissingPreconditionException {
+		for (Implementation impl : new Implementation[] { Implementation.Costes,
+				Implementation.Bisection }) {
+			DataContainer<UnsignedByteType> container =
+					new DataContainer<UnsignedByteType>(positiveCorrelationImageCh1,
+							positiveCorrelationImageCh2, 1, 1, "Channel 1", "Channel 2");
+			AutoThresholdRegression<UnsignedByteType> histogramAtr =
+					new AutoThresholdRegression<UnsignedByteType>(
+							new PearsonsCorrelation<UnsignedByteType>(), impl);
+			AutoThresholdRegression<UnsignedByteType> pixelAtr =
+					new AutoThresholdRegression<UnsignedByteType>(
+							new PearsonsCorrelation<UnsignedByteType>(), impl);
+			pixelAtr.setUseJointHistogram(false);
+			histogramAtr.execute(container);
+			pixelAtr.execute(container);
+
+			assertEquals(pixelAtr.getCh1MaxThreshold(), histogramAtr.getCh1MaxThreshold());
+			assertEquals(pixelAtr.getCh2MaxThreshold(), histogramAtr.getCh2MaxThreshold());
+		}
+	}
+
+	/**
+	 * Checks that the sums collected for a series of thresholds at once
+	 * match the ones collected for every threshold pair on its own, with
+	 * and without summed-area tables.
+	 */
+	@Test
+	public void accumulateBelowTest() throws MissingPreconditionException {
+		Img<UnsignedShortType> img1 = ArrayImgs.unsignedShorts(120, 100);
+		Img<UnsignedShortType> img2 = ArrayImgs.unsignedShorts(120, 100);
+		Random random = new Random(7);
+		Cursor<UnsignedShortType> c1 = img1.cursor(), c2 = img2.cursor();
+		while (c1.hasNext()) {
+			int value = random.nextInt(3000);
+			c1.next().set(value);
+			c2.next().set(3000 - value / 2 + random.nextInt(500));
+		}
+
+		DataContainer<UnsignedByteType> container8 =
+				new DataContainer<UnsignedByteType>(positiveCorrelationImageCh1,
+						positiveCorrelationImageCh2, 1, 1, "Channel 1", "Channel 2");
+		DataContainer<UnsignedShortType> container16 =
+				new DataContainer<UnsignedShortType>(img1, img2, 1, 1,
+						"Channel 1", "Channel 2");
+		JointHistogram histogram8 = new PearsonsCorrelation<UnsignedByteType>()
+				.createJointHistogram(container8);
+		JointHistogram histogram16 = new PearsonsCorrelation<UnsignedShortType>()
+				.createJointHistogram(container16);
+		assertTrue(histogram8.hasTables());
+		assertFalse(histogram16.hasTables());
+
+		// thresholds falling on channel one and rising on channel two
+		double[] thresholdsCh1 = new double[300];
+		double[] thresholdsCh2 = new double[300];
+		for (int i = 0; i < thresholdsCh1.length; ++i) {
+			thresholdsCh1[i] = thresholdsCh1.length - i;
+			thresholdsCh2[i] = 3 * i + 0.5;
+		}
+		assertSameSums(histogram8, thresholdsCh1, thresholdsCh2);
+		assertSameSums(histogram16, thresholdsCh1, thresholdsCh2);
+		for (int i = 0; i < thresholdsCh1.length; ++i)
+			thresholdsCh1[i] = 10 * i;
+		assertSameSums(histogram16, thresholdsCh1, thresholdsCh2);
+	}
+
+	/**
+	 * Checks that the sums of the few pairs below low thresholds keep
+	 * full precision when they are collected for a series of thresholds
+	 * at once, for 16-bit images of large values.
+	 */
+	@Test
+	public void accumulateBelowPrecisionTest() throws MissingPreconditionException {
+		Img<UnsignedShortType> img1 = ArrayImgs.unsignedShorts(300, 300);
+		Img<UnsignedShortType> img2 = ArrayImgs.unsignedShorts(300, 300);
+		Random random = new Random(13);
+		Cursor<UnsignedShortType> c1 = img1.cursor(), c2 = img2.cursor();
+		while (c1.hasNext()) {
+			int value = 50000 + random.nextInt(15000);
+			c1.next().set(value);
+			c2.next().set(Math.min(65535, value + random.nextInt(500)));
+		}
+		JointHistogram histogram = new PearsonsCorrelation<UnsignedShortType>()
+				.createJointHistogram(new DataContainer<UnsignedShortType>(img1, img2,
+						1, 1, "Channel 1", "Channel 2"));
+		assertFalse(histogram.hasTables());
+
+		double[] thresholdsCh1 = new double[300];
+		double[] thresholdsCh2 = new double[300];
+		for (int i = 0; i < thresholdsCh1.length; ++i) {
+			thresholdsCh1[i] = 50000 + i;
+			thresholdsCh2[i] = 50000 + 2 * i;
+		}
+		List<Accumulator<UnsignedShortType>> accs =
+				histogram.accumulateBelow(thresholdsCh1, thresholdsCh2);
+		for (int i = 0; i < thresholdsCh1.length; ++i) {
+			Accumulator<UnsignedShortType> expected = histogram.accumulate(
+					thresholdsCh1[i], thresholdsCh2[i], ThresholdMode.Below);
+			Accumulator<UnsignedShortType> acc = accs.get(i);
+			assertEquals(expected.getCount(), acc.getCount());
+			assertEquals(expected.getX(), acc.getX(), 1e-13 * Math.abs(expected.getX()) + 1e-6);
+			assertEquals(expected.getXX(), acc.getXX(), 1e-13 * Math.abs(expected.getXX()) + 1e-6);
+			assertEquals(expected.getXY(), acc.getXY(), 1e-13 * Math.abs(expected.getXY()) + 1e-6);
+			assertEquals(expected.getYY(), acc.getYY(), 1e-13 * Math.abs(expected.getYY()) + 1e-6);
+		}
+	}
+
+	protected <T extends RealType<T>> void assertSameSums(JointHistogram histogram,
+			double[] thresholdsCh1, double[] thresholdsCh2) {
+		List<Accumulator<T>> accs =
+				histogram.accumulateBelow(thresholdsCh1, thresholdsCh2);
+		for (int i = 0; i < thresholdsCh1.length; ++i) {
+			Accumulator<T> expected = histogram.accumulate(thresholdsCh1[i],
+					thresholdsCh2[i], ThresholdMode.Below);
+			Accumulator<T> acc = accs.get(i);
+			assertEquals(expected.getCount(), acc.getCount());
+			assertEquals(expected.getX(), acc.getX(), 1e-6 * Math.abs(expected.getX()) + 1e-6);
+			assertEquals(expected.getY(), acc.getY(), 1e-6 * Math.abs(expected.getY()) + 1e-6);
+			assertEquals(expected.getXY(), acc.getXY(), 1e-6 * Math.abs(expected.getXY()) + 1e-6);
+		}
+	}
+
+	/**
+	 * Checks that the exhaustive search finds thresholds where Pearson's
+	 * R below them drops below zero, and that none of the higher ones
+	 * does.
+	 */
+	@Test
+	public void exhaustiveTest() throws MissingPreconditionException {
+		DataContainer<UnsignedByteType> container =
+				new DataContainer<UnsignedByteType>(positiveCorrelationImageCh1,
+						positiveCorrelationImageCh2, 1, 1, "Channel 1", "Channel 2");
+		PearsonsCorrelation<UnsignedByteType> pc =
+				new PearsonsCorrelation<UnsignedByteType>();
+		AutoThresholdRegression<UnsignedByteType> atr =
+				new AutoThresholdRegression<UnsignedByteType>(pc,
+						Implementation.Exhaustive);
+		atr.execute(container);
+
+		double thr1 = atr.getCh1MaxThreshold().getRealDouble();
+		double thr2 = atr.getCh2MaxThreshold().getRealDouble();
+		DoublePairIterator iterator = PairIterators.doubles(container.getSourceImage1(),
+				container.getSourceImage2(), container.getMask());
+		assertTrue(pc.calculatePearsons(iterator, container.getMeanCh1(),
+				container.getMeanCh2(), thr1, thr2, ThresholdMode.Below) < 0.0001);
+
+		// the Costes walk can't end above the exhaustive search
+		AutoThresholdRegression<UnsignedByteType> costes =
+				new AutoThresholdRegression<UnsignedByteType>(pc,
+						Implementation.Costes);
+		costes.execute(container);
+		assertTrue(costes.getCh1MaxThreshold().getRealDouble() <= thr1);
+	}
+
+	/**
+	 * Checks that the trace of the threshold search ends with the
+	 * thresholds found, that the Pearson's values in it match the ones
+	 * calculated on the pixels and that it reaches the analysis results.
+	 */
+	@Test
+	public void searchTraceTest() throws MissingPreconditionException {
+		DataContainer<UnsignedByteType> container =
+				new DataContainer<UnsignedByteType>(positiveCorrelationImageCh1,
+						positiveCorrelationImageCh2, 1, 1, "Channel 1", "Channel 2");
+		for (boolean useHistogram : new boolean[] { true, false }) {
+			PearsonsCorrelation<UnsignedByteType> pc =
+					new PearsonsCorrelation<UnsignedByteType>();
+			AutoThresholdRegression<UnsignedByteType> atr =
+					new AutoThresholdRegression<UnsignedByteType>(pc,
+							Implementation.Bisection);
+			atr.setUseJointHistogram(useHistogram);
+			atr.execute(container);
+
+			ResultTable trace = atr.getSearchTrace();
+			int n = trace.getRowCount();
+			assertTrue(n > 1);
+			assertEquals(useHistogram ? 1 : n, atr.getSearchImagePasses());
+			assertEquals(atr.getCh1MaxThreshold().getRealDouble(),
+					trace.getValue(n - 1, 1), 0.0);
+			assertEquals(atr.getCh2MaxThreshold().getRealDouble(),
+					trace.getValue(n - 1, 2), 0.0);
+
+			DoublePairIterator iterator = PairIterators.doubles(container.getSourceImage1(),
+					container.getSourceImage2(), container.getMask());
+			for (int i = 0; i < n; ++i) {
+				assertEquals(i + 1, trace.getValue(i, 0), 0.0);
+				assertEquals(useHistogram ? 0 : 1, trace.getValue(i, 5), 0.0);
+				assertTrue(trace.getValue(i, 6) >= 0);
+				iterator.reset();
+				double r = pc.calculatePearsons(iterator, container.getMeanCh1(),
+						container.getMeanCh2(), trace.getValue(i, 1),
+						trace.getValue(i, 2), ThresholdMode.Below);
+				assertEquals(r, trace.getValue(i, 3), 1e-9);
+				assertTrue(trace.getValue(i, 4) <= container.getMaskedPixelCount());
+			}
+
+			AnalysisResults<UnsignedByteType> results =
+					new AnalysisResults<UnsignedByteType>();
+			atr.processResults(results);
+			assertEquals(1, results.tables().size());
+			assertTrue(results.tables().get(0) == trace);
+		}
+	}
+
+	/**
+	 * Compares the Illinois stepper to the bisection stepper on smooth
+	 * curves changing their sign at random thresholds, with values that
+	 * are not a number far below the change. Both have to end within two
+	 * of the change, and the Illinois stepper has to need fewer updates
+	 * altogether.
+	 */
+	@Test
+	public void illinoisStepperTest() {
+		Random random = new Random(1);
+		int bisectionUpdates = 0, illinoisUpdates = 0;
+		for (int i = 0; i < 100; ++i) {
+			final double max = random.nextBoolean() ? 255 : 4095;
+			final double root = max * (0.05 + 0.8 * random.nextDouble());
+			final double scale = max * (0.02 + 0.3 * random.nextDouble());
+			final double nanBelow = root * 0.5 * random.nextDouble();
+			final double[] curve = new double[(int) max + 1];
+			for (int t = 0; t < curve.length; ++t)
+				curve[t] = t < nanBelow ? Double.NaN
+						: Math.tanh((t - root) / scale);
+
+			Stepper bisection = new BisectionStepper(max * 0.5, max);
+			bisectionUpdates += walk(bisection, curve, root);
+			Stepper illinois = new IllinoisStepper(0, max);
+			illinoisUpdates += walk(illinois, curve, root);
+		}
+		assertTrue(illinoisUpdates < bisectionUpdates);
+	}
+
+	/**
+	 * Walks a stepper over a curve of values at integer thresholds, like
+	 * the threshold regression does, and checks where it ends.
+	 *
+	 * @return The number of updates
+	 */
+	protected int walk(Stepper stepper, double[] curve, double root) {
+		int updates = 0;
+		double t = Double.NaN;
+		while (!stepper.isFinished()) {
+			t = Math.round(stepper.getValue());
+			stepper.update(curve[(int) t]);
+			++updates;
+		}
+		assertEquals(root, t, 2.5);
+		return updates;
+	}
 }
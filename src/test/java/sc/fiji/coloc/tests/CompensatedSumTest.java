@@ -0,0 +1,128 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import net.imglib2.DoublePairIterator;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+import sc.fiji.coloc.algorithms.Accumulator;
+import sc.fiji.coloc.gadgets.CompensatedSum;
+
+/**
+ * This class contains JUnit 4 test cases for the compensated and
+ * mergeable sums used to accumulate pixel values.
+ */
+public class CompensatedSumTest {
+
+	/**
+	 * Checks that small values are not lost when added to a large sum.
+	 */
+	@Test
+	public void compensationTest() {
+		CompensatedSum sum = new CompensatedSum(1e16);
+		double naive = 1e16;
+		for (int i = 0; i < 1000; ++i) {
+			sum.add(1.0);
+			naive += 1.0;
+		}
+		sum.add(-1e16);
+		naive -= 1e16;
+		assertEquals(1000.0, sum.getSum(), 0.0);
+		// make sure the test data really is a problem for plain doubles
+		assertEquals(0.0, naive, 0.0);
+	}
+
+	/**
+	 * Checks that accumulators that got different parts of the data
+	 * merge to the same sums as a single accumulator.
+	 */
+	@Test
+	public void mergeTest() {
+		Random random = new Random(42);
+		double[] values1 = new double[100000];
+		double[] values2 = new double[values1.length];
+		for (int i = 0; i < values1.length; ++i) {
+			values1[i] = random.nextDouble() * 1e6;
+			values2[i] = random.nextDouble() * 1e-3;
+		}
+
+		Accumulator<FloatType> serial = createAccumulator();
+		for (int i = 0; i < values1.length; ++i)
+			serial.accumulate(values1[i], values2[i]);
+
+		Accumulator<FloatType> merged = createAccumulator();
+		int numParts = 7;
+		for (int p = 0; p < numParts; ++p) {
+			Accumulator<FloatType> part = merged.split();
+			for (int i = p * values1.length / numParts; i < (p + 1) * values1.length / numParts; ++i)
+				part.accumulate(values1[i], values2[i]);
+			merged.merge(part);
+		}
+
+		assertEquals(serial.getCount(), merged.getCount());
+		assertEquals(serial.getX(), merged.getX(), Math.ulp(serial.getX()));
+		assertEquals(serial.getY(), merged.getY(), Math.ulp(serial.getY()));
+		assertEquals(serial.getXX(), merged.getXX(), Math.ulp(serial.getXX()));
+		assertEquals(serial.getXY(), merged.getXY(), Math.ulp(serial.getXY()));
+		assertEquals(serial.getYY(), merged.getYY(), Math.ulp(serial.getYY()));
+	}
+
+	private static Accumulator<FloatType> createAccumulator() {
+		return new Accumulator<FloatType>(new DoublePairIterator() {
+			@Override
+			public boolean hasNext() {
+				return false;
+			}
+
+			@Override
+			public void reset() {
+				// nothing to reset
+			}
+
+			@Override
+			public void nextPair() {
+				// there are no pairs
+			}
+
+			@Override
+			public double first() {
+				return 0;
+			}
+
+			@Override
+			public double second() {
+				return 0;
+			}
+		}) {
+			@Override
+			public boolean accept(double value1, double value2) {
+				return true;
+			}
+		};
+	}
+}
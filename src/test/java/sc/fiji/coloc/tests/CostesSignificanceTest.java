@@ -21,16 +21,37 @@
  */
 package sc.fiji.coloc.tests;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 
 import org.junit.Test;
 
 import sc.fiji.coloc.algorithms.AutoThresholdRegression;
+import sc.fiji.coloc.algorithms.BlockShuffler;
 import sc.fiji.coloc.algorithms.MissingPreconditionException;
 import sc.fiji.coloc.algorithms.PearsonsCorrelation;
+import sc.fiji.coloc.algorithms.SeparableGauss;
+import sc.fiji.coloc.algorithms.ShuffledBlocksView;
 import sc.fiji.coloc.gadgets.DataContainer;
 
 /**
@@ -118,4 +139,253 @@ public class CostesSignificanceTest extends ColocalisationTest {
 			}
 		}
 	}
+
+	/**
+	 * Checks that the Costes test works on images stored in cells, like
+	 * images cached on disk, where the shuffled image is smoothed and
+	 * correlated cell by cell. Strongly colocalised data has to give a
+	 * high P value, like with images in memory.
+	 */
+	@Test
+	public void cellImgTest() throws MissingPreconditionException {
+		final int width = 128;
+		final int height = 128;
+		final double[] sigma = new double[] {3.0,3.0};
+		RandomAccessibleInterval<FloatType> ch1 = TestImageAccessor.producePerlinNoiseImage(
+			new FloatType(), width, height, 2.178, 0.1);
+		RandomAccessibleInterval<FloatType> ch2 = TestImageAccessor.producePerlinNoiseImage(
+			new FloatType(), width, height, 2.178, 0.1);
+		RandomAccessibleInterval<FloatType> colocImg = TestImageAccessor.produceNoiseImage(
+			width, height, 7, width * height / 100);
+		TestImageAccessor.combineImages(ch1, colocImg);
+		ch1 = TestImageAccessor.gaussianSmooth(ch1, sigma);
+		TestImageAccessor.combineImages(ch2, colocImg);
+		ch2 = TestImageAccessor.gaussianSmooth(ch2, sigma);
+
+		DataContainer<FloatType> container = new DataContainer<FloatType>(
+				TestImageAccessor.copyToCellImg(ch1, 32, 32),
+				TestImageAccessor.copyToCellImg(ch2, 32, 32),
+				1, 1, "Channel 1", "Channel 2");
+		PearsonsCorrelation<FloatType> pc
+			= new PearsonsCorrelation<FloatType>(PearsonsCorrelation.Implementation.Fast);
+		AutoThresholdRegression<FloatType> atr
+			= new AutoThresholdRegression<FloatType>(pc);
+		container.setAutoThreshold(atr);
+		atr.execute(container);
+		pc.execute(container);
+
+		sc.fiji.coloc.algorithms.CostesSignificanceTest<FloatType> costes
+			= new sc.fiji.coloc.algorithms.CostesSignificanceTest<FloatType>(pc, 3, 10, false);
+		costes.execute(container);
+		double pVal = costes.getCostesPValue();
+		assertTrue("Costes P value was " + pVal, pVal > 0.95);
+		assertTrue(Math.abs(costes.getShuffledMean()) < pc.getPearsonsCorrelationValue());
+	}
+
+	/**
+	 * Checks that the randomizations give the same verdict when they run
+	 * on several workers in parallel and when they run one after another,
+	 * and that the same seed gives bit-identical results either way.
+	 */
+	@Test
+	public void parallelTest() throws MissingPreconditionException {
+		final int width = 128;
+		final int height = 128;
+		final double[] sigma = new double[] {3.0,3.0};
+		RandomAccessibleInterval<FloatType> ch1 = TestImageAccessor.producePerlinNoiseImage(
+			new FloatType(), width, height, 2.178, 0.1);
+		RandomAccessibleInterval<FloatType> ch2 = TestImageAccessor.producePerlinNoiseImage(
+			new FloatType(), width, height, 2.178, 0.1);
+		RandomAccessibleInterval<FloatType> colocImg = TestImageAccessor.produceNoiseImage(
+			width, height, 7, width * height / 100);
+		TestImageAccessor.combineImages(ch1, colocImg);
+		ch1 = TestImageAccessor.gaussianSmooth(ch1, sigma);
+		TestImageAccessor.combineImages(ch2, colocImg);
+		ch2 = TestImageAccessor.gaussianSmooth(ch2, sigma);
+
+		DataContainer<FloatType> container = new DataContainer<FloatType>(ch1, ch2,
+				1, 1, "Channel 1", "Channel 2");
+		PearsonsCorrelation<FloatType> pc
+			= new PearsonsCorrelation<FloatType>(PearsonsCorrelation.Implementation.Fast);
+		AutoThresholdRegression<FloatType> atr
+			= new AutoThresholdRegression<FloatType>(pc);
+		container.setAutoThreshold(atr);
+		atr.execute(container);
+		pc.execute(container);
+
+		ForkJoinPool pool = new ForkJoinPool(4), smallPool = new ForkJoinPool(2);
+		try {
+			double[] means = new double[3];
+			ForkJoinPool[] pools = new ForkJoinPool[] { pool, null, smallPool };
+			for (int i = 0; i < pools.length; i++) {
+				sc.fiji.coloc.algorithms.CostesSignificanceTest<FloatType> costes
+					= new sc.fiji.coloc.algorithms.CostesSignificanceTest<FloatType>(pc, 3, 10, false, 42);
+				costes.setPool(pools[i]);
+				costes.execute(container);
+				double pVal = costes.getCostesPValue();
+				assertTrue("Costes P value was " + pVal, pVal > 0.95);
+				means[i] = costes.getShuffledMean();
+			}
+			assertEquals(means[0], means[1], 0.0);
+			assertEquals(means[0], means[2], 0.0);
+		} finally {
+			pool.shutdown();
+			smallPool.shutdown();
+		}
+	}
+
+	/**
+	 * Checks that the block shuffler copies the blocks like they are
+	 * shown by a {@link ShuffledBlocksView}, for blocks within the image
+	 * as well as for blocks reaching beyond it.
+	 */
+	@Test
+	public void blockShufflerTest() {
+		Img<FloatType> img = ArrayImgs.floats(23, 17);
+		Img<FloatType> target = ArrayImgs.floats(23, 17);
+		checkBlockShuffler(img, target, new long[] { 1, 2 }, new long[] { 3, 3 },
+				new long[] { 21, 14 });
+
+		Img<UnsignedByteType> stack = PlanarImgs.unsignedBytes(13, 11, 7);
+		Img<UnsignedByteType> stackTarget = PlanarImgs.unsignedBytes(13, 11, 7);
+		checkBlockShuffler(stack, stackTarget, new long[] { 0, 0, 0 },
+				new long[] { 4, 4, 4 }, new long[] { 13, 11, 7 });
+	}
+
+	private <T extends RealType<T>> void checkBlockShuffler(
+			Img<T> img, Img<T> target, long[] offset, long[] blockSize, long[] size) {
+		Random random = new Random(17);
+		for (T value : img)
+			value.setReal(random.nextInt(200));
+		long[] nrBlocks = new long[offset.length];
+		int count = 1;
+		for (int d = 0; d < offset.length; d++) {
+			nrBlocks[d] = size[d] / blockSize[d] + 1;
+			count *= nrBlocks[d];
+		}
+		BlockShuffler<T> shuffler = BlockShuffler.create(img, target, offset, blockSize, nrBlocks);
+		assertTrue(shuffler != null);
+		assertEquals(count, shuffler.getBlockCount());
+
+		int[] order = new int[count];
+		sc.fiji.coloc.algorithms.CostesSignificanceTest.shuffle(order, new SplittableRandom(3));
+		shuffler.shuffle(order);
+		RandomAccess<T> expected = new ShuffledBlocksView<T>(img, offset, blockSize,
+				nrBlocks, order).randomAccess();
+		Cursor<T> cursor = target.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			expected.setPosition(cursor);
+			assertEquals(expected.get().getRealDouble(), cursor.get().getRealDouble(), 0.0);
+		}
+	}
+
+	/**
+	 * Checks that the reusable smoothing gives the same result as Gauss3
+	 * on a mirrored image, also when it is run a second time, when its
+	 * lines are split into chunks and when only a region is smoothed.
+	 */
+	@Test
+	public void separableGaussTest() throws IncompatibleTypeException {
+		final double[] sigma = new double[] { 3.0, 3.0, 2.0 };
+		final long[] dims = new long[] { 131, 53, 21 };
+		Img<FloatType> img = ArrayImgs.floats(dims);
+		Random random = new Random(5);
+		for (FloatType value : img)
+			value.set(random.nextFloat() * 100);
+		Img<FloatType> expected = ArrayImgs.floats(dims);
+		Gauss3.gauss(sigma, Views.extendMirrorSingle(img), expected);
+
+		ForkJoinPool pool = new ForkJoinPool(3);
+		try {
+			for (ForkJoinPool p : new ForkJoinPool[] { null, pool }) {
+				SeparableGauss<FloatType> gauss = new SeparableGauss<FloatType>(dims,
+						SeparableGauss.halfkernels(sigma));
+				gauss.setPool(p);
+				Img<FloatType> smoothed = ArrayImgs.floats(dims);
+				for (int run = 0; run < 2; run++) {
+					gauss.smooth(img, smoothed);
+					Cursor<FloatType> e = expected.cursor(), c = smoothed.cursor();
+					while (e.hasNext())
+						assertEquals(e.next().get(), c.next().get(), 1e-3);
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		// a region smoothed with its halo has the values of the whole image
+		Interval region = new FinalInterval(new long[] { 40, 7, 3 },
+				new long[] { 90, 30, 11 });
+		SeparableGauss<FloatType> gauss = new SeparableGauss<FloatType>(dims,
+				SeparableGauss.halfkernels(sigma));
+		float[] smoothed = new float[(int) Intervals.numElements(region)];
+		gauss.smooth(Views.extendMirrorSingle(img), region, smoothed);
+		Cursor<FloatType> e = Views.flatIterable(Views.interval(expected, region)).cursor();
+		for (int i = 0; e.hasNext(); i++)
+			assertEquals(e.next().get(), smoothed[i], 1e-3);
+	}
+
+	/**
+	 * Checks that early stopping decides obvious cases quickly and that
+	 * strongly colocalised data stops before the maximum is reached.
+	 * Independent data may or may not stop early. The P-value of a stopped run has to be on the same side of
+	 * 1 - alpha as the one of a run of all randomizations with the same
+	 * seed, for colocalised as well as for independent data.
+	 */
+	@Test
+	public void earlyStoppingTest() throws MissingPreconditionException {
+		// the original value at the shuffled mean: not significant after 20
+		assertTrue(sc.fiji.coloc.algorithms.CostesSignificanceTest.isDecided(0.0, 0.0, 0.1, 20, 0.05));
+		// a bit above the quantile of 1 - alpha: only decided with enough randomizations
+		assertTrue(!sc.fiji.coloc.algorithms.CostesSignificanceTest.isDecided(0.25, 0.0, 0.1, 20, 0.05));
+		assertTrue(sc.fiji.coloc.algorithms.CostesSignificanceTest.isDecided(0.25, 0.0, 0.1, 2000, 0.05));
+
+		final int width = 128;
+		final int height = 128;
+		final double[] sigma = new double[] {3.0,3.0};
+		for (boolean colocalised : new boolean[] { true, false }) {
+			RandomAccessibleInterval<FloatType> ch1 = TestImageAccessor.producePerlinNoiseImage(
+				new FloatType(), width, height, 2.178, 0.1);
+			RandomAccessibleInterval<FloatType> ch2 = TestImageAccessor.producePerlinNoiseImage(
+				new FloatType(), width, height, 2.178, 0.1);
+			if (colocalised) {
+				RandomAccessibleInterval<FloatType> colocImg = TestImageAccessor.produceNoiseImage(
+					width, height, 7, width * height / 100);
+				TestImageAccessor.combineImages(ch1, colocImg);
+				TestImageAccessor.combineImages(ch2, colocImg);
+			}
+			ch1 = TestImageAccessor.gaussianSmooth(ch1, sigma);
+			ch2 = TestImageAccessor.gaussianSmooth(ch2, sigma);
+
+			DataContainer<FloatType> container = new DataContainer<FloatType>(ch1, ch2,
+					1, 1, "Channel 1", "Channel 2");
+			PearsonsCorrelation<FloatType> pc
+				= new PearsonsCorrelation<FloatType>(PearsonsCorrelation.Implementation.Fast);
+			AutoThresholdRegression<FloatType> atr
+				= new AutoThresholdRegression<FloatType>(pc);
+			container.setAutoThreshold(atr);
+			atr.execute(container);
+			pc.execute(container);
+
+			sc.fiji.coloc.algorithms.CostesSignificanceTest<FloatType> stopped
+				= new sc.fiji.coloc.algorithms.CostesSignificanceTest<FloatType>(pc, 3, 500, false, 7);
+			stopped.setEarlyStopping(0.05);
+			stopped.execute(container);
+			sc.fiji.coloc.algorithms.CostesSignificanceTest<FloatType> full
+				= new sc.fiji.coloc.algorithms.CostesSignificanceTest<FloatType>(pc, 3, 500, false, 7);
+			full.execute(container);
+
+			double pVal = stopped.getCostesPValue();
+			if (colocalised) {
+				assertTrue(stopped.isStoppedEarly());
+				int used = stopped.getNrRandomizationsUsed();
+				assertTrue("Used " + used + " randomizations", used < 500);
+				assertEquals(0, used % sc.fiji.coloc.algorithms.CostesSignificanceTest.EARLY_STOPPING_BATCH);
+				assertTrue("Costes P value was " + pVal, pVal > 0.95);
+			}
+			assertEquals("Stopped P value was " + pVal + ", full one " + full.getCostesPValue(),
+					full.getCostesPValue() > 0.95, pVal > 0.95);
+		}
+	}
 }
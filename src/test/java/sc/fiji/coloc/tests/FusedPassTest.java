@@ -0,0 +1,235 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+import sc.fiji.coloc.algorithms.Accumulator;
+import sc.fiji.coloc.algorithms.Algorithm;
+import sc.fiji.coloc.algorithms.AutoThresholdRegression;
+import sc.fiji.coloc.algorithms.FusedPass;
+import sc.fiji.coloc.algorithms.InputCheck;
+import sc.fiji.coloc.algorithms.LiHistogram2D;
+import sc.fiji.coloc.algorithms.LiICQ;
+import sc.fiji.coloc.algorithms.MandersColocalization;
+import sc.fiji.coloc.algorithms.MissingPreconditionException;
+import sc.fiji.coloc.algorithms.PearsonsCorrelation;
+import sc.fiji.coloc.algorithms.ThresholdAccumulator;
+import sc.fiji.coloc.gadgets.DataContainer;
+import sc.fiji.coloc.gadgets.MaskFactory;
+import sc.fiji.coloc.results.AnalysisResults;
+import sc.fiji.coloc.results.ValueResult;
+
+/**
+ * This class contains JUnit 4 test cases for the collection of per-pixel
+ * data of several algorithms within one shared pass.
+ */
+public class FusedPassTest extends ColocalisationTest {
+
+	/**
+	 * Checks that algorithms produce the same results, regardless
+	 * of their data being collected by a shared pass or not.
+	 */
+	@Test
+	public void sharedPassMatchesSeparatePassesTest()
+			throws MissingPreconditionException {
+		DataContainer<UnsignedByteType> container =
+				new DataContainer<UnsignedByteType>(positiveCorrelationImageCh1,
+						positiveCorrelationImageCh2, 1, 1, "Channel 1", "Channel 2");
+		List<ValueResult> separate = runJobs(container, Implementation.SEPARATE);
+		List<ValueResult> shared = runJobs(container, Implementation.SHARED);
+
+		assertEquals(separate.size(), shared.size());
+		for (int i = 0; i < separate.size(); ++i) {
+			ValueResult s = separate.get(i);
+			ValueResult f = shared.get(i);
+			assertEquals(s.name, f.name);
+			assertEquals(s.value, f.value);
+			assertEquals(s.name, s.number, f.number, 0.0);
+		}
+	}
+
+	/**
+	 * Checks that a pass split into chunks gives the same results when
+	 * the chunks run in parallel and one after another, and that they
+	 * match a pass over the whole image.
+	 */
+	@Test
+	public void parallelPassTest() {
+		long[] dims = { 300, 300, 4 };
+		Img<FloatType> img1 = ArrayImgs.floats(dims);
+		Img<FloatType> img2 = ArrayImgs.floats(dims);
+		Random random = new Random(42);
+		for (FloatType t : img1)
+			t.set(random.nextFloat() * 1000);
+		for (FloatType t : img2)
+			t.set(random.nextFloat());
+		RandomAccessibleInterval<BitType> mask = MaskFactory.createMask(dims, true);
+
+		SumKernel parallel = new SumKernel();
+		FusedPass<FloatType> pass = new FusedPass<FloatType>();
+		pass.register(parallel);
+		pass.run(img1, img2, mask);
+
+		SumKernel sequential = new SumKernel();
+		pass = new FusedPass<FloatType>();
+		pass.setPool(null);
+		pass.register(sequential);
+		pass.run(img1, img2, mask);
+
+		// a kernel that can't be split makes the pass run in one go
+		SumKernel whole = new SumKernel();
+		pass = new FusedPass<FloatType>();
+		pass.register(whole);
+		pass.register(new FusedPass.Kernel() {
+			@Override
+			public void accumulate(double ch1, double ch2) {
+				// nothing to do
+			}
+		});
+		pass.run(img1, img2, mask);
+
+		assertEquals(300 * 300 * 4, parallel.count);
+		assertEquals(parallel.count, sequential.count);
+		assertEquals(parallel.count, whole.count);
+		assertEquals(parallel.sum1, sequential.sum1, 0.0);
+		assertEquals(parallel.sum2, sequential.sum2, 0.0);
+		assertEquals(whole.sum1, parallel.sum1, 1e-9 * whole.sum1);
+		assertEquals(whole.sum2, parallel.sum2, 1e-9 * whole.sum2);
+	}
+
+	/**
+	 * Checks that kernels fed with blocks of pairs give the same sums as
+	 * when fed pair by pair, and that other kernels of the same pass
+	 * still get every pair.
+	 */
+	@Test
+	public void batchedPassTest() {
+		long[] dims = { 301, 97, 3 };
+		Img<FloatType> img1 = ArrayImgs.floats(dims);
+		Img<FloatType> img2 = ArrayImgs.floats(dims);
+		Random random = new Random(7);
+		for (FloatType t : img1)
+			t.set(random.nextFloat() * 1000);
+		for (FloatType t : img2)
+			t.set(random.nextFloat() * 100 - 10);
+		RandomAccessibleInterval<BitType> mask = MaskFactory.createMask(dims, true);
+
+		List<ThresholdAccumulator<FloatType>> results =
+				new ArrayList<ThresholdAccumulator<FloatType>>();
+		for (boolean batched : new boolean[] { true, false }) {
+			FusedPass<FloatType> pass = new FusedPass<FloatType>();
+			pass.setBatched(batched);
+			ThresholdAccumulator<FloatType> acc = pass.register(
+					new ThresholdAccumulator<FloatType>(true, 500, 40, 300, 20, true));
+			SumKernel sums = pass.register(new SumKernel());
+			pass.run(img1, img2, mask);
+			assertEquals(301 * 97 * 3, sums.count);
+			results.add(acc);
+		}
+
+		ThresholdAccumulator<FloatType> batched = results.get(0);
+		ThresholdAccumulator<FloatType> single = results.get(1);
+		assertSameSums(single.getNone(), batched.getNone());
+		assertSameSums(single.getBelow(), batched.getBelow());
+		assertSameSums(single.getAbove(), batched.getAbove());
+	}
+
+	private static void assertSameSums(Accumulator<?> expected, Accumulator<?> actual) {
+		assertEquals(expected.getCount(), actual.getCount());
+		assertEquals(expected.getX(), actual.getX(), 1e-9 * Math.abs(expected.getXX()));
+		assertEquals(expected.getY(), actual.getY(), 1e-9 * Math.abs(expected.getYY()));
+		assertEquals(expected.getXX(), actual.getXX(), 1e-12 * expected.getXX());
+		assertEquals(expected.getXY(), actual.getXY(), 1e-9 * Math.abs(expected.getXX()));
+		assertEquals(expected.getYY(), actual.getYY(), 1e-12 * expected.getYY());
+	}
+
+	private static class SumKernel implements FusedPass.SplittableKernel {
+		double sum1, sum2;
+		long count;
+
+		@Override
+		public void accumulate(double ch1, double ch2) {
+			sum1 += ch1;
+			sum2 += ch2;
+			++count;
+		}
+
+		@Override
+		public SumKernel split() {
+			return new SumKernel();
+		}
+
+		@Override
+		public void merge(FusedPass.SplittableKernel other) {
+			SumKernel o = (SumKernel) other;
+			sum1 += o.sum1;
+			sum2 += o.sum2;
+			count += o.count;
+		}
+	}
+
+	private enum Implementation { SEPARATE, SHARED }
+
+	private List<ValueResult> runJobs(DataContainer<UnsignedByteType> container,
+			Implementation impl) throws MissingPreconditionException {
+		PearsonsCorrelation<UnsignedByteType> pc =
+				new PearsonsCorrelation<UnsignedByteType>();
+		List<Algorithm<UnsignedByteType>> jobs =
+				new ArrayList<Algorithm<UnsignedByteType>>();
+		jobs.add(container.setInputCheck(new InputCheck<UnsignedByteType>()));
+		jobs.add(container.setAutoThreshold(
+				new AutoThresholdRegression<UnsignedByteType>(pc)));
+		jobs.add(pc);
+		jobs.add(new LiHistogram2D<UnsignedByteType>(true));
+		jobs.add(new LiICQ<UnsignedByteType>());
+		jobs.add(new MandersColocalization<UnsignedByteType>());
+
+		if (impl == Implementation.SHARED) {
+			FusedPass<UnsignedByteType> pass = new FusedPass<UnsignedByteType>();
+			for (Algorithm<UnsignedByteType> a : jobs)
+				a.registerKernels(pass, container);
+			pass.run(container);
+		}
+
+		AnalysisResults<UnsignedByteType> results =
+				new AnalysisResults<UnsignedByteType>();
+		for (Algorithm<UnsignedByteType> a : jobs) {
+			a.execute(container);
+			a.processResults(results);
+		}
+		return results.values();
+	}
+}
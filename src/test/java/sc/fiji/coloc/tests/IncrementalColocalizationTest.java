@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import net.imglib2.DoublePairIterator;
+import net.imglib2.PairIterators;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import org.junit.Test;
+
+import sc.fiji.coloc.algorithms.IncrementalColocalization;
+import sc.fiji.coloc.algorithms.MandersColocalization;
+import sc.fiji.coloc.algorithms.MandersColocalization.MandersResults;
+import sc.fiji.coloc.algorithms.MissingPreconditionException;
+import sc.fiji.coloc.algorithms.PearsonsCorrelation;
+import sc.fiji.coloc.gadgets.MaskFactory;
+import sc.fiji.coloc.gadgets.ThresholdMode;
+
+/**
+ * This class contains JUnit 4 test cases for keeping colocalization
+ * coefficients up to date while tiles of an image change.
+ */
+public class IncrementalColocalizationTest extends ColocalisationTest {
+
+	final double thr1 = 60, thr2 = 40;
+
+	/**
+	 * Checks that the coefficients of all tiles of an image are the same
+	 * as the ones of the whole image, and that they stay so when tiles
+	 * are replaced, removed and the state is stored and restored.
+	 */
+	@Test
+	public void tilesTest() throws MissingPreconditionException, IOException,
+			ClassNotFoundException {
+		RandomAccessibleInterval<UnsignedByteType> img1 = positiveCorrelationImageCh1;
+		RandomAccessibleInterval<UnsignedByteType> img2 = positiveCorrelationImageCh2;
+		// the tiles are slabs along the last dimension
+		long depth = img1.dimension(img1.numDimensions() - 1);
+		long split = depth / 3;
+
+		IncrementalColocalization<UnsignedByteType> state =
+				new IncrementalColocalization<UnsignedByteType>(thr1, thr2);
+		state.put("top", tile(img1, 0, split), tile(img2, 0, split),
+				mask(img1, 0, split));
+		state.put("bottom", tile(img1, split, depth), tile(img2, split, depth),
+				mask(img1, split, depth));
+		assertEquals(Intervals.numElements(img1), state.getTotal().getCount());
+		assertSameCoefficients(img1, img2, positiveCorrelationAlwaysTrueMask, state);
+
+		// replace a tile with different data and put the original back
+		state.put("top", tile(img2, 0, split), tile(img1, 0, split),
+				mask(img1, 0, split));
+		state.put("top", tile(img1, 0, split), tile(img2, 0, split),
+				mask(img1, 0, split));
+		assertSameCoefficients(img1, img2, positiveCorrelationAlwaysTrueMask, state);
+
+		// store and restore the state
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(state);
+		out.close();
+		@SuppressWarnings("unchecked")
+		IncrementalColocalization<UnsignedByteType> restored =
+				(IncrementalColocalization<UnsignedByteType>) new ObjectInputStream(
+						new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		assertEquals(state.getTileIds(), restored.getTileIds());
+		assertSameCoefficients(img1, img2, positiveCorrelationAlwaysTrueMask, restored);
+
+		// only the bottom tile is left after removing the top one
+		assertTrue(restored.remove("top"));
+		assertFalse(restored.remove("top"));
+		assertSameCoefficients(tile(img1, split, depth), tile(img2, split, depth),
+				mask(img1, split, depth), restored);
+	}
+
+	/**
+	 * Gets the slab of an image between two positions of the last dimension.
+	 */
+	protected RandomAccessibleInterval<UnsignedByteType> tile(
+			RandomAccessibleInterval<UnsignedByteType> img, long from, long to) {
+		long[] min = Intervals.minAsLongArray(img);
+		long[] max = Intervals.maxAsLongArray(img);
+		min[min.length - 1] = from;
+		max[max.length - 1] = to - 1;
+		return Views.zeroMin(Views.interval(img, min, max));
+	}
+
+	protected RandomAccessibleInterval<BitType> mask(
+			RandomAccessibleInterval<UnsignedByteType> img, long from, long to) {
+		return MaskFactory.createMask(Intervals.dimensionsAsLongArray(
+				tile(img, from, to)), true);
+	}
+
+	protected void assertSameCoefficients(RandomAccessibleInterval<UnsignedByteType> img1,
+			RandomAccessibleInterval<UnsignedByteType> img2,
+			RandomAccessibleInterval<BitType> mask,
+			IncrementalColocalization<UnsignedByteType> state)
+			throws MissingPreconditionException {
+		DoublePairIterator iterator = PairIterators.doubles(img1, img2, mask);
+		assertEquals(PearsonsCorrelation.fastPearsons(iterator),
+				state.getPearsonsCorrelationValue(), 1e-10);
+		iterator.reset();
+		assertEquals(PearsonsCorrelation.fastPearsons(iterator, thr1, thr2,
+				ThresholdMode.Below), state.getPearsonsCorrelationBelowThreshold(), 1e-10);
+		iterator.reset();
+		assertEquals(PearsonsCorrelation.fastPearsons(iterator, thr1, thr2,
+				ThresholdMode.Above), state.getPearsonsCorrelationAboveThreshold(), 1e-10);
+
+		MandersColocalization<UnsignedByteType> mc =
+				new MandersColocalization<UnsignedByteType>();
+		iterator.reset();
+		MandersResults m = mc.calculateMandersCorrelation(iterator, 0, 0,
+				ThresholdMode.None);
+		assertEquals(m.m1, state.getMandersM1(), 1e-12);
+		assertEquals(m.m2, state.getMandersM2(), 1e-12);
+		iterator.reset();
+		MandersResults tm = mc.calculateMandersCorrelation(iterator, thr1, thr2,
+				ThresholdMode.Above);
+		assertEquals(tm.m1, state.getMandersThresholdedM1(), 1e-12);
+		assertEquals(tm.m2, state.getMandersThresholdedM2(), 1e-12);
+	}
+}
@@ -26,10 +26,12 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
 
 import net.imglib2.PairIterator;
+import net.imglib2.PairIterators;
 import net.imglib2.type.numeric.real.DoubleType;
 
 import org.junit.Test;
 
+import sc.fiji.coloc.algorithms.JointHistogram;
 import sc.fiji.coloc.algorithms.KendallTauRankCorrelation;
 import sc.fiji.coloc.algorithms.MissingPreconditionException;
 
@@ -106,6 +108,26 @@ public class KendallTauTest {
 	private void assertTau(final double expected, final int[] values1, final int[] values2) throws MissingPreconditionException {
 		final PairIterator<DoubleType> iter = pairIterator(values1, values2);
 		assertEquals(expected, KendallTauRankCorrelation.calculateMergeSort(iter), 1e-10);
+		// the joint histogram gives the same result
+		iter.reset();
+		final JointHistogram histogram = JointHistogram.create(PairIterators.doubles(iter),
+				values1.length, min(values1), max(values1), min(values2), max(values2),
+				false, 0.0, 0.0);
+		assertEquals(expected, KendallTauRankCorrelation.calculateHistogram(histogram), 1e-10);
+	}
+
+	private static int min(int[] values) {
+		int min = Integer.MAX_VALUE;
+		for (int value : values)
+			min = Math.min(min, value);
+		return min;
+	}
+
+	private static int max(int[] values) {
+		int max = Integer.MIN_VALUE;
+		for (int value : values)
+			max = Math.max(max, value);
+		return max;
 	}
 
 	private int seed;
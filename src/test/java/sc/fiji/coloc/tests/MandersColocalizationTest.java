@@ -24,6 +24,7 @@ package sc.fiji.coloc.tests;
 import static org.junit.Assert.assertEquals;
 
 import net.imglib2.Cursor;
+import net.imglib2.PairIterators;
 import net.imglib2.TwinCursor;
 import net.imglib2.converter.Converter;
 import net.imglib2.converter.Converters;
@@ -33,10 +34,15 @@ import net.imglib2.view.Views;
 
 import org.junit.Test;
 
+import sc.fiji.coloc.algorithms.AutoThresholdRegression;
 import sc.fiji.coloc.algorithms.MandersColocalization;
 import sc.fiji.coloc.algorithms.MandersColocalization.MandersResults;
 import sc.fiji.coloc.algorithms.MissingPreconditionException;
+import sc.fiji.coloc.algorithms.PearsonsCorrelation;
+import sc.fiji.coloc.gadgets.DataContainer;
 import sc.fiji.coloc.gadgets.ThresholdMode;
+import sc.fiji.coloc.results.AnalysisResults;
+import sc.fiji.coloc.results.ValueResult;
 
 /**
  * This class contains JUnit 4 test cases for the calculation
@@ -218,4 +224,87 @@ public class MandersColocalizationTest extends ColocalisationTest {
 		assertEquals(0.705665d, r.m1, 0.000001);
 		assertEquals(0.724752d, r.m2, 0.000001);
 	}
+
+	/**
+	 * Checks that the thresholded Manders' split coefficients, tM1 and
+	 * tM2, calculated in a parallel pass are the ones of a walk over
+	 * the pixels.
+	 */
+	@Test
+	public void thresholdedMandersPassTest() throws MissingPreconditionException {
+		DataContainer<UnsignedByteType> container =
+				new DataContainer<UnsignedByteType>(positiveCorrelationImageCh1,
+						positiveCorrelationImageCh2, 1, 1, "Channel 1", "Channel 2");
+		AutoThresholdRegression<UnsignedByteType> atr =
+				new AutoThresholdRegression<UnsignedByteType>(
+						new PearsonsCorrelation<UnsignedByteType>());
+		container.setAutoThreshold(atr);
+		atr.execute(container);
+
+		MandersColocalization<UnsignedByteType> mc =
+				new MandersColocalization<UnsignedByteType>();
+		mc.execute(container);
+		AnalysisResults<UnsignedByteType> results =
+				new AnalysisResults<UnsignedByteType>();
+		mc.processResults(results);
+
+		MandersResults r = mc.calculateMandersCorrelation(
+				PairIterators.doubles(container.getSourceImage1(),
+						container.getSourceImage2(), container.getMask()),
+				atr.getCh1MaxThreshold().getRealDouble(),
+				atr.getCh2MaxThreshold().getRealDouble(), ThresholdMode.Above);
+		assertEquals(r.m1, value(results, "Manders' tM1 (Above autothreshold of Ch2)"), 1e-12);
+		assertEquals(r.m2, value(results, "Manders' tM2 (Above autothreshold of Ch1)"), 1e-12);
+	}
+
+	/**
+	 * Gets a number reported to a result handler by its name.
+	 */
+	private static double value(AnalysisResults<?> results, String name) {
+		for (ValueResult v : results.values())
+			if (v.name.equals(name))
+				return v.number;
+		throw new IllegalArgumentException("No value " + name);
+	}
+
+	/**
+	 * Checks that the deprecated cursor constructor of the split
+	 * coefficient accumulator calls the hooks taking doubles.
+	 */
+	@Test
+	public void cursorSplitCoeffAccumulatorTest() {
+		TwinCursor<UnsignedByteType> cursor = new TwinCursor<UnsignedByteType>(
+				mandersA.randomAccess(),
+				mandersB.randomAccess(),
+				Views.iterable(mandersAlwaysTrueMask).localizingCursor());
+		CursorManders mc = new CursorManders();
+		mc.accumulate(cursor);
+		long pixels = Views.iterable(mandersAlwaysTrueMask).size();
+		assertEquals(2 * pixels, mc.calls);
+	}
+
+	/**
+	 * Manders' colocalization with an accumulator that walks over a
+	 * cursor, like subclasses written before the iterator over doubles
+	 * was added.
+	 */
+	static class CursorManders extends MandersColocalization<UnsignedByteType> {
+		int calls = 0;
+
+		@SuppressWarnings("deprecation")
+		void accumulate(TwinCursor<UnsignedByteType> cursor) {
+			new SplitCoeffAccumulator(cursor) {
+				@Override
+				protected boolean acceptMandersCh1(double ch1, double ch2) {
+					calls++;
+					return ch2 > 0;
+				}
+				@Override
+				protected boolean acceptMandersCh2(double ch1, double ch2) {
+					calls++;
+					return ch1 > 0;
+				}
+			};
+		}
+	}
 }
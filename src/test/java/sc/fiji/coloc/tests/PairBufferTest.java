@@ -0,0 +1,120 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import net.imglib2.DoublePairIterator;
+import net.imglib2.PairIterators;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+
+import org.junit.Test;
+
+import sc.fiji.coloc.algorithms.KendallTauRankCorrelation;
+import sc.fiji.coloc.algorithms.MissingPreconditionException;
+import sc.fiji.coloc.algorithms.SpearmanRankCorrelation;
+import sc.fiji.coloc.gadgets.DataContainer;
+import sc.fiji.coloc.gadgets.MaskFactory;
+import sc.fiji.coloc.gadgets.PairBuffer;
+
+/**
+ * This class contains JUnit 4 test cases for the buffer of pixel pairs
+ * shared by the rank based algorithms.
+ */
+public class PairBufferTest extends ColocalisationTest {
+
+	/**
+	 * Checks that all kinds of buffers keep the values of the pairs, even
+	 * if they have to grow.
+	 */
+	@Test
+	public void bufferVariantsTest() {
+		RandomAccessibleInterval<BitType> mask = MaskFactory.createMask(
+				Intervals.dimensionsAsLongArray(positiveCorrelationImageCh1),
+				positiveCorrelationMaskImage);
+		DoublePairIterator it = PairIterators.doubles(positiveCorrelationImageCh1,
+				positiveCorrelationImageCh2, mask);
+		PairBuffer reference = PairBuffer.create(it);
+		assertFalse(reference.isFloat());
+		assertTrue(reference.size() > 0);
+
+		for (boolean useFloats : new boolean[] { false, true }) {
+			for (boolean offHeap : new boolean[] { false, true }) {
+				it.reset();
+				PairBuffer buffer = PairBuffer.fill(
+						PairBuffer.create(1, useFloats, offHeap), it);
+				assertEquals(useFloats, buffer.isFloat());
+				assertEquals(reference.size(), buffer.size());
+				for (int i = 0; i < buffer.size(); ++i) {
+					assertEquals(reference.first(i), buffer.first(i), 0.0);
+					assertEquals(reference.second(i), buffer.second(i), 0.0);
+				}
+			}
+		}
+
+		assertTrue(PairBuffer.isExactAsFloat(new UnsignedByteType()));
+		assertTrue(PairBuffer.isExactAsFloat(new FloatType()));
+		assertFalse(PairBuffer.isExactAsFloat(new DoubleType()));
+	}
+
+	/**
+	 * Checks that the data container creates the buffer once and that
+	 * the rank correlations give the same results with it.
+	 */
+	@Test
+	public void sharedBufferTest() throws MissingPreconditionException {
+		DataContainer<UnsignedByteType> container =
+				new DataContainer<UnsignedByteType>(positiveCorrelationImageCh1,
+						positiveCorrelationImageCh2, 1, 1, "Channel 1", "Channel 2");
+		PairBuffer buffer = container.getPairBuffer();
+		assertSame(buffer, container.getPairBuffer());
+		// 8-bit values are stored exactly with float precision
+		assertTrue(buffer.isFloat());
+
+		double tau = KendallTauRankCorrelation.calculateMergeSort(
+				PairIterators.doubles(positiveCorrelationImageCh1,
+						positiveCorrelationImageCh2, container.getMask()));
+		assertEquals(tau, KendallTauRankCorrelation.calculateMergeSort(buffer), 0.0);
+
+		SpearmanRankCorrelation<UnsignedByteType> src =
+				new SpearmanRankCorrelation<UnsignedByteType>();
+		double rho = src.calculateSpearmanRank(PairIterators.twinCursor(
+				positiveCorrelationImageCh1, positiveCorrelationImageCh2,
+				container.getMask()));
+		assertEquals(rho, src.calculateSpearmanRank(buffer), 0.0);
+
+		container.releasePairBuffer();
+		assertNotSame(buffer, container.getPairBuffer());
+		container.setPairBufferOptions(PairBuffer.Precision.DOUBLE, true);
+		assertFalse(container.getPairBuffer().isFloat());
+		assertEquals(buffer.size(), container.getPairBuffer().size());
+	}
+}
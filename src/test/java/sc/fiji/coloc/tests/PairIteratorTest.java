@@ -0,0 +1,509 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.imglib2.ArrayPairIterator;
+import net.imglib2.CellPairIterator;
+import net.imglib2.Cursor;
+import net.imglib2.DoublePairIterator;
+import net.imglib2.IntervalMask;
+import net.imglib2.LinearTwinCursor;
+import net.imglib2.PairIterators;
+import net.imglib2.PredicateCursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.SpanMask;
+import net.imglib2.TwinCursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.predicate.MaskPredicate;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import org.junit.Test;
+
+import sc.fiji.coloc.gadgets.MaskFactory;
+
+/**
+ * This class contains JUnit 4 test cases for the iterators over the
+ * primitive values of two images.
+ */
+public class PairIteratorTest extends ColocalisationTest {
+
+	final long[] dims = { 67, 13, 5 };
+
+	/**
+	 * Checks that the iterators working on the storage arrays visit the
+	 * same values as a TwinCursor does.
+	 */
+	@Test
+	public void arrayIteratorMatchesTwinCursorTest() {
+		RandomAccessibleInterval<BitType> mask = createRandomMask(42);
+
+		assertSameValues(fill(ArrayImgs.unsignedBytes(dims), 255, 1),
+				fill(ArrayImgs.unsignedBytes(dims), 255, 2), mask);
+		assertSameValues(fill(ArrayImgs.unsignedShorts(dims), 65535, 3),
+				fill(ArrayImgs.unsignedShorts(dims), 65535, 4), mask);
+		assertSameValues(fill(ArrayImgs.floats(dims), 1000, 5),
+				fill(ArrayImgs.floats(dims), 1000, 6), mask);
+		assertSameValues(fill(PlanarImgs.unsignedBytes(dims), 255, 7),
+				fill(PlanarImgs.unsignedBytes(dims), 255, 8), mask);
+		assertSameValues(fill(PlanarImgs.unsignedShorts(dims), 65535, 9),
+				fill(PlanarImgs.unsignedShorts(dims), 65535, 10), mask);
+		assertSameValues(fill(PlanarImgs.floats(dims), 1000, 11),
+				fill(PlanarImgs.floats(dims), 1000, 12), mask);
+		// an empty and a full mask
+		assertSameValues(fill(ArrayImgs.unsignedBytes(dims), 255, 13),
+				fill(ArrayImgs.unsignedBytes(dims), 255, 14),
+				MaskFactory.createMask(dims, false));
+		assertSameValues(fill(PlanarImgs.unsignedBytes(dims), 255, 15),
+				fill(PlanarImgs.unsignedBytes(dims), 255, 16),
+				MaskFactory.createMask(dims, true));
+	}
+
+	/**
+	 * Checks that images that can't be read directly fall back to an
+	 * iterator based on a TwinCursor.
+	 */
+	@Test
+	public void unsupportedImagesTest() {
+		RandomAccessibleInterval<BitType> mask = MaskFactory.createMask(dims, true);
+		Img<UnsignedByteType> img = fill(ArrayImgs.unsignedBytes(dims), 255, 17);
+		assertNotNull(ArrayPairIterator.create(img, img, mask));
+		assertNotNull(ArrayPairIterator.create(PlanarImgs.floats(dims),
+				PlanarImgs.floats(dims), mask));
+		// views of images
+		assertNull(ArrayPairIterator.create(Views.zeroMin(img), img, mask));
+		// mismatching images
+		assertNull(ArrayPairIterator.create(img,
+				ArrayImgs.unsignedShorts(dims), mask));
+		assertNull(ArrayPairIterator.create(img,
+				ArrayImgs.unsignedBytes(10, 10), mask));
+		// the fall back still visits all the values
+		assertSameValues(Views.zeroMin(img), img, createRandomMask(18));
+	}
+
+	/**
+	 * Checks that the linear TwinCursor is picked for ArrayImgs only and
+	 * that it visits the same pixels at the same positions as a regular
+	 * TwinCursor does, also when only asking for values without moving
+	 * the cursor explicitly.
+	 */
+	@Test
+	public void linearTwinCursorTest() {
+		RandomAccessibleInterval<BitType> mask = createRandomMask(19);
+		Img<UnsignedByteType> img1 = fill(ArrayImgs.unsignedBytes(dims), 255, 20);
+		Img<UnsignedByteType> img2 = fill(ArrayImgs.unsignedBytes(dims), 255, 21);
+		assertTrue(PairIterators.twinCursor(img1, img2, mask) instanceof LinearTwinCursor);
+		assertFalse(PairIterators.twinCursor(Views.zeroMin(img1), img2, mask) instanceof LinearTwinCursor);
+		assertFalse(PairIterators.twinCursor(PlanarImgs.unsignedBytes(dims),
+				PlanarImgs.unsignedBytes(dims), mask) instanceof LinearTwinCursor);
+
+		TwinCursor<UnsignedByteType> linear = PairIterators.twinCursor(img1, img2, mask);
+		for (int run = 0; run < 2; ++run) {
+			linear.reset();
+			TwinCursor<UnsignedByteType> cursor = new TwinCursor<UnsignedByteType>(
+					img1.randomAccess(), img2.randomAccess(),
+					Views.iterable(mask).localizingCursor());
+			long[] expected = new long[dims.length];
+			long[] actual = new long[dims.length];
+			while (cursor.hasNext()) {
+				cursor.fwd();
+				assertTrue(linear.hasNext());
+				// the first run moves implicitly with getFirst()
+				if (run == 1)
+					linear.fwd();
+				assertEquals(cursor.getFirst().get(), linear.getFirst().get());
+				assertEquals(cursor.getSecond().get(), linear.getSecond().get());
+				cursor.localize(expected);
+				linear.localize(actual);
+				assertArrayEquals(expected, actual);
+				assertEquals(expected[2], linear.getLongPosition(2));
+			}
+			assertFalse(linear.hasNext());
+		}
+	}
+
+	/**
+	 * Checks that a span mask created from a bit mask has the same
+	 * content and that all iterators visit the same values with it.
+	 */
+	@Test
+	public void spanMaskTest() {
+		RandomAccessibleInterval<BitType> bits = createRandomMask(22);
+		RandomAccessibleInterval<BitType> spans = MaskFactory.createMask(dims, bits);
+		assertTrue(spans instanceof SpanMask);
+
+		// compare the content in flat order and with random access
+		Cursor<BitType> bitCursor = Views.flatIterable(bits).cursor();
+		Cursor<BitType> spanCursor = Views.flatIterable(spans).localizingCursor();
+		RandomAccess<BitType> spanAccess = spans.randomAccess();
+		long count = 0;
+		while (bitCursor.hasNext()) {
+			bitCursor.fwd();
+			spanCursor.fwd();
+			spanAccess.setPosition(bitCursor);
+			assertEquals(bitCursor.get().get(), spanCursor.get().get());
+			assertEquals(bitCursor.get().get(), spanAccess.get().get());
+			assertEquals(bitCursor.getLongPosition(1), spanCursor.getLongPosition(1));
+			if (bitCursor.get().get())
+				++count;
+		}
+		assertFalse(spanCursor.hasNext());
+		assertEquals(count, ((SpanMask) spans).countOn());
+
+		assertSameValues(fill(ArrayImgs.unsignedBytes(dims), 255, 23),
+				fill(ArrayImgs.unsignedBytes(dims), 255, 24), spans, bits);
+		assertSameValues(fill(PlanarImgs.floats(dims), 1000, 25),
+				fill(PlanarImgs.floats(dims), 1000, 26), spans, bits);
+		Img<UnsignedShortType> img = fill(ArrayImgs.unsignedShorts(dims), 65535, 27);
+		assertSameValues(Views.zeroMin(img), img, spans, bits);
+		// a box shaped mask
+		SpanMask box = SpanMask.box(dims, new long[] { 3, 2, 1 },
+				new long[] { 40, 8, 3 });
+		RandomAccessibleInterval<BitType> boxBits = MaskFactory.createMask(dims);
+		Cursor<BitType> boxCursor = Views.iterable(boxBits).localizingCursor();
+		while (boxCursor.hasNext()) {
+			boxCursor.fwd();
+			boxCursor.get().set(box.contains(boxCursor));
+		}
+		assertEquals(40 * 8 * 3, box.countOn());
+		assertSameValues(img, img, box, boxBits);
+	}
+
+	/**
+	 * Checks that a virtual mask that is on everywhere gives the same
+	 * pairs as a materialized one, and that an empty box gives none.
+	 */
+	@Test
+	public void intervalMaskTest() {
+		IntervalMask full = new IntervalMask(dims);
+		RandomAccessibleInterval<BitType> bits = MaskFactory.createMask(dims, true);
+		assertTrue(full.isFull());
+		assertEquals(dims[0] * dims[1] * dims[2], full.countOn());
+
+		Img<UnsignedByteType> img1 = fill(ArrayImgs.unsignedBytes(dims), 255, 36);
+		Img<UnsignedByteType> img2 = fill(ArrayImgs.unsignedBytes(dims), 255, 37);
+		assertSameValues(img1, img2, full, bits);
+		assertSameValues(Views.zeroMin(img1), img2, full, bits);
+		assertSameValues(fill(PlanarImgs.floats(dims), 1000, 38),
+				fill(PlanarImgs.floats(dims), 1000, 39), full, bits);
+		assertTrue(PairIterators.twinCursor(img1, img2, full) instanceof LinearTwinCursor);
+
+		IntervalMask empty = new IntervalMask(dims, new long[] { 10, 0, 0 },
+				new long[] { 10, 0, 5 });
+		assertTrue(empty.isEmpty());
+		assertFalse(empty.isFull());
+		assertEquals(0, empty.countOn());
+		assertFalse(PairIterators.doubles(img1, img2, empty).hasNext());
+		assertFalse(PairIterators.twinCursor(Views.zeroMin(img1), img2, empty).hasNext());
+	}
+
+	/**
+	 * Checks that span masks know the bounding box of their on pixels
+	 * and that iterating only over it visits the same pairs.
+	 */
+	@Test
+	public void boundingBoxTest() {
+		// a blob of on pixels with gaps, away from the image borders
+		RandomAccessibleInterval<BitType> bits = MaskFactory.createMask(dims);
+		RandomAccess<BitType> access = bits.randomAccess();
+		Random random = new Random(40);
+		for (int z = 1; z < 3; ++z)
+			for (int y = 4; y < 10; ++y)
+				for (int x = 12; x < 30; ++x)
+					if (random.nextInt(4) != 0) {
+						access.setPosition(new long[] { x, y, z });
+						access.get().set(true);
+					}
+		access.setPosition(new long[] { 11, 6, 2 });
+		access.get().set(true);
+		access.setPosition(new long[] { 30, 4, 1 });
+		access.get().set(true);
+		SpanMask spans = (SpanMask) MaskFactory.createMask(dims, bits);
+		assertArrayEquals(new long[] { 11, 4, 1 }, Intervals.minAsLongArray(spans.getBoundingBox()));
+		assertArrayEquals(new long[] { 30, 9, 2 }, Intervals.maxAsLongArray(spans.getBoundingBox()));
+
+		Img<UnsignedByteType> img1 = fill(ArrayImgs.unsignedBytes(dims), 255, 41);
+		Img<UnsignedByteType> img2 = fill(ArrayImgs.unsignedBytes(dims), 255, 42);
+		assertSameValues(img1, img2, spans, bits);
+		assertSameValues(Views.zeroMin(img1), img2, spans, bits);
+		assertSameValues(fill(PlanarImgs.floats(dims), 1000, 43),
+				fill(PlanarImgs.floats(dims), 1000, 44), spans, bits);
+		for (int numChunks : new int[] { 1, 2, 3 }) {
+			assertSameChunkedValues(img1, img2, spans, numChunks);
+			assertSameChunkedValues(Views.zeroMin(img1), img2, spans, numChunks);
+		}
+		// only the slices of the bounding box are split into chunks
+		assertEquals(2, PairIterators.doubles(img1, img2, spans, 100).size());
+
+		// a box knows its bounding box without looking at rows
+		SpanMask box = SpanMask.box(dims, new long[] { 3, 2, 1 },
+				new long[] { 40, 8, 3 });
+		assertArrayEquals(new long[] { 3, 2, 1 }, Intervals.minAsLongArray(box.getBoundingBox()));
+		assertArrayEquals(new long[] { 42, 9, 3 }, Intervals.maxAsLongArray(box.getBoundingBox()));
+
+		// nothing is on in an empty mask
+		SpanMask empty = new SpanMask(dims);
+		assertNull(empty.getBoundingBox());
+		assertFalse(PairIterators.doubles(img1, img2, empty).hasNext());
+		assertFalse(PairIterators.twinCursor(Views.zeroMin(img1), img2, empty).hasNext());
+		assertEquals(1, PairIterators.doubles(img1, img2, empty, 3).size());
+	}
+
+	/**
+	 * Checks that iterators and cursors over chunks of the images visit
+	 * the same pairs in the same order as a single iterator.
+	 */
+	@Test
+	public void chunkedIterationTest() {
+		RandomAccessibleInterval<BitType> mask = createRandomMask(28);
+		Img<UnsignedByteType> img1 = fill(ArrayImgs.unsignedBytes(dims), 255, 29);
+		Img<UnsignedByteType> img2 = fill(ArrayImgs.unsignedBytes(dims), 255, 30);
+		Img<FloatType> planar1 = fill(PlanarImgs.floats(dims), 1000, 31);
+		Img<FloatType> planar2 = fill(PlanarImgs.floats(dims), 1000, 32);
+
+		for (int numChunks : new int[] { 1, 2, 3, 5, 100 }) {
+			assertSameChunkedValues(img1, img2, mask, numChunks);
+			assertSameChunkedValues(Views.zeroMin(img1), img2, mask, numChunks);
+			assertSameChunkedValues(planar1, planar2, mask, numChunks);
+			assertSameChunkedValues(img1, img2,
+					MaskFactory.createMask(dims, mask), numChunks);
+		}
+		// there can't be more chunks than slices
+		assertEquals(dims[2], PairIterators.doubles(img1, img2, mask, 100).size());
+	}
+
+	/**
+	 * Checks that CellImgs are walked over cell by cell, visiting the same
+	 * pairs as a TwinCursor does, and that chunks of cells together visit
+	 * them in the same order as a single iterator.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void cellIteratorTest() {
+		RandomAccessibleInterval<BitType> bits = createRandomMask(45);
+		Img<UnsignedShortType> img1 = fill(ArrayImgs.unsignedShorts(dims), 65535, 46);
+		Img<UnsignedShortType> img2 = fill(ArrayImgs.unsignedShorts(dims), 65535, 47);
+		Img<UnsignedShortType> cells1 = TestImageAccessor.copyToCellImg(img1, 16, 5, 2);
+		Img<UnsignedShortType> cells2 = TestImageAccessor.copyToCellImg(img2, 16, 5, 2);
+
+		for (RandomAccessibleInterval<BitType> mask : new RandomAccessibleInterval[] {
+				bits, MaskFactory.createMask(dims, bits), new IntervalMask(dims),
+				SpanMask.box(dims, new long[] { 3, 2, 1 }, new long[] { 40, 8, 3 }) }) {
+			DoublePairIterator it = PairIterators.doubles(cells1, cells2, mask);
+			assertTrue(it instanceof CellPairIterator);
+			assertEquals(sortedPairs(PairIterators.doubles(new TwinCursor<UnsignedShortType>(
+					img1.randomAccess(), img2.randomAccess(),
+					Views.iterable(mask).localizingCursor()))), sortedPairs(it));
+
+			for (int numChunks : new int[] { 1, 2, 7, 100 }) {
+				it.reset();
+				for (DoublePairIterator chunk : PairIterators.doubles(cells1, cells2, mask, numChunks)) {
+					while (chunk.hasNext()) {
+						chunk.nextPair();
+						assertTrue(it.hasNext());
+						it.nextPair();
+						assertEquals(it.first(), chunk.first(), 0.0);
+						assertEquals(it.second(), chunk.second(), 0.0);
+					}
+				}
+				assertFalse(it.hasNext());
+			}
+		}
+		// different cell grids can't be walked over together
+		assertFalse(CellPairIterator.isSupported(cells1,
+				TestImageAccessor.copyToCellImg(img2, 8, 8, 1), bits));
+		assertFalse(CellPairIterator.isSupported(cells1, img2, bits));
+	}
+
+	/**
+	 * Gets the visited pairs of an iterator, sorted by value.
+	 */
+	protected List<String> sortedPairs(DoublePairIterator it) {
+		List<String> pairs = new ArrayList<String>();
+		while (it.hasNext()) {
+			it.nextPair();
+			pairs.add(it.first() + " " + it.second());
+		}
+		Collections.sort(pairs);
+		return pairs;
+	}
+
+	/**
+	 * Checks that copies of twin cursors continue at the same position
+	 * and that jumping forward skips the expected number of pairs.
+	 */
+	@Test
+	public void twinCursorCopyTest() {
+		RandomAccessibleInterval<BitType> mask = createRandomMask(33);
+		Img<UnsignedByteType> img1 = fill(ArrayImgs.unsignedBytes(dims), 255, 34);
+		Img<UnsignedByteType> img2 = fill(ArrayImgs.unsignedBytes(dims), 255, 35);
+		List<TwinCursor<UnsignedByteType>> cursors = new ArrayList<TwinCursor<UnsignedByteType>>();
+		cursors.add(PairIterators.twinCursor(img1, img2, mask));
+		cursors.add(PairIterators.twinCursor(Views.zeroMin(img1), img2, mask));
+		for (TwinCursor<UnsignedByteType> cursor : cursors) {
+			cursor.jumpFwd(10);
+			// a copy made after a look-ahead has to start at the same pair
+			cursor.hasNext();
+			TwinCursor<UnsignedByteType> copy = cursor.copy();
+			TwinCursor<UnsignedByteType> reference = PairIterators.twinCursor(img1, img2, mask);
+			for (int i = 0; i < 10; ++i)
+				reference.fwd();
+			long[] pos = new long[dims.length];
+			long[] refPos = new long[dims.length];
+			while (reference.hasNext()) {
+				reference.fwd();
+				assertTrue(copy.hasNext());
+				copy.fwd();
+				assertEquals(reference.getFirst().get(), copy.getFirst().get());
+				assertEquals(reference.getSecond().get(), copy.getSecond().get());
+				copy.localize(pos);
+				reference.localize(refPos);
+				assertArrayEquals(refPos, pos);
+			}
+			assertFalse(copy.hasNext());
+		}
+
+		// jumping forward with a predicate cursor
+		PredicateCursor<BitType> predicateCursor = new PredicateCursor<BitType>(
+				Views.iterable(mask).localizingCursor(), new MaskPredicate());
+		predicateCursor.jumpFwd(3);
+		Cursor<BitType> steps = new PredicateCursor<BitType>(
+				Views.iterable(mask).localizingCursor(), new MaskPredicate());
+		steps.fwd();
+		steps.fwd();
+		steps.fwd();
+		assertEquals(steps.getLongPosition(0), predicateCursor.getLongPosition(0));
+		assertEquals(steps.getLongPosition(1), predicateCursor.getLongPosition(1));
+	}
+
+	/**
+	 * Walks over the chunks of the images one after another and
+	 * compares the visited values with a single iterator.
+	 */
+	protected <T extends RealType<T>> void assertSameChunkedValues(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<T> img2,
+			RandomAccessibleInterval<BitType> mask, int numChunks) {
+		DoublePairIterator it = PairIterators.doubles(img1, img2, mask);
+		for (DoublePairIterator chunk : PairIterators.doubles(img1, img2, mask, numChunks)) {
+			while (chunk.hasNext()) {
+				chunk.nextPair();
+				assertTrue(it.hasNext());
+				it.nextPair();
+				assertEquals(it.first(), chunk.first(), 0.0);
+				assertEquals(it.second(), chunk.second(), 0.0);
+			}
+		}
+		assertFalse(it.hasNext());
+
+		it.reset();
+		for (TwinCursor<T> chunk : PairIterators.twinCursors(img1, img2, mask, numChunks)) {
+			while (chunk.hasNext()) {
+				chunk.fwd();
+				assertTrue(it.hasNext());
+				it.nextPair();
+				assertEquals(it.first(), chunk.getFirst().getRealDouble(), 0.0);
+				assertEquals(it.second(), chunk.getSecond().getRealDouble(), 0.0);
+			}
+		}
+		assertFalse(it.hasNext());
+	}
+
+	/**
+	 * Walks over the images with a TwinCursor and an iterator created by
+	 * the factory and compares the visited values. This is done twice,
+	 * to make sure resetting the iterator works.
+	 */
+	protected <T extends RealType<T>> void assertSameValues(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<T> img2,
+			RandomAccessibleInterval<BitType> mask) {
+		assertSameValues(img1, img2, mask, mask);
+	}
+
+	/**
+	 * Walks over the images with a TwinCursor and an iterator created by
+	 * the factory and compares the visited values. The TwinCursor uses
+	 * the reference mask, which is expected to have the same content as
+	 * the mask.
+	 */
+	protected <T extends RealType<T>> void assertSameValues(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<T> img2,
+			RandomAccessibleInterval<BitType> mask,
+			RandomAccessibleInterval<BitType> referenceMask) {
+		DoublePairIterator it = PairIterators.doubles(img1, img2, mask);
+		for (int run = 0; run < 2; ++run) {
+			it.reset();
+			TwinCursor<T> cursor = new TwinCursor<T>(img1.randomAccess(),
+					img2.randomAccess(), Views.iterable(referenceMask).localizingCursor());
+			while (cursor.hasNext()) {
+				cursor.fwd();
+				assertTrue(it.hasNext());
+				it.nextPair();
+				assertEquals(cursor.getFirst().getRealDouble(), it.first(), 0.0);
+				assertEquals(cursor.getSecond().getRealDouble(), it.second(), 0.0);
+			}
+			assertFalse(it.hasNext());
+		}
+	}
+
+	/**
+	 * Creates a mask with large and small gaps of masked out pixels.
+	 */
+	protected RandomAccessibleInterval<BitType> createRandomMask(long seed) {
+		Random random = new Random(seed);
+		RandomAccessibleInterval<BitType> mask = MaskFactory.createMask(dims);
+		boolean on = false;
+		for (BitType t : Views.flatIterable(mask)) {
+			// switch between runs of different lengths
+			if (random.nextInt(50) == 0)
+				on = !on;
+			t.set(on && random.nextInt(10) != 0);
+		}
+		return mask;
+	}
+
+	protected <T extends RealType<T>> Img<T> fill(Img<T> img, double max, long seed) {
+		Random random = new Random(seed);
+		for (T t : img)
+			t.setReal(Math.floor(random.nextDouble() * max));
+		return img;
+	}
+}
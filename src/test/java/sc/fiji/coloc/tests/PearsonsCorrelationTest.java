@@ -23,6 +23,8 @@ package sc.fiji.coloc.tests;
 
 import static org.junit.Assert.assertEquals;
 
+import net.imglib2.DoublePairIterator;
+import net.imglib2.PairIterators;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.TwinCursor;
 import net.imglib2.type.logic.BitType;
@@ -32,10 +34,13 @@ import net.imglib2.view.Views;
 
 import org.junit.Test;
 
+import sc.fiji.coloc.algorithms.AutoThresholdRegression;
 import sc.fiji.coloc.algorithms.MissingPreconditionException;
 import sc.fiji.coloc.algorithms.PearsonsCorrelation;
 import sc.fiji.coloc.algorithms.PearsonsCorrelation.Implementation;
+import sc.fiji.coloc.gadgets.DataContainer;
 import sc.fiji.coloc.gadgets.MaskFactory;
+import sc.fiji.coloc.gadgets.ThresholdMode;
 
 /**
  * This class contains JUnit 4 test cases for the Pearson's correlation
@@ -196,4 +201,46 @@ public class PearsonsCorrelationTest extends ColocalisationTest {
 		r = pc.calculatePearsons(mandersA, mandersI, mandersAlwaysTrueMask);
 		assertEquals(0.23d, r, 0.01);
 	}
+
+	/**
+	 * Checks that the values below and above the thresholds, which are
+	 * collected in a single pass, are the same as the ones calculated
+	 * with a pass per threshold mode. Also checks that they are the same
+	 * when taken from the histogram of the auto threshold regression.
+	 */
+	@Test
+	public void singlePassThresholdsTest() throws MissingPreconditionException {
+		for (Implementation impl : Implementation.values()) {
+			for (boolean useHistogram : new boolean[] { false, true }) {
+				DataContainer<UnsignedByteType> container =
+						new DataContainer<UnsignedByteType>(positiveCorrelationImageCh1,
+								positiveCorrelationImageCh2, 1, 1, "Channel 1", "Channel 2");
+				PearsonsCorrelation<UnsignedByteType> pc =
+						new PearsonsCorrelation<UnsignedByteType>(impl);
+				AutoThresholdRegression<UnsignedByteType> atr =
+						new AutoThresholdRegression<UnsignedByteType>(pc);
+				atr.setUseJointHistogram(useHistogram);
+				container.setAutoThreshold(atr);
+				atr.execute(container);
+				pc.execute(container);
+
+				double thr1 = atr.getCh1MaxThreshold().getRealDouble();
+				double thr2 = atr.getCh2MaxThreshold().getRealDouble();
+				DoublePairIterator iterator = PairIterators.doubles(
+						container.getSourceImage1(), container.getSourceImage2(),
+						container.getMask());
+				assertEquals(pc.calculatePearsons(iterator, container.getMeanCh1(),
+						container.getMeanCh2(), thr1, thr2, ThresholdMode.None),
+						pc.getPearsonsCorrelationValue(), 1e-9);
+				iterator.reset();
+				assertEquals(pc.calculatePearsons(iterator, container.getMeanCh1(),
+						container.getMeanCh2(), thr1, thr2, ThresholdMode.Below),
+						pc.getPearsonsCorrelationBelowThreshold(), 1e-9);
+				iterator.reset();
+				assertEquals(pc.calculatePearsons(iterator, container.getMeanCh1(),
+						container.getMeanCh2(), thr1, thr2, ThresholdMode.Above),
+						pc.getPearsonsCorrelationAboveThreshold(), 1e-9);
+			}
+		}
+	}
 }
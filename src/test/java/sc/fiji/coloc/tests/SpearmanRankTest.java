@@ -32,6 +32,7 @@ import org.junit.Test;
 
 import sc.fiji.coloc.algorithms.MissingPreconditionException;
 import sc.fiji.coloc.algorithms.SpearmanRankCorrelation;
+import sc.fiji.coloc.gadgets.DataContainer;
 
 /**
  * This class contains JUnit 4 test cases for the calculation of
@@ -120,6 +121,26 @@ public class SpearmanRankTest extends ColocalisationTest {
 		assertEquals(-0.6382, tstat, 0.001);
 	}
 	
+	/**
+	 * Checks that ranking by histogram, as it is done for images that
+	 * don't fit into memory, gives the same rho as ranking the buffered
+	 * pixel pairs. This is checked for CellImgs, too.
+	 */
+	@Test
+	public void spearmanHistogramTest() throws MissingPreconditionException {
+		DataContainer<UnsignedByteType> container = new DataContainer<UnsignedByteType>(
+				positiveCorrelationImageCh1, positiveCorrelationImageCh2, 1, 1, "Ch1", "Ch2");
+		SpearmanRankCorrelation<UnsignedByteType> src = new SpearmanRankCorrelation<UnsignedByteType>();
+		double expected = src.calculateSpearmanRank(container.getPairBuffer());
+		assertEquals(expected, src.calculateSpearmanRankFromHistograms(container), 1e-10);
+
+		DataContainer<UnsignedByteType> cellContainer = new DataContainer<UnsignedByteType>(
+				TestImageAccessor.copyToCellImg(positiveCorrelationImageCh1, 64, 64, 1),
+				TestImageAccessor.copyToCellImg(positiveCorrelationImageCh2, 64, 64, 1),
+				1, 1, "Ch1", "Ch2");
+		assertEquals(expected, src.calculateSpearmanRankFromHistograms(cellContainer), 1e-10);
+	}
+
 	/**
 	 * Checks Spearman's Rank Correlation value for synthetic test image.
 	 * This tests the same dataset as the statisticsTest() but tests reading in image
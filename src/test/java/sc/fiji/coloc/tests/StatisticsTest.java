@@ -97,6 +97,18 @@ public class StatisticsTest {
 		assertTrue( Math.abs(phi - 0.096282) < 0.0001 );
 	}
 
+	/**
+	 * Tests the inverse of phi against known quantiles of the
+	 * Gaussian standard distribution.
+	 */
+	@Test
+	public void phiInverseTest() {
+		assertTrue( Math.abs( Statistics.phiInverse(0.5) ) < 0.0001 );
+		assertTrue( Math.abs( Statistics.phiInverse(0.975) - 1.959964 ) < 0.0001 );
+		assertTrue( Math.abs( Statistics.phiInverse(0.995) - 2.575829 ) < 0.0001 );
+		assertTrue( Math.abs( Statistics.phiInverse(0.05) + 1.644854 ) < 0.0001 );
+	}
+
 	/**
 	 * Tests the calculation of the standard deviation of a list
 	 * of values.
@@ -110,4 +122,25 @@ public class StatisticsTest {
 		double sd = Statistics.stdDeviation(values);
 		assertTrue( Math.abs( sd - 6.48074069 ) < 0.0001);
 	}
+
+	/**
+	 * Tests the cumulative binomial distribution and the Clopper-Pearson
+	 * interval against known values.
+	 */
+	@Test
+	public void clopperPearsonTest() {
+		// P(X <= 2) for 10 trials with p = 0.3 is 0.3827828
+		assertTrue( Math.abs( Statistics.binomialCdf(2, 10, 0.3) - 0.3827828 ) < 0.000001);
+		assertTrue( Statistics.binomialCdf(10, 10, 0.3) == 1.0);
+		assertTrue( Statistics.binomialCdf(0, 100000, 0.5) < 1e-300);
+
+		// no successes in 20 trials: [0, 1 - 0.025^(1/20)]
+		double[] bounds = Statistics.clopperPearson(0, 20, 0.95);
+		assertTrue( bounds[0] == 0.0);
+		assertTrue( Math.abs( bounds[1] - 0.1684335 ) < 0.00001);
+		// 5 successes in 20 trials: [0.0865715, 0.4910459]
+		bounds = Statistics.clopperPearson(5, 20, 0.95);
+		assertTrue( Math.abs( bounds[0] - 0.0865715 ) < 0.00001);
+		assertTrue( Math.abs( bounds[1] - 0.4910459 ) < 0.00001);
+	}
 }
@@ -49,6 +49,7 @@ import net.imglib2.img.ImagePlusAdapter;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
@@ -415,6 +416,23 @@ public class TestImageAccessor {
 		}
 	}
 
+	/**
+	 * Copies an image into a CellImg with the given cell size, like the
+	 * images that are cached on disk.
+	 */
+	public static <T extends RealType<T> & NativeType<T>> Img<T> copyToCellImg(
+			RandomAccessibleInterval<T> img, int... cellDims) {
+		final long[] dim = new long[ img.numDimensions() ];
+		img.dimensions(dim);
+		Img<T> cellImg = new CellImgFactory<T>(Util.getTypeFromInterval(img),
+				cellDims).create(dim);
+		Cursor<T> cursor = Views.flatIterable(img).cursor();
+		Cursor<T> cellCursor = Views.flatIterable(cellImg).cursor();
+		while (cursor.hasNext())
+			cellCursor.next().set(cursor.next());
+		return cellImg;
+	}
+
 	/**
 	 * Creates a mask image with a black background and a white
 	 * rectangular foreground.
@@ -0,0 +1,160 @@
+/*-
+ * #%L
+ * Fiji's plugin for colocalization analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.coloc.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.DoublePairIterator;
+import net.imglib2.PairIterators;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+import sc.fiji.coloc.algorithms.MandersColocalization;
+import sc.fiji.coloc.algorithms.MandersColocalization.MandersResults;
+import sc.fiji.coloc.algorithms.MissingPreconditionException;
+import sc.fiji.coloc.algorithms.PearsonsCorrelation;
+import sc.fiji.coloc.algorithms.ThresholdSurface;
+import sc.fiji.coloc.gadgets.DataContainer;
+import sc.fiji.coloc.gadgets.ThresholdMode;
+import sc.fiji.coloc.results.AnalysisResults;
+
+/**
+ * Tests the calculation of Pearson's R and Manders' split coefficients
+ * over a grid of thresholds.
+ */
+public class ThresholdSurfaceTest extends ColocalisationTest {
+
+	/**
+	 * Checks that the thresholds of a grid are spread over the range and
+	 * that small integer ranges get every value as threshold.
+	 */
+	@Test
+	public void thresholdsTest() {
+		double[] t = ThresholdSurface.createThresholds(3, 7, 256, true);
+		assertEquals(5, t.length);
+		assertEquals(3, t[0], 0.0);
+		assertEquals(7, t[4], 0.0);
+
+		t = ThresholdSurface.createThresholds(0, 4095, 64, true);
+		assertEquals(64, t.length);
+		assertEquals(0, t[0], 0.0);
+		assertEquals(4095, t[63], 0.0);
+
+		t = ThresholdSurface.createThresholds(0.5, 1.5, 11, false);
+		assertEquals(11, t.length);
+		assertEquals(1.0, t[5], 1e-12);
+	}
+
+	/**
+	 * Checks the grid of an 8-bit image pair, where every value is a
+	 * threshold, against the values calculated on the pixels.
+	 */
+	@Test
+	public void byteSurfaceTest() throws MissingPreconditionException {
+		assertSameSurface(new DataContainer<UnsignedByteType>(
+				positiveCorrelationImageCh1, positiveCorrelationImageCh2,
+				1, 1, "Channel 1", "Channel 2"), 16);
+	}
+
+	/**
+	 * Checks the grid of a floating point image pair, with pixels equal
+	 * to some of the thresholds, against the values calculated on the
+	 * pixels.
+	 */
+	@Test
+	public void floatSurfaceTest() throws MissingPreconditionException {
+		Img<FloatType> img1 = ArrayImgs.floats(100, 80);
+		Img<FloatType> img2 = ArrayImgs.floats(100, 80);
+		Random random = new Random(11);
+		Cursor<FloatType> c1 = img1.cursor(), c2 = img2.cursor();
+		while (c1.hasNext()) {
+			// multiples of 100 fall onto the thresholds
+			float value = random.nextInt(3) == 0 ? 100 * random.nextInt(11)
+					: random.nextFloat() * 1000;
+			c1.next().set(value);
+			c2.next().set(value * 0.5f + random.nextInt(5) * 100);
+		}
+		DataContainer<FloatType> container = new DataContainer<FloatType>(
+				img1, img2, 1, 1, "Channel 1", "Channel 2");
+		assertSameSurface(container, 11);
+	}
+
+	protected <T extends RealType<T>> void assertSameSurface(
+			DataContainer<T> container, int gridSize)
+			throws MissingPreconditionException {
+		for (PearsonsCorrelation.Implementation impl : PearsonsCorrelation.Implementation.values()) {
+			PearsonsCorrelation<T> pc = new PearsonsCorrelation<T>(impl);
+			ThresholdSurface<T> surface = new ThresholdSurface<T>(pc, gridSize);
+			surface.execute(container);
+
+			double[] thresholds1 = surface.getHistogram().getThresholdsCh1();
+			double[] thresholds2 = surface.getHistogram().getThresholdsCh2();
+			DoublePairIterator iterator = PairIterators.doubles(container.getSourceImage1(),
+					container.getSourceImage2(), container.getMask());
+			MandersColocalization<T> mc = new MandersColocalization<T>();
+			for (int i = 0; i < thresholds1.length; i += 3) {
+				for (int j = 0; j < thresholds2.length; j += 2) {
+					assertSamePearsons(pc, container, iterator, thresholds1[i],
+							thresholds2[j], ThresholdMode.Below,
+							surface.getPearsonsBelow()[i][j]);
+					assertSamePearsons(pc, container, iterator, thresholds1[i],
+							thresholds2[j], ThresholdMode.Above,
+							surface.getPearsonsAbove()[i][j]);
+
+					iterator.reset();
+					MandersResults manders = mc.calculateMandersCorrelation(iterator,
+							thresholds1[i], thresholds2[j], ThresholdMode.Above);
+					assertEquals(manders.m1, surface.getHistogram().getMandersM1(j), 1e-9);
+					assertEquals(manders.m2, surface.getHistogram().getMandersM2(i), 1e-9);
+				}
+			}
+
+			AnalysisResults<T> results = new AnalysisResults<T>();
+			surface.processResults(results);
+			assertEquals(2, results.images().size());
+			assertEquals(thresholds1.length * thresholds2.length,
+					results.tables().get(0).getRowCount());
+		}
+	}
+
+	protected <T extends RealType<T>> void assertSamePearsons(PearsonsCorrelation<T> pc,
+			DataContainer<T> container, DoublePairIterator iterator, double t1,
+			double t2, ThresholdMode mode, double actual) {
+		iterator.reset();
+		double expected;
+		try {
+			expected = pc.calculatePearsons(iterator, container.getMeanCh1(),
+					container.getMeanCh2(), t1, t2, mode);
+		} catch (MissingPreconditionException e) {
+			expected = Double.NaN;
+		}
+		assertEquals(expected, actual, 1e-9);
+	}
+}